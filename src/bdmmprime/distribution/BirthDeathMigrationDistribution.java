@@ -1,6 +1,8 @@
 package bdmmprime.distribution;
 
 import bdmmprime.parameterization.Parameterization;
+import bdmmprime.parameterization.RateGradient;
+import bdmmprime.util.ComputeScheduler;
 import bdmmprime.util.Utils;
 import beast.core.*;
 import beast.core.parameter.RealParameter;
@@ -12,9 +14,18 @@ import beast.evolution.tree.TreeInterface;
 import beast.util.HeapSort;
 import org.apache.commons.math.special.Gamma;
 
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Denise Kuehnert
@@ -59,6 +70,21 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             "Use the analytical SABDSKY tree prior when the model has only one type.",
             true);
 
+    public Input<Boolean> useAnalyticalDecoupledSolutionInput = new Input<>("useAnalyticalDecoupledSolution",
+            "In rate intervals without migration or cross-birth, where the " +
+                    "types evolve independently, use the analytical " +
+                    "single-type solution for each type instead of numerical " +
+                    "integration. (Default true.)",
+            true);
+
+    public Input<Boolean> integrateAcrossBoundariesInput = new Input<>("integrateAcrossBoundaries",
+            "Integrate across rate interval boundaries at which no rho " +
+                    "sampling occurs without stopping the integration, " +
+                    "leaving the integrator's step size control to handle " +
+                    "the change in rates.  Recommended for models with many " +
+                    "(e.g. hundreds of) rate intervals. (Default false.)",
+            false);
+
     public Input<Double> relativeToleranceInput = new Input<>("relTolerance",
             "Relative tolerance for numerical integration.",
             1e-7);
@@ -67,6 +93,40 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             "Absolute tolerance for numerical integration.",
             1e-100 /*Double.MIN_VALUE*/);
 
+    public Input<Double> integrationSplitFractionInput = new Input<>("integrationSplitFraction",
+            "Integration ranges longer than this fraction of the total " +
+                    "process length are divided in two. (Default 1/6.)",
+            1.0/6);
+
+    public Input<Boolean> adaptiveToleranceInput = new Input<>("adaptiveTolerance",
+            "Start with the relative tolerance given by initialRelTolerance, " +
+                    "and tighten it towards relTolerance each time the " +
+                    "likelihoods of the accepted states appear to have " +
+                    "stabilized, during the first toleranceAdaptationBurnin " +
+                    "states. (Default false.)",
+            false);
+
+    public Input<Double> initialRelativeToleranceInput = new Input<>("initialRelTolerance",
+            "Initial relative tolerance used when adaptiveTolerance is set.",
+            1e-4);
+
+    public Input<Integer> toleranceAdaptationWindowInput = new Input<>("toleranceAdaptationWindow",
+            "Number of accepted states considered each time the stability " +
+                    "of the likelihood is assessed when adaptiveTolerance is set.",
+            1000);
+
+    public Input<Long> toleranceAdaptationBurninInput = new Input<>("toleranceAdaptationBurnin",
+            "Number of states (MCMC steps) after which relTolerance is used " +
+                    "when adaptiveTolerance is set.  States are counted as " +
+                    "the proposals affecting this distribution are " +
+                    "evaluated, and brought up to the sample number each " +
+                    "time the distribution is logged.  Unless it is logged " +
+                    "often, the count lags behind the MCMC steps, so " +
+                    "relTolerance may be imposed later than this.  The " +
+                    "tolerance never changes afterwards, so this must be " +
+                    "well within the burn-in discarded from the analysis.  " +
+                    "Required when adaptiveTolerance is set.");
+
     public Input<Boolean> parallelizeInput = new Input<>(
             "parallelize",
             "Whether or not to parallelized the calculation of subtree likelihoods. " +
@@ -84,34 +144,229 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
                     "calculations on the children. (default: 1/10). ",
             1.0 / 10);
 
+    public Input<ComputeScheduler> schedulerInput = new Input<>(
+            "scheduler",
+            "Scheduler providing the worker threads used for the parallelized " +
+                    "calculation of subtree likelihoods.  (Default is a " +
+                    "scheduler shared by all components in the JVM, with one " +
+                    "thread per available processor.)");
+
+    public Input<Integer> threadsInput = new Input<>(
+            "threads",
+            "Maximum number of threads working on the parallelized " +
+                    "calculation of subtree likelihoods of this distribution, " +
+                    "counting the thread evaluating it.  The additional " +
+                    "threads are taken from the pool of the scheduler, so " +
+                    "this caps the share of the scheduler used by this " +
+                    "distribution.  (Default is the calling thread and all " +
+                    "threads of the scheduler.)");
+
+    public enum NumericMode {EXTENDED, SCALED}
+
+    public Input<NumericMode> numericModeInput = new Input<>("numericMode",
+            "Representation of the ge values used during the likelihood " +
+                    "calculation.  EXTENDED stores each value in extended " +
+                    "floating point form, while SCALED stores the values of " +
+                    "each state as doubles sharing a single log scale factor, " +
+                    "falling back to the extended form for states whose values " +
+                    "span too wide a range. (Default EXTENDED.)",
+            NumericMode.EXTENDED, NumericMode.values());
+
+    public Input<Boolean> usePropagatorGridInput = new Input<>("usePropagatorGrid",
+            "When every edge needs to be recomputed, compute the propagators " +
+                    "of the ge equations once over a grid of node and interval " +
+                    "times, and apply these to each edge rather than integrating " +
+                    "the edges separately. (Default false.)",
+            false);
+
+    public Input<Boolean> batchedIntegrationInput = new Input<>("batchedIntegration",
+            "Compute the states of all edges needing recomputation in a " +
+                    "single backward sweep through time, integrating the ge " +
+                    "values of all edges alive at the same time together " +
+                    "with a shared step size.  Edges are not integrated in " +
+                    "parallel in this mode. (Default false.)",
+            false);
+
+    public Input<Boolean> shareLeafEdgesInput = new Input<>("shareLeafEdges",
+            "Integrate the edges above leaves sharing the same sampling " +
+                    "time, type and rho sampling flag together, reading the " +
+                    "state at the top of each edge from the dense output of " +
+                    "the integrator, rather than integrating each edge from " +
+                    "the leaf separately. (Default false.)",
+            false);
+
+    public enum SolverMode {NONSTIFF, STIFF, AUTO}
+
+    public Input<SolverMode> solverModeInput = new Input<>("solverMode",
+            "ODE solver used to integrate the p0 and ge equations.  NONSTIFF " +
+                    "uses an explicit Dormand-Prince method, STIFF uses a " +
+                    "linearly implicit Rosenbrock method, which remains " +
+                    "efficient when migration rates are high, and AUTO selects " +
+                    "the stiff method in those rate intervals which are " +
+                    "estimated to be stiff. (Default NONSTIFF.)",
+            SolverMode.NONSTIFF, SolverMode.values());
+
+    public Input<Boolean> recordIntegrationStatisticsInput = new Input<>("recordIntegrationStatistics",
+            "Record the number of integration steps and derivative " +
+                    "evaluations and the time spent integrating during each " +
+                    "likelihood evaluation, for use by an " +
+                    "IntegrationStatisticsLogger. (Default false.)",
+            false);
+
     public Input<Boolean> storeNodeTypes = new Input<>("storeNodeTypes",
             "store tip node types? this assumes that tip types cannot " +
                     "change (default false)", false);
 
-    private int[] nodeStates;
-
     private final boolean debug = false;
 //    private final boolean debug = true;
 
     private double[] rootTypeProbs, storedRootTypeProbs;
     private boolean[] isRhoTip;
 
+    private TreeIndex treeIndex;
+    private int[] storedLeafTypes;
+
     private Parameterization parameterization;
     private Function finalSampleOffset;
+    private boolean useScaledNumerics;
+    private double stiffnessThreshold;
+
+    private IntegrationStatistics integrationStatistics;
+    private ToleranceController toleranceController;
+
+    /**
+     * Integration statistics of the most recent evaluation.  Read by the
+     * management interface from other threads.
+     */
+    private volatile IntegrationStatistics.Snapshot lastIntegrationStatistics;
+    private IntegrationStatistics.Snapshot storedLastIntegrationStatistics;
+
+    /*
+     * The explicit integrator is stable only for steps below about 3.3
+     * divided by the largest eigenvalue magnitude, so above this threshold
+     * it needs many times more steps than the accuracy requires.
+     */
+    private final static double AUTO_STIFFNESS_THRESHOLD = 30.0;
+
+    /**
+     * Propagators of the ge equations for the current evaluation, or null
+     * if edges are to be integrated individually.
+     */
+    private PropagatorGrid propagatorGrid;
 
-    private double[][] pInitialConditions;
+    /**
+     * Values of p0 at each leaf time (and at time 0 in the final element),
+     * the dense output of the p0 solution over the whole process,
+     * together with the leaf times and sorted leaf indices used to compute
+     * them.  These depend only on the leaf times and the parameterization,
+     * so are reused for proposals which leave both of these unchanged.
+     */
+    private double[][] pInitialConditions, storedPInitialConditions;
+    private P0Trajectory p0Trajectory, storedP0Trajectory;
+    private double[] leafTimes, storedLeafTimes;
+    private int[] indicesSortedByLeafTime, storedIndicesSortedByLeafTime;
+    private boolean pInitialConditionsValid, storedPInitialConditionsValid;
+
+    /**
+     * Latest time at which the p0 solution computed by the last call to
+     * updateInitialConditionsForP() may differ from the previous solution.
+     */
+    private double p0ChangeTimeBound;
 
-    private static boolean isParallelizedCalculation;
-    private static double minimalProportionForParallelization;
+    private boolean isParallelizedCalculation;
+    private double minimalProportionForParallelization;
     private double parallelizationThreshold;
-    private static ThreadPoolExecutor pool;
+
+    /**
+     * Number of nodes above the subtrees traversed in parallel during the
+     * last evaluation.
+     */
+    private int parallelSplitCount;
+
+    /**
+     * Scheduler providing the worker threads, the pool of the scheduler
+     * obtained for the current evaluation (null if the calculation is not
+     * parallelized), and the maximum number of pool workers helping the
+     * calling thread.
+     */
+    private ComputeScheduler scheduler;
+    private ForkJoinPool pool;
+    private int maxHelperCount;
+
+    /**
+     * ODE systems, each holding its own integrator and integration workspace,
+     * are reused across evaluations and confined to a single thread.  A
+     * thread runs the subtree traversals it claims one after the other, so
+     * sharing a system between these traversals is safe.  The systems are
+     * configured when created, so a new set is created (lazily, on each
+     * thread) whenever initAndValidate() is called.
+     */
+    private ThreadLocal<P0GeSystem> p0GeSystems;
+
+    private P0System p0System;
 
     private double[] weightOfNodeSubTree;
 
+    /**
+     * Smoothed estimates of the time (in nanoseconds) needed to integrate
+     * the edge above each node, and of the time needed per unit of edge
+     * length, used for edges which have not been measured yet.  Edge
+     * integration times are measured during parallelized evaluations and
+     * recorded in measuredEdgeCosts (NaN where not measured) together with
+     * the edge lengths, before being folded into the estimates at the
+     * start of the next evaluation.  These are performance statistics
+     * rather than model state, so are not restored on rejection.
+     */
+    private double[] edgeCostEstimates, measuredEdgeCosts, measuredEdgeLengths;
+    private double costPerUnitLength;
+
+    /*
+     * Weight given to the most recent measurement when updating the
+     * smoothed cost estimates.
+     */
+    private final static double EDGE_COST_SMOOTHING = 0.3;
+
     private TreeInterface tree;
 
     private int originalLeafCount;
 
+    /**
+     * States at the top of the edge above each node, indexed by node number.
+     * Entries are only recomputed for edges whose subtree contains a node
+     * marked dirty by the last tree operation.
+     */
+    private P0GeState[] edgeTopStates, storedEdgeTopStates;
+    private boolean[] subtreeIsDirty;
+
+    /**
+     * True for each leaf whose edge top state has been computed by
+     * integrateSharedLeafEdges() during the current evaluation.
+     */
+    private boolean[] leafEdgeIsShared;
+    private boolean edgeTopStatesValid, storedEdgeTopStatesValid;
+
+    /**
+     * Probabilities of the part of the tree outside the subtree below each
+     * edge given the type of the lineage, at the top of the edge and at the
+     * node below it, together with the marginal type probabilities at each
+     * node, all indexed by node number.  These are computed on demand from
+     * the cached edge top states and are valid until the next evaluation
+     * or restore.
+     */
+    private double[][] edgeTopOutsideProbs, nodeOutsideProbs, nodeTypeProbs;
+    private boolean outsideProbsValid;
+
+    /**
+     * Cached quantities used by the exact single type calculation: the
+     * per-interval constants and the contribution of each node and the
+     * edge above it, indexed by node number.
+     */
+    private double[] singleTypeA, storedSingleTypeA;
+    private double[] singleTypeB, storedSingleTypeB;
+    private double[] singleTypeLogBoundaryTerms, storedSingleTypeLogBoundaryTerms;
+    private double[] singleTypeNodeLogP, storedSingleTypeNodeLogP;
+    private boolean singleTypeTermsValid, storedSingleTypeTermsValid;
+
     @Override
     public void initAndValidate() {
         parameterization = parameterizationInput.get();
@@ -135,40 +390,100 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         int nLeaves = tree.getLeafNodeCount();
 
         weightOfNodeSubTree = new double[nLeaves * 2];
+        edgeCostEstimates = new double[nLeaves * 2];
+        measuredEdgeCosts = new double[nLeaves * 2];
+        measuredEdgeLengths = new double[nLeaves * 2];
+        Arrays.fill(edgeCostEstimates, Double.NaN);
+        Arrays.fill(measuredEdgeCosts, Double.NaN);
+        costPerUnitLength = Double.NaN;
+
+        useScaledNumerics = numericModeInput.get() == NumericMode.SCALED;
+
+        switch (solverModeInput.get()) {
+            case STIFF:
+                stiffnessThreshold = 0.0;
+                break;
+            case AUTO:
+                stiffnessThreshold = AUTO_STIFFNESS_THRESHOLD;
+                break;
+            default:
+                stiffnessThreshold = Double.POSITIVE_INFINITY;
+        }
+
+        if (adaptiveToleranceInput.get()) {
+            if (toleranceAdaptationBurninInput.get() == null)
+                throw new IllegalArgumentException("Error: adaptiveTolerance requires " +
+                        "toleranceAdaptationBurnin to be specified.");
+
+            if (toleranceController == null)
+                toleranceController = new ToleranceController(initialRelativeToleranceInput.get(),
+                        relativeToleranceInput.get(), toleranceAdaptationWindowInput.get(),
+                        toleranceAdaptationBurninInput.get());
+        } else {
+            toleranceController = null;
+        }
+
+        if (recordIntegrationStatisticsInput.get()) {
+            if (integrationStatistics == null)
+                integrationStatistics = new IntegrationStatistics();
+        } else {
+            integrationStatistics = null;
+            lastIntegrationStatistics = null;
+        }
 
         isParallelizedCalculation = parallelizeInput.get();
         minimalProportionForParallelization = minimalProportionForParallelizationInput.get();
 
-        if (isParallelizedCalculation) executorBootUp();
+        if (threadsInput.get() != null && threadsInput.get() < 1)
+            throw new IllegalArgumentException("The threads input of " +
+                    "BirthDeathMigrationDistribution must be at least 1.");
 
-        if (storeNodeTypes.get()) {
+        scheduler = schedulerInput.get() != null
+                ? schedulerInput.get()
+                : ComputeScheduler.getDefault();
 
-            nodeStates = new int[nLeaves];
+        maxHelperCount = threadsInput.get() != null
+                ? threadsInput.get() - 1
+                : Integer.MAX_VALUE;
 
-            for (Node node : tree.getExternalNodes()) {
-                nodeStates[node.getNr()] = getNodeType(node, true);
-            }
-        }
+        pool = null;
+
+        // Discard the ODE systems, which were configured using the previous
+        // input values
+        p0GeSystems = ThreadLocal.withInitial(this::createP0GeSystem);
+        p0System = null;
 
         rootTypeProbs = new double[parameterization.getNTypes()];
         storedRootTypeProbs = new double[parameterization.getNTypes()];
 
         // Determine which, if any, of the leaf ages correspond exactly to
         // rho sampling times.
-        isRhoTip = new boolean[tree.getLeafNodeCount()];
-        for (int nodeNr = 0; nodeNr < tree.getLeafNodeCount(); nodeNr++) {
-            isRhoTip[nodeNr] = false;
-            double nodeTime = parameterization.getNodeTime(tree.getNode(nodeNr), finalSampleOffset.getArrayValue());
-//            double nodeTime = parameterization.getTotalProcessLength() - tree.getNode(nodeNr).getHeight();
-            for (double rhoSampTime : parameterization.getRhoSamplingTimes()) {
-                if (Utils.equalWithPrecision(rhoSampTime, nodeTime)) {
-                    isRhoTip[nodeNr] = true;
-                    break;
-                }
-            }
-        }
+        isRhoTip = TreeIndex.findRhoTips(tree, parameterization, finalSampleOffset.getArrayValue());
+
+        // Unless storeNodeTypes is set, leaf types are read again on each
+        // evaluation by updateLeafTypes()
+        int[] leafTypes = new int[tree.getLeafNodeCount()];
+        for (Node node : tree.getExternalNodes())
+            leafTypes[node.getNr()] = getNodeType(node);
+
+        treeIndex = new TreeIndex(tree.getNodeCount(), leafTypes, isRhoTip);
+        storedLeafTypes = leafTypes.clone();
 
         originalLeafCount = tree.getLeafNodeCount();
+
+        edgeTopStates = new P0GeState[tree.getNodeCount()];
+        storedEdgeTopStates = new P0GeState[tree.getNodeCount()];
+        subtreeIsDirty = new boolean[tree.getNodeCount()];
+        leafEdgeIsShared = new boolean[tree.getNodeCount()];
+        edgeTopStatesValid = false;
+
+        singleTypeNodeLogP = new double[tree.getNodeCount()];
+        storedSingleTypeNodeLogP = new double[tree.getNodeCount()];
+        singleTypeTermsValid = false;
+
+        leafTimes = null;
+        indicesSortedByLeafTime = null;
+        pInitialConditionsValid = false;
     }
 
     @Override
@@ -178,8 +493,6 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             initAndValidate();
         }
 
-        Node root = tree.getRoot();
-
         if (parameterization.getNodeTime(tree.getRoot(), finalSampleOffset.getArrayValue()) < 0.0) {
             logP = Double.NEGATIVE_INFINITY;
             return logP;
@@ -191,14 +504,61 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             return logP;
         }
 
-        P0GeSystem system = new P0GeSystem(parameterization,
-                absoluteToleranceInput.get(), relativeToleranceInput.get());
+        logP = calculateNumericalTreeLogLikelihood(tree);
+        return logP;
+    }
+
+    /**
+     * Compute the tree log likelihood by numerical integration, re-using
+     * the cached states which remain valid.
+     *
+     * @param tree tree
+     * @return log likelihood
+     */
+    private double calculateNumericalTreeLogLikelihood(TreeInterface tree) {
+
+        treeIndex.update(tree, parameterization, finalSampleOffset.getArrayValue());
+        if (!storeNodeTypes.get())
+            updateLeafTypes(tree);
+        outsideProbsValid = false;
+
+        // The pool is obtained on each evaluation, as the scheduler may
+        // have been shut down and restarted in the meantime.
+        pool = isParallelizedCalculation && maxHelperCount > 0 ? scheduler.getPool() : null;
+        parallelSplitCount = 0;
+
+        long startTime = 0;
+        if (integrationStatistics != null) {
+            integrationStatistics.reset();
+            startTime = System.nanoTime();
+        }
+
+        boolean p0Changed = updateInitialConditionsForP(tree);
+
+        if (integrationStatistics != null) {
+            integrationStatistics.addP0SweepTime(System.nanoTime() - startTime);
+            startTime = System.nanoTime();
+        }
+
+        // A change to the node times invalidates all cached edge states, as
+        // does any change to the p0 solution which is not confined to
+        // times before some point.
+        if (isDirty(finalSampleOffset)
+                || (p0Changed && p0ChangeTimeBound == Double.POSITIVE_INFINITY))
+            edgeTopStatesValid = false;
+
+        // Determine which edges need to be re-integrated
+        updateSubtreeDirtiness(p0Changed ? p0ChangeTimeBound : Double.NEGATIVE_INFINITY);
 
         // update the threshold for parallelization
-        //TODO only do it if tree shape changed
         updateParallelizationThreshold();
 
-        updateInitialConditionsForP(tree);
+        // If every edge needs to be recomputed, the cost of computing the
+        // propagators over the whole process is shared among all edges.
+        if (usePropagatorGridInput.get() && !edgeTopStatesValid)
+            propagatorGrid = computePropagatorGrid(tree);
+        else
+            propagatorGrid = null;
 
         double probNoSample = 0;
         if (conditionOnSurvival.get()) {
@@ -221,82 +581,139 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
         }
 
-        P0GeState finalP0Ge;
-        if (parameterization.conditionedOnRoot()) {
-
-            // Condition on a known root time:
-
-            finalP0Ge = new P0GeState(parameterization.getNTypes());
-
-            Node child0 = root.getChild(0);
-            Node child1 = root.getChild(1);
-
-            P0GeState child1state = calculateSubtreeLikelihood(child0, 0,
-                    parameterization.getNodeTime(child0, finalSampleOffset.getArrayValue()),
-                    system, 0);
-            P0GeState child2state = calculateSubtreeLikelihood(child1, 0,
-                    parameterization.getNodeTime(child1, finalSampleOffset.getArrayValue()),
-                    system, 0);
-
-            for (int type=0; type<parameterization.getNTypes(); type++) {
-                finalP0Ge.ge[type] = child1state.ge[type].multiplyBy(child2state.ge[type]);
-                finalP0Ge.p0[type] = child1state.p0[type];
-            }
+        if (batchedIntegrationInput.get())
+            integrateEdgesBatched(tree, getP0GeSystem());
+        else if (shareLeafEdgesInput.get())
+            integrateSharedLeafEdges(getP0GeSystem());
 
-        } else {
+        // The traversal runs on the calling thread, which takes part in
+        // the parallel sections alongside the pool workers.
+        P0GeState finalP0Ge = calculateRootState(getP0GeSystem());
 
-            // Condition on origin time, as usual:
+        edgeTopStatesValid = true;
 
-            finalP0Ge = calculateSubtreeLikelihood(root, 0,
-                    parameterization.getNodeTime(tree.getRoot(), finalSampleOffset.getArrayValue()),
-                    system, 0);
+        if (integrationStatistics != null) {
+            integrationStatistics.addEdgeTraversalTime(System.nanoTime() - startTime);
+            lastIntegrationStatistics = integrationStatistics.getSnapshot();
         }
 
         if (debug) System.out.print("Final state: " + finalP0Ge);
 
-        SmallNumber PrSN = new SmallNumber(0);
+        // Joint probabilities are accumulated in log space, relative to the
+        // largest of them, to avoid underflow:
+        double maxLogJointProb = Double.NEGATIVE_INFINITY;
         for (int rootType = 0; rootType < parameterization.getNTypes(); rootType++) {
 
-            SmallNumber jointProb = finalP0Ge
-                    .ge[rootType]
-                    .scalarMultiplyBy(frequenciesInput.get().getArrayValue(rootType));
+            double freq = frequenciesInput.get().getArrayValue(rootType);
+            rootTypeProbs[rootType] = freq > 0
+                    ? finalP0Ge.getGeLog(rootType) + Math.log(freq)
+                    : Double.NEGATIVE_INFINITY;
 
-            if (jointProb.getMantissa() > 0) {
-                rootTypeProbs[rootType] = jointProb.log();
-                PrSN = PrSN.addTo(jointProb);
-            } else {
-                rootTypeProbs[rootType] = Double.NEGATIVE_INFINITY;
-            }
+            maxLogJointProb = Math.max(maxLogJointProb, rootTypeProbs[rootType]);
+        }
+
+        double logPr = Double.NEGATIVE_INFINITY;
+        if (maxLogJointProb > Double.NEGATIVE_INFINITY) {
+            double sum = 0.0;
+            for (int rootType = 0; rootType < parameterization.getNTypes(); rootType++)
+                sum += Math.exp(rootTypeProbs[rootType] - maxLogJointProb);
+
+            logPr = maxLogJointProb + Math.log(sum);
         }
 
         // Normalize root type probs:
         for (int rootType = 0; rootType < parameterization.getNTypes(); rootType++) {
-            rootTypeProbs[rootType] -= PrSN.log();
+            rootTypeProbs[rootType] -= logPr;
             rootTypeProbs[rootType] = Math.exp(rootTypeProbs[rootType]);
         }
 
         // TGV: Why is there not one of these factors per subtree when conditioning
         // on root?
         if (conditionOnSurvival.get()) {
-            PrSN = PrSN.scalarMultiplyBy(1 / (1 - probNoSample));
+            logPr -= Math.log(1 - probNoSample);
         }
 
-        logP = PrSN.log();
-
         // Convert from oriented to labeled tree probability density:
         int internalNodeCount = tree.getLeafNodeCount() - ((Tree) tree).getDirectAncestorNodeCount() - 1;
-        logP += Math.log(2) * internalNodeCount - Gamma.logGamma(tree.getLeafNodeCount()+1);
+        logPr += Math.log(2) * internalNodeCount - Gamma.logGamma(tree.getLeafNodeCount()+1);
 
-        if (debug) System.out.println("\nlogP = " + logP);
+        if (debug) System.out.println("\nlogP = " + logPr);
 
-        return logP;
+        return logPr;
     }
 
-    private int getNodeType(Node node, Boolean init) {
+    /**
+     * Compute the state at the start of the process, either at the origin
+     * or, when conditioning on the root time, at the root.
+     *
+     * @param system object describing ODEs to integrate.
+     * @return final state
+     */
+    private P0GeState calculateRootState(P0GeSystem system) {
+
+        int rootNr = treeIndex.rootNr;
+
+        P0GeState finalP0Ge;
+        if (parameterization.conditionedOnRoot()) {
+
+            // Condition on a known root time:
+
+            finalP0Ge = new P0GeState(parameterization.getNTypes());
+
+            int child0Nr = treeIndex.firstChildNrs[rootNr];
+            int child1Nr = treeIndex.secondChildNrs[rootNr];
+
+            calculateSubtreeStates(child0Nr, 0, system);
+            calculateSubtreeStates(child1Nr, 0, system);
+
+            P0GeState child1state = edgeTopStates[child0Nr];
+            P0GeState child2state = edgeTopStates[child1Nr];
+
+            if (useScaledNumerics && P0GeState.canMultiplyScaled(child1state, child2state)) {
+                finalP0Ge.setScaled();
+            } else {
+                if (useScaledNumerics)
+                    recordExtendedFallback();
+
+                child1state = child1state.getExtended();
+                child2state = child2state.getExtended();
+            }
+
+            for (int type=0; type<parameterization.getNTypes(); type++) {
+                finalP0Ge.setGeToProduct(type, child1state, type, child2state, type, 1.0);
+                finalP0Ge.p0[type] = child1state.p0[type];
+            }
+
+        } else {
+
+            // Condition on origin time, as usual:
+
+            calculateSubtreeStates(rootNr, 0, system);
+            finalP0Ge = edgeTopStates[rootNr];
+        }
+
+        return finalP0Ge;
+    }
 
+    /**
+     * Read the type of each leaf from the type trait set or the node
+     * metadata, marking leaves whose type differs from the one recorded
+     * in the tree index dirty, so that the edges above them are
+     * recomputed.
+     *
+     * @param tree tree whose leaf types to read
+     */
+    private void updateLeafTypes(TreeInterface tree) {
+        for (int nodeNr = 0; nodeNr < treeIndex.leafCount; nodeNr++)
+            treeIndex.updateLeafType(nodeNr, getNodeType(tree.getNode(nodeNr)));
+    }
 
-        if (storeNodeTypes.get() && !init)
-            return nodeStates[node.getNr()];
+    /**
+     * @param node leaf node
+     * @return index of the type of node, read from the type trait set or
+     * the node metadata.
+     */
+    private int getNodeType(Node node) {
 
         int nodeType;
 
@@ -319,263 +736,1881 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
             nodeType = 0;
         }
 
-        if (storeNodeTypes.get())
-            nodeStates[node.getNr()] = nodeType;
-
         return nodeType;
     }
 
 
     /**
-     * @param node    Node below edge.
-     * @param tTop    Time of start (top) of edge.
-     * @param tBottom Time of end (bottom) of edge.
-     * @param system  Object describing ODEs to integrate.
-     * @return State at top of edge.
+     * Compute the states at the top of all edges in the subtree below and
+     * including the given node which need recomputation, storing them in
+     * edgeTopStates.  When a thread pool is available, disjoint subtrees
+     * which are large enough are traversed in parallel.
+     *
+     * @param subtreeRootNr number of root of subtree
+     * @param tTop          time of top of edge above subtree root
+     * @param system        object describing ODEs to integrate
      */
-    private P0GeState calculateSubtreeLikelihood(Node node, double tTop, double tBottom,
-                                                 P0GeSystem system, int depth) {
+    private void calculateSubtreeStates(int subtreeRootNr, double tTop, P0GeSystem system) {
 
-        if (debug) {
-            debugMessage("*** Evaluating subtree for node " + node +
-                            " and edge between times " + tTop + " and " + tBottom + " ...",
-                    depth);
-        }
+        if (isParallelizedCalculation && pool != null)
+            calculateSubtreeStatesInParallel(subtreeRootNr, tTop, system);
+        else
+            traverseSubtree(subtreeRootNr, tTop, system);
+    }
 
-        P0GeState state = new P0GeState(parameterization.getNTypes());
+    /**
+     * Compute the states at the top of the edges in a subtree needing
+     * recomputation, visiting the nodes in post-order.
+     *
+     * @param subtreeRootNr number of root of subtree
+     * @param tTop          time of top of edge above subtree root
+     * @param system        object describing ODEs to integrate
+     */
+    private void traverseSubtree(int subtreeRootNr, double tTop, P0GeSystem system) {
 
-        int intervalIdx = parameterization.getIntervalIndex(tBottom);
+        int end = treeIndex.postOrderPositions[subtreeRootNr];
+        for (int i = treeIndex.getSubtreeStart(subtreeRootNr); i <= end; i++) {
+            int nodeNr = treeIndex.postOrder[i];
 
-        if (node.isLeaf()) { // sampling event
+            if (treeIndex.isDirectAncestor(nodeNr) || (edgeTopStatesValid && !subtreeIsDirty[nodeNr])
+                    || leafEdgeIsShared[nodeNr])
+                continue;
 
-            // Incorporate pre-evaluated p0 values into state
-            System.arraycopy(pInitialConditions[node.getNr()], 0, state.p0, 0, system.nTypes);
+            calculateEdgeTopState(nodeNr, getEdgeTopTime(nodeNr, subtreeRootNr, tTop), system);
+        }
+    }
 
-            int nodeType = getNodeType(node, false);
+    /**
+     * Divide a subtree into disjoint subtrees, each of which is traversed
+     * by a separate task, and the nodes above these subtrees.  A node is
+     * placed above the subtrees if it is a sampled ancestor or if both of
+     * its children need recomputation and carry a sufficient proportion
+     * of the total tree weight.  The tasks are shared between the calling
+     * thread and the pool workers, and the edges above these nodes are
+     * computed by the calling thread once all tasks have completed.
+     *
+     * @param subtreeRootNr number of root of subtree
+     * @param tTop          time of top of edge above subtree root
+     * @param system        object describing ODEs to integrate
+     */
+    private void calculateSubtreeStatesInParallel(int subtreeRootNr, double tTop, P0GeSystem system) {
 
-            if (nodeType == -1) { //unknown state
+        List<SubtreeTraversal> tasks = new ArrayList<>();
+        List<Integer> splitNodes = new ArrayList<>();
 
-                //TODO test if SA model case is properly implemented (not tested!)
-                for (int type = 0; type < parameterization.getNTypes(); type++) {
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(subtreeRootNr);
 
-                    if (isRhoTip[node.getNr()]) {
-                        state.ge[type] = new SmallNumber(
-                                (system.r[intervalIdx][type] + state.p0[type]
-                                        * (1 - system.r[intervalIdx][type]))
-                                        * system.rho[intervalIdx][type]);
-                    } else {
-                        state.ge[type] = new SmallNumber(
-                                (system.r[intervalIdx][type] + state.p0[type] * (1 - system.r[intervalIdx][type]))
-                                        * system.s[intervalIdx][type]);
-                        // with SA: ψ_i(r + (1 − r)p_i(τ))
-                    }
-                }
-            } else {
+        while (!stack.isEmpty()) {
+            int nodeNr = stack.pop();
 
-                if (isRhoTip[node.getNr()]) {
+            if (edgeTopStatesValid && !subtreeIsDirty[nodeNr])
+                continue;
 
-                    state.ge[nodeType] = new SmallNumber(
-                            (system.r[intervalIdx][nodeType] + state.p0[nodeType]
-                                    * (1 - system.r[intervalIdx][nodeType]))
-                                    * system.rho[intervalIdx][nodeType]);
-                } else {
-                    state.ge[nodeType] = new SmallNumber(
-                            (system.r[intervalIdx][nodeType] + state.p0[nodeType]
-                                    * (1 - system.r[intervalIdx][nodeType]))
-                                    * system.s[intervalIdx][nodeType]);
-                    // with SA: ψ_i(r + (1 − r)p_i(τ))
-                }
+            if (treeIndex.isLeaf(nodeNr)) {
+                if (!leafEdgeIsShared[nodeNr])
+                    tasks.add(new SubtreeTraversal(nodeNr, getEdgeTopTime(nodeNr, subtreeRootNr, tTop)));
+                continue;
+            }
+
+            int firstChild = treeIndex.firstChildNrs[nodeNr];
+            int secondChild = treeIndex.secondChildNrs[nodeNr];
 
+            if (treeIndex.isSampledAncestor[nodeNr]) {
+                splitNodes.add(nodeNr);
+                stack.push(firstChild);
+                continue;
             }
 
-            // Incorporate rho sampling if we're on a boundary:
-            if (isRhoTip[node.getNr()]) {
-                for (int type = 0; type < parameterization.getNTypes(); type++) {
-                    state.p0[type] *= (1 - system.rho[intervalIdx][type]);
-                }
+            boolean bothChildrenNeedUpdate = !edgeTopStatesValid
+                    || (subtreeIsDirty[firstChild] && subtreeIsDirty[secondChild]);
+
+            if (bothChildrenNeedUpdate
+                    && weightOfNodeSubTree[firstChild] > parallelizationThreshold
+                    && weightOfNodeSubTree[secondChild] > parallelizationThreshold) {
+                splitNodes.add(nodeNr);
+                stack.push(secondChild);
+                stack.push(firstChild);
+            } else {
+                tasks.add(new SubtreeTraversal(nodeNr, getEdgeTopTime(nodeNr, subtreeRootNr, tTop)));
             }
+        }
+
+        parallelSplitCount += splitNodes.size();
 
-            if (debug) debugMessage("Sampling at time " + tBottom, depth);
+        SubtreeTraversals traversals = new SubtreeTraversals(tasks);
 
-        } else if (node.getChildCount() == 2) {  // birth / infection event or sampled ancestor
+        // Workers which start after all tasks have been claimed return
+        // immediately, so there is no need to wait for them.
+        int helperCount = Math.min(Math.min(pool.getParallelism(), maxHelperCount), tasks.size() - 1);
+        for (int i = 0; i < helperCount; i++)
+            pool.execute(traversals::runPending);
 
-            if (node.getChild(0).isDirectAncestor() || node.getChild(1).isDirectAncestor()) {   // found a sampled ancestor
+        traversals.runPending();
+        traversals.awaitCompletion();
 
-                int childIndex = 0;
+        // Nodes are discovered before their children, so visiting them in
+        // reverse ensures the child states are available.
+        for (int i = splitNodes.size() - 1; i >= 0; i--) {
+            int nodeNr = splitNodes.get(i);
+            calculateEdgeTopState(nodeNr, getEdgeTopTime(nodeNr, subtreeRootNr, tTop), system);
+        }
+    }
 
-                if (node.getChild(childIndex).isDirectAncestor())
-                    childIndex = 1;
+    /**
+     * @param nodeNr        number of node below edge
+     * @param subtreeRootNr number of root of subtree being traversed
+     * @param tTop          time of top of edge above subtree root
+     * @return time of top of edge above node
+     */
+    private double getEdgeTopTime(int nodeNr, int subtreeRootNr, double tTop) {
+        return nodeNr == subtreeRootNr
+                ? tTop
+                : treeIndex.nodeTimes[treeIndex.parentNrs[nodeNr]];
+    }
 
-                P0GeState g = calculateSubtreeLikelihood(
-                        node.getChild(childIndex), tBottom,
-                        parameterization.getNodeTime(node.getChild(childIndex), finalSampleOffset.getArrayValue()),
-                        system, depth + 1);
+    /**
+     * Compute the state at the top of the edge above node and store it in
+     * edgeTopStates.  The states at the top of the edges below node must
+     * already be available.
+     *
+     * @param nodeNr Number of node below edge.
+     * @param tTop   Time of start (top) of edge.
+     * @param system Object describing ODEs to integrate.
+     */
+    private void calculateEdgeTopState(int nodeNr, double tTop, P0GeSystem system) {
 
-                int saNodeType = getNodeType(node.getChild(childIndex ^ 1), false); // get state of direct ancestor, XOR operation gives 1 if childIndex is 0 and vice versa
+        long startTime = pool != null ? System.nanoTime() : 0;
 
-                //TODO test if properly implemented (not tested!)
-                if (saNodeType == -1) { // unknown state
-                    for (int type = 0; type < parameterization.getNTypes(); type++) {
-                        if (!isRhoTip[node.getChild(childIndex ^ 1).getNr()]) {
+        double tBottom = treeIndex.nodeTimes[nodeNr];
 
-                            state.p0[type] = g.p0[type];
-                            state.ge[type] = g.ge[type].scalarMultiplyBy(system.s[intervalIdx][type]
-                                    * (1 - system.r[intervalIdx][type]));
+        if (debug) {
+            debugMessage("*** Evaluating edge above node " + nodeNr +
+                            " between times " + tTop + " and " + tBottom + " ...", 0);
+        }
 
-                        } else {
-                            // TODO COME BACK AND CHANGE (can be dealt with with getAllPInitialConds)
-                            state.p0[type] = g.p0[type] * (1 - system.rho[intervalIdx][type]);
-                            state.ge[type] = g.ge[type].scalarMultiplyBy(system.rho[intervalIdx][type]
-                                    * (1 - system.r[intervalIdx][type]));
+        P0GeState state = calculateEdgeBottomState(nodeNr, tBottom, system);
 
-                        }
-                    }
-                } else {
-                    if (!isRhoTip[node.getChild(childIndex ^ 1).getNr()]) {
+        if (debug) debugMessage("State at base of edge: " + state, 0);
 
-                        state.p0[saNodeType] = g.p0[saNodeType];
-                        state.ge[saNodeType] = g.ge[saNodeType]
-                                .scalarMultiplyBy(system.s[intervalIdx][saNodeType]
-                                        * (1 - system.r[intervalIdx][saNodeType]));
+        integrateP0Ge(tBottom, treeIndex.intervalIndices[nodeNr], tTop, state, system);
 
-                    } else {
-                        // TODO COME BACK AND CHANGE (can be dealt with with getAllPInitialConds)
-                        state.p0[saNodeType] = g.p0[saNodeType]
-                                * (1 - system.rho[intervalIdx][saNodeType]);
-                        state.ge[saNodeType] = g.ge[saNodeType]
-                                .scalarMultiplyBy(system.rho[intervalIdx][saNodeType]
-                                        * (1 - system.r[intervalIdx][saNodeType]));
+        if (debug)
+            debugMessage("State at top of edge: " + state + "\n", 0);
+
+        edgeTopStates[nodeNr] = state;
+
+        if (pool != null) {
+            measuredEdgeCosts[nodeNr] = System.nanoTime() - startTime;
+            measuredEdgeLengths[nodeNr] = tBottom - tTop;
+        }
+    }
 
+    /**
+     * Compute the states at the top of the edges above leaves needing
+     * recomputation which share their sampling time, type and rho sampling
+     * flag with other such leaves.  The states at the bottoms of the edges
+     * in such a group are identical, so the group is integrated once from
+     * the sampling time, stopping at the top of each edge in order of
+     * decreasing time.  The leaves are marked in leafEdgeIsShared, so that
+     * the traversal skips their edges.
+     *
+     * @param system object describing ODEs to integrate
+     */
+    private void integrateSharedLeafEdges(P0GeSystem system) {
+
+        Arrays.fill(leafEdgeIsShared, false);
+
+        List<Integer> leaves = new ArrayList<>();
+        for (int nodeNr = 0; nodeNr < treeIndex.leafCount; nodeNr++) {
+            if (treeIndex.isDirectAncestor(nodeNr) || (edgeTopStatesValid && !subtreeIsDirty[nodeNr]))
+                continue;
+
+            leaves.add(nodeNr);
+        }
+
+        // Members of a group are adjacent, in order of decreasing edge top time
+        double[] nodeTimes = treeIndex.nodeTimes;
+        leaves.sort(Comparator.comparingDouble((Integer nodeNr) -> nodeTimes[nodeNr])
+                .thenComparingInt(nodeNr -> treeIndex.leafTypes[nodeNr])
+                .thenComparing(nodeNr -> isRhoTip[nodeNr])
+                .thenComparingDouble(nodeNr -> -getLeafEdgeTopTime(nodeNr)));
+
+        int groupStart = 0;
+        for (int i = 1; i <= leaves.size(); i++) {
+            if (i < leaves.size()) {
+                int firstNr = leaves.get(groupStart);
+                int nodeNr = leaves.get(i);
+
+                if (nodeTimes[nodeNr] == nodeTimes[firstNr]
+                        && treeIndex.leafTypes[nodeNr] == treeIndex.leafTypes[firstNr]
+                        && isRhoTip[nodeNr] == isRhoTip[firstNr])
+                    continue;
+            }
+
+            if (i - groupStart > 1)
+                integrateLeafGroup(leaves.subList(groupStart, i), system);
+
+            groupStart = i;
+        }
+    }
+
+    /**
+     * Integrate the edges above a group of leaves with identical states at
+     * the bottoms of their edges, storing the state at the top of each edge
+     * in edgeTopStates.
+     *
+     * @param group  leaves in order of decreasing edge top time
+     * @param system object describing ODEs to integrate
+     */
+    private void integrateLeafGroup(List<Integer> group, P0GeSystem system) {
+
+        int firstNr = group.get(0);
+        double tBottom = treeIndex.nodeTimes[firstNr];
+
+        P0GeState state = calculateEdgeBottomState(firstNr, tBottom, system);
+
+        if (state.isScaled && integrateScaledLeafGroup(group, tBottom,
+                treeIndex.intervalIndices[firstNr], state, system))
+            return;
+
+        double thisTime = tBottom;
+        int thisInterval = treeIndex.intervalIndices[firstNr];
+
+        for (int nodeNr : group) {
+            double tTop = getLeafEdgeTopTime(nodeNr);
+
+            if (Utils.greaterThanWithPrecision(thisTime, tTop)) {
+
+                // Integration is continued from the top of a previous edge
+                // lying on an interval boundary, which is crossed here.
+                if (thisTime != tBottom) {
+                    int boundary = getBoundaryIndex(thisTime);
+                    if (boundary >= 0) {
+                        for (int type = 0; type < parameterization.getNTypes(); type++) {
+                            double oneMinusRho = 1 - system.rho[boundary][type];
+                            state.p0[type] *= oneMinusRho;
+                            state.multiplyGe(type, oneMinusRho);
+                        }
+
+                        thisInterval = boundary;
                     }
                 }
-            } else {   // birth / infection event
 
-                int indexFirstChild = 0;
-                if (node.getChild(1).getNr() > node.getChild(0).getNr())
-                    indexFirstChild = 1; // always start with the same child to avoid numerical differences
+                integrateP0Ge(thisTime, thisInterval, tTop, state, system);
+
+                thisTime = tTop;
+                thisInterval = parameterization.getIntervalIndex(tTop);
+            }
+
+            edgeTopStates[nodeNr] = state.copy();
+            leafEdgeIsShared[nodeNr] = true;
+        }
+    }
+
+    /**
+     * Integrate the edges above a group of leaves as integrateLeafGroup()
+     * does, for a state in the scaled representation.  The state is
+     * integrated once between consecutive interval boundaries at which rho
+     * sampling is applied, and the states at the tops of the edges are read
+     * from the dense output of the integrator.
+     *
+     * @param group          leaves in order of decreasing edge top time
+     * @param tBottom        time of the leaves
+     * @param bottomInterval index of interval containing tBottom
+     * @param state          state at the bottoms of the edges
+     * @param system         object describing ODEs to integrate
+     * @return false if the ge values came to span too wide a range to share
+     * a single scale factor, in which case no states are stored.
+     */
+    private boolean integrateScaledLeafGroup(List<Integer> group, double tBottom, int bottomInterval,
+                                             P0GeState state, P0GeSystem system) {
+
+        int nTypes = parameterization.getNTypes();
+        int nStops = group.size();
+
+        double[] tops = new double[nStops];
+        double[][] stopStates = new double[nStops][2*nTypes];
+        double[] stopLogScales = new double[nStops];
+        for (int i = 0; i < nStops; i++)
+            tops[i] = getLeafEdgeTopTime(group.get(i));
+
+        double[] y = system.getStateWorkspace();
+        System.arraycopy(state.p0, 0, y, 0, nTypes);
+        System.arraycopy(state.geScaled, 0, y, nTypes, nTypes);
+        double logScale = state.geLogScale;
+
+        double tTop = tops[nStops - 1];
+        double thisTime = tBottom;
+        int thisInterval = bottomInterval;
+        int endInterval = parameterization.getIntervalIndex(tTop);
+        int nextStop = 0;
+        double logFactor;
+
+        system.setInterval(thisInterval);
+
+        while (thisInterval > endInterval) {
+
+            // Boundaries within a span are crossed without stopping
+            int firstInterval = system.getSpanFirstInterval(thisInterval);
+            if (firstInterval <= endInterval) {
+                system.setIntervals(endInterval, thisInterval);
+                break;
+            }
+
+            double nextTime = system.intervalEndTimes[firstInterval-1];
+            system.setIntervals(firstInterval, thisInterval);
+
+            // Edges whose tops lie on the boundary are stopped before rho
+            // sampling is applied
+            int stopEnd = nextStop;
+            while (stopEnd < nStops && !Utils.lessThanWithPrecision(tops[stopEnd], nextTime))
+                stopEnd += 1;
+
+            logFactor = system.integrateScaled(y, thisTime, nextTime,
+                    tops, nextStop, stopEnd, stopStates, stopLogScales);
+            if (Double.isNaN(logFactor))
+                return false;
+
+            for (int i = nextStop; i < stopEnd; i++)
+                stopLogScales[i] += logScale;
+            logScale += logFactor;
+            nextStop = stopEnd;
+
+            if (Utils.greaterThanWithPrecision(nextTime, tTop)) {
+                for (int i = 0; i < nTypes; i++) {
+                    double oneMinusRho = 1 - system.rho[firstInterval - 1][i];
+                    y[i] *= oneMinusRho;
+                    y[i + nTypes] *= oneMinusRho;
+                }
+            }
+
+            thisTime = nextTime;
+            thisInterval = firstInterval - 1;
+
+            system.setInterval(thisInterval);
+        }
+
+        logFactor = system.integrateScaled(y, thisTime, tTop,
+                tops, nextStop, nStops, stopStates, stopLogScales);
+        if (Double.isNaN(logFactor))
+            return false;
+
+        for (int i = nextStop; i < nStops; i++)
+            stopLogScales[i] += logScale;
+
+        for (int i = 0; i < nStops; i++) {
+            P0GeState stopState = state.copy();
+            System.arraycopy(stopStates[i], 0, stopState.p0, 0, nTypes);
+            System.arraycopy(stopStates[i], nTypes, stopState.geScaled, 0, nTypes);
+            stopState.geLogScale = stopLogScales[i];
+
+            int nodeNr = group.get(i);
+            edgeTopStates[nodeNr] = stopState;
+            leafEdgeIsShared[nodeNr] = true;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param nodeNr number of leaf
+     * @return time of top of edge above leaf
+     */
+    private double getLeafEdgeTopTime(int nodeNr) {
+        int parentNr = treeIndex.parentNrs[nodeNr];
+
+        return parentNr == TreeIndex.NONE ? 0.0 : treeIndex.nodeTimes[parentNr];
+    }
+
+    /**
+     * @param t time to query
+     * @return index of the interval whose end time equals t to within
+     * Utils.globalPrecisionThreshold, or -1 if t is not on a boundary
+     * between intervals.
+     */
+    private int getBoundaryIndex(double t) {
+        double[] intervalEndTimes = parameterization.getIntervalEndTimes();
+        int interval = parameterization.getIntervalIndex(t);
+
+        if (interval < intervalEndTimes.length - 1
+                && Utils.equalWithPrecision(t, intervalEndTimes[interval]))
+            return interval;
+
+        if (interval > 0 && Utils.equalWithPrecision(t, intervalEndTimes[interval - 1]))
+            return interval - 1;
+
+        return -1;
+    }
+
+    /**
+     * Compute the states at the top of all edges needing recomputation in a
+     * single sweep backwards in time from the most recent node.  The ge
+     * values of all edges alive between consecutive node or interval times
+     * are integrated together, and the states at the bottom of edges are
+     * computed as soon as the states of the edges below them are known.
+     *
+     * On return, the computed states are cached in edgeTopStates and marked
+     * as valid, so that calculateRootState() only needs to combine them.
+     *
+     * @param tree   tree whose edges to compute
+     * @param system object describing ODEs to integrate
+     */
+    private void integrateEdgesBatched(TreeInterface tree, P0GeSystem system) {
+
+        int nTypes = parameterization.getNTypes();
+
+        List<Integer> edges = collectEdgesToUpdate();
+
+        if (parameterization.conditionedOnRoot())
+            edges.remove(Integer.valueOf(treeIndex.rootNr));
+
+        if (edges.isEmpty()) {
+            edgeTopStatesValid = true;
+            return;
+        }
+
+        double[] nodeTimes = treeIndex.nodeTimes;
+
+        // Edges are started in order of decreasing bottom time.  The sort is
+        // stable, so ties are broken by post-order, ensuring the edges below
+        // a node are always started before the edge above it.
+        edges.sort((n1, n2) -> Double.compare(nodeTimes[n2], nodeTimes[n1]));
+
+        int nEdges = edges.size();
+        int[] activeNodeNrs = new int[nEdges];
+        double[] activeTops = new double[nEdges];
+        double[] activeP0 = new double[nEdges*nTypes];
+        double[] activeGe = new double[nEdges*nTypes];
+        int[] activeFactors = new int[nEdges];
+        int nActive = 0;
+
+        double[] p0 = new double[nTypes];
+
+        int nextEdge = 0;
+        double t = nodeTimes[edges.get(0)];
+        int interval = treeIndex.intervalIndices[edges.get(0)];
+
+        while (true) {
+
+            // Finish lineages which have reached the tops of their edges
+            for (int i = nActive - 1; i >= 0; i--) {
+                if (Utils.equalWithPrecision(activeTops[i], t)) {
+                    finishBatchedLineage(activeNodeNrs[i], activeP0, activeGe, i*nTypes,
+                            activeFactors[i], system);
+
+                    nActive -= 1;
+                    activeNodeNrs[i] = activeNodeNrs[nActive];
+                    activeTops[i] = activeTops[nActive];
+                    activeFactors[i] = activeFactors[nActive];
+                    System.arraycopy(activeP0, nActive*nTypes, activeP0, i*nTypes, nTypes);
+                    System.arraycopy(activeGe, nActive*nTypes, activeGe, i*nTypes, nTypes);
+                }
+            }
+
+            // Lineages crossing an interval boundary
+            while (interval > 0 && Utils.equalWithPrecision(t, system.intervalEndTimes[interval-1])) {
+                for (int i = 0; i < nActive*nTypes; i++) {
+                    double oneMinusRho = 1 - system.rho[interval - 1][i % nTypes];
+                    activeP0[i] *= oneMinusRho;
+                    activeGe[i] *= oneMinusRho;
+                }
+
+                interval -= 1;
+            }
+
+            // Start lineages at the bottoms of their edges
+            while (nextEdge < nEdges && Utils.equalWithPrecision(nodeTimes[edges.get(nextEdge)], t)) {
+                int nodeNr = edges.get(nextEdge++);
+                int parentNr = treeIndex.parentNrs[nodeNr];
+                double tTop = parentNr == TreeIndex.NONE ? 0.0 : nodeTimes[parentNr];
+
+                P0GeState state = calculateEdgeBottomState(nodeNr, t, system).getExtended();
+                ScaledNumbers pgScaled = state.getScaledState(system.getScaledStateWorkspace());
+
+                if (Utils.equalWithPrecision(tTop, t)) {
+                    edgeTopStates[nodeNr] = state;
+                    subtreeIsDirty[nodeNr] = false;
+                    continue;
+                }
+
+                activeNodeNrs[nActive] = nodeNr;
+                activeTops[nActive] = tTop;
+                activeFactors[nActive] = pgScaled.getScalingFactor();
+                System.arraycopy(pgScaled.getEquation(), 0, activeP0, nActive*nTypes, nTypes);
+                System.arraycopy(pgScaled.getEquation(), nTypes, activeGe, nActive*nTypes, nTypes);
+                nActive += 1;
+            }
+
+            if (nActive == 0) {
+                if (nextEdge == nEdges)
+                    break;
+
+                t = nodeTimes[edges.get(nextEdge)];
+                interval = treeIndex.intervalIndices[edges.get(nextEdge)];
+                continue;
+            }
+
+            // Integrate all active lineages up to the next event
+            double tNext = interval > 0 ? system.intervalEndTimes[interval-1] : 0.0;
+            if (nextEdge < nEdges)
+                tNext = Math.max(tNext, nodeTimes[edges.get(nextEdge)]);
+            for (int i = 0; i < nActive; i++)
+                tNext = Math.max(tNext, activeTops[i]);
+
+            system.setInterval(interval);
+            system.integrateBatch(activeGe, activeFactors, nActive, t, tNext);
+
+            system.getP0Solution().getP0(tNext, interval, p0);
+            for (int i = 0; i < nActive; i++)
+                System.arraycopy(p0, 0, activeP0, i*nTypes, nTypes);
+
+            t = tNext;
+        }
+
+        edgeTopStatesValid = true;
+    }
+
+    /**
+     * Collect the edges needing recomputation, in post-order.
+     *
+     * @return list of the numbers of the nodes below these edges
+     */
+    private List<Integer> collectEdgesToUpdate() {
+        List<Integer> edges = new ArrayList<>();
+
+        for (int i = 0; i < treeIndex.nodeCount; i++) {
+            int nodeNr = treeIndex.postOrder[i];
+
+            if (treeIndex.isDirectAncestor(nodeNr) || (edgeTopStatesValid && !subtreeIsDirty[nodeNr]))
+                continue;
+
+            edges.add(nodeNr);
+        }
+
+        return edges;
+    }
+
+    /**
+     * Store the state at the top of the edge above node, computed by
+     * integrateEdgesBatched().
+     *
+     * @param nodeNr number of node below edge
+     * @param p0     array containing p0 values
+     * @param ge     array containing (scaled) ge values
+     * @param offset index of first p0 and ge values of node
+     * @param factor scale factor of ge values
+     * @param system object describing ODEs to integrate
+     */
+    private void finishBatchedLineage(int nodeNr, double[] p0, double[] ge, int offset,
+                                      int factor, P0GeSystem system) {
+
+        int nTypes = parameterization.getNTypes();
+
+        double[] y = system.getStateWorkspace();
+        System.arraycopy(p0, offset, y, 0, nTypes);
+        System.arraycopy(ge, offset, y, nTypes, nTypes);
+
+        P0GeState state = new P0GeState(nTypes);
+        state.setFromScaledState(y, factor);
+
+        edgeTopStates[nodeNr] = state;
+        subtreeIsDirty[nodeNr] = false;
+    }
+
+    /**
+     * Compute the state at the bottom of the edge above node, i.e. at the
+     * time of the node itself.  The states at the top of the edges below
+     * node must already be available in edgeTopStates.
+     *
+     * @param nodeNr  Number of node below edge.
+     * @param tBottom Time of node.
+     * @param system  Object describing ODEs to integrate.
+     * @return State at bottom of edge.
+     */
+    private P0GeState calculateEdgeBottomState(int nodeNr, double tBottom, P0GeSystem system) {
+
+        P0GeState state = new P0GeState(parameterization.getNTypes());
+
+        int intervalIdx = treeIndex.intervalIndices[nodeNr];
+
+        if (treeIndex.isLeaf(nodeNr)) { // sampling event
+
+            if (useScaledNumerics)
+                state.setScaled();
+
+            // Incorporate pre-evaluated p0 values into state
+            System.arraycopy(pInitialConditions[nodeNr], 0, state.p0, 0, system.nTypes);
+
+            int nodeType = treeIndex.leafTypes[nodeNr];
+
+            if (nodeType == -1) { //unknown state
+
+                //TODO test if SA model case is properly implemented (not tested!)
+                for (int type = 0; type < parameterization.getNTypes(); type++) {
+
+                    if (isRhoTip[nodeNr]) {
+                        state.setGe(type,
+                                (system.r[intervalIdx][type] + state.p0[type]
+                                        * (1 - system.r[intervalIdx][type]))
+                                        * system.rho[intervalIdx][type]);
+                    } else {
+                        state.setGe(type,
+                                (system.r[intervalIdx][type] + state.p0[type] * (1 - system.r[intervalIdx][type]))
+                                        * system.s[intervalIdx][type]);
+                        // with SA: ψ_i(r + (1 − r)p_i(τ))
+                    }
+                }
+            } else {
+
+                if (isRhoTip[nodeNr]) {
+
+                    state.setGe(nodeType,
+                            (system.r[intervalIdx][nodeType] + state.p0[nodeType]
+                                    * (1 - system.r[intervalIdx][nodeType]))
+                                    * system.rho[intervalIdx][nodeType]);
+                } else {
+                    state.setGe(nodeType,
+                            (system.r[intervalIdx][nodeType] + state.p0[nodeType]
+                                    * (1 - system.r[intervalIdx][nodeType]))
+                                    * system.s[intervalIdx][nodeType]);
+                    // with SA: ψ_i(r + (1 − r)p_i(τ))
+                }
+
+            }
+
+            // Incorporate rho sampling if we're on a boundary:
+            if (isRhoTip[nodeNr]) {
+                for (int type = 0; type < parameterization.getNTypes(); type++) {
+                    state.p0[type] *= (1 - system.rho[intervalIdx][type]);
+                }
+            }
+
+            rescaleState(state);
+
+            if (debug) debugMessage("Sampling at time " + tBottom, 0);
+
+        } else {  // birth / infection event or sampled ancestor
+
+            if (treeIndex.isSampledAncestor[nodeNr]) {   // found a sampled ancestor
+
+                P0GeState g = edgeTopStates[treeIndex.firstChildNrs[nodeNr]];
+
+                int saNodeNr = treeIndex.secondChildNrs[nodeNr];
+                int saNodeType = treeIndex.leafTypes[saNodeNr]; // get state of direct ancestor
+
+                if (g.isScaled)
+                    state.setScaled();
+
+                //TODO test if properly implemented (not tested!)
+                if (saNodeType == -1) { // unknown state
+                    for (int type = 0; type < parameterization.getNTypes(); type++) {
+                        if (!isRhoTip[saNodeNr]) {
+
+                            state.p0[type] = g.p0[type];
+                            state.setGe(type, g, type, system.s[intervalIdx][type]
+                                    * (1 - system.r[intervalIdx][type]));
+
+                        } else {
+                            // TODO COME BACK AND CHANGE (can be dealt with with getAllPInitialConds)
+                            state.p0[type] = g.p0[type] * (1 - system.rho[intervalIdx][type]);
+                            state.setGe(type, g, type, system.rho[intervalIdx][type]
+                                    * (1 - system.r[intervalIdx][type]));
+
+                        }
+                    }
+                } else {
+                    if (!isRhoTip[saNodeNr]) {
+
+                        state.p0[saNodeType] = g.p0[saNodeType];
+                        state.setGe(saNodeType, g, saNodeType, system.s[intervalIdx][saNodeType]
+                                * (1 - system.r[intervalIdx][saNodeType]));
+
+                    } else {
+                        // TODO COME BACK AND CHANGE (can be dealt with with getAllPInitialConds)
+                        state.p0[saNodeType] = g.p0[saNodeType]
+                                * (1 - system.rho[intervalIdx][saNodeType]);
+                        state.setGe(saNodeType, g, saNodeType, system.rho[intervalIdx][saNodeType]
+                                * (1 - system.r[intervalIdx][saNodeType]));
+
+                    }
+                }
+
+                rescaleState(state);
+
+            } else {   // birth / infection event
+
+                P0GeState childState1 = edgeTopStates[treeIndex.firstChildNrs[nodeNr]];
+                P0GeState childState2 = edgeTopStates[treeIndex.secondChildNrs[nodeNr]];
+
+                if (useScaledNumerics && P0GeState.canMultiplyScaled(childState1, childState2)) {
+                    state.setScaled();
+                } else {
+                    if (useScaledNumerics)
+                        recordExtendedFallback();
+
+                    childState1 = childState1.getExtended();
+                    childState2 = childState2.getExtended();
+                }
+
+                if (debug) debugMessage("Infection at time " + tBottom, 0);
+
+                for (int childType = 0; childType < parameterization.getNTypes(); childType++) {
+
+                    state.p0[childType] = childState1.p0[childType];
+                    state.setGeToProduct(childType,
+                            childState1, childType, childState2, childType,
+                            system.b[intervalIdx][childType]);
+
+                    for (int otherChildType = 0; otherChildType < parameterization.getNTypes(); otherChildType++) {
+                        if (otherChildType == childType)
+                            continue;
+
+                        double halfCrossBirthRate = 0.5 * system.b_ij[intervalIdx][childType][otherChildType];
+                        state.addGeProduct(childType,
+                                childState1, childType, childState2, otherChildType,
+                                halfCrossBirthRate);
+                        state.addGeProduct(childType,
+                                childState1, otherChildType, childState2, childType,
+                                halfCrossBirthRate);
+                    }
+
+
+                    if (Double.isInfinite(state.p0[childType])) {
+                        throw new RuntimeException("infinite likelihood");
+                    }
+                }
+
+                rescaleState(state);
+            }
+
+        }
+
+        return state;
+    }
+
+    /**
+     * Mark the subtrees containing at least one node which has been made
+     * dirty by a tree operation, or whose edge reaches back to a time at
+     * which the model parameters have changed.  The edge above such a
+     * subtree root needs to be re-integrated, while all other edges can
+     * reuse their cached state.
+     *
+     * @param changeTimeBound latest time at which the model parameters
+     *                        have changed
+     */
+    private void updateSubtreeDirtiness(double changeTimeBound) {
+        for (int i = 0; i < treeIndex.nodeCount; i++) {
+            int nodeNr = treeIndex.postOrder[i];
+            int parentNr = treeIndex.parentNrs[nodeNr];
+
+            double edgeTopTime = parentNr == TreeIndex.NONE ? 0.0 : treeIndex.nodeTimes[parentNr];
+
+            boolean isDirty = treeIndex.isDirty[nodeNr]
+                    || !Utils.greaterThanWithPrecision(edgeTopTime, changeTimeBound);
+            if (!treeIndex.isLeaf(nodeNr)) {
+                isDirty = isDirty
+                        || subtreeIsDirty[treeIndex.firstChildNrs[nodeNr]]
+                        || subtreeIsDirty[treeIndex.secondChildNrs[nodeNr]];
+            }
+
+            subtreeIsDirty[nodeNr] = isDirty;
+        }
+    }
+
+    /**
+     * Check whether any leaf time differs from the leaf times used to
+     * compute the current p0 initial conditions.  (Leaf times include the
+     * final sample offset.)
+     *
+     * @param tree tree to extract leaf times from
+     * @return true if at least one leaf time has changed
+     */
+    private boolean leafTimesChanged(TreeInterface tree) {
+        if (leafTimes == null)
+            return true;
+
+        for (int i = 0; i < tree.getLeafNodeCount(); i++) {
+            if (parameterization.getNodeTime(tree.getNode(i), finalSampleOffset.getArrayValue())
+                    != leafTimes[i])
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param function function to query
+     * @return true if the value of function may have changed since the last
+     * accepted state.
+     */
+    private static boolean isDirty(Function function) {
+        if (function instanceof StateNode)
+            return ((StateNode) function).somethingIsDirty();
+
+        if (function instanceof CalculationNode)
+            return ((CalculationNode) function).isDirtyCalculation();
+
+        return false;
+    }
+
+    /**
+     * Print message to stdout with given indentation depth.
+     *
+     * @param message debug message
+     * @param depth   indentation level
+     */
+    private void debugMessage(String message, int depth) {
+        for (int i = 0; i < depth; i++)
+            System.out.print("  ");
+
+        System.out.println(message);
+    }
+
+    /**
+     * @return number of nodes above the subtrees traversed in parallel
+     * during the last evaluation.
+     */
+    int getParallelSplitCount() {
+        return parallelSplitCount;
+    }
+
+    /**
+     * @return retrieve current set of root type probabilities.
+     */
+    double[] getRootTypeProbs() {
+        return rootTypeProbs;
+    }
+
+    /**
+     * Compute the marginal probability of each type at each node, given the
+     * tree and the current parameterization, from the states cached by the
+     * last likelihood evaluation.  The probability of the part of the tree
+     * outside the subtree below each node, given the type of the lineage at
+     * the node, is carried down from the root in a single pre-order pass:
+     * along edges by the transposed propagators of the ge equations, and
+     * across nodes using the states at the tops of the sibling edges.  The
+     * product of this with the ge values at the node is proportional to
+     * the marginal type probabilities, so no type histories need be sampled.
+     *
+     * The cost is that of integrating the propagator along each edge once
+     * (none if the last evaluation computed a propagator grid), rather than
+     * that of re-integrating the whole tree.
+     *
+     * @return array of type probabilities indexed by node number, then by
+     * type.  Directly ancestral leaves share the probabilities of the
+     * sampled ancestor node above them.
+     */
+    double[][] getNodeTypeProbs() {
+
+        int nTypes = parameterization.getNTypes();
+
+        if (nTypes == 1) {
+            if (nodeTypeProbs == null || nodeTypeProbs.length != tree.getNodeCount())
+                nodeTypeProbs = new double[tree.getNodeCount()][1];
+
+            for (double[] probs : nodeTypeProbs)
+                probs[0] = 1.0;
+
+            return nodeTypeProbs;
+        }
+
+        updateOutsideProbs();
+
+        return nodeTypeProbs;
+    }
+
+    /**
+     * Bring the outside probabilities and the node type probabilities up to
+     * date with the states cached by the last likelihood evaluation, in the
+     * pre-order pass described in getNodeTypeProbs().
+     */
+    private void updateOutsideProbs() {
+
+        int nTypes = parameterization.getNTypes();
+        int nodeCount = tree.getNodeCount();
+
+        if (edgeTopOutsideProbs == null || edgeTopOutsideProbs.length != nodeCount) {
+            edgeTopOutsideProbs = new double[nodeCount][];
+            nodeOutsideProbs = new double[nodeCount][];
+            nodeTypeProbs = new double[nodeCount][nTypes];
+        } else if (outsideProbsValid) {
+            return;
+        }
+
+        if (!edgeTopStatesValid)
+            throw new IllegalStateException("Outside probabilities " +
+                    "require a completed numerical likelihood evaluation.");
+
+        // The index may describe a rejected tree
+        treeIndex.update(tree, parameterization, finalSampleOffset.getArrayValue());
+
+        P0GeSystem system = getP0GeSystem();
+        double[] propagator = new double[nTypes*nTypes];
+        double[] workspace = new double[nTypes];
+        double[] ge = new double[nTypes];
+        double[] ge1 = new double[nTypes];
+        double[] ge2 = new double[nTypes];
+
+        for (int i = nodeCount - 1; i >= 0; i--) {
+            int nodeNr = treeIndex.postOrder[i];
+            int parentNr = treeIndex.parentNrs[nodeNr];
+
+            if (treeIndex.isDirectAncestor(nodeNr)) {
+                System.arraycopy(nodeTypeProbs[parentNr], 0, nodeTypeProbs[nodeNr], 0, nTypes);
+                continue;
+            }
+
+            boolean isConditionedRoot = nodeNr == treeIndex.rootNr
+                    && parameterization.conditionedOnRoot();
+
+            if (nodeNr == treeIndex.rootNr) {
+                edgeTopOutsideProbs[nodeNr] = new double[nTypes];
+                for (int type = 0; type < nTypes; type++)
+                    edgeTopOutsideProbs[nodeNr][type] = frequenciesInput.get().getArrayValue(type);
+            }
+
+            double[] outside = edgeTopOutsideProbs[nodeNr].clone();
+            if (!isConditionedRoot)
+                carryOutsideProbsDownEdge(nodeNr,
+                        nodeNr == treeIndex.rootNr ? 0.0 : treeIndex.nodeTimes[parentNr],
+                        outside, system, propagator, workspace);
+            nodeOutsideProbs[nodeNr] = outside;
+
+            if (isConditionedRoot) {
+                getRelativeGe(edgeTopStates[treeIndex.firstChildNrs[nodeNr]], ge1);
+                getRelativeGe(edgeTopStates[treeIndex.secondChildNrs[nodeNr]], ge2);
+                for (int type = 0; type < nTypes; type++)
+                    ge[type] = ge1[type]*ge2[type];
+            } else {
+                getRelativeGe(calculateEdgeBottomState(nodeNr, treeIndex.nodeTimes[nodeNr], system), ge);
+            }
+
+            double sum = 0.0;
+            for (int type = 0; type < nTypes; type++) {
+                nodeTypeProbs[nodeNr][type] = outside[type]*ge[type];
+                sum += nodeTypeProbs[nodeNr][type];
+            }
+            for (int type = 0; type < nTypes; type++)
+                nodeTypeProbs[nodeNr][type] /= sum;
+
+            if (treeIndex.isLeaf(nodeNr))
+                continue;
+
+            int intervalIdx = treeIndex.intervalIndices[nodeNr];
+            int child1Nr = treeIndex.firstChildNrs[nodeNr];
+            int child2Nr = treeIndex.secondChildNrs[nodeNr];
+
+            if (treeIndex.isSampledAncestor[nodeNr]) {
+
+                // Only the lineage continuing below the sampled ancestor
+                // has an edge, with the sampling factor applied at the node
+                int saNodeType = treeIndex.leafTypes[child2Nr];
+                double[] samplingRates = isRhoTip[child2Nr] ? system.rho[intervalIdx] : system.s[intervalIdx];
+
+                double[] childOutside = new double[nTypes];
+                for (int type = 0; type < nTypes; type++) {
+                    if (saNodeType == -1 || saNodeType == type)
+                        childOutside[type] = outside[type]*samplingRates[type]
+                                * (1 - system.r[intervalIdx][type]);
+                }
+                edgeTopOutsideProbs[child1Nr] = childOutside;
+
+            } else {
+
+                getRelativeGe(edgeTopStates[child1Nr], ge1);
+                getRelativeGe(edgeTopStates[child2Nr], ge2);
+
+                edgeTopOutsideProbs[child1Nr] = getOutsideProbsAtBirth(outside, ge2,
+                        intervalIdx, isConditionedRoot, system);
+                edgeTopOutsideProbs[child2Nr] = getOutsideProbsAtBirth(outside, ge1,
+                        intervalIdx, isConditionedRoot, system);
+            }
+        }
+
+        outsideProbsValid = true;
+    }
+
+    /**
+     * Compute the outside probabilities at the top of the edge below a
+     * birth event, i.e. the derivatives of the ge values at the bottom of
+     * the edge above the event (weighted by the outside probabilities
+     * there) with respect to the ge values at the top of the edge.
+     *
+     * @param outside outside probabilities at the event
+     * @param siblingGe (relative) ge values at the top of the sibling edge
+     * @param intervalIdx interval containing the event
+     * @param isConditionedRoot true if the event is the root and the
+     *                          process is conditioned on the root time, in
+     *                          which case the birth rates do not contribute.
+     * @param system ODE system holding the rates
+     * @return outside probabilities at the top of the edge
+     */
+    private double[] getOutsideProbsAtBirth(double[] outside, double[] siblingGe,
+                                            int intervalIdx, boolean isConditionedRoot,
+                                            P0GeSystem system) {
+
+        int nTypes = parameterization.getNTypes();
+        double[] childOutside = new double[nTypes];
+
+        for (int childType = 0; childType < nTypes; childType++) {
+
+            if (isConditionedRoot) {
+                childOutside[childType] = outside[childType]*siblingGe[childType];
+                continue;
+            }
+
+            childOutside[childType] = outside[childType]
+                    * system.b[intervalIdx][childType]*siblingGe[childType];
+
+            for (int otherType = 0; otherType < nTypes; otherType++) {
+                if (otherType == childType)
+                    continue;
+
+                // The child may be either the parent-type or the
+                // other-type offspring of a cross-type birth
+                childOutside[childType] += 0.5*system.b_ij[intervalIdx][childType][otherType]
+                        * outside[childType]*siblingGe[otherType];
+                childOutside[childType] += 0.5*system.b_ij[intervalIdx][otherType][childType]
+                        * outside[otherType]*siblingGe[otherType];
+            }
+        }
+
+        rescaleByMax(childOutside);
+
+        return childOutside;
+    }
+
+    /**
+     * Carry outside probabilities from the top of the edge above node to
+     * its bottom, applying the transpose of the linear map taking the ge
+     * values at the bottom of the edge to those at the top, including the
+     * rho sampling factors of the boundaries crossed.
+     *
+     * @param nodeNr number of node below edge
+     * @param tTop time at top of edge
+     * @param outside outside probabilities, replaced by those at the bottom
+     * @param system ODE system to integrate
+     * @param propagator array of length at least nTypes*nTypes
+     * @param workspace array of length at least nTypes
+     */
+    private void carryOutsideProbsDownEdge(int nodeNr, double tTop, double[] outside,
+                                           P0GeSystem system, double[] propagator,
+                                           double[] workspace) {
+
+        int nTypes = parameterization.getNTypes();
+        double tBottom = treeIndex.nodeTimes[nodeNr];
+        double[] intervalEndTimes = system.intervalEndTimes;
+
+        double thisTime = tTop;
+        int thisInterval = parameterization.getIntervalIndex(tTop);
+
+        while (true) {
+            boolean endsOnBoundary = thisInterval < intervalEndTimes.length - 1
+                    && Utils.lessThanWithPrecision(intervalEndTimes[thisInterval], tBottom);
+            double nextTime = endsOnBoundary ? intervalEndTimes[thisInterval] : tBottom;
+
+            if (propagatorGrid != null
+                    && propagatorGrid.getTimeIndex(thisTime) >= 0
+                    && propagatorGrid.getTimeIndex(nextTime) >= 0) {
+                for (int cell = propagatorGrid.getTimeIndex(thisTime);
+                     cell < propagatorGrid.getTimeIndex(nextTime); cell++)
+                    propagatorGrid.applyCellTransposed(cell, outside, 0, workspace);
+            } else {
+                system.computePropagator(nextTime, thisTime, thisInterval, propagator, 0);
+
+                System.arraycopy(outside, 0, workspace, 0, nTypes);
+                for (int j = 0; j < nTypes; j++) {
+                    outside[j] = 0.0;
+                    for (int i = 0; i < nTypes; i++)
+                        outside[j] += propagator[j*nTypes + i]*workspace[i];
+                }
+            }
+
+            rescaleByMax(outside);
+
+            if (!endsOnBoundary)
+                break;
+
+            // Rho sampling applies at boundaries strictly inside the edge
+            if (Utils.greaterThanWithPrecision(nextTime, tTop)) {
+                for (int type = 0; type < nTypes; type++)
+                    outside[type] *= 1 - system.rho[thisInterval][type];
+            }
+
+            thisTime = nextTime;
+            thisInterval += 1;
+        }
+    }
+
+    /**
+     * @param state state whose ge values to use
+     * @param dest array in which to store the ge values of state relative
+     *             to the largest of them (all zero if none is positive)
+     */
+    private static void getRelativeGe(P0GeState state, double[] dest) {
+        double maxLogGe = Double.NEGATIVE_INFINITY;
+        for (int type = 0; type < dest.length; type++)
+            maxLogGe = Math.max(maxLogGe, state.getGeLog(type));
+
+        for (int type = 0; type < dest.length; type++)
+            dest[type] = maxLogGe > Double.NEGATIVE_INFINITY
+                    ? Math.exp(state.getGeLog(type) - maxLogGe)
+                    : 0.0;
+    }
+
+    /**
+     * Divide values by the largest of them, if positive.
+     *
+     * @param values values to rescale
+     */
+    private static void rescaleByMax(double[] values) {
+        double max = 0.0;
+        for (double value : values)
+            max = Math.max(max, value);
+
+        if (max > 0.0) {
+            for (int i = 0; i < values.length; i++)
+                values[i] /= max;
+        }
+    }
+
+    /*
+     * Nodes and weights of the 5-point Gauss-Legendre rule on [-1,1], used
+     * to integrate the gradient contributions along edges.
+     */
+    private final static double[] GAUSS_NODES = {
+            -0.9061798459386640, -0.5384693101056831, 0.0,
+            0.5384693101056831, 0.9061798459386640};
+    private final static double[] GAUSS_WEIGHTS = {
+            0.2369268850561891, 0.4786286704993665, 0.5688888888888889,
+            0.4786286704993665, 0.2369268850561891};
+
+    /*
+     * Maximum number of quadrature panels over which the ge values and
+     * their adjoints are integrated along an edge without being rescaled.
+     * The panels are no longer than the inverse of the largest total rate,
+     * so the values change by a bounded factor over each panel.
+     */
+    private final static int PANELS_PER_EDGE_INTEGRATION = 16;
+
+    /*
+     * Number of panels per unit of the largest total rate over which the
+     * p0 sources are merged when integrating the adjoint of the p0
+     * equations.
+     */
+    private final static double P0_SOURCE_PANELS_PER_UNIT_RATE = 2.0;
+
+    /**
+     * Contribution to the gradient of the log likelihood with respect to
+     * the p0 values at a given time.  At an interval boundary, the interval
+     * identifies the side of the boundary whose p0 values are meant.
+     */
+    private static class P0GradientSource {
+        final double time;
+        final int interval;
+        final double[] gradient;
+
+        P0GradientSource(double time, int interval, double[] gradient) {
+            this.time = time;
+            this.interval = interval;
+            this.gradient = gradient;
+        }
+    }
+
+    /**
+     * Compute the gradient of the tree log likelihood computed by the last
+     * evaluation with respect to the canonical parameters of each interval,
+     * using the adjoint method.
+     *
+     * The outside probabilities carried down the tree by the pass described
+     * in getNodeTypeProbs() are the adjoints of the ge values.  Along each
+     * edge, they are integrated down alongside ge values integrated up from
+     * the bottom of the edge, and the contributions of the rates to the ge
+     * equations are integrated by Gauss-Legendre quadrature over panels no
+     * longer than the inverse of the largest total rate.  Node events and
+     * rho sampling add terms in closed form.  The contributions through p0
+     * are collected as point sources for the adjoint of the p0 equations,
+     * which is then integrated forwards in time over the whole process.
+     *
+     * The cost is a small multiple of that of integrating every edge once,
+     * and is independent of the number of parameters.  Requires the states
+     * at the tops of the edges, which the analytical single type solution
+     * does not compute, so when that solution is used these are computed
+     * in full by numerical integration first.  The log likelihood of the
+     * last evaluation is left unchanged.
+     *
+     * @return gradient of the log likelihood with respect to the rates.
+     */
+    public RateGradient getRateGradient() {
+
+        if (useAnalyticalSingleTypeSolutionInput.get() && parameterization.getNTypes() == 1) {
+            // The cached numerical states may predate any number of
+            // evaluations using the analytical solution.
+            pInitialConditionsValid = false;
+            edgeTopStatesValid = false;
+            calculateNumericalTreeLogLikelihood(tree);
+        }
+
+        int nTypes = parameterization.getNTypes();
+        RateGradient gradient = new RateGradient(parameterization.getTotalIntervalCount(), nTypes);
+
+        updateOutsideProbs();
+
+        P0GeSystem system = getP0GeSystem();
+        List<P0GradientSource> p0Sources = new ArrayList<>();
+
+        for (int nodeNr = 0; nodeNr < tree.getNodeCount(); nodeNr++) {
+            if (treeIndex.isDirectAncestor(nodeNr))
+                continue;
+
+            addNodeGradient(nodeNr, gradient, p0Sources, system);
+
+            if (nodeNr != treeIndex.rootNr)
+                addEdgeGradient(nodeNr, treeIndex.nodeTimes[treeIndex.parentNrs[nodeNr]],
+                        gradient, p0Sources, system);
+            else if (!parameterization.conditionedOnRoot())
+                addEdgeGradient(nodeNr, 0.0, gradient, p0Sources, system);
+        }
+
+        if (conditionOnSurvival.get()) {
+            double[] noSampleExistsProp = pInitialConditions[pInitialConditions.length - 1];
+
+            double probNoSample = 0.0;
+            for (int type = 0; type < nTypes; type++)
+                probNoSample += frequenciesInput.get().getArrayValue(type) * noSampleExistsProp[type];
+
+            double[] source = new double[nTypes];
+            for (int type = 0; type < nTypes; type++)
+                source[type] = frequenciesInput.get().getArrayValue(type) / (1 - probNoSample);
+
+            p0Sources.add(new P0GradientSource(0.0, 0, source));
+        }
+
+        addP0Gradient(p0Sources, gradient, system);
+
+        return gradient;
+    }
+
+    /**
+     * Compute the gradient of the tree log likelihood computed by the last
+     * evaluation with respect to the values of the parameters of the
+     * parameterization.
+     *
+     * @return map from each values parameter of the parameterization to
+     * the gradient with respect to its elements.
+     */
+    public Map<Function, double[]> getParameterGradients() {
+        return parameterization.getParameterGradients(getRateGradient());
+    }
+
+    /**
+     * Add the contribution of the event at a node to the gradient, and the
+     * p0 source due to a sampled leaf.
+     *
+     * @param nodeNr number of node
+     * @param gradient gradient to add to
+     * @param p0Sources list of p0 sources to add to
+     * @param system ODE system holding the rates
+     */
+    private void addNodeGradient(int nodeNr, RateGradient gradient,
+                                 List<P0GradientSource> p0Sources, P0GeSystem system) {
+
+        int nTypes = parameterization.getNTypes();
+        int intervalIdx = treeIndex.intervalIndices[nodeNr];
+        double[] outside = nodeOutsideProbs[nodeNr];
+        double[] r = system.r[intervalIdx];
+
+        if (treeIndex.isLeaf(nodeNr)) {
+
+            int nodeType = treeIndex.leafTypes[nodeNr];
+            double[] samplingRates = isRhoTip[nodeNr] ? system.rho[intervalIdx] : system.s[intervalIdx];
+            double[] samplingGradient = isRhoTip[nodeNr]
+                    ? gradient.rhoValues[intervalIdx]
+                    : gradient.samplingRates[intervalIdx];
+            double[] p0 = pInitialConditions[nodeNr];
+
+            double prob = 0.0;
+            for (int type = 0; type < nTypes; type++) {
+                if (nodeType == -1 || nodeType == type)
+                    prob += outside[type] * (r[type] + p0[type]*(1 - r[type])) * samplingRates[type];
+            }
+
+            if (!(prob > 0.0))
+                return;
+
+            double[] source = new double[nTypes];
+            for (int type = 0; type < nTypes; type++) {
+                if (nodeType != -1 && nodeType != type)
+                    continue;
+
+                samplingGradient[type] += outside[type] * (r[type] + p0[type]*(1 - r[type])) / prob;
+                gradient.removalProbs[intervalIdx][type] += outside[type]
+                        * (1 - p0[type]) * samplingRates[type] / prob;
+                source[type] = outside[type] * (1 - r[type]) * samplingRates[type] / prob;
+            }
+
+            // The p0 values of a leaf on an interval boundary are those of
+            // the later interval, while those at the end of the process are
+            // fixed.
+            double t = treeIndex.nodeTimes[nodeNr];
+            int boundary = getBoundaryIndex(t);
+            if (boundary >= 0)
+                p0Sources.add(new P0GradientSource(
+                        parameterization.getIntervalEndTimes()[boundary], boundary + 1, source));
+            else if (!Utils.equalWithPrecision(t, parameterization.getTotalProcessLength()))
+                p0Sources.add(new P0GradientSource(t, intervalIdx, source));
+
+        } else if (treeIndex.isSampledAncestor[nodeNr]) {
+
+            double[] ge = new double[nTypes];
+            getRelativeGe(edgeTopStates[treeIndex.firstChildNrs[nodeNr]], ge);
+
+            int saNodeNr = treeIndex.secondChildNrs[nodeNr];
+            int saNodeType = treeIndex.leafTypes[saNodeNr];
+            double[] samplingRates = isRhoTip[saNodeNr] ? system.rho[intervalIdx] : system.s[intervalIdx];
+            double[] samplingGradient = isRhoTip[saNodeNr]
+                    ? gradient.rhoValues[intervalIdx]
+                    : gradient.samplingRates[intervalIdx];
+
+            double prob = 0.0;
+            for (int type = 0; type < nTypes; type++) {
+                if (saNodeType == -1 || saNodeType == type)
+                    prob += outside[type] * ge[type] * samplingRates[type] * (1 - r[type]);
+            }
+
+            if (!(prob > 0.0))
+                return;
+
+            for (int type = 0; type < nTypes; type++) {
+                if (saNodeType != -1 && saNodeType != type)
+                    continue;
+
+                samplingGradient[type] += outside[type] * ge[type] * (1 - r[type]) / prob;
+                gradient.removalProbs[intervalIdx][type] -= outside[type] * ge[type]
+                        * samplingRates[type] / prob;
+            }
+
+        } else if (nodeNr != treeIndex.rootNr || !parameterization.conditionedOnRoot()) {
+
+            double[] ge1 = new double[nTypes];
+            double[] ge2 = new double[nTypes];
+            getRelativeGe(edgeTopStates[treeIndex.firstChildNrs[nodeNr]], ge1);
+            getRelativeGe(edgeTopStates[treeIndex.secondChildNrs[nodeNr]], ge2);
+
+            double[] b = system.b[intervalIdx];
+            double[][] b_ij = system.b_ij[intervalIdx];
+
+            double prob = 0.0;
+            for (int type = 0; type < nTypes; type++) {
+                double ge = b[type] * ge1[type] * ge2[type];
+                for (int otherType = 0; otherType < nTypes; otherType++) {
+                    if (otherType != type)
+                        ge += 0.5 * b_ij[type][otherType]
+                                * (ge1[type]*ge2[otherType] + ge1[otherType]*ge2[type]);
+                }
+                prob += outside[type] * ge;
+            }
+
+            if (!(prob > 0.0))
+                return;
+
+            for (int type = 0; type < nTypes; type++) {
+                gradient.birthRates[intervalIdx][type] += outside[type] * ge1[type] * ge2[type] / prob;
+
+                for (int otherType = 0; otherType < nTypes; otherType++) {
+                    if (otherType != type)
+                        gradient.crossBirthRates[intervalIdx][type][otherType] += outside[type] * 0.5
+                                * (ge1[type]*ge2[otherType] + ge1[otherType]*ge2[type]) / prob;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the contributions of the rates along the edge above a node to
+     * the gradient, together with those of the rho sampling probabilities
+     * at the boundaries crossed by the edge, and the corresponding p0
+     * sources.
+     *
+     * The ge values and their adjoints at the quadrature points are read
+     * from the dense output of the integrators, which are restarted only
+     * every PANELS_PER_EDGE_INTEGRATION panels to rescale the values.
+     *
+     * @param nodeNr number of node below edge
+     * @param tTop time at top of edge
+     * @param gradient gradient to add to
+     * @param p0Sources list of p0 sources to add to
+     * @param system ODE system to integrate
+     */
+    private void addEdgeGradient(int nodeNr, double tTop, RateGradient gradient,
+                                 List<P0GradientSource> p0Sources, P0GeSystem system) {
+
+        int nTypes = parameterization.getNTypes();
+        int nNodes = GAUSS_NODES.length;
+        double tBottom = treeIndex.nodeTimes[nodeNr];
+        double[] intervalEndTimes = system.intervalEndTimes;
+
+        // Divide the edge into segments lying in single intervals, and the
+        // segments into quadrature panels, listing the panels from the top
+        // of the edge down
+        List<Double> segmentTimes = new ArrayList<>();
+        List<Integer> segmentIntervals = new ArrayList<>();
+        List<Integer> segmentFirstPanels = new ArrayList<>();
+        List<Double> panelTimes = new ArrayList<>();
+
+        double thisTime = tTop;
+        int thisInterval = parameterization.getIntervalIndex(tTop);
+        segmentTimes.add(thisTime);
+        while (true) {
+            boolean endsOnBoundary = thisInterval < intervalEndTimes.length - 1
+                    && Utils.lessThanWithPrecision(intervalEndTimes[thisInterval], tBottom);
+            double nextTime = endsOnBoundary ? intervalEndTimes[thisInterval] : tBottom;
+
+            segmentIntervals.add(thisInterval);
+            segmentTimes.add(nextTime);
+            segmentFirstPanels.add(panelTimes.size());
+
+            if (Utils.greaterThanWithPrecision(nextTime, thisTime)) {
+                int nPanels = (int) Math.max(1, Math.ceil((nextTime - thisTime)
+                        * getTotalRateBound(thisInterval, system)));
+                double panelLength = (nextTime - thisTime)/nPanels;
+
+                for (int panel = 0; panel < nPanels; panel++)
+                    panelTimes.add(thisTime + panel*panelLength);
+            }
+
+            if (!endsOnBoundary)
+                break;
+
+            thisTime = nextTime;
+            thisInterval += 1;
+        }
+
+        int nSegments = segmentIntervals.size();
+        int nPanels = panelTimes.size();
+        segmentFirstPanels.add(nPanels);
+
+        // The end of each panel is the start of the next, or the bottom of
+        // its segment
+        double[] panelStarts = new double[nPanels];
+        double[] panelEnds = new double[nPanels];
+        for (int segment = 0; segment < nSegments; segment++) {
+            for (int panel = segmentFirstPanels.get(segment); panel < segmentFirstPanels.get(segment + 1); panel++) {
+                panelStarts[panel] = panelTimes.get(panel);
+                panelEnds[panel] = panel + 1 < segmentFirstPanels.get(segment + 1)
+                        ? panelTimes.get(panel + 1)
+                        : segmentTimes.get(segment + 1);
+            }
+        }
+
+        // Quadrature points, from the top of the edge down
+        int nPoints = nPanels*nNodes;
+        double[] pointTimes = new double[nPoints];
+        double[] pointWeights = new double[nPoints];
+        for (int panel = 0; panel < nPanels; panel++) {
+            double panelMid = 0.5*(panelStarts[panel] + panelEnds[panel]);
+            double panelLength = panelEnds[panel] - panelStarts[panel];
+
+            for (int q = 0; q < nNodes; q++) {
+                pointTimes[panel*nNodes + q] = panelMid + 0.5*panelLength*GAUSS_NODES[q];
+                pointWeights[panel*nNodes + q] = 0.5*panelLength*GAUSS_WEIGHTS[q];
+            }
+        }
+
+        // Integrate the ge values up the edge, recording them at each
+        // quadrature point and below each rho sampling boundary.  The
+        // points are reached in reverse order.
+        double[][] pointGe = new double[nPoints][nTypes];
+        double[] reversedTimes = new double[nPoints];
+        double[][] reversedGe = new double[nPoints][];
+        for (int i = 0; i < nPoints; i++) {
+            reversedTimes[i] = pointTimes[nPoints - 1 - i];
+            reversedGe[i] = pointGe[nPoints - 1 - i];
+        }
+        double[][] boundaryGe = new double[nSegments][];
+
+        double[] ge = new double[nTypes];
+        getRelativeGe(calculateEdgeBottomState(nodeNr, tBottom, system), ge);
+
+        for (int segment = nSegments - 1; segment >= 0; segment--) {
+            int interval = segmentIntervals.get(segment);
+            system.setInterval(interval);
+
+            int firstPanel = segmentFirstPanels.get(segment);
+            double t = segmentTimes.get(segment + 1);
+
+            for (int chunkEnd = segmentFirstPanels.get(segment + 1); chunkEnd > firstPanel;
+                 chunkEnd -= PANELS_PER_EDGE_INTEGRATION) {
+                int chunkStart = Math.max(firstPanel, chunkEnd - PANELS_PER_EDGE_INTEGRATION);
+
+                system.integrateGe(ge, t, panelStarts[chunkStart], reversedTimes,
+                        nPoints - chunkEnd*nNodes, nPoints - chunkStart*nNodes, reversedGe);
+                rescaleByMax(ge);
+                t = panelStarts[chunkStart];
+            }
+
+            if (segment > 0 && Utils.greaterThanWithPrecision(segmentTimes.get(segment), tTop)) {
+                boundaryGe[segment] = ge.clone();
+                for (int type = 0; type < nTypes; type++)
+                    ge[type] *= 1 - system.rho[interval - 1][type];
+            }
+        }
+
+        // Integrate the outside probabilities down the edge, adding the
+        // contributions at each boundary and quadrature point
+        double[] outside = edgeTopOutsideProbs[nodeNr].clone();
+        double[][] pointOutside = new double[nPoints][nTypes];
+        double[] p0 = new double[nTypes];
+
+        for (int segment = 0; segment < nSegments; segment++) {
+            int interval = segmentIntervals.get(segment);
+            system.setInterval(interval);
+
+            int endPanel = segmentFirstPanels.get(segment + 1);
+            double t = segmentTimes.get(segment);
+
+            if (boundaryGe[segment] != null) {
+                double[] rho = system.rho[interval - 1];
+
+                double prob = 0.0;
+                for (int type = 0; type < nTypes; type++)
+                    prob += outside[type] * boundaryGe[segment][type] * (1 - rho[type]);
+
+                if (prob > 0.0) {
+                    for (int type = 0; type < nTypes; type++)
+                        gradient.rhoValues[interval - 1][type] -= outside[type]
+                                * boundaryGe[segment][type] / prob;
+                }
+
+                for (int type = 0; type < nTypes; type++)
+                    outside[type] *= 1 - rho[type];
+            }
+
+            for (int chunkStart = segmentFirstPanels.get(segment); chunkStart < endPanel;
+                 chunkStart += PANELS_PER_EDGE_INTEGRATION) {
+                int chunkEnd = Math.min(endPanel, chunkStart + PANELS_PER_EDGE_INTEGRATION);
+
+                system.integrateGeAdjoint(outside, t, panelEnds[chunkEnd - 1], pointTimes,
+                        chunkStart*nNodes, chunkEnd*nNodes, pointOutside);
+                rescaleByMax(outside);
+                t = panelEnds[chunkEnd - 1];
+            }
+
+            for (int point = segmentFirstPanels.get(segment)*nNodes; point < endPanel*nNodes; point++) {
+                system.getP0Solution().getP0(pointTimes[point], interval, p0);
+                addEdgePointGradient(pointTimes[point], interval, pointWeights[point],
+                        pointOutside[point], pointGe[point], p0, gradient, p0Sources, system);
+            }
+
+            if (segment < nSegments - 1) {
+                system.integrateGeAdjoint(outside, t, segmentTimes.get(segment + 1));
+                rescaleByMax(outside);
+            }
+        }
+    }
+
+    /**
+     * Add the contribution of a quadrature point on an edge to the
+     * gradient, i.e. the weighted derivative of the inner product of the
+     * outside probabilities with the right-hand side of the ge equations
+     * (relative to the likelihood), and the corresponding p0 source.
+     *
+     * @param t time of point
+     * @param interval interval containing point
+     * @param weight quadrature weight
+     * @param outside outside probabilities at point
+     * @param ge ge values at point
+     * @param p0 p0 values at point
+     * @param gradient gradient to add to
+     * @param p0Sources list of p0 sources to add to
+     * @param system ODE system holding the rates
+     */
+    private void addEdgePointGradient(double t, int interval, double weight,
+                                      double[] outside, double[] ge, double[] p0,
+                                      RateGradient gradient, List<P0GradientSource> p0Sources,
+                                      P0GeSystem system) {
+
+        int nTypes = parameterization.getNTypes();
+
+        double prob = 0.0;
+        for (int type = 0; type < nTypes; type++)
+            prob += outside[type] * ge[type];
+
+        if (!(prob > 0.0))
+            return;
+
+        // The ge equations are integrated backwards in time, so the
+        // contributions carry a negative sign
+        double factor = -weight/prob;
+
+        double[] b = system.b[interval];
+        double[][] b_ij = system.b_ij[interval];
+        double[] source = new double[nTypes];
+
+        for (int i = 0; i < nTypes; i++) {
+            double term = factor * outside[i];
+
+            gradient.birthRates[interval][i] += term * (1 - 2*p0[i]) * ge[i];
+            gradient.deathRates[interval][i] += term * ge[i];
+            gradient.samplingRates[interval][i] += term * ge[i];
+
+            source[i] -= 2 * term * b[i] * ge[i];
+
+            for (int j = 0; j < nTypes; j++) {
+                if (i == j)
+                    continue;
 
-                int indexSecondChild = Math.abs(indexFirstChild - 1);
+                gradient.crossBirthRates[interval][i][j] += term
+                        * (ge[i] - p0[i]*ge[j] - p0[j]*ge[i]);
+                gradient.migRates[interval][i][j] += term * (ge[i] - ge[j]);
 
-                P0GeState childState1 = null, childState2 = null;
+                source[i] -= term * b_ij[i][j] * ge[j];
+                source[j] -= term * b_ij[i][j] * ge[i];
+            }
+        }
 
-                // evaluate if the next step in the traversal should be split between one new thread and the currrent thread and run in parallel.
+        p0Sources.add(new P0GradientSource(t, interval, source));
+    }
 
-                if (isParallelizedCalculation
-                        && weightOfNodeSubTree[node.getChild(indexFirstChild).getNr()] > parallelizationThreshold
-                        && weightOfNodeSubTree[node.getChild(indexSecondChild).getNr()] > parallelizationThreshold) {
+    /**
+     * @param interval interval index
+     * @param system ODE system holding the rates
+     * @return largest total rate of events (including migration and
+     * cross-birth) over all types in the interval.
+     */
+    private double getTotalRateBound(int interval, P0GeSystem system) {
+        double bound = 0.0;
+        for (int i = 0; i < parameterization.getNTypes(); i++) {
+            double rate = system.b[interval][i] + system.d[interval][i] + system.s[interval][i];
+            for (int j = 0; j < parameterization.getNTypes(); j++) {
+                if (j != i)
+                    rate += system.M[interval][i][j] + system.b_ij[interval][i][j];
+            }
+            bound = Math.max(bound, rate);
+        }
 
-                    try {
-                        // start a new thread to take care of the second subtree
-                        Future<P0GeState> secondChildTraversal = pool.submit(
-                                new TraversalService(node.getChild(indexSecondChild), tBottom,
-                                        parameterization.getNodeTime(node.getChild(indexSecondChild), finalSampleOffset.getArrayValue()),
-                                        depth + 1));
+        return bound;
+    }
 
-                        childState1 = calculateSubtreeLikelihood(
-                                node.getChild(indexFirstChild), tBottom,
-                                parameterization.getNodeTime(node.getChild(indexFirstChild), finalSampleOffset.getArrayValue()),
-                                system, depth + 1);
-                        childState2 = secondChildTraversal.get();
-                    } catch (InterruptedException | ExecutionException e) {
-                        e.printStackTrace();
+    /**
+     * Integrate the adjoint of the p0 equations forwards in time from the
+     * start of the process, adding the given sources, and add the resulting
+     * contributions of the rates and of the rho sampling probabilities to
+     * the gradient.
+     *
+     * Rather than restarting the integration at each source, each interval
+     * is divided into panels no longer than the inverse of
+     * P0_SOURCE_PANELS_PER_UNIT_RATE times the largest total rate, and the
+     * sources within a panel are merged into a polynomial forcing term of
+     * the adjoint equations over the panel.  The point source s at time u
+     * is replaced by the polynomial density of degree GAUSS_NODES.length-1
+     * whose integral against any polynomial f of that degree over the panel
+     * is f(u) s.  Since the response of the adjoint to a source is smooth
+     * in the time of the source, the error is that of interpolating it by
+     * such a polynomial over the panel, while the integrator is restarted
+     * once per panel rather than once per source.
+     *
+     * @param p0Sources p0 sources
+     * @param gradient gradient to add to
+     * @param system ODE system to integrate
+     */
+    private void addP0Gradient(List<P0GradientSource> p0Sources, RateGradient gradient,
+                               P0GeSystem system) {
 
-                        System.exit(1);
-                    }
+        int nTypes = parameterization.getNTypes();
+        int n2 = nTypes*nTypes;
+        int nNodes = GAUSS_NODES.length;
+        double[] intervalEndTimes = system.intervalEndTimes;
 
-                } else {
-                    childState1 = calculateSubtreeLikelihood(node.getChild(
-                            indexFirstChild), tBottom,
-                            parameterization.getNodeTime(node.getChild(indexFirstChild), finalSampleOffset.getArrayValue()),
-                            system, depth + 1);
-                    childState2 = calculateSubtreeLikelihood(node.getChild(indexSecondChild), tBottom,
-                            parameterization.getNodeTime(node.getChild(indexSecondChild), finalSampleOffset.getArrayValue()),
-                            system, depth + 1);
-                }
+        p0Sources.sort(Comparator.<P0GradientSource>comparingInt(source -> source.interval)
+                .thenComparingDouble(source -> source.time));
 
+        double[] y = new double[system.getP0AdjointDimension()];
+        double[] p0 = new double[nTypes];
+        double[] basis = new double[nNodes];
 
-                if (debug) debugMessage("Infection at time " + tBottom, depth);
+        int sourceIdx = 0;
+        for (int interval = 0; interval < intervalEndTimes.length; interval++) {
+            system.setInterval(interval);
 
-                for (int childType = 0; childType < parameterization.getNTypes(); childType++) {
+            double intervalStart = interval > 0 ? intervalEndTimes[interval - 1] : 0.0;
+            double intervalLength = intervalEndTimes[interval] - intervalStart;
 
-                    state.p0[childType] = childState1.p0[childType];
-                    state.ge[childType] = childState1.ge[childType]
-                            .multiplyBy(childState2.ge[childType])
-                            .scalarMultiplyBy(system.b[intervalIdx][childType]);
+            int nPanels = (int) Math.max(1, Math.ceil(intervalLength
+                    * P0_SOURCE_PANELS_PER_UNIT_RATE * getTotalRateBound(interval, system)));
+            double panelLength = intervalLength/nPanels;
 
-                    for (int otherChildType = 0; otherChildType < parameterization.getNTypes(); otherChildType++) {
-                        if (otherChildType == childType)
-                            continue;
+            // Merge the sources of the interval into forcing terms of the
+            // panels, given by their values at the Gauss-Legendre nodes
+            double[][][] forcing = new double[nPanels][][];
 
-                        state.ge[childType] = state.ge[childType]
-                                .addTo((childState1.ge[childType].multiplyBy(childState2.ge[otherChildType]))
-                                        .addTo(childState1.ge[otherChildType].multiplyBy(childState2.ge[childType]))
-                                        .scalarMultiplyBy(0.5 * system.b_ij[intervalIdx][childType][otherChildType]));
-                    }
+            for (; sourceIdx < p0Sources.size()
+                    && p0Sources.get(sourceIdx).interval == interval; sourceIdx++) {
+                P0GradientSource source = p0Sources.get(sourceIdx);
 
+                if (!(panelLength > 0.0)) {
+                    for (int type = 0; type < nTypes; type++)
+                        y[type] += source.gradient[type];
+                    continue;
+                }
 
-                    if (Double.isInfinite(state.p0[childType])) {
-                        throw new RuntimeException("infinite likelihood");
-                    }
+                int panel = Math.min(nPanels - 1, Math.max(0,
+                        (int) ((source.time - intervalStart)/panelLength)));
+                double panelStart = intervalStart + panel*panelLength;
+                double x = 2*(source.time - panelStart)/panelLength - 1;
+                Utils.computeLagrangeBasis(GAUSS_NODES, x, basis);
+
+                if (forcing[panel] == null)
+                    forcing[panel] = new double[nNodes][nTypes];
+
+                for (int q = 0; q < nNodes; q++) {
+                    double factor = 2*basis[q]/(GAUSS_WEIGHTS[q]*panelLength);
+                    for (int type = 0; type < nTypes; type++)
+                        forcing[panel][q][type] += factor*source.gradient[type];
                 }
             }
 
-        }
-
-        if (debug) debugMessage("State at base of edge: " + state, depth);
+            for (int panel = 0; panel < nPanels; panel++) {
+                double panelStart = intervalStart + panel*panelLength;
+                double panelEnd = panel < nPanels - 1
+                        ? panelStart + panelLength
+                        : intervalEndTimes[interval];
 
-        integrateP0Ge(node, tTop, state, system);
+                system.setP0AdjointForcing(panelStart, panelEnd, GAUSS_NODES, forcing[panel]);
+                system.integrateP0Adjoint(y, panelStart, panelEnd);
+            }
+            system.setP0AdjointForcing(0.0, 0.0, null, null);
 
-        if (debug)
-            debugMessage("State at top of edge: " + state + "\n", depth);
+            for (int i = 0; i < nTypes; i++) {
+                gradient.birthRates[interval][i] += y[nTypes + i];
+                gradient.deathRates[interval][i] += y[2*nTypes + i];
+                gradient.samplingRates[interval][i] += y[3*nTypes + i];
 
-        return state;
+                for (int j = 0; j < nTypes; j++) {
+                    gradient.migRates[interval][i][j] += y[4*nTypes + i*nTypes + j];
+                    gradient.crossBirthRates[interval][i][j] += y[4*nTypes + n2 + i*nTypes + j];
+                }
+            }
+            Arrays.fill(y, nTypes, y.length, 0.0);
+
+            // Going backwards in time, p0 is multiplied by (1-rho) at the
+            // end of each interval.  The p0 values at the end of the process
+            // are 1.
+            if (interval < intervalEndTimes.length - 1)
+                system.getP0Solution().getP0(intervalEndTimes[interval], interval + 1, p0);
+            else
+                Arrays.fill(p0, 1.0);
+
+            for (int type = 0; type < nTypes; type++) {
+                gradient.rhoValues[interval][type] -= y[type] * p0[type];
+                y[type] *= 1 - system.rho[interval][type];
+            }
+        }
     }
 
     /**
-     * Print message to stdout with given indentation depth.
+     * Find the earliest time no earlier than t at which both the previous
+     * and the current p0 integrations were (re)started, i.e. the earliest
+     * leaf time after t, the end of the process, or an interval boundary
+     * at or after t which separates two spans of intervals in both
+     * integrations.  The steps taken after this time by the current
+     * integration are those taken by the previous one as long as the rates
+     * after t are unchanged, whereas a step taken before it may straddle t
+     * and change the solution after t.
      *
-     * @param message debug message
-     * @param depth   indentation level
+     * @param t time after which the rates are unchanged
+     * @param previousTrajectory trajectory of the previous p0 integration
+     * @return restart time
      */
-    private void debugMessage(String message, int depth) {
-        for (int i = 0; i < depth; i++)
-            System.out.print("  ");
+    private double getP0RestartTime(double t, P0Trajectory previousTrajectory) {
+        double[] intervalEndTimes = parameterization.getIntervalEndTimes();
+
+        double restartTime = parameterization.getTotalProcessLength();
+        for (int k = parameterization.getIntervalIndex(t); k < intervalEndTimes.length - 1; k++) {
+            if (p0System.getSpanFirstInterval(k + 1) == k + 1
+                    && previousTrajectory != null
+                    && previousTrajectory.getIntervalCount() == intervalEndTimes.length
+                    && previousTrajectory.getSpanFirstInterval(k + 1) == k + 1) {
+                restartTime = intervalEndTimes[k];
+                break;
+            }
+        }
 
-        System.out.println(message);
-    }
+        // An integration ending at t itself evaluates the rates at t, so
+        // only later leaf times are restart times
+        for (double leafTime : leafTimes) {
+            if (leafTime < restartTime && Utils.greaterThanWithPrecision(leafTime, t))
+                restartTime = leafTime;
+        }
 
-    /**
-     * @return retrieve current set of root type probabilities.
-     */
-    double[] getRootTypeProbs() {
-        return rootTypeProbs;
+        return restartTime;
     }
 
     /**
      * Compute all initial conditions for all future integrations on p0 equations.
+     * The computation is skipped if neither the leaf times nor the
+     * parameterization have changed since the last call.
+     *
+     * When only the parameterization has changed, p0ChangeTimeBound is set
+     * to the latest time affected by the change: later p0 values coincide
+     * with those of the previous solution.  When integrating across
+     * interval boundaries, a step straddling that time may change the
+     * solution up to the point at which the integration containing it was
+     * started, which is used instead (see getP0RestartTime()).  Otherwise
+     * p0ChangeTimeBound is set to positive infinity.
      *
      * @param tree tree to extract leaf times from
+     * @return true if the initial conditions were recomputed
      */
-    private void updateInitialConditionsForP(TreeInterface tree) {
+    private boolean updateInitialConditionsForP(TreeInterface tree) {
+
+        boolean leafTimesChanged = leafTimesChanged(tree);
+
+        if (pInitialConditionsValid && !leafTimesChanged
+                && !parameterization.isDirtyCalculation())
+            return false;
+
+        p0ChangeTimeBound = pInitialConditionsValid && !leafTimesChanged
+                ? parameterization.getLatestAffectedTime()
+                : Double.POSITIVE_INFINITY;
 
-        P0System p0System = new P0System(parameterization,
-                absoluteToleranceInput.get(), relativeToleranceInput.get());
+        P0Trajectory previousTrajectory = p0Trajectory;
 
         int leafCount = tree.getLeafNodeCount();
-        double[] leafTimes = new double[leafCount];
-        int[] indicesSortedByLeafTime = new int[leafCount];
 
-        for (int i = 0; i < leafCount; i++) { // get all leaf times
-            leafTimes[i] = parameterization.getNodeTime(tree.getNode(i), finalSampleOffset.getArrayValue());
-//            leafTimes[i] = parameterization.getTotalProcessLength() - tree.getNode(i).getHeight();
-            indicesSortedByLeafTime[i] = i;
+        if (leafTimesChanged) {
+            // New arrays are used so that the stored copies remain intact
+            leafTimes = new double[leafCount];
+            indicesSortedByLeafTime = new int[leafCount];
+
+            for (int i = 0; i < leafCount; i++) { // get all leaf times
+                leafTimes[i] = parameterization.getNodeTime(tree.getNode(i), finalSampleOffset.getArrayValue());
+                indicesSortedByLeafTime[i] = i;
+            }
+
+            HeapSort.sort(leafTimes, indicesSortedByLeafTime);
+            //"sort" sorts in ascending order, so we have to be careful since the
+            // integration starts from the leaves at time T and goes up to the
+            // root at time 0 (or >0)
         }
 
-        HeapSort.sort(leafTimes, indicesSortedByLeafTime);
-        //"sort" sorts in ascending order, so we have to be careful since the
-        // integration starts from the leaves at time T and goes up to the
-        // root at time 0 (or >0)
+        if (p0System == null) {
+            p0System = new P0System(parameterization,
+                    absoluteToleranceInput.get(), getRelativeTolerance());
+            p0System.setStiffnessThreshold(stiffnessThreshold);
+            p0System.setStatistics(integrationStatistics);
+            p0System.setUseAnalyticalSolution(useAnalyticalDecoupledSolutionInput.get());
+            p0System.setIntegrateAcrossBoundaries(integrateAcrossBoundariesInput.get());
+        } else {
+            p0System.update();
+            p0System.setTolerances(absoluteToleranceInput.get(), getRelativeTolerance());
+        }
 
+        if (integrateAcrossBoundariesInput.get()
+                && p0ChangeTimeBound > Double.NEGATIVE_INFINITY
+                && p0ChangeTimeBound < Double.POSITIVE_INFINITY)
+            p0ChangeTimeBound = getP0RestartTime(p0ChangeTimeBound, previousTrajectory);
 
         // The initial value is zero, so that all modifications can be expressed
         // as products.
@@ -585,6 +2620,10 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
         pInitialConditions = new double[leafCount + 1][p0System.nTypes];
 
+        // Record the complete p0 solution, for use in the ge integrations
+        p0Trajectory = new P0Trajectory(p0System.nTypes, p0System.getSpanFirstIntervals());
+        p0System.setTrajectory(p0Trajectory);
+
         double tprev = p0System.totalProcessLength;
 
         for (int i = leafCount - 1; i >= 0; i--) {
@@ -634,6 +2673,12 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         integrateP0(tprev, 0, p0State, p0System);
         System.arraycopy(p0State.p0, 0,
                 pInitialConditions[leafCount], 0, p0System.nTypes);
+
+        p0System.setTrajectory(null);
+
+        pInitialConditionsValid = true;
+
+        return true;
     }
 
     /**
@@ -645,82 +2690,115 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         int thisInterval = parameterization.getIntervalIndex(thisTime);
         int endInterval = parameterization.getIntervalIndex(tEnd);
 
+        system.setInterval(thisInterval);
+        system.recordIntervalValue(state);
+
         while (thisInterval > endInterval) {
 
-            double nextTime = system.intervalEndTimes[thisInterval-1];
+            // Boundaries within a span are crossed without stopping
+            int firstInterval = system.getSpanFirstInterval(thisInterval);
+            if (firstInterval <= endInterval) {
+                system.setIntervals(endInterval, thisInterval);
+                break;
+            }
+
+            double nextTime = system.intervalEndTimes[firstInterval-1];
 
             if (Utils.lessThanWithPrecision(nextTime , thisTime)) {
-                system.setInterval(thisInterval);
+                system.setIntervals(firstInterval, thisInterval);
                 system.integrate(state, thisTime, nextTime);
             }
 
-            if (Utils.greaterThanWithPrecision(nextTime, tEnd)) {
+            boolean rhoApplied = Utils.greaterThanWithPrecision(nextTime, tEnd);
+            if (rhoApplied) {
                 for (int i = 0; i < system.nTypes; i++)
-                    state.p0[i] *= (1 - system.rho[thisInterval - 1][i]);
+                    state.p0[i] *= (1 - system.rho[firstInterval - 1][i]);
             }
 
             thisTime = nextTime;
-            thisInterval -= 1;
+            thisInterval = firstInterval - 1;
 
+            system.setInterval(thisInterval);
+            if (rhoApplied)
+                system.recordIntervalValue(state);
         }
 
-        if (Utils.greaterThanWithPrecision(thisTime, tEnd)) {
-            system.setInterval(thisInterval);
+        if (Utils.greaterThanWithPrecision(thisTime, tEnd))
             system.integrate(state, thisTime, tEnd);
-        }
     }
 
     /**
-     * Integrate state along edge above baseNode until time tTop according to system.
+     * Integrate state along an edge from time tBottom until time tTop
+     * according to system.
      *
-     * @param baseNode node at base of edge
-     * @param tTop     time at top of edge
-     * @param state    ODE variables at bottom of edge
-     * @param system   ODE system to integrate
+     * @param tBottom        time at bottom of edge
+     * @param bottomInterval index of interval containing tBottom
+     * @param tTop           time at top of edge
+     * @param state          ODE variables at bottom of edge
+     * @param system         ODE system to integrate
      */
-    private void integrateP0Ge(Node baseNode, double tTop, P0GeState state, P0GeSystem system) {
+    private void integrateP0Ge(double tBottom, int bottomInterval, double tTop,
+                               P0GeState state, P0GeSystem system) {
+
+        if (state.isScaled) {
+            if (integrateScaledP0Ge(tBottom, bottomInterval, tTop, state, system))
+                return;
+
+            // ge values span too wide a range to share a single scale factor
+            recordExtendedFallback();
+            state.setExtended();
+        }
 
         // pgScaled contains the set of initial conditions scaled made to fit
         // the requirements on the values 'double' can represent. It also
         // contains the factor by which the numbers were multiplied.
-        ScaledNumbers pgScaled = state.getScaledState();
+        ScaledNumbers pgScaled = state.getScaledState(system.getScaledStateWorkspace());
 
-        double thisTime = parameterization.getNodeTime(baseNode, finalSampleOffset.getArrayValue());
-        int thisInterval = parameterization.getIntervalIndex(thisTime);
+        double thisTime = tBottom;
+        int thisInterval = bottomInterval;
         int endInterval = parameterization.getIntervalIndex(tTop);
         double oneMinusRho;
 
         system.setInterval(thisInterval);
 
         while (thisInterval > endInterval) {
-            double nextTime = system.intervalEndTimes[thisInterval-1];
+
+            // Boundaries within a span are crossed without stopping
+            int firstInterval = system.getSpanFirstInterval(thisInterval);
+            if (firstInterval <= endInterval) {
+                system.setIntervals(endInterval, thisInterval);
+                break;
+            }
+
+            double nextTime = system.intervalEndTimes[firstInterval-1];
+            system.setIntervals(firstInterval, thisInterval);
 
             if (Utils.lessThanWithPrecision(nextTime, thisTime)) {
-                pgScaled = system.safeIntegrate(pgScaled, thisTime, nextTime);
+                system.safeIntegrate(pgScaled, thisTime, nextTime);
 
                 state.setFromScaledState(pgScaled.getEquation(), pgScaled.getScalingFactor());
 
                 if (Utils.greaterThanWithPrecision(nextTime, tTop)) {
                     for (int i = 0; i < parameterization.getNTypes(); i++) {
-                        oneMinusRho = 1 - system.rho[thisInterval - 1][i];
+                        oneMinusRho = 1 - system.rho[firstInterval - 1][i];
                         state.p0[i] *= oneMinusRho;
-                        state.ge[i] = state.ge[i].scalarMultiplyBy(oneMinusRho);
+                        state.multiplyGe(i, oneMinusRho);
                     }
                 }
 
                 // 'rescale' the results of the last integration to prepare for the next integration step
-                pgScaled = state.getScaledState();
+                state.getScaledState(pgScaled);
             }
 
             thisTime = nextTime;
-            thisInterval -= 1;
+            thisInterval = firstInterval - 1;
 
             system.setInterval(thisInterval);
         }
 
          // solve PG , store solution temporarily integrationResults
         if (Utils.greaterThanWithPrecision(thisTime, tTop))
-            pgScaled = system.safeIntegrate(pgScaled, thisTime, tTop);
+            system.safeIntegrate(pgScaled, thisTime, tTop);
 
         // 'unscale' values in integrationResults so as to retrieve accurate values after the integration.
         state.setFromScaledState(pgScaled.getEquation(), pgScaled.getScalingFactor());
@@ -728,86 +2806,354 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
 
     /**
-     * Perform an initial traversal of the tree to get the 'weights' (sum of all its edges lengths) of all sub-trees
-     * Useful for performing parallelized calculations on the tree.
-     * The weights of the subtrees tell us the depth at which parallelization should stop, so as to not parallelize on subtrees that are too small.
-     * Results are stored in 'weightOfNodeSubTree' array
+     * Integrate a state in the scaled representation along an edge from
+     * time tBottom until time tTop according to system.  The ge values are
+     * integrated as plain doubles, with a single log scale factor updated
+     * whenever they are rescaled.
+     *
+     * @param tBottom        time at bottom of edge
+     * @param bottomInterval index of interval containing tBottom
+     * @param tTop           time at top of edge
+     * @param state          ODE variables at bottom of edge
+     * @param system         ODE system to integrate
+     * @return false if the ge values came to span too wide a range to share
+     * a single scale factor, in which case state is left unchanged.
+     */
+    private boolean integrateScaledP0Ge(double tBottom, int bottomInterval, double tTop,
+                                        P0GeState state, P0GeSystem system) {
+
+        int nTypes = parameterization.getNTypes();
+
+        double[] y = system.getStateWorkspace();
+        System.arraycopy(state.p0, 0, y, 0, nTypes);
+        System.arraycopy(state.geScaled, 0, y, nTypes, nTypes);
+        double logScale = state.geLogScale;
+
+        double thisTime = tBottom;
+        int thisInterval = bottomInterval;
+        int endInterval = parameterization.getIntervalIndex(tTop);
+        double oneMinusRho;
+
+        system.setInterval(thisInterval);
+
+        while (thisInterval > endInterval) {
+
+            // Boundaries within a span are crossed without stopping
+            int firstInterval = system.getSpanFirstInterval(thisInterval);
+            if (firstInterval <= endInterval) {
+                system.setIntervals(endInterval, thisInterval);
+                break;
+            }
+
+            double nextTime = system.intervalEndTimes[firstInterval-1];
+            system.setIntervals(firstInterval, thisInterval);
+
+            if (Utils.lessThanWithPrecision(nextTime, thisTime)) {
+                logScale += system.integrateScaled(y, thisTime, nextTime);
+
+                if (Double.isNaN(logScale))
+                    return false;
+
+                if (Utils.greaterThanWithPrecision(nextTime, tTop)) {
+                    for (int i = 0; i < nTypes; i++) {
+                        oneMinusRho = 1 - system.rho[firstInterval - 1][i];
+                        y[i] *= oneMinusRho;
+                        y[i + nTypes] *= oneMinusRho;
+                    }
+                }
+            }
+
+            thisTime = nextTime;
+            thisInterval = firstInterval - 1;
+
+            system.setInterval(thisInterval);
+        }
+
+        if (Utils.greaterThanWithPrecision(thisTime, tTop)) {
+            logScale += system.integrateScaled(y, thisTime, tTop);
+
+            if (Double.isNaN(logScale))
+                return false;
+        }
+
+        System.arraycopy(y, 0, state.p0, 0, nTypes);
+        System.arraycopy(y, nTypes, state.geScaled, 0, nTypes);
+        state.geLogScale = logScale;
+
+        return true;
+    }
+
+    /**
+     * Rescale the ge values of a state in the scaled representation,
+     * switching the state to the extended representation if these values
+     * span too wide a range to share a single scale factor.
      *
-     * @param tree tree whose subtree to compute weights of
+     * @param state state to rescale
      */
-    private void getAllSubTreesWeights(TreeInterface tree) {
-        Node root = tree.getRoot();
-        double weight = 0;
-        for (final Node child : root.getChildren()) {
-            weight += getSubTreeWeight(child);
+    private void rescaleState(P0GeState state) {
+        if (state.isScaled && !state.rescaleScaledGe()) {
+            recordExtendedFallback();
+            state.setExtended();
         }
-        weightOfNodeSubTree[root.getNr()] = weight;
     }
 
     /**
-     * Perform an initial traversal of the subtree to get its 'weight': sum of all its edges.
+     * Record a state falling back to the extended representation, if
+     * integration statistics are being recorded.
+     */
+    private void recordExtendedFallback() {
+        if (integrationStatistics != null)
+            integrationStatistics.addExtendedFallback();
+    }
+
+    /**
+     * @return relative tolerance currently used for numerical integration.
+     */
+    public double getRelativeTolerance() {
+        return toleranceController != null
+                ? toleranceController.getRelativeTolerance()
+                : relativeToleranceInput.get();
+    }
+
+    /**
+     * Rough order-of-magnitude estimate of the error in the log-likelihood
+     * due to the integrations performed during the most recent evaluation,
+     * obtained by assuming each accepted integration step to commit a
+     * relative error of the order of the relative tolerance.  This is not
+     * a bound: the local error control of the integrators does not bound
+     * the global error.
      *
-     * @param node root of subtree
-     * @return weight
+     * @return error estimate, or NaN if integration statistics are not
+     * recorded.
      */
-    private double getSubTreeWeight(Node node) {
+    public double getLogLikelihoodErrorEstimate() {
+        if (lastIntegrationStatistics == null)
+            return Double.NaN;
 
-        // if leaf, stop recursion, get length of branch above and return
-        if (node.isLeaf()) {
-            weightOfNodeSubTree[node.getNr()] = node.getLength();
-            return node.getLength();
+        return getRelativeTolerance()*lastIntegrationStatistics.getAcceptedSteps();
+    }
+
+    /**
+     * @return integration statistics of the most recent likelihood
+     * evaluation (of the current state once a proposal has been rejected),
+     * or null if these are not recorded.
+     */
+    public IntegrationStatistics.Snapshot getIntegrationStatistics() {
+        return lastIntegrationStatistics;
+    }
+
+    /**
+     * Fold the edge integration times measured during the last evaluation
+     * into the smoothed cost estimates.
+     */
+    private void updateEdgeCostEstimates() {
+        double totalCost = 0.0, totalLength = 0.0;
+
+        for (int nodeNr = 0; nodeNr < treeIndex.nodeCount; nodeNr++) {
+            double cost = measuredEdgeCosts[nodeNr];
+            if (Double.isNaN(cost))
+                continue;
+
+            measuredEdgeCosts[nodeNr] = Double.NaN;
+
+            edgeCostEstimates[nodeNr] = Double.isNaN(edgeCostEstimates[nodeNr])
+                    ? cost
+                    : edgeCostEstimates[nodeNr] + EDGE_COST_SMOOTHING*(cost - edgeCostEstimates[nodeNr]);
+
+            totalCost += cost;
+            totalLength += measuredEdgeLengths[nodeNr];
+        }
+
+        if (totalLength > 0.0) {
+            double rate = totalCost/totalLength;
+            costPerUnitLength = Double.isNaN(costPerUnitLength)
+                    ? rate
+                    : costPerUnitLength + EDGE_COST_SMOOTHING*(rate - costPerUnitLength);
         }
+    }
+
+    /**
+     * Compute the 'weights' of all sub-trees: the estimated cost of
+     * integrating those edges of the subtree which need recomputation.
+     * Edge costs are estimated from the integration times measured in
+     * recent evaluations, or from the edge length for edges which have not
+     * been measured.  The weights of the subtrees tell us the depth at
+     * which parallelization should stop, so as to not parallelize on
+     * subtrees that are too small.  Results are stored in the
+     * 'weightOfNodeSubTree' array.
+     *
+     * @return estimated cost of integrating those edges of the tree which
+     * need recomputation, i.e. the weight of the root's subtree
+     */
+    private double getAllSubTreesWeights() {
+        // Before any edge has been measured, costs are edge lengths
+        double rate = Double.isNaN(costPerUnitLength) ? 1.0 : costPerUnitLength;
+
+        for (int i = 0; i < treeIndex.nodeCount; i++) {
+            int nodeNr = treeIndex.postOrder[i];
+            int parentNr = treeIndex.parentNrs[nodeNr];
+
+            double cost;
+            if (parentNr == TreeIndex.NONE)
+                cost = 0.0;
+            else if (!Double.isNaN(edgeCostEstimates[nodeNr]))
+                cost = edgeCostEstimates[nodeNr];
+            else
+                cost = rate*(treeIndex.nodeTimes[nodeNr] - treeIndex.nodeTimes[parentNr]);
+
+            double weight = !edgeTopStatesValid || subtreeIsDirty[nodeNr] ? cost : 0.0;
+
+            if (!treeIndex.isLeaf(nodeNr)) {
+                weight += weightOfNodeSubTree[treeIndex.firstChildNrs[nodeNr]]
+                        + weightOfNodeSubTree[treeIndex.secondChildNrs[nodeNr]];
+            }
 
-        // else, iterate over the children of the node
-        double weight = 0;
-        for (final Node child : node.getChildren()) {
-            weight += getSubTreeWeight(child);
+            weightOfNodeSubTree[nodeNr] = weight;
         }
-        // add length of parental branch
-        weight += node.getLength();
-        // store the value
-        weightOfNodeSubTree[node.getNr()] = weight;
 
-        return weight;
+        return weightOfNodeSubTree[treeIndex.rootNr];
     }
 
     private void updateParallelizationThreshold() {
-        if (isParallelizedCalculation) {
-            getAllSubTreesWeights(tree);
-            // set 'parallelizationThreshold' to a fraction of the whole tree weight.
+        if (isParallelizedCalculation && pool != null) {
+            updateEdgeCostEstimates();
+            double totalCost = getAllSubTreesWeights();
+            // set 'parallelizationThreshold' to a fraction of the estimated cost of the edges to recompute,
+            // the same edges the subtree weights it is compared against are made up of.
             // The size of this fraction is determined by a tuning parameter. This parameter should be adjusted (increased) if more computation cores are available
-            parallelizationThreshold = weightOfNodeSubTree[tree.getRoot().getNr()] * minimalProportionForParallelization;
+            parallelizationThreshold = totalCost * minimalProportionForParallelization;
         }
     }
 
-    private static void executorBootUp() {
-        ExecutorService executor = Executors.newCachedThreadPool();
-        pool = (ThreadPoolExecutor) executor;
+    /**
+     * @return new ODE system configured using the current input values.
+     */
+    private P0GeSystem createP0GeSystem() {
+        P0GeSystem system = new P0GeSystem(parameterization,
+                absoluteToleranceInput.get(), getRelativeTolerance());
+        system.setStiffnessThreshold(stiffnessThreshold);
+        system.setSplitFraction(integrationSplitFractionInput.get());
+        system.setUseAnalyticalSolution(useAnalyticalDecoupledSolutionInput.get());
+        system.setIntegrateAcrossBoundaries(integrateAcrossBoundariesInput.get());
+        system.setStatistics(integrationStatistics);
+        return system;
+    }
+
+    /**
+     * @return ODE system for the current thread, updated to reflect the
+     * current parameterization.
+     */
+    private P0GeSystem getP0GeSystem() {
+        P0GeSystem system = p0GeSystems.get();
+        system.update();
+        system.setTolerances(absoluteToleranceInput.get(), getRelativeTolerance());
+        system.setP0Solution(p0Trajectory);
+        system.setPropagators(propagatorGrid);
+
+        return system;
+    }
+
+    /**
+     * Compute the propagators of the ge equations over a grid containing
+     * the times of all nodes in the tree.
+     *
+     * @param tree tree whose node times to use
+     * @return propagator grid
+     */
+    private PropagatorGrid computePropagatorGrid(TreeInterface tree) {
+        double[] nodeTimes = treeIndex.nodeTimes;
+
+        P0GeSystem system = p0GeSystems.get();
+        system.update();
+        system.setTolerances(absoluteToleranceInput.get(), getRelativeTolerance());
+        system.setP0Solution(p0Trajectory);
+
+        return new PropagatorGrid(nodeTimes, parameterization, system);
+    }
+
+    /**
+     * Traversal of a subtree computing the states at the top of its edges.
+     */
+    static class SubtreeTraversal {
+
+        final int rootSubtreeNr;
+        final double tTop;
+
+        SubtreeTraversal(int rootNr, double tTop) {
+            this.rootSubtreeNr = rootNr;
+            this.tTop = tTop;
+        }
     }
 
-    class TraversalService implements Callable<P0GeState> {
+    /**
+     * Set of subtree traversals shared between the calling thread and the
+     * pool workers.  Each thread claims traversals in turn until none are
+     * left, so the calling thread keeps working rather than waiting for
+     * the pool.
+     */
+    class SubtreeTraversals {
 
-        int depth;
-        Node rootSubtree;
-        protected double from;
-        protected double to;
-        P0GeSystem PG;
+        final List<SubtreeTraversal> traversals;
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final CountDownLatch remaining;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
 
-        TraversalService(Node root, double from, double to, int depth) {
-            this.rootSubtree = root;
-            this.from = from;
-            this.to = to;
-            this.depth = depth;
+        SubtreeTraversals(List<SubtreeTraversal> traversals) {
+            this.traversals = traversals;
+            this.remaining = new CountDownLatch(traversals.size());
+        }
 
-            PG = new P0GeSystem(parameterization,
-                    absoluteToleranceInput.get(),
-                    relativeToleranceInput.get());
+        /**
+         * Claim and run traversals until all have been claimed.
+         */
+        void runPending() {
+            // Systems keep track of the current interval, so each thread
+            // needs its own.
+            P0GeSystem PG = null;
+
+            int i;
+            while ((i = nextIndex.getAndIncrement()) < traversals.size()) {
+                SubtreeTraversal traversal = traversals.get(i);
+                try {
+                    if (PG == null)
+                        PG = getP0GeSystem();
+
+                    traverseSubtree(traversal.rootSubtreeNr, traversal.tTop, PG);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    remaining.countDown();
+                }
+            }
         }
 
-        @Override
-        public P0GeState call() {
-            // traverse the tree in a potentially-parallelized way
-            return calculateSubtreeLikelihood(rootSubtree, from, to, PG, depth);
+        /**
+         * Wait for the traversals claimed by other threads to complete,
+         * rethrowing the first exception thrown by any of them.
+         */
+        void awaitCompletion() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    remaining.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // The workers are still writing to the edge states, so
+                    // keep waiting and restore the interrupt afterwards.
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            Throwable e = failure.get();
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
+            if (e instanceof Error)
+                throw (Error) e;
+            if (e != null)
+                throw new RuntimeException(e);
         }
     }
 
@@ -815,8 +3161,20 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
     private double get_p_i(double lambda, double mu, double psi, double A, double B, double t_i, double t) {
 
+        if (lambda > 0.0)
+            return get_p_i(lambda, mu, psi, A, B, Math.exp(A * (t_i - t)));
+        else
+            // The limit of p_i as lambda -> 0
+            return 0.5;
+    }
+
+    /**
+     * @param v value of exp(A*(t_i - t))
+     */
+    private double get_p_i(double lambda, double mu, double psi, double A, double B, double v) {
+
         if (lambda > 0.0) {
-            double v = Math.exp(A * (t_i - t)) * (1 + B);
+            v *= 1 + B;
             return (lambda + mu + psi - A * (v - (1 - B)) / (v + (1 - B)))
                     / (2 * lambda);
         } else {
@@ -826,11 +3184,23 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
     }
 
     private double get_q_i(double A, double B, double t_i, double t) {
-        double v = Math.exp(A * (t_i - t));
-        return 4 * v / Math.pow(v*(1+B) + (1-B), 2.0);
+        return get_q_i(B, Math.exp(A * (t_i - t)));
     }
 
-    private void computeConstants(double[] A, double[] B) {
+    /**
+     * @param v value of exp(A*(t_i - t))
+     */
+    private double get_q_i(double B, double v) {
+        double denominator = v*(1+B) + (1-B);
+        return 4 * v / (denominator*denominator);
+    }
+
+    /**
+     * Compute the A and B constants of each interval, together with the
+     * log-probability contribution of an edge crossing the end of each
+     * interval.
+     */
+    private void computeConstants(double[] A, double[] B, double[] logBoundaryTerms) {
 
         for (int i=parameterization.getTotalIntervalCount()-1; i>=0; i--) {
 
@@ -853,32 +3223,93 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
             A[i] = Math.sqrt((lambda_i-mu_i-psi_i)*(lambda_i-mu_i-psi_i) + 4*lambda_i*psi_i);
             B[i] = ((1 - 2*(1-rho_i)*p_i_prev)*lambda_i + mu_i + psi_i)/A[i];
+
+            double q_iplus1 = i + 1 < parameterization.getTotalIntervalCount()
+                    ? get_q_i(A[i + 1], B[i + 1],
+                    parameterization.getIntervalEndTimes()[i + 1],
+                    parameterization.getIntervalEndTimes()[i])
+                    : 1.0;
+            logBoundaryTerms[i] = Math.log((1-rho_i)*q_iplus1);
         }
     }
 
+    /**
+     * Compute the tree likelihood using the exact solution available in the
+     * single type case.
+     *
+     * The likelihood is a sum of terms, each depending only on the time of
+     * a node and that of its parent.  These terms are cached and only the
+     * terms of nodes affected by the last tree operation are recomputed.
+     * The interval constants are recomputed only when the parameterization
+     * or the final sample offset has changed.
+     *
+     * @param tree tree
+     * @return log-likelihood
+     */
     private double getSingleTypeTreeLogLikelihood(TreeInterface tree) {
 
-        double[] A = new double[parameterization.getTotalIntervalCount()];
-        double[] B = new double[parameterization.getTotalIntervalCount()];
+        if (!singleTypeTermsValid
+                || parameterization.isDirtyCalculation()
+                || isDirty(finalSampleOffset)) {
 
-        computeConstants(A, B);
+            // New arrays are used so that the stored copies remain intact
+            singleTypeA = new double[parameterization.getTotalIntervalCount()];
+            singleTypeB = new double[parameterization.getTotalIntervalCount()];
+            singleTypeLogBoundaryTerms = new double[parameterization.getTotalIntervalCount()];
+            computeConstants(singleTypeA, singleTypeB, singleTypeLogBoundaryTerms);
 
-        double logP;
+            singleTypeTermsValid = false;
+        }
+
+        double[] A = singleTypeA;
+        double[] B = singleTypeB;
+
+        double t_root = parameterization.getNodeTime(tree.getRoot(), finalSampleOffset.getArrayValue());
+
+        // Update the node times and the terms of the nodes whose time or
+        // parent time may have changed.  Direct ancestor leaves have no
+        // term of their own: their sampling is accounted for by the term of
+        // their (fake) parent.
+        Node[] nodes = tree.getNodesAsArray();
+        for (Node node : nodes) {
+            int nodeNr = node.getNr();
+
+            if (node.isDirectAncestor()) {
+                singleTypeNodeLogP[nodeNr] = 0.0;
+                continue;
+            }
+
+            if (singleTypeTermsValid && !nodeOrNeighbourIsDirty(node))
+                continue;
+
+            double t_node = parameterization.getNodeTime(node, finalSampleOffset.getArrayValue());
+
+            if (node.isRoot()) {
+                singleTypeNodeLogP[nodeNr] = parameterization.conditionedOnRoot()
+                        ? 0.0
+                        : getSingleTypeNodeLogLikelihood(node, t_node, 0.0, A, B);
+            } else {
+                double t_parent = parameterization.getNodeTime(node.getParent(), finalSampleOffset.getArrayValue());
+                singleTypeNodeLogP[nodeNr] = getSingleTypeNodeLogLikelihood(node, t_node, t_parent, A, B);
+            }
+        }
+        singleTypeTermsValid = true;
+
+        double logP = 0.0;
+        for (int nodeNr = 0; nodeNr < nodes.length; nodeNr++) {
+            if (!nodes[nodeNr].isDirectAncestor())
+                logP += singleTypeNodeLogP[nodeNr];
+        }
 
         if (parameterization.conditionedOnRoot()) {
 
-            double t_root = parameterization.getNodeTime(tree.getRoot(), finalSampleOffset.getArrayValue());
-            logP = getSingleTypeSubtreeLogLikelihood(tree.getRoot().getChild(0), t_root, A, B)
-                    + getSingleTypeSubtreeLogLikelihood(tree.getRoot().getChild(1), t_root, A, B)
-                    + Math.log(2);
+            logP += Math.log(2);
 
             int i_root = parameterization.getIntervalIndex(t_root);
             logP += 2*Math.log(get_q_i(A[i_root], B[i_root], parameterization.getIntervalEndTimes()[i_root], 0.0));
 
         } else {
 
-            logP = getSingleTypeSubtreeLogLikelihood(tree.getRoot(), 0.0, A, B);
-
             int i = parameterization.getIntervalIndex(0.0);
             logP += Math.log(get_q_i(A[i], B[i], parameterization.getIntervalEndTimes()[i], 0.0));
 
@@ -900,10 +3331,40 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         return logP;
     }
 
-    private double getSingleTypeSubtreeLogLikelihood(Node subtreeRoot, double timeOfSubtreeRootEdgeTop,
-                                                     double[] A, double[] B) {
+    /**
+     * @param node node to query
+     * @return true if the node, its parent or one of its children has been
+     * marked dirty by the last tree operation.
+     */
+    private static boolean nodeOrNeighbourIsDirty(Node node) {
+        if (node.isDirty() != Tree.IS_CLEAN)
+            return true;
+
+        if (!node.isRoot() && node.getParent().isDirty() != Tree.IS_CLEAN)
+            return true;
+
+        for (Node child : node.getChildren()) {
+            if (child.isDirty() != Tree.IS_CLEAN)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Compute the contribution of a single node and of the edge above it to
+     * the single type tree likelihood.
+     *
+     * @param node node
+     * @param t_node time of node
+     * @param timeOfEdgeTop time of the top of the edge above node
+     * @param A interval A constants
+     * @param B interval B constants
+     * @return log-probability contribution
+     */
+    private double getSingleTypeNodeLogLikelihood(Node node, double t_node, double timeOfEdgeTop,
+                                                  double[] A, double[] B) {
 
-        double t_node = parameterization.getNodeTime(subtreeRoot, finalSampleOffset.getArrayValue());
         int i = parameterization.getIntervalIndex(t_node);
         double t_i = parameterization.getIntervalEndTimes()[i];
 
@@ -918,12 +3379,10 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
         double logP;
 
-        if (subtreeRoot.isLeaf()) {
+        if (node.isLeaf()) {
             // Leaf Node
 
-            logP = 0.0;
-
-            if (isRhoTip[subtreeRoot.getNr()]) {
+            if (isRhoTip[node.getNr()]) {
 
                 double p_iplus1 = i + 1 < parameterization.getTotalIntervalCount()
                         ? get_p_i(parameterization.getBirthRates()[i + 1][0],
@@ -932,43 +3391,38 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
                         A[i + 1], B[i + 1], parameterization.getIntervalEndTimes()[i+1], t_node)
                         : 1.0;
 
-                logP += Math.log(rho_i*(r_iplus1 + (1 - r_iplus1) * p_iplus1));
+                logP = Math.log(rho_i*(r_iplus1 + (1 - r_iplus1) * p_iplus1));
 
             } else {
 
-                logP += Math.log(psi_i)
-                        + Math.log(r_i + (1-r_i)*get_p_i(lambda_i, mu_i, psi_i, A[i], B[i], t_i, t_node))
-                        - Math.log(get_q_i(A[i], B[i], t_i, t_node));
+                double v = Math.exp(A[i] * (t_i - t_node));
+                logP = Math.log(psi_i)
+                        + Math.log(r_i + (1-r_i)*get_p_i(lambda_i, mu_i, psi_i, A[i], B[i], v))
+                        - Math.log(get_q_i(B[i], v));
 
             }
 
-
-        } else if (subtreeRoot.isFake()) {
+        } else if (node.isFake()) {
             // SA node
 
-            logP = getSingleTypeSubtreeLogLikelihood(subtreeRoot.getNonDirectAncestorChild(), t_node, A, B);
-
-            if (isRhoTip[subtreeRoot.getDirectAncestorChild().getNr()]) {
+            if (isRhoTip[node.getDirectAncestorChild().getNr()]) {
 
                 double q_iplus1 = i + 1 < parameterization.getTotalIntervalCount()
                         ? get_q_i(A[i+1], B[i+1], parameterization.getIntervalEndTimes()[i+1], t_node)
                         : 1.0;
 
-                logP += Math.log(rho_i*(1-r_iplus1)*q_iplus1);
+                logP = Math.log(rho_i*(1-r_iplus1)*q_iplus1);
 
             } else {
 
-                logP += Math.log(psi_i*(1-r_i));
+                logP = Math.log(psi_i*(1-r_i));
 
             }
 
         } else {
             // Internal node
 
-            logP = getSingleTypeSubtreeLogLikelihood(subtreeRoot.getChild(0), t_node, A, B)
-                    + getSingleTypeSubtreeLogLikelihood(subtreeRoot.getChild(1), t_node, A, B);
-
-            logP += Math.log(2*lambda_i);
+            logP = Math.log(2*lambda_i);
 
             double q_i = get_q_i(A[i], B[i], t_i, t_node);
             logP -= Math.log(q_i);
@@ -987,17 +3441,10 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
 
         // Compute contributions from intervals along edge
 
-        while (i >= 0 && Utils.greaterThanWithPrecision(parameterization.getIntervalEndTimes()[i], timeOfSubtreeRootEdgeTop)) {
-
-            if (Utils.lessThanWithPrecision(parameterization.getIntervalEndTimes()[i], t_node)) {
-                double q_iplus1 = i + 1 < parameterization.getTotalIntervalCount()
-                        ? get_q_i(A[i + 1], B[i + 1],
-                        parameterization.getIntervalEndTimes()[i + 1],
-                        parameterization.getIntervalEndTimes()[i])
-                        : 1.0;
+        while (i >= 0 && Utils.greaterThanWithPrecision(parameterization.getIntervalEndTimes()[i], timeOfEdgeTop)) {
 
-                logP += Math.log((1-parameterization.getRhoValues()[i][0])*q_iplus1);
-            }
+            if (Utils.lessThanWithPrecision(parameterization.getIntervalEndTimes()[i], t_node))
+                logP += singleTypeLogBoundaryTerms[i];
 
             i -= 1;
         }
@@ -1027,19 +3474,102 @@ public class BirthDeathMigrationDistribution extends SpeciesTreeDistribution {
         return true;
     }
 
+    @Override
+    public void log(long sample, PrintStream out) {
+        super.log(sample, out);
+
+        // Proposals not affecting this distribution do not call store(), so
+        // the states counted there lag behind the sample number.
+        if (toleranceController != null)
+            toleranceController.recordStateNumber(sample);
+    }
+
     @Override
     public void store() {
+
+        // logP is that of the state being stored, which has been accepted.
+        // A change of tolerance (which only happens during the burn-in)
+        // invalidates all cached results, so that the current state is
+        // recomputed in full at the new tolerance by the next evaluation.
+        if (toleranceController != null && toleranceController.recordAcceptedLogP(logP)) {
+            pInitialConditionsValid = false;
+            edgeTopStatesValid = false;
+            singleTypeTermsValid = false;
+        }
+
         super.store();
 
         System.arraycopy(rootTypeProbs, 0, storedRootTypeProbs, 0, parameterization.getNTypes());
+
+        // The cached states below were computed using these leaf types
+        System.arraycopy(treeIndex.leafTypes, 0, storedLeafTypes, 0, storedLeafTypes.length);
+
+        // Cached states are never modified once computed, so copying
+        // references is sufficient.
+        System.arraycopy(edgeTopStates, 0, storedEdgeTopStates, 0, edgeTopStates.length);
+        storedEdgeTopStatesValid = edgeTopStatesValid;
+
+        System.arraycopy(singleTypeNodeLogP, 0, storedSingleTypeNodeLogP, 0, singleTypeNodeLogP.length);
+        storedSingleTypeA = singleTypeA;
+        storedSingleTypeB = singleTypeB;
+        storedSingleTypeLogBoundaryTerms = singleTypeLogBoundaryTerms;
+        storedSingleTypeTermsValid = singleTypeTermsValid;
+
+        storedPInitialConditions = pInitialConditions;
+        storedP0Trajectory = p0Trajectory;
+        storedLeafTimes = leafTimes;
+        storedIndicesSortedByLeafTime = indicesSortedByLeafTime;
+        storedPInitialConditionsValid = pInitialConditionsValid;
+
+        storedLastIntegrationStatistics = lastIntegrationStatistics;
     }
 
     @Override
     public void restore() {
         super.restore();
 
-        double[] tmp = storedRootTypeProbs;
+        double[] tmp = rootTypeProbs;
         rootTypeProbs = storedRootTypeProbs;
         storedRootTypeProbs = tmp;
+
+        System.arraycopy(storedLeafTypes, 0, treeIndex.leafTypes, 0, storedLeafTypes.length);
+
+        P0GeState[] stateTmp = edgeTopStates;
+        edgeTopStates = storedEdgeTopStates;
+        storedEdgeTopStates = stateTmp;
+        edgeTopStatesValid = storedEdgeTopStatesValid;
+
+        lastIntegrationStatistics = storedLastIntegrationStatistics;
+
+        // The propagators and node type probabilities belong to the
+        // rejected state
+        propagatorGrid = null;
+        outsideProbsValid = false;
+
+        tmp = singleTypeNodeLogP;
+        singleTypeNodeLogP = storedSingleTypeNodeLogP;
+        storedSingleTypeNodeLogP = tmp;
+        singleTypeA = storedSingleTypeA;
+        singleTypeB = storedSingleTypeB;
+        singleTypeLogBoundaryTerms = storedSingleTypeLogBoundaryTerms;
+        singleTypeTermsValid = storedSingleTypeTermsValid;
+
+        double[][] pTmp = pInitialConditions;
+        pInitialConditions = storedPInitialConditions;
+        storedPInitialConditions = pTmp;
+
+        P0Trajectory trajectoryTmp = p0Trajectory;
+        p0Trajectory = storedP0Trajectory;
+        storedP0Trajectory = trajectoryTmp;
+
+        tmp = leafTimes;
+        leafTimes = storedLeafTimes;
+        storedLeafTimes = tmp;
+
+        int[] indexTmp = indicesSortedByLeafTime;
+        indicesSortedByLeafTime = storedIndicesSortedByLeafTime;
+        storedIndicesSortedByLeafTime = indexTmp;
+
+        pInitialConditionsValid = storedPInitialConditionsValid;
     }
 }
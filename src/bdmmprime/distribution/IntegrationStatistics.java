@@ -0,0 +1,138 @@
+package bdmmprime.distribution;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing the cost of the ODE integrations performed during a
+ * likelihood evaluation.  Counters may be updated concurrently by the
+ * systems of several worker threads.
+ */
+public class IntegrationStatistics {
+
+    private final LongAdder acceptedSteps = new LongAdder();
+    private final LongAdder rejectedSteps = new LongAdder();
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder splits = new LongAdder();
+    private final LongAdder extendedFallbacks = new LongAdder();
+    private final LongAdder p0SweepNanos = new LongAdder();
+    private final LongAdder edgeTraversalNanos = new LongAdder();
+
+    /**
+     * Record the cost of a single call to an integrator.
+     *
+     * @param accepted number of accepted steps
+     * @param rejected number of rejected steps
+     * @param evaluations number of derivative evaluations
+     */
+    public void addSteps(long accepted, long rejected, long evaluations) {
+        acceptedSteps.add(accepted);
+        rejectedSteps.add(rejected);
+        this.evaluations.add(evaluations);
+    }
+
+    /**
+     * Record the division of an integration range in two.
+     */
+    public void addSplit() {
+        splits.increment();
+    }
+
+    /**
+     * Record a state falling back from the scaled to the extended
+     * representation of its ge values.
+     */
+    public void addExtendedFallback() {
+        extendedFallbacks.increment();
+    }
+
+    public void addP0SweepTime(long nanos) {
+        p0SweepNanos.add(nanos);
+    }
+
+    public void addEdgeTraversalTime(long nanos) {
+        edgeTraversalNanos.add(nanos);
+    }
+
+    /**
+     * Set all counters to zero.
+     */
+    public void reset() {
+        acceptedSteps.reset();
+        rejectedSteps.reset();
+        evaluations.reset();
+        splits.reset();
+        extendedFallbacks.reset();
+        p0SweepNanos.reset();
+        edgeTraversalNanos.reset();
+    }
+
+    /**
+     * @return immutable copy of the current counter values.
+     */
+    public Snapshot getSnapshot() {
+        return new Snapshot(acceptedSteps.sum(), rejectedSteps.sum(),
+                evaluations.sum(), splits.sum(), extendedFallbacks.sum(),
+                p0SweepNanos.sum(), edgeTraversalNanos.sum());
+    }
+
+    /**
+     * Counter values at a given point in time.
+     */
+    public static class Snapshot {
+
+        private final long acceptedSteps, rejectedSteps, evaluations;
+        private final long splits, extendedFallbacks;
+        private final long p0SweepNanos, edgeTraversalNanos;
+
+        Snapshot(long acceptedSteps, long rejectedSteps, long evaluations,
+                 long splits, long extendedFallbacks,
+                 long p0SweepNanos, long edgeTraversalNanos) {
+            this.acceptedSteps = acceptedSteps;
+            this.rejectedSteps = rejectedSteps;
+            this.evaluations = evaluations;
+            this.splits = splits;
+            this.extendedFallbacks = extendedFallbacks;
+            this.p0SweepNanos = p0SweepNanos;
+            this.edgeTraversalNanos = edgeTraversalNanos;
+        }
+
+        public long getAcceptedSteps() {
+            return acceptedSteps;
+        }
+
+        public long getRejectedSteps() {
+            return rejectedSteps;
+        }
+
+        public long getEvaluations() {
+            return evaluations;
+        }
+
+        public long getSplits() {
+            return splits;
+        }
+
+        public long getExtendedFallbacks() {
+            return extendedFallbacks;
+        }
+
+        public long getP0SweepNanos() {
+            return p0SweepNanos;
+        }
+
+        public long getEdgeTraversalNanos() {
+            return edgeTraversalNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "accepted steps: " + acceptedSteps
+                    + ", rejected steps: " + rejectedSteps
+                    + ", evaluations: " + evaluations
+                    + ", splits: " + splits
+                    + ", extended fallbacks: " + extendedFallbacks
+                    + ", p0 sweep time (ns): " + p0SweepNanos
+                    + ", edge traversal time (ns): " + edgeTraversalNanos;
+        }
+    }
+}
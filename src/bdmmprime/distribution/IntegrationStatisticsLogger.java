@@ -0,0 +1,172 @@
+package bdmmprime.distribution;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Loggable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+@Description("Logs the cost of the ODE integrations performed during the " +
+        "most recent evaluation of a BirthDeathMigrationDistribution, and " +
+        "optionally exposes it as a JMX MXBean.")
+public class IntegrationStatisticsLogger extends BEASTObject
+        implements Loggable, IntegrationStatisticsMXBean {
+
+    public Input<BirthDeathMigrationDistribution> treePriorInput = new Input<>(
+            "bdmmTreePrior",
+            "Instance of BirthDeathMigrationModel which records the " +
+                    "integration statistics",
+            Input.Validate.REQUIRED);
+
+    public Input<Boolean> registerMBeanInput = new Input<>("registerMBean",
+            "Register the statistics with the platform MBean server, under " +
+                    "the name bdmmprime:type=IntegrationStatistics,name=<ID>. " +
+                    "(Default false.)",
+            false);
+
+    BirthDeathMigrationDistribution treePrior;
+    ObjectName mBeanName;
+
+    @Override
+    public void initAndValidate() {
+        treePrior = treePriorInput.get();
+
+        if (!treePrior.recordIntegrationStatisticsInput.get())
+            throw new RuntimeException("Error: IntegrationStatisticsLogger requires " +
+                    "recordIntegrationStatistics to be set on the tree prior.");
+
+        if (registerMBeanInput.get())
+            registerMBean();
+    }
+
+    /**
+     * Register this logger with the platform MBean server, replacing any
+     * MBean previously registered under the same name.
+     */
+    private void registerMBean() {
+        String name = getID() != null ? getID()
+                : (treePrior.getID() != null ? treePrior.getID() : "bdmmTreePrior");
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            mBeanName = new ObjectName("bdmmprime:type=IntegrationStatistics,name="
+                    + ObjectName.quote(name));
+
+            if (server.isRegistered(mBeanName))
+                server.unregisterMBean(mBeanName);
+
+            server.registerMBean(this, mBeanName);
+        } catch (JMException e) {
+            throw new RuntimeException("Error: failed to register integration " +
+                    "statistics MBean " + name + ".", e);
+        }
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        String loggerID;
+        if (getID() != null)
+            loggerID = getID() + ".";
+        else if (treePrior.getID() != null)
+            loggerID = treePrior.getID() + ".";
+        else loggerID = "";
+
+        out.print(loggerID + "acceptedSteps\t"
+                + loggerID + "rejectedSteps\t"
+                + loggerID + "evaluations\t"
+                + loggerID + "splits\t"
+                + loggerID + "extendedFallbacks\t"
+                + loggerID + "p0SweepTime\t"
+                + loggerID + "edgeTraversalTime\t"
+                + loggerID + "relTolerance\t"
+                + loggerID + "logPErrorEstimate\t");
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        IntegrationStatistics.Snapshot statistics = treePrior.getIntegrationStatistics();
+
+        if (statistics == null) {
+            out.print("0\t0\t0\t0\t0\t0.0\t0.0\t"
+                    + treePrior.getRelativeTolerance() + "\tNaN\t");
+            return;
+        }
+
+        // Times are logged in milliseconds
+        out.print(statistics.getAcceptedSteps() + "\t"
+                + statistics.getRejectedSteps() + "\t"
+                + statistics.getEvaluations() + "\t"
+                + statistics.getSplits() + "\t"
+                + statistics.getExtendedFallbacks() + "\t"
+                + statistics.getP0SweepNanos()*1e-6 + "\t"
+                + statistics.getEdgeTraversalNanos()*1e-6 + "\t"
+                + treePrior.getRelativeTolerance() + "\t"
+                + treePrior.getLogLikelihoodErrorEstimate() + "\t");
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        if (mBeanName == null)
+            return;
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(mBeanName))
+                server.unregisterMBean(mBeanName);
+        } catch (JMException ignored) { }
+
+        mBeanName = null;
+    }
+
+    @Override
+    public long getAcceptedSteps() {
+        IntegrationStatistics.Snapshot statistics = treePrior.getIntegrationStatistics();
+        return statistics != null ? statistics.getAcceptedSteps() : 0;
+    }
+
+    @Override
+    public long getRejectedSteps() {
+        IntegrationStatistics.Snapshot statistics = treePrior.getIntegrationStatistics();
+        return statistics != null ? statistics.getRejectedSteps() : 0;
+    }
+
+    @Override
+    public long getEvaluations() {
+        IntegrationStatistics.Snapshot statistics = treePrior.getIntegrationStatistics();
+        return statistics != null ? statistics.getEvaluations() : 0;
+    }
+
+    @Override
+    public long getSplits() {
+        IntegrationStatistics.Snapshot statistics = treePrior.getIntegrationStatistics();
+        return statistics != null ? statistics.getSplits() : 0;
+    }
+
+    @Override
+    public long getExtendedFallbacks() {
+        IntegrationStatistics.Snapshot statistics = treePrior.getIntegrationStatistics();
+        return statistics != null ? statistics.getExtendedFallbacks() : 0;
+    }
+
+    @Override
+    public double getP0SweepTime() {
+        IntegrationStatistics.Snapshot statistics = treePrior.getIntegrationStatistics();
+        return statistics != null ? statistics.getP0SweepNanos()*1e-6 : 0.0;
+    }
+
+    @Override
+    public double getEdgeTraversalTime() {
+        IntegrationStatistics.Snapshot statistics = treePrior.getIntegrationStatistics();
+        return statistics != null ? statistics.getEdgeTraversalNanos()*1e-6 : 0.0;
+    }
+
+    @Override
+    public double getRelativeTolerance() {
+        return treePrior.getRelativeTolerance();
+    }
+}
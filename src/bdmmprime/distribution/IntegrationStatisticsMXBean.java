@@ -0,0 +1,32 @@
+package bdmmprime.distribution;
+
+/**
+ * Management interface exposing the integration statistics of the most
+ * recent likelihood evaluation of a BirthDeathMigrationDistribution (that
+ * of the current state once a proposal has been rejected), so that they
+ * can be monitored (e.g. using JConsole) while an analysis is running.
+ */
+public interface IntegrationStatisticsMXBean {
+
+    long getAcceptedSteps();
+
+    long getRejectedSteps();
+
+    long getEvaluations();
+
+    long getSplits();
+
+    long getExtendedFallbacks();
+
+    /**
+     * @return time spent computing the p0 solution, in milliseconds.
+     */
+    double getP0SweepTime();
+
+    /**
+     * @return time spent traversing the tree, in milliseconds.
+     */
+    double getEdgeTraversalTime();
+
+    double getRelativeTolerance();
+}
@@ -0,0 +1,63 @@
+package bdmmprime.distribution;
+
+import beast.core.BEASTObject;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.evolution.tree.TreeInterface;
+
+import java.io.PrintStream;
+
+/**
+ * Logs the marginal type probabilities at the internal nodes of the tree,
+ * computed from the states cached by the tree prior rather than by
+ * sampling type histories as TypeMappedTree does.  Columns are labelled
+ * by node number, which identifies the same node only as long as the
+ * tree topology is fixed.
+ */
+public class NodeTypeProbLogger extends BEASTObject implements Loggable {
+
+    public Input<BirthDeathMigrationDistribution> treePriorInput = new Input<>(
+            "bdmmTreePrior",
+            "Instance of BirthDeathMigrationModel from whose cached states " +
+                    "the node type probabilities are computed",
+            Input.Validate.REQUIRED);
+
+    BirthDeathMigrationDistribution treePrior;
+    TreeInterface tree;
+
+    @Override
+    public void initAndValidate() {
+        treePrior = treePriorInput.get();
+        tree = treePrior.treeInput.get();
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        String loggerID;
+        if (getID() != null)
+            loggerID = getID() + ".";
+        else if (treePrior.getID() != null)
+            loggerID = treePrior.getID() + ".";
+        else loggerID = "";
+
+        int nTypes = treePrior.parameterizationInput.get().getNTypes();
+
+        for (int nodeNr = tree.getLeafNodeCount(); nodeNr < tree.getNodeCount(); nodeNr++) {
+            for (int type = 0; type < nTypes; type++)
+                out.print(loggerID + "probForNode" + nodeNr + "Type" + type + "\t");
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        double[][] nodeTypeProbs = treePrior.getNodeTypeProbs();
+
+        for (int nodeNr = tree.getLeafNodeCount(); nodeNr < tree.getNodeCount(); nodeNr++) {
+            for (double nodeTypeProb : nodeTypeProbs[nodeNr])
+                out.print(nodeTypeProb + "\t");
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) { }
+}
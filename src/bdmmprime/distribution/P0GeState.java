@@ -1,32 +1,343 @@
 package bdmmprime.distribution;
 
+import java.util.Arrays;
+
 /**
  * Created by Jeremie Scire (jscire)
  */
 
 /**
  * Class containing the values of P0 and Ge.
+ *
+ * Each ge value is stored in extended floating point representation as
+ * geMantissa[i]*2^geExponent[i], where the mantissa is either zero or has
+ * an absolute value in [1,2).  In contrast to SmallNumber, the values are
+ * held in primitive arrays and all arithmetic is done in place.
+ *
+ * Alternatively, a state may hold its ge values in "scaled" form, as plain
+ * doubles sharing a single log scale factor: ge[i] = geScaled[i]*exp(geLogScale).
+ * This is used by the SCALED numeric mode of BirthDeathMigrationDistribution,
+ * and is only possible while the non-zero ge values of the state span less
+ * than scaledRangeMax binary orders of magnitude.
  */
 public class P0GeState extends P0State {
-	
-	public SmallNumber[] ge;
+
+	public double[] geMantissa;
+	public int[] geExponent;
+
+	public boolean isScaled;
+	public double[] geScaled;
+	public double geLogScale;
+
+	/**
+	 * Maximum number of binary orders of magnitude spanned by the non-zero ge
+	 * values of a state in the scaled representation.  As the largest value
+	 * lies in [1,2), this keeps all values well above the absolute tolerance
+	 * of the integrator and leaves enough headroom for the products formed at
+	 * internal nodes not to underflow.
+	 */
+	final static int scaledRangeMax = 300;
 
 	public P0GeState(int nTypes) {
 	    super(nTypes);
-		ge = new SmallNumber[nTypes];
-		for (int i = 0; i<nTypes; i++)
-		    ge[i] = new SmallNumber();
-
+		geMantissa = new double[nTypes];
+		geExponent = new int[nTypes];
     }
-	
+
 	public P0GeState(double[] p0, SmallNumber[] ge) {
         super(p0);
 		if(p0.length != ge.length) {
 			throw new RuntimeException("Incorrect initialization: difference of size between ge and p0");
 		}
-		this.ge = ge;
+		geMantissa = new double[ge.length];
+		geExponent = new int[ge.length];
+		for (int i=0; i<ge.length; i++) {
+		    geMantissa[i] = ge[i].getMantissa();
+		    geExponent[i] = ge[i].getExponent();
+		    normalizeGe(i);
+        }
 	}
 
+    /**
+     * Switch this state to the scaled representation, with all ge values
+     * set to zero.
+     */
+    public void setScaled() {
+	    if (geScaled == null)
+	        geScaled = new double[dimension];
+	    else
+	        Arrays.fill(geScaled, 0.0);
+
+	    geLogScale = 0.0;
+	    isScaled = true;
+    }
+
+    /**
+     * Switch this state from the scaled to the extended representation,
+     * preserving its ge values.
+     */
+    public void setExtended() {
+	    if (!isScaled)
+	        return;
+
+	    setGeFromScaled(geScaled, geLogScale);
+	    isScaled = false;
+    }
+
+    /**
+     * @return this state if it uses the extended representation, otherwise
+     * a copy of this state which does.
+     */
+    public P0GeState getExtended() {
+	    if (!isScaled)
+	        return this;
+
+	    P0GeState extended = new P0GeState(dimension);
+	    System.arraycopy(p0, 0, extended.p0, 0, dimension);
+	    extended.setGeFromScaled(geScaled, geLogScale);
+
+	    return extended;
+    }
+
+    /**
+     * @return copy of this state, using the same representation.
+     */
+    public P0GeState copy() {
+	    P0GeState copy = new P0GeState(dimension);
+	    System.arraycopy(p0, 0, copy.p0, 0, dimension);
+	    System.arraycopy(geMantissa, 0, copy.geMantissa, 0, dimension);
+	    System.arraycopy(geExponent, 0, copy.geExponent, 0, dimension);
+
+	    if (isScaled) {
+	        copy.geScaled = geScaled.clone();
+	        copy.geLogScale = geLogScale;
+	        copy.isScaled = true;
+        }
+
+	    return copy;
+    }
+
+    /**
+     * Set the extended representation of the ge values to values*exp(logScale).
+     *
+     * @param values scaled ge values
+     * @param logScale log scale factor
+     */
+    private void setGeFromScaled(double[] values, double logScale) {
+	    double log2Scale = logScale / Math.log(2);
+	    int exponent = (int) Math.floor(log2Scale);
+	    double factor = Math.pow(2, log2Scale - exponent);
+
+	    for (int type=0; type<dimension; type++) {
+	        geMantissa[type] = values[type] * factor;
+	        geExponent[type] = exponent;
+	        normalizeGe(type);
+        }
+    }
+
+    /**
+     * Rescale the ge values of a state in the scaled representation so that
+     * the largest lies in [1,2).
+     *
+     * @return false if the non-zero ge values span too wide a range for the
+     * scaled representation, in which case the state is left unchanged.
+     */
+    public boolean rescaleScaledGe() {
+	    double logFactor = rescaleByMax(geScaled, 0, dimension);
+
+	    if (Double.isNaN(logFactor))
+	        return false;
+
+	    geLogScale += logFactor;
+	    return true;
+    }
+
+    /**
+     * Determine whether the ge values of two states in the scaled
+     * representation can be multiplied together without underflow.
+     *
+     * @param a first state
+     * @param b second state
+     * @return true if both states are scaled and their products are safe.
+     */
+    public static boolean canMultiplyScaled(P0GeState a, P0GeState b) {
+	    if (!a.isScaled || !b.isScaled)
+	        return false;
+
+	    return a.getMinScaledGeExponent() + b.getMinScaledGeExponent() > -2*scaledRangeMax;
+    }
+
+    /**
+     * @return smallest binary exponent among non-zero scaled ge values, or
+     * zero if all of these values are zero.
+     */
+    private int getMinScaledGeExponent() {
+	    int minExponent = 0;
+	    for (int type=0; type<dimension; type++) {
+	        if (geScaled[type] != 0)
+	            minExponent = Math.min(minExponent, Math.getExponent(geScaled[type]));
+        }
+
+	    return minExponent;
+    }
+
+    /**
+     * Set ge value of given type.
+     *
+     * @param type type index
+     * @param value new value
+     */
+    public void setGe(int type, double value) {
+	    if (isScaled) {
+	        geScaled[type] = value;
+	        return;
+        }
+
+	    geMantissa[type] = value;
+	    geExponent[type] = 0;
+	    normalizeGe(type);
+    }
+
+    /**
+     * Set ge value of given type to factor times the ge value of srcType
+     * in src.
+     *
+     * @param type type index
+     * @param src state to copy value from
+     * @param srcType type index in src
+     * @param factor factor to multiply value by
+     */
+    public void setGe(int type, P0GeState src, int srcType, double factor) {
+	    if (isScaled) {
+	        geScaled[type] = src.geScaled[srcType] * factor;
+	        geLogScale = src.geLogScale;
+	        return;
+        }
+
+	    geMantissa[type] = src.geMantissa[srcType] * factor;
+	    geExponent[type] = src.geExponent[srcType];
+	    normalizeGe(type);
+    }
+
+    /**
+     * Multiply ge value of given type by factor.
+     *
+     * @param type type index
+     * @param factor factor to multiply by
+     */
+    public void multiplyGe(int type, double factor) {
+	    if (isScaled) {
+	        geScaled[type] *= factor;
+	        return;
+        }
+
+	    geMantissa[type] *= factor;
+	    normalizeGe(type);
+    }
+
+    /**
+     * Set ge value of given type to factor*a.ge[typeA]*b.ge[typeB].
+     *
+     * @param type type index
+     * @param a first state
+     * @param typeA type index in first state
+     * @param b second state
+     * @param typeB type index in second state
+     * @param factor factor to multiply product by
+     */
+    public void setGeToProduct(int type, P0GeState a, int typeA, P0GeState b, int typeB, double factor) {
+	    if (isScaled) {
+	        geScaled[type] = factor * a.geScaled[typeA] * b.geScaled[typeB];
+	        geLogScale = a.geLogScale + b.geLogScale;
+	        return;
+        }
+
+	    geMantissa[type] = factor * a.geMantissa[typeA] * b.geMantissa[typeB];
+	    geExponent[type] = a.geExponent[typeA] + b.geExponent[typeB];
+	    normalizeGe(type);
+    }
+
+    /**
+     * Add factor*a.ge[typeA]*b.ge[typeB] to the ge value of the given type.
+     * In the scaled representation, the log scale factor of this state must
+     * already be that of the product, i.e. set by setGeToProduct().
+     *
+     * @param type type index
+     * @param a first state
+     * @param typeA type index in first state
+     * @param b second state
+     * @param typeB type index in second state
+     * @param factor factor to multiply product by
+     */
+    public void addGeProduct(int type, P0GeState a, int typeA, P0GeState b, int typeB, double factor) {
+	    if (isScaled) {
+	        geScaled[type] += factor * a.geScaled[typeA] * b.geScaled[typeB];
+	        return;
+        }
+
+	    double mantissa = factor * a.geMantissa[typeA] * b.geMantissa[typeB];
+
+	    if (mantissa == 0)
+	        return;
+
+	    int exponent = a.geExponent[typeA] + b.geExponent[typeB];
+
+	    if (geMantissa[type] == 0) {
+	        geMantissa[type] = mantissa;
+	        geExponent[type] = exponent;
+        } else if (exponent > geExponent[type]) {
+	        geMantissa[type] = mantissa + Math.scalb(geMantissa[type], geExponent[type] - exponent);
+	        geExponent[type] = exponent;
+        } else {
+	        geMantissa[type] += Math.scalb(mantissa, exponent - geExponent[type]);
+        }
+
+	    normalizeGe(type);
+    }
+
+    /**
+     * @param type type index
+     * @return log of ge value of given type, or negative infinity if this
+     * value is not positive.
+     */
+    public double getGeLog(int type) {
+	    if (isScaled)
+	        return geScaled[type] > 0 ? Math.log(geScaled[type]) + geLogScale : Double.NEGATIVE_INFINITY;
+
+	    if (geMantissa[type] <= 0)
+	        return Double.NEGATIVE_INFINITY;
+
+	    return Math.log(geMantissa[type]) + geExponent[type]*Math.log(2);
+    }
+
+    /**
+     * Ensure mantissa of ge value of given type lies in [1,2), adjusting
+     * the exponent accordingly.
+     *
+     * @param type type index
+     */
+    private void normalizeGe(int type) {
+	    double mantissa = geMantissa[type];
+
+	    if (mantissa == 0) {
+	        geExponent[type] = 0;
+	        return;
+        }
+
+	    if (Double.isInfinite(mantissa))
+	        throw new RuntimeException("Unauthorized number (Infinity) used for conversion into extended floating point representation");
+
+	    if (Math.getExponent(mantissa) < Double.MIN_EXPONENT) {
+	        // subnormal mantissa: bring it into the normal range first
+	        mantissa = Math.scalb(mantissa, 64);
+	        geExponent[type] -= 64;
+        }
+
+	    int shift = Math.getExponent(mantissa);
+	    geMantissa[type] = Math.scalb(mantissa, -shift);
+	    geExponent[type] += shift;
+    }
+
     @Override
     public String toString() {
 	    StringBuilder sb = new StringBuilder();
@@ -36,7 +347,11 @@ public class P0GeState extends P0State {
                 sb.append(" ");
 
             sb.append("p0[").append(type).append("]=").append(p0[type]);
-            sb.append(" ge[").append(type).append("]=").append(ge[type]);
+            sb.append(" ge[").append(type).append("]=");
+            if (isScaled)
+                sb.append(geScaled[type]).append("*exp(").append(geLogScale).append(")");
+            else
+                sb.append(new SmallNumber(geMantissa[type], geExponent[type]));
         }
 
         return sb.toString();
@@ -59,113 +374,188 @@ public class P0GeState extends P0State {
 	 * @return
 	 */
 	public ScaledNumbers getScaledState() {
+		return getScaledState(new ScaledNumbers());
+	}
+
+	/**
+	 * Same as getScaledState(), but stores the result in an existing
+	 * ScaledNumbers object rather than allocating a new one.
+	 *
+	 * @param dest object in which to store the scaled state
+	 * @return dest
+	 */
+	public ScaledNumbers getScaledState(ScaledNumbers dest) {
 		int n = p0.length;
-		SmallNumber[] geConditions = ge;
 
-		// scalingFactors will store the scaling factor chosen for the ge equations in the array 'geConditions'.
-		int scalingFactor = 0;
-		double[] scaledEquation = new double[2*n];
+		if (dest.getEquation().length != 2*n)
+			dest.setEquation(new double[2*n]);
+		double[] scaledEquation = dest.getEquation();
 
 		// the first half of 'scaledEquations' contains the initial conditions for p equations, no scaling process is needed there
-		for (int i=0; i<n; i++){
-			scaledEquation[i] = p0[i];
+		System.arraycopy(p0, 0, scaledEquation, 0, n);
+
+		// look for the highest and lowest orders of magnitude for the non-zero ge values
+		int minExponent = Integer.MAX_VALUE;
+		int maxExponent = Integer.MIN_VALUE;
+		for (int i=0; i<n; i++) {
+			if (geMantissa[i] != 0) {
+				minExponent = Math.min(minExponent, geExponent[i]);
+				maxExponent = Math.max(maxExponent, geExponent[i]);
+			}
+		}
+
+		// all ge values are zero
+		if (minExponent > maxExponent) {
+			for (int i=0; i<n; i++)
+				scaledEquation[i+n] = 0.0;
+
+			dest.setScalingFactor(0);
+			return dest;
+		}
+
+		// if the range of values exceeds the size of the window of values
+		// authorized by the 'double' type, it is impossible to fit all values
+		// in this window.  As an approximation, smallest values are then set
+		// to zero. (This is an extreme case that should hardly ever occur.)
+		while ((maxExponent - minExponent) >= safeGapMinMaxDouble) {
+			int newMinExponent = Integer.MAX_VALUE;
+			for (int i=0; i<n; i++) {
+				if (geMantissa[i] != 0 && geExponent[i] > minExponent)
+					newMinExponent = Math.min(newMinExponent, geExponent[i]);
+			}
+			minExponent = newMinExponent;
 		}
 
-		if (geConditions.length > 0) {
+		// if possible (if the highest value is not too close to the highest value allowed in a 'double'), for simplicity, the scale factor chosen is the opposite of the exponent of the lowest value of the array.
+		// in most cases, this is enough.
+		// else, the scale factor chosen will center the range of values of the array 'equation' in the window of values authorized by java for numbers of type 'double'.
+		int scalingFactor;
+		if ((maxExponent - minExponent) < exponentMaxValueDouble) scalingFactor = - minExponent;
+		else scalingFactor = exponentMinValueDouble + (safeGapMinMaxDouble - (maxExponent - minExponent))/2 -minExponent;
+
+		// finally, store in scaledEquation the corresponding numbers, increased by scalingFactor orders of magnitude.
+		for (int i=0; i<n; i++) {
+			if (geMantissa[i] == 0 || geExponent[i] < minExponent)
+				scaledEquation[i+n] = 0.0;
+			else
+				scaledEquation[i+n] = Math.scalb(geMantissa[i], geExponent[i] + scalingFactor);
+		}
+
+		dest.setScalingFactor(scalingFactor);
+
+		return dest;
+	}
+
+	/**
+	 * Rescale (in place) the ge components of an integration result, using
+	 * the same rules as getScaledState().  This avoids the conversion of the
+	 * result to the extended representation and back between consecutive
+	 * integration steps.
+	 *
+	 * @param equation integration result, containing p0 values followed by
+	 *                 (already scaled) ge values
+	 * @param n number of types
+	 * @return additional scale factor applied to the ge values
+	 */
+	static int rescaleGe(double[] equation, int n) {
+		return rescaleGe(equation, n, n);
+	}
+
+	/**
+	 * Rescale (in place) a range of (already scaled) ge values, using the
+	 * same rules as getScaledState().
+	 *
+	 * @param values array containing ge values
+	 * @param offset index of first ge value
+	 * @param n number of types
+	 * @return additional scale factor applied to the ge values
+	 */
+	static int rescaleGe(double[] values, int offset, int n) {
+
+		int minExponent = Integer.MAX_VALUE;
+		int maxExponent = Integer.MIN_VALUE;
+
+		for (int i=offset; i<offset+n; i++) {
+			if (Double.isInfinite(values[i]))
+				throw new RuntimeException("Unauthorized number (Infinity) used for conversion into SmallNumber");
 
-			// initialization of minExponent and maxExponent with geConditions[idx] =0 would cause issues with further determination of the scale factor. So, we go look at the first value that is not zero, if it exists.
-			int idx = 0;
-			while(idx < (n-1)){
-				if (geConditions[idx].getMantissa()==0) idx++;
-				else break;
+			// only non-zero numbers are taken into account
+			if (values[i] != 0) {
+				int exponent = Math.getExponent(values[i]);
+				minExponent = Math.min(minExponent, exponent);
+				maxExponent = Math.max(maxExponent, exponent);
 			}
-			int maxExponent = geConditions[idx].getExponent();
-			int minExponent = geConditions[idx].getExponent();
-
-			// look for the highest and lowest orders of magnitude for values in 'equation'
-			if (n > idx){
-				for (int i=idx; i< n; i++) {
-
-					// only non-zero numbers are taken into account
-					if (geConditions[i].getMantissa()!=0) {
-						if (geConditions[i].getExponent() > maxExponent) {
-							maxExponent = geConditions[i].getExponent();
-						} else if (geConditions[i].getExponent() < minExponent) {
-							minExponent = geConditions[i].getExponent();
-						}
-					}
-				}
+		}
+
+		// all ge values are zero
+		if (minExponent > maxExponent)
+			return 0;
+
+		// As in getScaledState(), if the values cannot all fit in the range
+		// of a double, the smallest values are set to zero.
+		while ((maxExponent - minExponent) >= safeGapMinMaxDouble) {
+			int newMinExponent = Integer.MAX_VALUE;
+			for (int i=offset; i<offset+n; i++) {
+				if (values[i] == 0)
+					continue;
+
+				int exponent = Math.getExponent(values[i]);
+				if (exponent == minExponent)
+					values[i] = 0;
+				else
+					newMinExponent = Math.min(newMinExponent, exponent);
 			}
+			minExponent = newMinExponent;
+		}
+
+		int scalingFactor;
+		if ((maxExponent - minExponent) < exponentMaxValueDouble) scalingFactor = - minExponent;
+		else scalingFactor = exponentMinValueDouble + (safeGapMinMaxDouble - (maxExponent - minExponent))/2 -minExponent;
 
-			// if the range of values in the initial conditions - 'geConditions' - does not exceed the size of the window of values authorized by 'double' type,
-			// a scale factor is chosen and all input values will see their order of magnitude increased by this factor.
-			if ((maxExponent - minExponent)< safeGapMinMaxDouble) {
-
-				// if possible (if the highest value is not too close to the highest value allowed in a 'double'), for simplicity, the scale factor chosen is the opposite of the exponent of the lowest value of the array.
-				// in most cases, this is enough.
-				if ((maxExponent - minExponent) < exponentMaxValueDouble) scalingFactor = - minExponent;
-
-				// else, the scale factor chosen will center the range of values of the array 'equation' in the window of values authorized by java for numbers of type 'double'.
-				else scalingFactor = exponentMinValueDouble + (safeGapMinMaxDouble - (maxExponent - minExponent))/2 -minExponent;
-
-				// finally, store in scaledEquation the corresponding numbers, increased by scalingFactor orders of magnitude.
-				// scaledEquation[] is of type double[]
-				for (int i=0; i<n;i++)
-					scaledEquation[i+n] = multiplyByPowerOfTwo(geConditions[i].getMantissa(), geConditions[i].getExponent() + scalingFactor);
-
-
-
-				// else, then it is impossible to fit all values from the array in the window allowed for 'double' type.
-				// As an approximation, smallest values are then set to zero.
-				// NOTE: The implementation below is computationally expensive and naive. However, this part deals with an extreme case, that would hardly ever occur.
-				// Keeping it naive and expensive allows for simplification of the much more frequent case (above).
-			} else {
-				// work on a copy of geConditions[]
-				SmallNumber[] eqcopy = new SmallNumber[n];
-
-				for (int i = 0; i< n; i++ ){
-					eqcopy[i] = geConditions[i];
-				}
-				while ((maxExponent - minExponent) >= safeGapMinMaxDouble) {
-
-					// set smallest values to zero
-					for (int i=0; i< n; i++) {
-						if (eqcopy[i].getExponent() == minExponent) {
-							eqcopy[i] = new SmallNumber(0);
-						}
-					}
-
-					// re-initialize the value of minExponent
-					idx = 0;
-					while(eqcopy[idx].getMantissa()==0 && (idx < n)){
-						idx++;
-					}
-					minExponent = eqcopy[idx].getExponent();
-
-					for (int i=idx; i< n; i++) {
-
-						// only non-zero numbers are taken into account
-						if (eqcopy[i].getMantissa()!=0) {
-							if (eqcopy[i].getExponent() < minExponent) {
-								minExponent = eqcopy[i].getExponent();
-							}
-						}
-					}
-				}
-
-				// then, choose the proper scale factor
-				if ((maxExponent - minExponent) < exponentMaxValueDouble) scalingFactor = - minExponent;
-				else scalingFactor = exponentMinValueDouble + (safeGapMinMaxDouble - (maxExponent - minExponent))/2 -minExponent;
-
-				// finally, store in scaledEquation the corresponding numbers, increased by scalingFactor orders of magnitude.
-				// scaledEquation[] is of type double[]
-				for (int i=0; i<n;i++)
-					scaledEquation[i+n] = multiplyByPowerOfTwo(eqcopy[i].getMantissa(), eqcopy[i].getExponent() + scalingFactor);
+		for (int i=offset; i<offset+n; i++)
+			values[i] = Math.scalb(values[i], scalingFactor);
 
+		return scalingFactor;
+	}
+
+	/**
+	 * Rescale (in place) a range of values by a power of two so that the
+	 * largest of them lies in [1,2).
+	 *
+	 * @param values array containing values to rescale
+	 * @param offset index of first value
+	 * @param length number of values
+	 * @return natural log of the factor by which the values were divided, or
+	 * NaN if the non-zero values span more than scaledRangeMax binary orders
+	 * of magnitude, in which case they are left unchanged.
+	 */
+	static double rescaleByMax(double[] values, int offset, int length) {
+
+		int minExponent = Integer.MAX_VALUE;
+		int maxExponent = Integer.MIN_VALUE;
+
+		for (int i=offset; i<offset+length; i++) {
+			if (Double.isInfinite(values[i]))
+				throw new RuntimeException("Unauthorized number (Infinity) used in scaled representation");
+
+			if (values[i] != 0) {
+				int exponent = Math.getExponent(values[i]);
+				minExponent = Math.min(minExponent, exponent);
+				maxExponent = Math.max(maxExponent, exponent);
 			}
 		}
 
-		return new ScaledNumbers(scalingFactor, scaledEquation);
+		// all values are zero
+		if (minExponent > maxExponent)
+			return 0.0;
+
+		if (maxExponent - minExponent > scaledRangeMax)
+			return Double.NaN;
+
+		for (int i=offset; i<offset+length; i++)
+			values[i] = Math.scalb(values[i], -maxExponent);
+
+		return maxExponent*Math.log(2);
 	}
 
 	/**
@@ -182,30 +572,9 @@ public class P0GeState extends P0State {
 		System.arraycopy(numbers, 0, p0, 0, p0.length);
 
 		for (int i = 0; i < p0.length; i++){
-			ge[i] = new SmallNumber(numbers[i+p0.length]);
-			ge[i].incrementExponent(-factor);
-		}
-	}
-
-	/**
-	 * Helper method that multiplies a double x by 2^n
-	 * When n is 'small', especially when less than 30, this method is significantly faster than x*Math.pow(2, n)
-	 * @param x
-	 * @param n
-	 * @return x * 2^n
-	 */
-	private double multiplyByPowerOfTwo(double x, int n){
-		if(x !=0) {
-			if(n>180 || n<0) // the threshold of 180 was chosen empirically to maximize the method's sampling speed
-				return x*Math.pow(2, n);
-			else {
-				while(n>30) { //the number 30 comes from the max number of bits that can be left-shifted on an int and still be equivalent to a 2 to the power of n operation
-					x = x*(1<<30);
-					n-=30;
-				}
-				return x*(1<<n); // the remaining part of the original power of 2 with which the mantissa must be multiplied
-			}
+			geMantissa[i] = numbers[i+p0.length];
+			geExponent[i] = -factor;
+			normalizeGe(i);
 		}
-		return 0;
 	}
 }
@@ -3,8 +3,14 @@ package bdmmprime.distribution;
 
 import bdmmprime.parameterization.Parameterization;
 import bdmmprime.util.Utils;
-import org.apache.commons.math3.ode.FirstOrderIntegrator;
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.apache.commons.math3.ode.MainStateJacobianProvider;
+import org.apache.commons.math3.ode.nonstiff.AdaptiveStepsizeIntegrator;
 import org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+import java.util.Arrays;
 
 /**
  * User: Denise
@@ -14,13 +20,717 @@ import org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator;
 
 public class P0GeSystem extends P0System {
 
+    /*
+     * Integration workspace.  Systems are confined to a single thread and
+     * reused across edges and likelihood evaluations, so that integrating
+     * along an edge does not require allocating a new integrator.
+     */
+    private AdaptiveStepsizeIntegrator p0GeIntegrator;
+    private ScaledNumbers scaledState;
+    private double[] stateWorkspace;
+
+    /*
+     * Times, in decreasing order, at which integrateScaled() records the
+     * state, together with the recorded states and log scale factors.
+     * Within a step of the integrator, the state is read from its dense
+     * output.
+     */
+    private double[] stopTimes;
+    private double[][] stopStates;
+    private double[] stopLogScales;
+    private int nextStop, stopCount;
+    private double stopSegmentEnd, stopLogScale;
+    private final StepHandler stopRecorder = new StepHandler() {
+        @Override
+        public void init(double t0, double[] y0, double t) { }
+
+        @Override
+        public void handleStep(StepInterpolator interpolator, boolean isLast) {
+            double tCurrent = interpolator.getCurrentTime();
+
+            while (nextStop < stopCount && (stopTimes[nextStop] >= tCurrent
+                    || (isLast && !Utils.lessThanWithPrecision(stopTimes[nextStop], stopSegmentEnd)))) {
+                double t = Math.max(stopTimes[nextStop], tCurrent);
+                interpolator.setInterpolatedTime(t);
+                recordInterpolatedStop(t, interpolator.getInterpolatedState());
+            }
+        }
+    };
+
+    /*
+     * Times, in the order they are reached, at which integrateGe() and
+     * integrateGeAdjoint() record the state of the integrator, read from
+     * its dense output, together with the arrays receiving the states.
+     */
+    private double[] sampleTimes;
+    private double[][] samples;
+    private int nextSample, sampleCount;
+    private final StepHandler sampleRecorder = new StepHandler() {
+        @Override
+        public void init(double t0, double[] y0, double t) { }
+
+        @Override
+        public void handleStep(StepInterpolator interpolator, boolean isLast) {
+            double tPrevious = interpolator.getPreviousTime();
+            double tCurrent = interpolator.getCurrentTime();
+
+            while (nextSample < sampleCount) {
+                double t = sampleTimes[nextSample];
+                boolean inStep = tCurrent > tPrevious ? t <= tCurrent : t >= tCurrent;
+
+                if (!inStep && !isLast)
+                    break;
+
+                interpolator.setInterpolatedTime(inStep ? t : tCurrent);
+                double[] state = interpolator.getInterpolatedState();
+                System.arraycopy(state, 0, samples[nextSample], 0, state.length);
+                nextSample += 1;
+            }
+        }
+    };
+
+    /*
+     * Forcing term of the p0 adjoint equations, a polynomial in time given
+     * by its values at a set of nodes in [-1,1] mapped onto the range
+     * between forcingStart and forcingEnd, or null if there is none.
+     */
+    private double[] forcingNodes, forcingBasis;
+    private double[][] forcingValues;
+    private double forcingStart, forcingEnd;
+
+    /*
+     * Dense output of the p0 solution.  When available, only the (linear)
+     * ge equations are integrated along edges, with the p0 values they
+     * depend on read from this solution.
+     */
+    private P0Trajectory p0Solution;
+    private AdaptiveStepsizeIntegrator geIntegrator;
+    private double[] geState, p0Values;
+
+    /*
+     * Propagators of the ge equations over a time grid, used in place of
+     * integration for spans whose ends lie on grid times.
+     */
+    private PropagatorGrid propagators;
+    private AdaptiveStepsizeIntegrator propagatorIntegrator;
+    private double[] propagatorState;
+    private final FirstOrderDifferentialEquations propagatorEquations = new FirstOrderDifferentialEquations() {
+        @Override
+        public int getDimension() {
+            return nTypes*nTypes;
+        }
+
+        @Override
+        public void computeDerivatives(double t, double[] y, double[] yDot) {
+            p0Solution.getP0(t, interval, p0Values);
+
+            // Each column of the propagator obeys the ge equations
+            for (int col = 0; col < nTypes; col++)
+                computeGeDerivatives(p0Values, y, col*nTypes, yDot, col*nTypes);
+        }
+    };
+
+    /*
+     * Lock-step integration of the ge values of several lineages, all of
+     * which see the same p0 values.
+     */
+    private AdaptiveStepsizeIntegrator batchIntegrator;
+    private double[] batchState;
+    private int batchLineageCount;
+
+    /*
+     * Number of lineages the tolerances of the batch integrator are
+     * currently scaled for (see setBatchStepSizeControl()).
+     */
+    private int batchToleranceLineageCount = 1;
+    private final FirstOrderDifferentialEquations batchEquations = new FirstOrderDifferentialEquations() {
+        @Override
+        public int getDimension() {
+            return batchLineageCount*nTypes;
+        }
+
+        @Override
+        public void computeDerivatives(double t, double[] y, double[] yDot) {
+            p0Solution.getP0(t, interval, p0Values);
+
+            for (int lineage = 0; lineage < batchLineageCount; lineage++)
+                computeGeDerivatives(p0Values, y, lineage*nTypes, yDot, lineage*nTypes);
+        }
+    };
+
+    /*
+     * Adjoints of the ge and p0 equations, integrated forwards in time when
+     * computing likelihood gradients.  The p0 adjoint is augmented by the
+     * integrals of its product with the derivatives of the p0 equations with
+     * respect to the rates of the current interval: see integrateP0Adjoint().
+     */
+    private AdaptiveStepsizeIntegrator geAdjointIntegrator, p0AdjointIntegrator;
+    private double[] geAdjointState, p0AdjointState;
+    private double[][] jacobian;
+    private final FirstOrderDifferentialEquations geAdjointEquations = new FirstOrderDifferentialEquations() {
+        @Override
+        public int getDimension() {
+            return nTypes;
+        }
+
+        @Override
+        public void computeDerivatives(double t, double[] y, double[] yDot) {
+            p0Solution.getP0(t, interval, p0Values);
+            computeGeJacobian(p0Values, jacobian, 0);
+
+            for (int j = 0; j < nTypes; j++) {
+                yDot[j] = 0.0;
+                for (int i = 0; i < nTypes; i++)
+                    yDot[j] -= jacobian[i][j]*y[i];
+            }
+        }
+    };
+    private final FirstOrderDifferentialEquations p0AdjointEquations = new FirstOrderDifferentialEquations() {
+        @Override
+        public int getDimension() {
+            return getP0AdjointDimension();
+        }
+
+        @Override
+        public void computeDerivatives(double t, double[] y, double[] yDot) {
+            p0Solution.getP0(t, interval, p0Values);
+            computeP0Jacobian(p0Values, jacobian);
+
+            int n2 = nTypes*nTypes;
+            for (int i = 0; i < nTypes; i++) {
+                double mu = y[i];
+                double p = p0Values[i];
+
+                yDot[i] = 0.0;
+                for (int k = 0; k < nTypes; k++)
+                    yDot[i] -= jacobian[k][i]*y[k];
+
+                yDot[nTypes + i] = -mu*(p - p*p);
+                yDot[2*nTypes + i] = -mu*(p - 1);
+                yDot[3*nTypes + i] = -mu*p;
+
+                for (int j = 0; j < nTypes; j++) {
+                    yDot[4*nTypes + i*nTypes + j] = i == j ? 0.0 : -mu*(p - p0Values[j]);
+                    yDot[4*nTypes + n2 + i*nTypes + j] = i == j ? 0.0 : -mu*(p - p*p0Values[j]);
+                }
+            }
+
+            if (forcingValues != null) {
+                double x = (2*t - forcingStart - forcingEnd)/(forcingEnd - forcingStart);
+                Utils.computeLagrangeBasis(forcingNodes, x, forcingBasis);
+
+                for (int q = 0; q < forcingNodes.length; q++) {
+                    for (int i = 0; i < nTypes; i++)
+                        yDot[i] += forcingBasis[q]*forcingValues[q][i];
+                }
+            }
+        }
+    };
+
+    private final MainStateJacobianProvider geEquations = new MainStateJacobianProvider() {
+        @Override
+        public int getDimension() {
+            return nTypes;
+        }
+
+        @Override
+        public void computeDerivatives(double t, double[] y, double[] yDot) {
+            selectInterval(t);
+            p0Solution.getP0(t, interval, p0Values);
+            computeGeDerivatives(p0Values, y, 0, yDot, 0);
+        }
+
+        @Override
+        public void computeMainStateJacobian(double t, double[] y, double[] yDot, double[][] dFdY) {
+            selectInterval(t);
+            p0Solution.getP0(t, interval, p0Values);
+            computeGeJacobian(p0Values, dFdY, 0);
+        }
+    };
+
+    /*
+     * Stiff integrators for the coupled p0 and ge equations and for the ge
+     * equations alone, created when first needed.
+     */
+    private RosenbrockIntegrator stiffP0GeIntegrator, stiffGeIntegrator;
+
+    /*
+     * Integration ranges longer than this fraction of the total process
+     * length are divided in two.
+     */
+    private double splitFraction = 1.0/6;
+
 	public P0GeSystem(Parameterization parameterization,
                       double absoluteTolerance,
                       double relativeTolerance) {
 
 	    super(parameterization, absoluteTolerance, relativeTolerance);
+
+        // The absolute tolerances of the ge components were previously set to
+        // ge*absoluteTolerance, i.e. to a value always negligible compared to
+        // the relative tolerance.  The same scalar tolerances are therefore
+        // used for all components.
+        p0GeIntegrator = new DormandPrince54Integrator(
+                integrationMinStep, integrationMaxStep,
+                absoluteTolerance, relativeTolerance);
+
+        geIntegrator = new DormandPrince54Integrator(
+                integrationMinStep, integrationMaxStep,
+                absoluteTolerance, relativeTolerance);
+
+        batchIntegrator = new DormandPrince54Integrator(
+                integrationMinStep, integrationMaxStep,
+                absoluteTolerance, relativeTolerance);
+
+        scaledState = new ScaledNumbers(0, new double[2 * nTypes]);
+        stateWorkspace = new double[2 * nTypes];
+        geState = new double[nTypes];
+        p0Values = new double[nTypes];
 	}
 
+    @Override
+    protected void updateStepSizeControl() {
+        super.updateStepSizeControl();
+
+        // Called from the superclass constructor, before the integrators
+        // below are created.
+        if (p0GeIntegrator == null)
+            return;
+
+        for (AdaptiveStepsizeIntegrator integrator : new AdaptiveStepsizeIntegrator[] {
+                p0GeIntegrator, geIntegrator, propagatorIntegrator,
+                geAdjointIntegrator, p0AdjointIntegrator}) {
+
+            if (integrator != null)
+                integrator.setStepSizeControl(integrationMinStep, integrationMaxStep,
+                        absoluteTolerance, relativeTolerance);
+        }
+
+        setBatchStepSizeControl(batchToleranceLineageCount);
+
+        for (RosenbrockIntegrator integrator : new RosenbrockIntegrator[] {
+                stiffP0GeIntegrator, stiffGeIntegrator}) {
+
+            if (integrator != null)
+                integrator.setStepSizeControl(integrationMinStep, integrationMaxStep,
+                        absoluteTolerance, relativeTolerance);
+        }
+    }
+
+    /**
+     * Set the fraction of the total process length above which integration
+     * ranges are divided in two before being integrated.
+     *
+     * @param splitFraction fraction of total process length
+     */
+    public void setSplitFraction(double splitFraction) {
+	    this.splitFraction = splitFraction;
+    }
+
+    @Override
+    public void setStatistics(IntegrationStatistics statistics) {
+        super.setStatistics(statistics);
+
+        for (AdaptiveStepsizeIntegrator integrator : new AdaptiveStepsizeIntegrator[] {
+                p0GeIntegrator, geIntegrator, batchIntegrator, propagatorIntegrator,
+                geAdjointIntegrator, p0AdjointIntegrator}) {
+
+            if (integrator == null)
+                continue;
+
+            integrator.clearStepHandlers();
+            if (statistics != null)
+                integrator.addStepHandler(stepCounter);
+        }
+    }
+
+    /**
+     * @return scaled state object owned by this system, for use as a
+     * workspace when integrating along an edge.
+     */
+    public ScaledNumbers getScaledStateWorkspace() {
+	    return scaledState;
+    }
+
+    /**
+     * @return array owned by this system, for use as a workspace when
+     * integrating states in the scaled representation along an edge.
+     */
+    public double[] getStateWorkspace() {
+	    return stateWorkspace;
+    }
+
+    /**
+     * Set the dense output of the p0 solution used when integrating the ge
+     * equations.  If null, the p0 and ge equations are integrated together.
+     *
+     * @param p0Solution p0 solution
+     */
+    public void setP0Solution(P0Trajectory p0Solution) {
+	    this.p0Solution = p0Solution;
+    }
+
+    /**
+     * @return dense output of the p0 solution, or null if not set.
+     */
+    public P0Trajectory getP0Solution() {
+	    return p0Solution;
+    }
+
+    /**
+     * Set the propagator grid used in place of integration where possible.
+     *
+     * @param propagators propagator grid, or null to always integrate.
+     */
+    public void setPropagators(PropagatorGrid propagators) {
+	    this.propagators = propagators;
+    }
+
+    /**
+     * Compute the propagator of the ge equations between two times in the
+     * same interval, i.e. the matrix mapping the ge values at tStart to those
+     * at tEnd.  Requires a p0 solution to be set.
+     *
+     * @param tStart start time
+     * @param tEnd end time
+     * @param interval interval containing the times
+     * @param dest array in which to store the propagator (column-major)
+     * @param offset index of first element of propagator in dest
+     */
+    public void computePropagator(double tStart, double tEnd, int interval,
+                                  double[] dest, int offset) {
+
+	    if (propagatorIntegrator == null) {
+	        propagatorIntegrator = new DormandPrince54Integrator(
+	                integrationMinStep, integrationMaxStep,
+	                absoluteTolerance, relativeTolerance);
+	        propagatorState = new double[nTypes*nTypes];
+
+	        if (statistics != null)
+	            propagatorIntegrator.addStepHandler(stepCounter);
+        }
+
+	    Arrays.fill(propagatorState, 0.0);
+	    for (int i = 0; i < nTypes; i++)
+	        propagatorState[i*nTypes + i] = 1.0;
+
+	    setInterval(interval);
+	    if (isDecoupled()) {
+	        p0Solution.getP0(tStart, interval, p0Values);
+	        for (int i = 0; i < nTypes; i++)
+	            propagatorState[i*nTypes + i] = getAnalyticalGeFactor(i, p0Values[i], tStart, tEnd);
+        } else if (!Utils.equalWithPrecision(tStart, tEnd)) {
+	        propagatorIntegrator.integrate(propagatorEquations, tStart, propagatorState, tEnd, propagatorState);
+
+	        if (statistics != null)
+	            recordIntegration(propagatorIntegrator);
+        }
+
+	    System.arraycopy(propagatorState, 0, dest, offset, nTypes*nTypes);
+    }
+
+    /**
+     * Integrate the adjoint of the ge equations forwards in time, from
+     * tStart to a later time tEnd in the current interval.  The adjoint
+     * holds the coefficients of a linear function of the ge values, such as
+     * the probability of the part of the tree outside the subtree below an
+     * edge, so that its inner product with the ge values integrated along
+     * the same edge is constant.  Requires a p0 solution to be set.
+     *
+     * @param adjoint adjoint values, integrated in place
+     * @param tStart start time
+     * @param tEnd end time (not earlier than tStart)
+     */
+    public void integrateGeAdjoint(double[] adjoint, double tStart, double tEnd) {
+
+        if (Utils.equalWithPrecision(tStart, tEnd))
+            return;
+
+        if (isDecoupled()) {
+            // The ge values are multiplied by these factors from tEnd to tStart
+            p0Solution.getP0(tEnd, interval, p0Values);
+            for (int i = 0; i < nTypes; i++)
+                adjoint[i] *= getAnalyticalGeFactor(i, p0Values[i], tEnd, tStart);
+            return;
+        }
+
+        if (geAdjointIntegrator == null) {
+            geAdjointIntegrator = new DormandPrince54Integrator(
+                    integrationMinStep, integrationMaxStep,
+                    absoluteTolerance, relativeTolerance);
+            geAdjointState = new double[nTypes];
+
+            if (statistics != null)
+                geAdjointIntegrator.addStepHandler(stepCounter);
+        }
+        if (jacobian == null)
+            jacobian = new double[nTypes][nTypes];
+
+        System.arraycopy(adjoint, 0, geAdjointState, 0, nTypes);
+        geAdjointIntegrator.integrate(geAdjointEquations, tStart, geAdjointState, tEnd, geAdjointState);
+
+        if (statistics != null)
+            recordIntegration(geAdjointIntegrator);
+
+        System.arraycopy(geAdjointState, 0, adjoint, 0, nTypes);
+    }
+
+    /**
+     * Integrate the adjoint of the ge equations as integrateGeAdjoint()
+     * does, additionally recording it at each of a sequence of times
+     * between tStart and tEnd.  The values are read from the dense output
+     * of the integrator, so that integration is not restarted at these
+     * times, except when the ge values are computed analytically.
+     *
+     * @param adjoint adjoint values, integrated in place
+     * @param tStart start time
+     * @param tEnd end time
+     * @param times times at which to record the adjoint, in increasing order
+     * @param first index of first time in times to record the adjoint at
+     * @param end index following last time in times to record the adjoint at
+     * @param dest arrays of length nTypes receiving the recorded values
+     */
+    public void integrateGeAdjoint(double[] adjoint, double tStart, double tEnd,
+                                   double[] times, int first, int end, double[][] dest) {
+
+        if (isDecoupled() || Utils.equalWithPrecision(tStart, tEnd)) {
+            for (int i = first; i < end; i++) {
+                integrateGeAdjoint(adjoint, tStart, times[i]);
+                tStart = times[i];
+                System.arraycopy(adjoint, 0, dest[i], 0, nTypes);
+            }
+            integrateGeAdjoint(adjoint, tStart, tEnd);
+            return;
+        }
+
+        if (geAdjointIntegrator == null) {
+            geAdjointIntegrator = new DormandPrince54Integrator(
+                    integrationMinStep, integrationMaxStep,
+                    absoluteTolerance, relativeTolerance);
+            geAdjointState = new double[nTypes];
+        }
+        if (jacobian == null)
+            jacobian = new double[nTypes][nTypes];
+
+        System.arraycopy(adjoint, 0, geAdjointState, 0, nTypes);
+        integrateWithSamples(geAdjointIntegrator, geAdjointEquations, geAdjointState,
+                tStart, tEnd, times, first, end, dest);
+        System.arraycopy(geAdjointState, 0, adjoint, 0, nTypes);
+    }
+
+    /**
+     * Integrate the ge values of a single lineage from tStart to tEnd in
+     * the current interval as integrateBatch() does, additionally recording
+     * them at each of a sequence of times in between.  The values are read
+     * from the dense output of the integrator, so that integration is not
+     * restarted at these times, except when the ge values are computed
+     * analytically.  The ge values are not rescaled, so the range should be
+     * short enough for them to remain representable.  Requires a p0
+     * solution to be set.
+     *
+     * @param ge ge values, integrated in place
+     * @param tStart start time
+     * @param tEnd end time
+     * @param times times at which to record the ge values, in decreasing
+     *              order
+     * @param first index of first time in times to record the ge values at
+     * @param end index following last time in times to record the ge values
+     *            at
+     * @param dest arrays of length nTypes receiving the recorded values
+     */
+    public void integrateGe(double[] ge, double tStart, double tEnd,
+                            double[] times, int first, int end, double[][] dest) {
+
+        if (isDecoupled() || Utils.equalWithPrecision(tStart, tEnd)) {
+            int[] factors = new int[1];
+            for (int i = first; i < end; i++) {
+                integrateBatch(ge, factors, 1, tStart, times[i]);
+                tStart = times[i];
+                System.arraycopy(ge, 0, dest[i], 0, nTypes);
+            }
+            integrateBatch(ge, factors, 1, tStart, tEnd);
+            return;
+        }
+
+        batchLineageCount = 1;
+        if (batchToleranceLineageCount != 1)
+            setBatchStepSizeControl(1);
+
+        if (batchState == null || batchState.length != nTypes)
+            batchState = new double[nTypes];
+
+        System.arraycopy(ge, 0, batchState, 0, nTypes);
+        integrateWithSamples(batchIntegrator, batchEquations, batchState,
+                tStart, tEnd, times, first, end, dest);
+        System.arraycopy(batchState, 0, ge, 0, nTypes);
+    }
+
+    /**
+     * Integrate equations in place from tStart to tEnd, recording the state
+     * at the given times from the dense output of the integrator.
+     *
+     * @param integrator integrator to use
+     * @param equations equations to integrate
+     * @param y state, integrated in place
+     * @param tStart start time
+     * @param tEnd end time
+     * @param times times at which to record the state, in the order they
+     *              are reached
+     * @param first index of first time in times to record the state at
+     * @param end index following last time in times to record the state at
+     * @param dest arrays receiving the recorded states
+     */
+    private void integrateWithSamples(AdaptiveStepsizeIntegrator integrator,
+                                      FirstOrderDifferentialEquations equations, double[] y,
+                                      double tStart, double tEnd,
+                                      double[] times, int first, int end, double[][] dest) {
+        sampleTimes = times;
+        samples = dest;
+        nextSample = first;
+        sampleCount = end;
+
+        integrator.clearStepHandlers();
+        integrator.addStepHandler(sampleRecorder);
+        if (statistics != null)
+            integrator.addStepHandler(stepCounter);
+
+        try {
+            integrator.integrate(equations, tStart, y, tEnd, y);
+        } finally {
+            integrator.clearStepHandlers();
+            if (statistics != null)
+                integrator.addStepHandler(stepCounter);
+
+            sampleTimes = null;
+            samples = null;
+        }
+
+        if (statistics != null)
+            recordIntegration(integrator);
+    }
+
+    /**
+     * Set a forcing term added to the right-hand side of the p0 adjoint
+     * equations by integrateP0Adjoint().  The forcing term is the
+     * polynomial interpolating the given values at the given nodes, with
+     * the range [-1,1] of the nodes mapped onto the range between start and
+     * end.
+     *
+     * @param start time onto which node -1 is mapped
+     * @param end time onto which node 1 is mapped
+     * @param nodes interpolation nodes in [-1,1]
+     * @param values values of the forcing term at the nodes, or null to
+     *               remove the forcing term
+     */
+    public void setP0AdjointForcing(double start, double end, double[] nodes, double[][] values) {
+        forcingStart = start;
+        forcingEnd = end;
+        forcingNodes = nodes;
+        forcingValues = values;
+
+        if (nodes != null && (forcingBasis == null || forcingBasis.length != nodes.length))
+            forcingBasis = new double[nodes.length];
+    }
+
+    /**
+     * @return dimension of the state used by integrateP0Adjoint().
+     */
+    public int getP0AdjointDimension() {
+        return 4*nTypes + 2*nTypes*nTypes;
+    }
+
+    /**
+     * Integrate the adjoint of the p0 equations forwards in time, from
+     * tStart to a later time tEnd in the current interval, together with
+     * the integrals of minus its product with the derivatives of the p0
+     * equations with respect to the rates of the interval.  Requires a p0
+     * solution to be set.
+     *
+     * The state y holds the nTypes adjoint values followed by the integrals
+     * for the birth, death and sampling rates of each type (nTypes values
+     * each), then those for the migration rates and the cross-birth rates
+     * (nTypes x nTypes values each, in row-major order).  The forcing term
+     * set by setP0AdjointForcing(), if any, is added to the right-hand side
+     * of the adjoint equations.
+     *
+     * @param y state, integrated in place
+     * @param tStart start time
+     * @param tEnd end time (not earlier than tStart)
+     */
+    public void integrateP0Adjoint(double[] y, double tStart, double tEnd) {
+
+        if (Utils.equalWithPrecision(tStart, tEnd))
+            return;
+
+        if (p0AdjointIntegrator == null) {
+            p0AdjointIntegrator = new DormandPrince54Integrator(
+                    integrationMinStep, integrationMaxStep,
+                    absoluteTolerance, relativeTolerance);
+            p0AdjointState = new double[getP0AdjointDimension()];
+
+            if (statistics != null)
+                p0AdjointIntegrator.addStepHandler(stepCounter);
+        }
+        if (jacobian == null)
+            jacobian = new double[nTypes][nTypes];
+
+        System.arraycopy(y, 0, p0AdjointState, 0, p0AdjointState.length);
+        p0AdjointIntegrator.integrate(p0AdjointEquations, tStart, p0AdjointState, tEnd, p0AdjointState);
+
+        if (statistics != null)
+            recordIntegration(p0AdjointIntegrator);
+
+        System.arraycopy(p0AdjointState, 0, y, 0, p0AdjointState.length);
+    }
+
+    /**
+     * @param tStart start time
+     * @param tEnd end time
+     * @return true if a propagator grid is set and both times lie on it.
+     */
+    private boolean isOnPropagatorGrid(double tStart, double tEnd) {
+	    return propagators != null
+                && propagators.getTimeIndex(tStart) >= 0
+                && propagators.getTimeIndex(tEnd) >= 0;
+    }
+
+    /**
+     * Carry the ge values in y from tStart to tEnd using the propagator
+     * grid, rescaling the ge values after each grid cell.  The p0 values in y
+     * are set from the p0 solution at tEnd.  Both times must lie on the grid.
+     *
+     * @param y state (p0 values followed by ge values)
+     * @param tStart start time
+     * @param tEnd end time
+     * @param scaled if true, rescale using P0GeState.rescaleByMax(),
+     *               otherwise using P0GeState.rescaleGe().
+     * @return sum of the factors returned by the rescaling method (NaN if
+     * rescaling failed).
+     */
+    private double propagate(double[] y, double tStart, double tEnd, boolean scaled) {
+
+	    int startIdx = propagators.getTimeIndex(tStart);
+	    int endIdx = propagators.getTimeIndex(tEnd);
+
+	    double factor = 0.0;
+	    for (int cell = startIdx - 1; cell >= endIdx; cell--) {
+	        propagators.applyCell(cell, y, nTypes, geState);
+
+	        if (scaled) {
+	            factor += P0GeState.rescaleByMax(y, nTypes, nTypes);
+	            if (Double.isNaN(factor))
+	                return factor;
+            } else {
+	            factor += P0GeState.rescaleGe(y, nTypes);
+            }
+        }
+
+	    selectInterval(tEnd);
+	    p0Solution.getP0(tEnd, interval, y);
+
+	    return factor;
+    }
+
 	@Override
 	public int getDimension() {
 		return 2*this.nTypes;
@@ -29,6 +739,8 @@ public class P0GeSystem extends P0System {
 	@Override
 	public void computeDerivatives(double t, double[] y, double[] yDot) {
 
+	    selectInterval(t);
+
 		for (int i = 0; i<nTypes; i++){
 
 			/*  p0 equations (0 .. dim-1) */
@@ -49,11 +761,30 @@ public class P0GeSystem extends P0System {
                 yDot[i] += M[interval][i][j] * y[i];
                 yDot[i] -= M[interval][i][j] * y[j];
 			}
+		}
+
+		/*  ge equations: (dim .. 2*dim-1) */
+
+		computeGeDerivatives(y, y, nTypes, yDot, nTypes);
+	}
+
+    /**
+     * Compute the derivatives of the ge equations, which are linear in ge
+     * with coefficients depending on p0.
+     *
+     * @param p0 p0 values (first nTypes elements)
+     * @param ge array containing ge values
+     * @param geOffset index of first ge value
+     * @param geDot array in which to store derivatives
+     * @param geDotOffset index of first derivative
+     */
+	private void computeGeDerivatives(double[] p0, double[] ge, int geOffset,
+                                      double[] geDot, int geDotOffset) {
 
-			/*  ge equations: (dim .. 2*dim-1) */
+		for (int i = 0; i<nTypes; i++){
 
-			yDot[nTypes + i] = + (b[interval][i]+d[interval][i]+s[interval][i]
-					- 2*b[interval][i]*y[i])*y[nTypes + i];
+			geDot[geDotOffset + i] = + (b[interval][i]+d[interval][i]+s[interval][i]
+					- 2*b[interval][i]*p0[i])*ge[geOffset + i];
 
 
 			for (int j = 0; j< nTypes; j++){
@@ -61,26 +792,168 @@ public class P0GeSystem extends P0System {
                 if (i==j)
 			        continue;
 
-                yDot[nTypes + i] += b_ij[interval][i][j]*y[nTypes + i];
-                yDot[nTypes + i] -= b_ij[interval][i][j] *
-                        (y[i]*y[nTypes + j] + y[j]*y[nTypes + i]);
+                geDot[geDotOffset + i] += b_ij[interval][i][j]*ge[geOffset + i];
+                geDot[geDotOffset + i] -= b_ij[interval][i][j] *
+                        (p0[i]*ge[geOffset + j] + p0[j]*ge[geOffset + i]);
 
-                yDot[nTypes + i] += M[interval][i][j] * y[nTypes + i];
-                yDot[nTypes + i] -= M[interval][i][j] * y[nTypes + j];
+                geDot[geDotOffset + i] += M[interval][i][j] * ge[geOffset + i];
+                geDot[geDotOffset + i] -= M[interval][i][j] * ge[geOffset + j];
 			}
 		}
 	}
 
+    @Override
+    public void computeMainStateJacobian(double t, double[] y, double[] yDot, double[][] dFdY) {
+
+        selectInterval(t);
+        computeP0Jacobian(y, dFdY);
+
+        for (int i = 0; i < nTypes; i++) {
+
+            // p0 equations do not depend on ge
+            for (int j = 0; j < nTypes; j++)
+                dFdY[i][nTypes + j] = 0.0;
+
+            // Dependence of ge equations on p0
+            for (int j = 0; j < nTypes; j++)
+                dFdY[nTypes + i][j] = 0.0;
+
+            dFdY[nTypes + i][i] = -2*b[interval][i]*y[nTypes + i];
+
+            for (int j = 0; j < nTypes; j++) {
+
+                if (i == j)
+                    continue;
+
+                dFdY[nTypes + i][i] -= b_ij[interval][i][j]*y[nTypes + j];
+                dFdY[nTypes + i][j] -= b_ij[interval][i][j]*y[nTypes + i];
+            }
+        }
+
+        computeGeJacobian(y, dFdY, nTypes);
+    }
+
+    /**
+     * Compute the Jacobian of the ge equations with respect to the ge
+     * values, which depends only on p0.
+     *
+     * @param p0 p0 values (first nTypes elements)
+     * @param dFdY array in which to store Jacobian
+     * @param offset index of the first row and column of dFdY to set
+     */
+    private void computeGeJacobian(double[] p0, double[][] dFdY, int offset) {
+
+        for (int i = 0; i < nTypes; i++) {
+
+            dFdY[offset + i][offset + i] = b[interval][i] + d[interval][i] + s[interval][i]
+                    - 2*b[interval][i]*p0[i];
+
+            for (int j = 0; j < nTypes; j++) {
+
+                if (i == j)
+                    continue;
+
+                dFdY[offset + i][offset + i] += b_ij[interval][i][j]*(1 - p0[j]) + M[interval][i][j];
+                dFdY[offset + i][offset + j] = -b_ij[interval][i][j]*p0[i] - M[interval][i][j];
+            }
+        }
+    }
+
+    /**
+     * Factor by which the ge value of a type is multiplied between tStart
+     * and tEnd in a decoupled interval.
+     *
+     * @param type type
+     * @param p0Start p0 value of type at tStart
+     * @param tStart start time
+     * @param tEnd end time
+     * @return ratio of ge at tEnd to ge at tStart
+     */
+    private double getAnalyticalGeFactor(int type, double p0Start, double tStart, double tEnd) {
+        double lambda = b[interval][type], mu = d[interval][type], psi = s[interval][type];
+
+        return getAnalyticalGeFactor(lambda, mu, psi, getAnalyticalA(lambda, mu, psi),
+                p0Start, tStart, tEnd);
+    }
+
+    /**
+     * Integrate y (p0 values followed by ge values) in place between tStart
+     * and tEnd.  If a dense p0 solution is available, only the ge values are
+     * integrated and the p0 values are read from that solution.  The stiff
+     * integrator is used if the current interval is judged to be stiff.
+     *
+     * @param y state to integrate
+     * @param tStart start time
+     * @param tEnd end time
+     */
+    private void integrateStep(double[] y, double tStart, double tEnd) {
+
+        if (isDecoupled()) {
+            for (int i = 0; i < nTypes; i++) {
+                y[nTypes + i] *= getAnalyticalGeFactor(i, y[i], tStart, tEnd);
+                y[i] = getAnalyticalP0(b[interval][i], d[interval][i], s[interval][i],
+                        getAnalyticalA(b[interval][i], d[interval][i], s[interval][i]),
+                        y[i], tStart, tEnd);
+            }
+            return;
+        }
+
+        boolean stiff = isStiff();
+
+        if (p0Solution == null) {
+            if (stiff) {
+                if (stiffP0GeIntegrator == null)
+                    stiffP0GeIntegrator = new RosenbrockIntegrator(integrationMinStep, integrationMaxStep,
+                            absoluteTolerance, relativeTolerance);
+
+                stiffP0GeIntegrator.integrate(this, tStart, y, tEnd, y);
+
+                if (statistics != null)
+                    recordIntegration(stiffP0GeIntegrator);
+            } else {
+                p0GeIntegrator.integrate(this, tStart, y, tEnd, y);
+
+                if (statistics != null)
+                    recordIntegration(p0GeIntegrator);
+            }
+            return;
+        }
+
+        System.arraycopy(y, nTypes, geState, 0, nTypes);
+        if (stiff) {
+            if (stiffGeIntegrator == null)
+                stiffGeIntegrator = new RosenbrockIntegrator(integrationMinStep, integrationMaxStep,
+                        absoluteTolerance, relativeTolerance);
+
+            stiffGeIntegrator.integrate(geEquations, tStart, geState, tEnd, geState);
+
+            if (statistics != null)
+                recordIntegration(stiffGeIntegrator);
+        } else {
+            geIntegrator.integrate(geEquations, tStart, geState, tEnd, geState);
+
+            if (statistics != null)
+                recordIntegration(geIntegrator);
+        }
+        System.arraycopy(geState, 0, y, nTypes, nTypes);
+
+        selectInterval(tEnd);
+        p0Solution.getP0(tEnd, interval, y);
+    }
+
     /**
      * Perform the integration of PG with initial conds in pgScaled between to and from
      * Use an adaptive-step-size integrator
      * "Safe" because it divides the integration interval in two
      * if the interval is (arbitrarily) judged to be too big to give reliable results
      *
+     * The integration is performed in place: the equation and scaling factor
+     * of pgScaled are replaced by the (rescaled) integration result.
+     *
      * @param pgScaled
      * @param tStart
      * @param tEnd
-     * @return result of integration
+     * @return pgScaled, containing the result of integration
      */
     public ScaledNumbers safeIntegrate(ScaledNumbers pgScaled, double tStart, double tEnd) {
 
@@ -88,51 +961,319 @@ public class P0GeSystem extends P0System {
         if (Utils.equalWithPrecision(tEnd, tStart))
             return pgScaled;
 
-        //TODO make threshold a class field
-        if (totalProcessLength > 0 && Math.abs(tEnd - tStart) > totalProcessLength / 6) {
-            pgScaled = safeIntegrate(pgScaled, tStart, tEnd + (tStart - tEnd) / 2);
-            pgScaled = safeIntegrate(pgScaled, tEnd + (tStart - tEnd) / 2, tEnd);
+        if (isOnPropagatorGrid(tStart, tEnd)) {
+            pgScaled.augmentFactor((int) propagate(pgScaled.getEquation(), tStart, tEnd, false));
+            return pgScaled;
+        }
+
+        if (totalProcessLength > 0 && Math.abs(tEnd - tStart) > totalProcessLength * splitFraction) {
+            if (statistics != null)
+                statistics.addSplit();
+
+            safeIntegrate(pgScaled, tStart, tEnd + (tStart - tEnd) / 2);
+            safeIntegrate(pgScaled, tEnd + (tStart - tEnd) / 2, tEnd);
         } else {
 
-            //setup of the relativeTolerance and absoluteTolerance input of the adaptive integrator
-            //TODO set these two as class fields
-            double relativeToleranceConstant = 1e-7;
-            double absoluteToleranceConstant = 1e-100;
-            double[] absoluteToleranceVector = new double[2 * nTypes];
-            double[] relativeToleranceVector = new double[2 * nTypes];
+            double[] equation = pgScaled.getEquation();
 
-            for (int i = 0; i < nTypes; i++) {
-                absoluteToleranceVector[i] = absoluteToleranceConstant;
-                if (pgScaled.getEquation()[i + nTypes] > 0) { // adapt absoluteTolerance to the values stored in pgScaled
-                    absoluteToleranceVector[i + nTypes] = Math.max(1e-310, pgScaled.getEquation()[i + nTypes] * absoluteToleranceConstant);
-                } else {
-                    absoluteToleranceVector[i + nTypes] = absoluteToleranceConstant;
+            integrateStep(equation, tStart, tEnd); // perform the integration step
+
+            // 'rescale' the results to prepare for the next integration step
+            pgScaled.augmentFactor(P0GeState.rescaleGe(equation, nTypes));
+        }
+
+        return pgScaled;
+    }
+
+    /**
+     * Integrate y (p0 values followed by ge values sharing a single scale
+     * factor) in place between tStart and tEnd.  The interval is divided
+     * in the same way as in safeIntegrate(), but the ge values are simply
+     * rescaled by a power of two after each step rather than being
+     * converted to a ScaledNumbers representation.
+     *
+     * @param y state to integrate
+     * @param tStart start time
+     * @param tEnd end time
+     * @return natural log of the factor by which the ge values were divided,
+     * or NaN if these values came to span too wide a range to share a single
+     * scale factor.
+     */
+    public double integrateScaled(double[] y, double tStart, double tEnd) {
+
+        // if the integration interval is too small, nothing is done (to prevent infinite looping)
+        if (Utils.equalWithPrecision(tEnd, tStart))
+            return 0.0;
+
+        if (isOnPropagatorGrid(tStart, tEnd))
+            return propagate(y, tStart, tEnd, true);
+
+        if (totalProcessLength > 0 && Math.abs(tEnd - tStart) > totalProcessLength * splitFraction) {
+            if (statistics != null)
+                statistics.addSplit();
+
+            double logFactor = integrateScaled(y, tStart, tEnd + (tStart - tEnd) / 2);
+
+            if (Double.isNaN(logFactor))
+                return logFactor;
+
+            return logFactor + integrateScaled(y, tEnd + (tStart - tEnd) / 2, tEnd);
+        }
+
+        integrateStep(y, tStart, tEnd);
+
+        return P0GeState.rescaleByMax(y, nTypes, nTypes);
+    }
+
+    /**
+     * Integrate as integrateScaled(), additionally recording the state at
+     * each of a sequence of times between tStart and tEnd.  The states are
+     * read from the dense output of the integrator, so that integration is
+     * not restarted at these times.  Where no dense output is available,
+     * i.e. when the ge values are propagated, computed analytically or
+     * integrated by the stiff integrator, integration stops at each time
+     * instead.
+     *
+     * @param y state to integrate, p0 followed by the scaled ge values
+     * @param tStart start time
+     * @param tEnd end time
+     * @param times times at which to record the state, in decreasing order
+     * @param first index of first time in times to record the state at
+     * @param end index following last time in times to record the state at
+     * @param states arrays of length 2*nTypes receiving the recorded states
+     * @param logScales array receiving the log scale factors accumulated
+     *                  between tStart and each of the recorded states
+     * @return log of the factor by which the ge values were rescaled, or
+     * NaN if they came to span too wide a range to share a single factor.
+     */
+    public double integrateScaled(double[] y, double tStart, double tEnd,
+                                  double[] times, int first, int end,
+                                  double[][] states, double[] logScales) {
+        stopTimes = times;
+        stopStates = states;
+        stopLogScales = logScales;
+        nextStop = first;
+        stopCount = end;
+        stopLogScale = 0.0;
+
+        while (nextStop < stopCount && !Utils.lessThanWithPrecision(stopTimes[nextStop], tStart))
+            recordStop(y);
+
+        integrateScaledWithStops(y, tStart, tEnd);
+
+        double logScale = stopLogScale;
+
+        stopTimes = null;
+        stopStates = null;
+        stopLogScales = null;
+
+        return logScale;
+    }
+
+    /**
+     * Integrate between tStart and tEnd as integrateScaled() does, recording
+     * the state at the stop times lying in this range and accumulating the
+     * log scale factor in stopLogScale.
+     *
+     * @param y state to integrate
+     * @param tStart start time
+     * @param tEnd end time
+     */
+    private void integrateScaledWithStops(double[] y, double tStart, double tEnd) {
+
+        if (Utils.equalWithPrecision(tEnd, tStart)) {
+            recordStopsUntil(y, tEnd);
+            return;
+        }
+
+        if (isOnPropagatorGrid(tStart, tEnd) || isDecoupled() || isStiff()) {
+            while (nextStop < stopCount && Utils.greaterThanWithPrecision(stopTimes[nextStop], tEnd)) {
+                double t = stopTimes[nextStop];
+
+                if (Utils.greaterThanWithPrecision(tStart, t)) {
+                    stopLogScale += integrateScaled(y, tStart, t);
+                    if (Double.isNaN(stopLogScale))
+                        return;
+
+                    tStart = t;
                 }
-                relativeToleranceVector[i] = relativeToleranceConstant;
-                relativeToleranceVector[i + nTypes] = relativeToleranceConstant;
+
+                recordStop(y);
             }
 
-            double[] integrationResults = new double[pgScaled.getEquation().length];
-            int a = pgScaled.getScalingFactor(); // store scaling factor
-            int n = pgScaled.getEquation().length / 2; // dimension of the ODE system
+            stopLogScale += integrateScaled(y, tStart, tEnd);
+            recordStopsUntil(y, tEnd);
+            return;
+        }
+
+        if (totalProcessLength > 0 && Math.abs(tEnd - tStart) > totalProcessLength * splitFraction) {
+            if (statistics != null)
+                statistics.addSplit();
 
+            integrateScaledWithStops(y, tStart, tEnd + (tStart - tEnd) / 2);
 
-            FirstOrderIntegrator integrator = new DormandPrince54Integrator(
-                    integrationMinStep, integrationMaxStep,
-                    absoluteToleranceVector, relativeToleranceVector);
-            integrator.integrate(this, tStart, pgScaled.getEquation(), tEnd, integrationResults); // perform the integration step
-
-            double[] pConditions = new double[n];
-            SmallNumber[] geConditions = new SmallNumber[n];
-            for (int i = 0; i < n; i++) {
-                pConditions[i] = integrationResults[i];
-                geConditions[i] = new SmallNumber(integrationResults[i + n]);
+            if (Double.isNaN(stopLogScale))
+                return;
+
+            integrateScaledWithStops(y, tEnd + (tStart - tEnd) / 2, tEnd);
+            return;
+        }
+
+        AdaptiveStepsizeIntegrator integrator = p0Solution == null ? p0GeIntegrator : geIntegrator;
+
+        stopSegmentEnd = tEnd;
+        integrator.addStepHandler(stopRecorder);
+        try {
+            integrateStep(y, tStart, tEnd);
+        } finally {
+            integrator.clearStepHandlers();
+            if (statistics != null)
+                integrator.addStepHandler(stepCounter);
+        }
+
+        // Stops not reached by the integrator, which lie within the
+        // precision threshold of tEnd
+        recordStopsUntil(y, tEnd);
+
+        stopLogScale += P0GeState.rescaleByMax(y, nTypes, nTypes);
+    }
+
+    /**
+     * Record y as the state at each remaining stop time no earlier than t
+     * to within Utils.globalPrecisionThreshold.
+     *
+     * @param y state to record
+     * @param t time
+     */
+    private void recordStopsUntil(double[] y, double t) {
+        while (nextStop < stopCount && !Utils.lessThanWithPrecision(stopTimes[nextStop], t))
+            recordStop(y);
+    }
+
+    /**
+     * Record y as the state at the next stop time.
+     *
+     * @param y state, p0 followed by the scaled ge values
+     */
+    private void recordStop(double[] y) {
+        System.arraycopy(y, 0, stopStates[nextStop], 0, 2 * nTypes);
+        stopLogScales[nextStop] = stopLogScale;
+        nextStop += 1;
+    }
+
+    /**
+     * Record an interpolated state of the integrator as the state at the
+     * next stop time.  If a p0 solution is set, the integrator only
+     * integrates the ge values, and p0 is read from the solution.
+     *
+     * @param t stop time
+     * @param state interpolated state of the integrator
+     */
+    private void recordInterpolatedStop(double t, double[] state) {
+        double[] dest = stopStates[nextStop];
+
+        if (p0Solution == null) {
+            System.arraycopy(state, 0, dest, 0, 2 * nTypes);
+        } else {
+            System.arraycopy(state, 0, dest, nTypes, nTypes);
+
+            int currentInterval = interval;
+            selectInterval(t);
+            p0Solution.getP0(t, interval, dest);
+            interval = currentInterval;
+        }
+
+        stopLogScales[nextStop] = stopLogScale;
+        nextStop += 1;
+    }
+
+    /**
+     * Set the step size control of the batch integrator for a given number
+     * of lineages.  The integrator measures the error of a step by its RMS
+     * norm over all components, which would dilute the error of each
+     * lineage by the number of lineages.  Dividing the tolerances by the
+     * square root of the number of lineages makes the norm of the batch at
+     * least the RMS norm of every single lineage, so that each lineage is
+     * integrated at least as accurately as it would be on its own.
+     *
+     * @param nLineages number of lineages
+     */
+    private void setBatchStepSizeControl(int nLineages) {
+        batchToleranceLineageCount = nLineages;
+
+        if (batchIntegrator == null)
+            return;
+
+        double scale = 1.0/Math.sqrt(nLineages);
+        batchIntegrator.setStepSizeControl(integrationMinStep, integrationMaxStep,
+                absoluteTolerance*scale, relativeTolerance*scale);
+    }
+
+    /**
+     * Integrate the (scaled) ge values of several lineages in lock-step
+     * between tStart and tEnd, which must lie in the current interval.  The
+     * lineages share a single step size controller and a single evaluation
+     * of p0 per step.  Requires a p0 solution to be set.
+     *
+     * The integration is performed in place, and the ge values of each
+     * lineage are rescaled after each step, in the same way as in
+     * safeIntegrate().
+     *
+     * @param ge ge values of the lineages, nTypes consecutive values per
+     *           lineage
+     * @param factors scale factors of the lineages, augmented by the factors
+     *                applied during rescaling
+     * @param nLineages number of lineages
+     * @param tStart start time
+     * @param tEnd end time
+     */
+    public void integrateBatch(double[] ge, int[] factors, int nLineages,
+                               double tStart, double tEnd) {
+
+        // if the integration interval is too small, nothing is done (to prevent infinite looping)
+        if (nLineages == 0 || Utils.equalWithPrecision(tEnd, tStart))
+            return;
+
+        if (isDecoupled()) {
+            p0Solution.getP0(tStart, interval, p0Values);
+            for (int i = 0; i < nTypes; i++)
+                geState[i] = getAnalyticalGeFactor(i, p0Values[i], tStart, tEnd);
+
+            for (int lineage = 0; lineage < nLineages; lineage++) {
+                for (int i = 0; i < nTypes; i++)
+                    ge[lineage*nTypes + i] *= geState[i];
+
+                factors[lineage] += P0GeState.rescaleGe(ge, lineage*nTypes, nTypes);
             }
-            pgScaled = (new P0GeState(pConditions, geConditions)).getScaledState();
-            pgScaled.augmentFactor(a);
+            return;
         }
 
-        return pgScaled;
+        if (totalProcessLength > 0 && Math.abs(tEnd - tStart) > totalProcessLength * splitFraction) {
+            if (statistics != null)
+                statistics.addSplit();
+
+            integrateBatch(ge, factors, nLineages, tStart, tEnd + (tStart - tEnd) / 2);
+            integrateBatch(ge, factors, nLineages, tEnd + (tStart - tEnd) / 2, tEnd);
+            return;
+        }
+
+        // The integrator requires a state whose length matches the dimension
+        int dim = nLineages*nTypes;
+        if (batchState == null || batchState.length != dim)
+            batchState = new double[dim];
+
+        batchLineageCount = nLineages;
+        if (nLineages != batchToleranceLineageCount)
+            setBatchStepSizeControl(nLineages);
+
+        System.arraycopy(ge, 0, batchState, 0, dim);
+        batchIntegrator.integrate(batchEquations, tStart, batchState, tEnd, batchState);
+
+        if (statistics != null)
+            recordIntegration(batchIntegrator);
+        System.arraycopy(batchState, 0, ge, 0, dim);
+
+        for (int lineage = 0; lineage < nLineages; lineage++)
+            factors[lineage] += P0GeState.rescaleGe(ge, lineage*nTypes, nTypes);
     }
 }
-
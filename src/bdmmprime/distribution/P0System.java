@@ -1,9 +1,11 @@
 package bdmmprime.distribution;
 
 import bdmmprime.parameterization.Parameterization;
-import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
-import org.apache.commons.math3.ode.FirstOrderIntegrator;
+import org.apache.commons.math3.ode.MainStateJacobianProvider;
+import org.apache.commons.math3.ode.nonstiff.AdaptiveStepsizeIntegrator;
 import org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
 
 
 /**
@@ -12,7 +14,7 @@ import org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator;
  *         Time: 6:42:00 PM
  */
 
-public class P0System implements FirstOrderDifferentialEquations {
+public class P0System implements MainStateJacobianProvider {
 
 	public double[][] b, d, s, r,rho;
 	public double[][][] M, b_ij;
@@ -25,15 +27,86 @@ public class P0System implements FirstOrderDifferentialEquations {
 
     protected int interval;
 
-    protected FirstOrderIntegrator p0Integrator;
+    /*
+     * Integration across interval boundaries.  Runs of consecutive intervals
+     * separated by boundaries without rho sampling, and integrated using the
+     * same (numerical) solver, form spans which are integrated without
+     * stopping at the boundaries.  Within a span, the rates used by each
+     * evaluation of the derivatives are those of the interval containing
+     * the evaluation time.
+     */
+    protected boolean integrateAcrossBoundaries;
+    protected int[] spanFirstIntervals;
+    protected int firstInterval, lastInterval;
+
+    protected AdaptiveStepsizeIntegrator p0Integrator;
 
     protected double integrationMinStep, integrationMaxStep;
 
+    protected Parameterization parameterization;
+    protected double absoluteTolerance, relativeTolerance;
+
+    protected P0Trajectory trajectory;
+
+    /*
+     * Stiff integration.  The stiff integrator is used in intervals where
+     * the product of a bound on the magnitude of the eigenvalues of the
+     * Jacobian and the maximal step size is at least stiffnessThreshold.
+     */
+    protected RosenbrockIntegrator stiffP0Integrator;
+    protected double stiffnessThreshold = Double.POSITIVE_INFINITY;
+    protected double[] stiffnessBounds;
+
+    /*
+     * Intervals in which the types evolve independently (no migration or
+     * cross-birth), so that the p0 and ge equations have a closed-form
+     * solution.
+     */
+    protected boolean useAnalyticalSolution;
+    protected boolean[] isDecoupled;
+
+    /*
+     * Instrumentation, disabled when statistics is null.  Accepted steps of
+     * the explicit integrators are counted by a step handler.
+     */
+    protected IntegrationStatistics statistics;
+    private int acceptedStepCount;
+    protected final StepHandler stepCounter = new StepHandler() {
+        @Override
+        public void init(double t0, double[] y0, double t) { }
+
+        @Override
+        public void handleStep(StepInterpolator interpolator, boolean isLast) {
+            acceptedStepCount += 1;
+        }
+    };
+
 
 	public P0System(Parameterization parameterization,
                     double absoluteTolerance,
                     double relativeTolerance) {
 
+	    this.parameterization = parameterization;
+	    this.absoluteTolerance = absoluteTolerance;
+	    this.relativeTolerance = relativeTolerance;
+
+        update();
+
+        this.p0Integrator = new DormandPrince54Integrator(
+                integrationMinStep, integrationMaxStep,
+                absoluteTolerance, relativeTolerance);
+	}
+
+    /**
+     * Retrieve the current rates and interval end times from the
+     * parameterization.  This allows a single system (and its integrator)
+     * to be reused across likelihood evaluations, and must be called
+     * before each evaluation.
+     *
+     * @return true if the integration step size bounds have changed.
+     */
+	public boolean update() {
+
 		this.b = parameterization.getBirthRates();
 		this.d = parameterization.getDeathRates();
 		this.s = parameterization.getSamplingRates();
@@ -50,16 +123,349 @@ public class P0System implements FirstOrderDifferentialEquations {
 
         this.intervalEndTimes = parameterization.getIntervalEndTimes();
 
+        updateStiffnessBounds();
+        updateDecoupledIntervals();
+
+        double prevMinStep = integrationMinStep;
+        double prevMaxStep = integrationMaxStep;
+
         integrationMinStep = parameterization.getTotalProcessLength() * 1e-100;
         integrationMaxStep= parameterization.getTotalProcessLength() / 10;
 
-        this.p0Integrator = new DormandPrince54Integrator(
-                integrationMinStep, integrationMaxStep,
-                absoluteTolerance, relativeTolerance);
+        updateSpans();
+
+        if (integrationMinStep == prevMinStep && integrationMaxStep == prevMaxStep)
+            return false;
+
+        updateStepSizeControl();
+
+        return true;
 	}
 
+    /**
+     * Set the tolerances used by the integrators.  This allows the accuracy
+     * of the integration to be changed between likelihood evaluations.
+     *
+     * @param absoluteTolerance absolute tolerance
+     * @param relativeTolerance relative tolerance
+     */
+    public void setTolerances(double absoluteTolerance, double relativeTolerance) {
+        if (absoluteTolerance == this.absoluteTolerance && relativeTolerance == this.relativeTolerance)
+            return;
+
+        this.absoluteTolerance = absoluteTolerance;
+        this.relativeTolerance = relativeTolerance;
+
+        updateStepSizeControl();
+    }
+
+    /**
+     * Pass the current step size bounds and tolerances on to the
+     * integrators.
+     */
+    protected void updateStepSizeControl() {
+        if (p0Integrator != null)
+            p0Integrator.setStepSizeControl(integrationMinStep, integrationMaxStep,
+                    absoluteTolerance, relativeTolerance);
+
+        if (stiffP0Integrator != null)
+            stiffP0Integrator.setStepSizeControl(integrationMinStep, integrationMaxStep,
+                    absoluteTolerance, relativeTolerance);
+    }
+
+    /**
+     * Compute, for each interval, a bound on the magnitude of the eigenvalues
+     * of the Jacobian of the p0 and ge equations, valid for all p0 in [0,1].
+     * The bound is the largest Gershgorin row sum, which is dominated by the
+     * migration and cross-birth rates in models with fast migration.
+     */
+    private void updateStiffnessBounds() {
+        if (stiffnessBounds == null || stiffnessBounds.length != nIntervals)
+            stiffnessBounds = new double[nIntervals];
+
+        for (int k = 0; k < nIntervals; k++) {
+            if (k > 0 && sharesRates(k)) {
+                stiffnessBounds[k] = stiffnessBounds[k-1];
+                continue;
+            }
+
+            double bound = 0.0;
+            for (int i = 0; i < nTypes; i++) {
+                double rowSum = b[k][i] + d[k][i] + s[k][i] + 2*b[k][i];
+                for (int j = 0; j < nTypes; j++) {
+                    if (j == i)
+                        continue;
+
+                    rowSum += 2*(b_ij[k][i][j] + M[k][i][j]);
+                }
+                bound = Math.max(bound, rowSum);
+            }
+            stiffnessBounds[k] = bound;
+        }
+    }
+
+    /**
+     * Identify the intervals in which the equations decouple by type and
+     * the closed-form solution can be used.  This requires a positive birth
+     * rate for each type, as the solution is undefined otherwise.
+     */
+    private void updateDecoupledIntervals() {
+        if (isDecoupled == null || isDecoupled.length != nIntervals)
+            isDecoupled = new boolean[nIntervals];
+
+        for (int k = 0; k < nIntervals; k++) {
+            if (k > 0 && sharesRates(k)) {
+                isDecoupled[k] = isDecoupled[k-1];
+                continue;
+            }
+
+            boolean decoupled = useAnalyticalSolution;
+
+            for (int i = 0; i < nTypes && decoupled; i++) {
+                if (!(b[k][i] > 0.0) || !(getAnalyticalA(b[k][i], d[k][i], s[k][i]) > 0.0)) {
+                    decoupled = false;
+                    break;
+                }
+
+                for (int j = 0; j < nTypes; j++) {
+                    if (j != i && (M[k][i][j] != 0.0 || b_ij[k][i][j] != 0.0)) {
+                        decoupled = false;
+                        break;
+                    }
+                }
+            }
+
+            isDecoupled[k] = decoupled;
+        }
+    }
+
+    /**
+     * The parameterization shares the arrays holding the rates of
+     * consecutive intervals when these rates are identical, allowing
+     * quantities derived from the rates to be reused without comparing
+     * the rates themselves.
+     *
+     * @param k index of interval (greater than 0)
+     * @return true if interval k is known to have the same rates as
+     * interval k-1.
+     */
+    private boolean sharesRates(int k) {
+        return b[k] == b[k-1] && d[k] == d[k-1] && s[k] == s[k-1]
+                && M[k] == M[k-1] && b_ij[k] == b_ij[k-1];
+    }
+
+    /**
+     * Identify the spans of intervals which are integrated without stopping
+     * at the boundaries between them.
+     */
+    private void updateSpans() {
+        if (spanFirstIntervals == null || spanFirstIntervals.length != nIntervals)
+            spanFirstIntervals = new int[nIntervals];
+
+        for (int k = 0; k < nIntervals; k++) {
+            boolean joinPrevious = integrateAcrossBoundaries && k > 0
+                    && !isDecoupled[k] && !isDecoupled[k-1]
+                    && isStiff(k) == isStiff(k-1);
+
+            for (int i = 0; i < nTypes && joinPrevious; i++) {
+                if (rho[k-1][i] != 0.0)
+                    joinPrevious = false;
+            }
+
+            spanFirstIntervals[k] = joinPrevious ? spanFirstIntervals[k-1] : k;
+        }
+    }
+
+    /**
+     * Integrate across interval boundaries without rho sampling, rather
+     * than stopping and restarting the integration at each boundary.
+     *
+     * @param integrateAcrossBoundaries true to integrate across boundaries
+     */
+    public void setIntegrateAcrossBoundaries(boolean integrateAcrossBoundaries) {
+        this.integrateAcrossBoundaries = integrateAcrossBoundaries;
+        updateSpans();
+    }
+
+    /**
+     * @param k index of interval
+     * @return index of the earliest interval which can be integrated
+     * together with interval k without stopping at a boundary.
+     */
+    public int getSpanFirstInterval(int k) {
+        return spanFirstIntervals[k];
+    }
+
+    /**
+     * @return for each interval, the index of the first interval of the
+     * span containing it.
+     */
+    public int[] getSpanFirstIntervals() {
+        return spanFirstIntervals;
+    }
+
+    /**
+     * Use the closed-form solution of the equations in intervals without
+     * migration or cross-birth.
+     *
+     * @param useAnalyticalSolution true to use the closed-form solution
+     */
+    public void setUseAnalyticalSolution(boolean useAnalyticalSolution) {
+        this.useAnalyticalSolution = useAnalyticalSolution;
+        updateDecoupledIntervals();
+        updateSpans();
+    }
+
+    /**
+     * @return true if the closed-form solution is used in the current
+     * interval.
+     */
+    protected boolean isDecoupled() {
+        return isDecoupled[interval];
+    }
+
+    /**
+     * Constant A of the single-type closed-form solution.
+     *
+     * @param lambda birth rate
+     * @param mu death rate
+     * @param psi sampling rate
+     * @return A
+     */
+    static double getAnalyticalA(double lambda, double mu, double psi) {
+        return Math.sqrt((lambda - mu - psi)*(lambda - mu - psi) + 4*lambda*psi);
+    }
+
+    /**
+     * Single-type closed-form solution of the p0 equation.
+     *
+     * @param lambda birth rate
+     * @param mu death rate
+     * @param psi sampling rate
+     * @param A constant returned by getAnalyticalA()
+     * @param p0Start p0 at tStart
+     * @param tStart start time
+     * @param t time at which to evaluate solution (not after tStart)
+     * @return p0 at t
+     */
+    static double getAnalyticalP0(double lambda, double mu, double psi, double A,
+                                  double p0Start, double tStart, double t) {
+        double B = ((1 - 2*p0Start)*lambda + mu + psi)/A;
+        double e = Math.exp(A*(t - tStart));
+
+        return (lambda + mu + psi - A*((1 + B) - (1 - B)*e)/((1 + B) + (1 - B)*e))
+                / (2*lambda);
+    }
+
+    /**
+     * Factor by which ge is multiplied between tStart and t according to the
+     * single-type closed-form solution.
+     *
+     * @param lambda birth rate
+     * @param mu death rate
+     * @param psi sampling rate
+     * @param A constant returned by getAnalyticalA()
+     * @param p0Start p0 at tStart
+     * @param tStart start time
+     * @param t end time (not after tStart)
+     * @return ratio of ge at t to ge at tStart
+     */
+    static double getAnalyticalGeFactor(double lambda, double mu, double psi, double A,
+                                        double p0Start, double tStart, double t) {
+        double B = ((1 - 2*p0Start)*lambda + mu + psi)/A;
+        double e = Math.exp(A*(t - tStart));
+        double denominator = (1 + B) + (1 - B)*e;
+
+        return 4*e/(denominator*denominator);
+    }
+
+    /**
+     * Set the threshold used to decide whether to use the stiff integrator
+     * in a given interval.  A threshold of zero selects the stiff integrator
+     * in every interval, while an infinite threshold never selects it.
+     *
+     * @param stiffnessThreshold threshold on the product of the eigenvalue
+     *                           bound of an interval and the maximal step size
+     */
+    public void setStiffnessThreshold(double stiffnessThreshold) {
+        this.stiffnessThreshold = stiffnessThreshold;
+        updateSpans();
+    }
+
+    /**
+     * @return true if the stiff integrator should be used in the current
+     * interval.
+     */
+    protected boolean isStiff() {
+        return isStiff(interval);
+    }
+
+    /**
+     * @param k index of interval
+     * @return true if the stiff integrator should be used in interval k.
+     */
+    private boolean isStiff(int k) {
+        return stiffnessBounds[k]*integrationMaxStep >= stiffnessThreshold;
+    }
+
 	public void setInterval(int interval) {
 	    this.interval = interval;
+	    this.firstInterval = interval;
+	    this.lastInterval = interval;
+    }
+
+    /**
+     * Integrate over a range of intervals belonging to a single span.  The
+     * interval used by each evaluation of the derivatives is then chosen
+     * according to the evaluation time.
+     *
+     * @param firstInterval index of earliest interval
+     * @param lastInterval index of latest interval
+     */
+    public void setIntervals(int firstInterval, int lastInterval) {
+        this.interval = lastInterval;
+        this.firstInterval = firstInterval;
+        this.lastInterval = lastInterval;
+    }
+
+    /**
+     * Set the current interval to the interval containing t, when
+     * integrating over a range of intervals.  The search starts from the
+     * current interval, so that its cost is constant on average when the
+     * evaluation times change gradually, as they do during integration.
+     *
+     * @param t time
+     */
+    protected void selectInterval(double t) {
+        if (firstInterval == lastInterval)
+            return;
+
+        while (interval < lastInterval && t > intervalEndTimes[interval])
+            interval += 1;
+
+        while (interval > firstInterval && t <= intervalEndTimes[interval-1])
+            interval -= 1;
+    }
+
+    /**
+     * Record the solutions of subsequent calls to integrate() in the given
+     * trajectory, or stop recording them if trajectory is null.
+     *
+     * @param trajectory trajectory in which to record solutions
+     */
+    public void setTrajectory(P0Trajectory trajectory) {
+	    p0Integrator.clearStepHandlers();
+
+	    if (trajectory != null)
+	        p0Integrator.addStepHandler(trajectory);
+
+	    if (statistics != null)
+	        p0Integrator.addStepHandler(stepCounter);
+
+	    this.trajectory = trajectory;
+
+	    if (stiffP0Integrator != null)
+	        stiffP0Integrator.setTrajectory(trajectory);
     }
 
 	public int getDimension() {
@@ -68,6 +474,8 @@ public class P0System implements FirstOrderDifferentialEquations {
 
 	public void computeDerivatives(double t, double[] y, double[] yDot) {
 
+	    selectInterval(t);
+
 		for (int i = 0; i< nTypes; i++){
 
 			yDot[i] = + (b[interval][i]+d[interval][i]+s[interval][i])*y[i] - d[interval][i] - b[interval][i]*y[i]*y[i] ;
@@ -87,8 +495,122 @@ public class P0System implements FirstOrderDifferentialEquations {
 
 	}
 
+    /**
+     * Record the cost of subsequent integrations in the given statistics,
+     * or stop recording it if statistics is null.
+     *
+     * @param statistics statistics in which to record integration costs
+     */
+    public void setStatistics(IntegrationStatistics statistics) {
+        this.statistics = statistics;
+        setTrajectory(trajectory);
+    }
+
+    /**
+     * Record the cost of the last call to an explicit integrator, which
+     * must have the step counter as a step handler.
+     *
+     * @param integrator integrator
+     */
+    protected void recordIntegration(AdaptiveStepsizeIntegrator integrator) {
+        int evaluations = integrator.getEvaluations();
+
+        // The Dormand-Prince integrator uses two evaluations to choose the
+        // initial step size and six per attempted step.
+        int attemptedSteps = Math.max(evaluations - 2, 0)/6;
+
+        statistics.addSteps(acceptedStepCount,
+                Math.max(attemptedSteps - acceptedStepCount, 0), evaluations);
+        acceptedStepCount = 0;
+    }
+
+    /**
+     * Record the cost of the last call to a stiff integrator.
+     *
+     * @param integrator integrator
+     */
+    protected void recordIntegration(RosenbrockIntegrator integrator) {
+        statistics.addSteps(integrator.getAcceptedSteps(),
+                integrator.getRejectedSteps(), integrator.getEvaluations());
+    }
+
+    @Override
+    public void computeMainStateJacobian(double t, double[] y, double[] yDot, double[][] dFdY) {
+        selectInterval(t);
+        computeP0Jacobian(y, dFdY);
+    }
+
+    /**
+     * Compute the Jacobian of the p0 equations, storing it in the first
+     * nTypes rows and columns of dFdY.
+     *
+     * @param y p0 values (first nTypes elements)
+     * @param dFdY array in which to store Jacobian
+     */
+    protected void computeP0Jacobian(double[] y, double[][] dFdY) {
+
+        for (int i = 0; i < nTypes; i++) {
+
+            dFdY[i][i] = b[interval][i] + d[interval][i] + s[interval][i] - 2*b[interval][i]*y[i];
+
+            for (int j = 0; j < nTypes; j++) {
+
+                if (j == i)
+                    continue;
+
+                dFdY[i][i] += b_ij[interval][i][j]*(1 - y[j]) + M[interval][i][j];
+                dFdY[i][j] = -b_ij[interval][i][j]*y[i] - M[interval][i][j];
+            }
+        }
+    }
+
+    /**
+     * Record the given state as the value of the solution on entering the
+     * current interval, if a trajectory is being recorded.  This makes the
+     * solution available in intervals in which no step is taken.
+     *
+     * @param state p0 values in the current interval
+     */
+    public void recordIntervalValue(P0State state) {
+        if (trajectory != null)
+            trajectory.setIntervalValue(interval, state.p0);
+    }
+
 	public void integrate(P0State state, double tStart, double tEnd) {
+	    if (trajectory != null)
+	        trajectory.setInterval(interval);
+
+        if (isDecoupled()) {
+            if (trajectory != null)
+                trajectory.addAnalyticalStep(tStart, tEnd, state.p0,
+                        b[interval], d[interval], s[interval]);
+
+            for (int i = 0; i < nTypes; i++) {
+                double A = getAnalyticalA(b[interval][i], d[interval][i], s[interval][i]);
+                state.p0[i] = getAnalyticalP0(b[interval][i], d[interval][i], s[interval][i],
+                        A, state.p0[i], tStart, tEnd);
+            }
+            return;
+        }
+
+        if (isStiff()) {
+            if (stiffP0Integrator == null) {
+                stiffP0Integrator = new RosenbrockIntegrator(integrationMinStep, integrationMaxStep,
+                        absoluteTolerance, relativeTolerance);
+                stiffP0Integrator.setTrajectory(trajectory);
+            }
+
+            stiffP0Integrator.integrate(this, tStart, state.p0, tEnd, state.p0);
+
+            if (statistics != null)
+                recordIntegration(stiffP0Integrator);
+            return;
+        }
+
         p0Integrator.integrate(this, tStart, state.p0, tEnd, state.p0);
+
+        if (statistics != null)
+            recordIntegration(p0Integrator);
     }
 }
 
@@ -0,0 +1,344 @@
+package bdmmprime.distribution;
+
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+import java.util.Arrays;
+
+/**
+ * Dense output of the p0 solution over the whole of the birth-death
+ * process, recorded while the initial conditions for p0 are computed.
+ *
+ * Each integration step is stored as a quartic polynomial matching the
+ * values and derivatives of the solution at both ends of the step and its
+ * value at the midpoint.  Steps are grouped by the rate interval they were
+ * computed in, so that the (1-rho) discontinuities at interval boundaries
+ * are respected.  Intervals integrated together as a single span share a
+ * group, as the solution is continuous across the boundaries between them.  In intervals where the closed-form solution is used,
+ * steps instead record the parameters of that solution.
+ *
+ * Intervals in which no step is taken (such as zero-length intervals)
+ * are represented by the value of the solution on entering them, if one
+ * was recorded, and otherwise by the solution at the nearest end of a
+ * neighbouring group.
+ *
+ * Once recorded, a trajectory is never modified and may be queried from
+ * several threads at once.
+ */
+public class P0Trajectory implements StepHandler {
+
+    private final static int COEFFICIENT_COUNT = 5;
+
+    private final int nTypes;
+
+    private int nSteps;
+    private double[] stepStartTimes, stepLengths;
+    private double[] coefficients;
+    private boolean[] isAnalyticalStep;
+
+    private int currentInterval;
+    private final int[] intervalFirstStep, intervalLastStep;
+    private final int[] spanFirstIntervals;
+    private final double[][] intervalValues;
+
+    private final double[] y0, dy0, yMid, y1, dy1;
+
+    public P0Trajectory(int nTypes, int nIntervals) {
+        this(nTypes, identityMap(nIntervals));
+    }
+
+    /**
+     * @param nTypes number of types
+     * @param spanFirstIntervals for each interval, the index of the first
+     *                           interval of the span containing it
+     */
+    public P0Trajectory(int nTypes, int[] spanFirstIntervals) {
+        this.nTypes = nTypes;
+        this.spanFirstIntervals = spanFirstIntervals.clone();
+        int nIntervals = spanFirstIntervals.length;
+
+        stepStartTimes = new double[16];
+        stepLengths = new double[16];
+        coefficients = new double[16*COEFFICIENT_COUNT*nTypes];
+        isAnalyticalStep = new boolean[16];
+
+        intervalFirstStep = new int[nIntervals];
+        intervalLastStep = new int[nIntervals];
+        Arrays.fill(intervalFirstStep, -1);
+        Arrays.fill(intervalLastStep, -1);
+        intervalValues = new double[nIntervals][];
+
+        y0 = new double[nTypes];
+        dy0 = new double[nTypes];
+        yMid = new double[nTypes];
+        y1 = new double[nTypes];
+        dy1 = new double[nTypes];
+    }
+
+    private static int[] identityMap(int n) {
+        int[] map = new int[n];
+        for (int i=0; i<n; i++)
+            map[i] = i;
+
+        return map;
+    }
+
+    /**
+     * @return number of rate intervals.
+     */
+    public int getIntervalCount() {
+        return spanFirstIntervals.length;
+    }
+
+    /**
+     * @param k index of interval
+     * @return index of the first interval of the span containing interval
+     * k, with which it was integrated without stopping at the boundaries.
+     */
+    public int getSpanFirstInterval(int k) {
+        return spanFirstIntervals[k];
+    }
+
+    /**
+     * Set the interval in which the following steps are computed.
+     *
+     * @param interval rate interval index
+     */
+    public void setInterval(int interval) {
+        currentInterval = spanFirstIntervals[interval];
+    }
+
+    /**
+     * Record the value of the solution on entering an interval, used if no
+     * step is recorded in the group of this interval.  Only the first
+     * value recorded for each group is kept.
+     *
+     * @param interval rate interval index
+     * @param p0 solution (first nTypes elements)
+     */
+    public void setIntervalValue(int interval, double[] p0) {
+        int group = spanFirstIntervals[interval];
+        if (intervalValues[group] == null)
+            intervalValues[group] = Arrays.copyOf(p0, nTypes);
+    }
+
+    @Override
+    public void init(double t0, double[] y0, double t) { }
+
+    @Override
+    public void handleStep(StepInterpolator interpolator, boolean isLast) {
+
+        double t0 = interpolator.getPreviousTime();
+        double t1 = interpolator.getCurrentTime();
+        double h = t1 - t0;
+
+        if (h == 0.0)
+            return;
+
+        interpolator.setInterpolatedTime(t0);
+        System.arraycopy(interpolator.getInterpolatedState(), 0, y0, 0, nTypes);
+        System.arraycopy(interpolator.getInterpolatedDerivatives(), 0, dy0, 0, nTypes);
+
+        interpolator.setInterpolatedTime(t0 + 0.5*h);
+        System.arraycopy(interpolator.getInterpolatedState(), 0, yMid, 0, nTypes);
+
+        interpolator.setInterpolatedTime(t1);
+        System.arraycopy(interpolator.getInterpolatedState(), 0, y1, 0, nTypes);
+        System.arraycopy(interpolator.getInterpolatedDerivatives(), 0, dy1, 0, nTypes);
+
+        addStep(t0, t1, y0, dy0, yMid, y1, dy1);
+    }
+
+    /**
+     * Record a step of the solution.  Used directly by integrators which
+     * do not provide a StepInterpolator.
+     *
+     * @param t0 time at start of step
+     * @param t1 time at end of step
+     * @param y0 solution at start of step
+     * @param dy0 derivatives at start of step
+     * @param yMid solution at midpoint of step
+     * @param y1 solution at end of step
+     * @param dy1 derivatives at end of step
+     */
+    public void addStep(double t0, double t1, double[] y0, double[] dy0,
+                        double[] yMid, double[] y1, double[] dy1) {
+
+        double h = t1 - t0;
+
+        if (h == 0.0)
+            return;
+
+        startStep(t0, h, false);
+
+        // Coefficients of the quartic in theta=(t-t0)/h
+        int offset = nSteps*COEFFICIENT_COUNT*nTypes;
+        for (int type=0; type<nTypes; type++) {
+            double a = y0[type];
+            double da = h*dy0[type];
+
+            double r1 = y1[type] - a - da;
+            double r2 = h*dy1[type] - da;
+            double r3 = 16*(yMid[type] - a - 0.5*da);
+
+            double c4 = r3 - 4*r1 + 2*(r2 - 2*r1);
+            double c3 = r2 - 2*r1 - 2*c4;
+            double c2 = r1 - c3 - c4;
+
+            coefficients[offset++] = a;
+            coefficients[offset++] = da;
+            coefficients[offset++] = c2;
+            coefficients[offset++] = c3;
+            coefficients[offset++] = c4;
+        }
+
+        finishStep();
+    }
+
+    /**
+     * Record a step computed using the single-type closed-form solution.
+     *
+     * @param t0 time at start of step
+     * @param t1 time at end of step
+     * @param p0Start solution at start of step
+     * @param lambda birth rate of each type
+     * @param mu death rate of each type
+     * @param psi sampling rate of each type
+     */
+    public void addAnalyticalStep(double t0, double t1, double[] p0Start,
+                                  double[] lambda, double[] mu, double[] psi) {
+
+        double h = t1 - t0;
+
+        if (h == 0.0)
+            return;
+
+        startStep(t0, h, true);
+
+        int offset = nSteps*COEFFICIENT_COUNT*nTypes;
+        for (int type=0; type<nTypes; type++) {
+            coefficients[offset++] = lambda[type];
+            coefficients[offset++] = mu[type];
+            coefficients[offset++] = psi[type];
+            coefficients[offset++] = P0System.getAnalyticalA(lambda[type], mu[type], psi[type]);
+            coefficients[offset++] = p0Start[type];
+        }
+
+        finishStep();
+    }
+
+    private void startStep(double t0, double h, boolean isAnalytical) {
+        if (nSteps == stepStartTimes.length) {
+            stepStartTimes = Arrays.copyOf(stepStartTimes, 2*nSteps);
+            stepLengths = Arrays.copyOf(stepLengths, 2*nSteps);
+            coefficients = Arrays.copyOf(coefficients, 2*nSteps*COEFFICIENT_COUNT*nTypes);
+            isAnalyticalStep = Arrays.copyOf(isAnalyticalStep, 2*nSteps);
+        }
+
+        stepStartTimes[nSteps] = t0;
+        stepLengths[nSteps] = h;
+        isAnalyticalStep[nSteps] = isAnalytical;
+    }
+
+    private void finishStep() {
+        if (intervalFirstStep[currentInterval] < 0)
+            intervalFirstStep[currentInterval] = nSteps;
+        intervalLastStep[currentInterval] = nSteps;
+
+        nSteps += 1;
+    }
+
+    /**
+     * Evaluate the p0 solution at a given time.
+     *
+     * @param t time at which to evaluate solution
+     * @param interval rate interval containing t
+     * @param dest array whose first nTypes elements are set to the solution
+     */
+    public void getP0(double t, int interval, double[] dest) {
+
+        int group = spanFirstIntervals[interval];
+        int lo = intervalFirstStep[group];
+        int hi = intervalLastStep[group];
+
+        if (lo < 0) {
+            getP0WithoutSteps(group, dest);
+            return;
+        }
+
+        // Steps are recorded in order of decreasing time: find the first
+        // step ending at or before t.
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (stepStartTimes[mid] + stepLengths[mid] > t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        double theta = (t - stepStartTimes[lo])/stepLengths[lo];
+        theta = Math.max(0.0, Math.min(1.0, theta));
+
+        int offset = lo*COEFFICIENT_COUNT*nTypes;
+
+        if (isAnalyticalStep[lo]) {
+            double tStart = stepStartTimes[lo];
+            double tClamped = tStart + theta*stepLengths[lo];
+            for (int type=0; type<nTypes; type++) {
+                dest[type] = P0System.getAnalyticalP0(coefficients[offset],
+                        coefficients[offset+1], coefficients[offset+2],
+                        coefficients[offset+3], coefficients[offset+4],
+                        tStart, tClamped);
+                offset += COEFFICIENT_COUNT;
+            }
+            return;
+        }
+
+        for (int type=0; type<nTypes; type++) {
+            dest[type] = coefficients[offset]
+                    + theta*(coefficients[offset+1]
+                    + theta*(coefficients[offset+2]
+                    + theta*(coefficients[offset+3]
+                    + theta*coefficients[offset+4])));
+            offset += COEFFICIENT_COUNT;
+        }
+    }
+
+    /**
+     * Evaluate the p0 solution in a group of intervals in which no step
+     * was recorded, using the value recorded on entering the group or,
+     * failing that, the solution at the nearest end of the closest group
+     * containing steps (preferring later groups, from which the solution
+     * was integrated).
+     *
+     * @param group index of first interval of group
+     * @param dest array whose first nTypes elements are set to the solution
+     */
+    private void getP0WithoutSteps(int group, double[] dest) {
+
+        if (intervalValues[group] != null) {
+            System.arraycopy(intervalValues[group], 0, dest, 0, nTypes);
+            return;
+        }
+
+        for (int k = group + 1; k < spanFirstIntervals.length; k++) {
+            int last = intervalLastStep[spanFirstIntervals[k]];
+            if (last >= 0) {
+                getP0(stepStartTimes[last] + stepLengths[last], k, dest);
+                return;
+            }
+        }
+
+        for (int k = group - 1; k >= 0; k--) {
+            int first = intervalFirstStep[spanFirstIntervals[k]];
+            if (first >= 0) {
+                getP0(stepStartTimes[first], k, dest);
+                return;
+            }
+        }
+
+        // Nothing was integrated: the solution is its value at the end of
+        // the process.
+        Arrays.fill(dest, 0, nTypes, 1.0);
+    }
+}
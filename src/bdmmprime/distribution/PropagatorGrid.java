@@ -0,0 +1,146 @@
+package bdmmprime.distribution;
+
+import bdmmprime.parameterization.Parameterization;
+import bdmmprime.util.Utils;
+
+import java.util.Arrays;
+
+/**
+ * Propagators of the (linear) ge equations over a grid of times spanning
+ * the whole birth-death process.
+ *
+ * Once p0 is known, the ge values on every edge crossing a given time
+ * window obey the same linear dynamics.  The nTypes x nTypes propagator of
+ * each grid cell is therefore computed once, and edges whose ends lie on
+ * grid times can be handled by multiplying their ge values by the
+ * propagators of the cells they cross, rather than by integrating each
+ * edge separately.
+ *
+ * Once built, a grid is never modified and may be used from several
+ * threads at once.
+ */
+public class PropagatorGrid {
+
+    private final int nTypes;
+    private final double[] times;
+
+    /*
+     * Propagator of cell k (between times[k] and times[k+1]) maps the ge
+     * values at times[k+1] to those at times[k].  Element (i,j) is stored
+     * at index k*nTypes*nTypes + j*nTypes + i.
+     */
+    private final double[] propagators;
+
+    /**
+     * Construct the propagator grid.
+     *
+     * @param gridTimes times to include in grid (in any order, possibly
+     *                  containing duplicates).  Interval end times are
+     *                  added to these.
+     * @param parameterization model parameterization
+     * @param system system used to compute the propagators, which must
+     *               have a p0 solution available.
+     */
+    public PropagatorGrid(double[] gridTimes, Parameterization parameterization, P0GeSystem system) {
+
+        nTypes = parameterization.getNTypes();
+
+        double[] intervalEndTimes = parameterization.getIntervalEndTimes();
+        double[] allTimes = Arrays.copyOf(gridTimes, gridTimes.length + intervalEndTimes.length + 1);
+        System.arraycopy(intervalEndTimes, 0, allTimes, gridTimes.length, intervalEndTimes.length);
+        allTimes[allTimes.length-1] = 0.0;
+        Arrays.sort(allTimes);
+
+        // Remove duplicates and times outside of the process
+        double totalProcessLength = parameterization.getTotalProcessLength();
+        int nTimes = 0;
+        for (double t : allTimes) {
+            if (Utils.lessThanWithPrecision(t, 0.0) || Utils.greaterThanWithPrecision(t, totalProcessLength))
+                continue;
+
+            if (nTimes > 0 && Utils.equalWithPrecision(t, allTimes[nTimes-1]))
+                continue;
+
+            allTimes[nTimes++] = t;
+        }
+        times = Arrays.copyOf(allTimes, nTimes);
+
+        int matrixSize = nTypes*nTypes;
+        propagators = new double[Math.max(nTimes-1, 0)*matrixSize];
+
+        for (int cell=0; cell<nTimes-1; cell++) {
+            int interval = parameterization.getIntervalIndex(times[cell+1]);
+            system.computePropagator(times[cell+1], times[cell], interval,
+                    propagators, cell*matrixSize);
+        }
+    }
+
+    /**
+     * Find a time in the grid.
+     *
+     * @param t time to search for
+     * @return index of time in grid, or -1 if t is not a grid time.
+     */
+    public int getTimeIndex(double t) {
+        int idx = Arrays.binarySearch(times, t);
+
+        if (idx >= 0)
+            return idx;
+
+        // Check the neighbouring grid times for a match to within the
+        // global precision threshold.
+        int insertionPoint = -idx - 1;
+        if (insertionPoint < times.length && Utils.equalWithPrecision(times[insertionPoint], t))
+            return insertionPoint;
+        if (insertionPoint > 0 && Utils.equalWithPrecision(times[insertionPoint-1], t))
+            return insertionPoint - 1;
+
+        return -1;
+    }
+
+    /**
+     * Carry ge values from the end to the start of a grid cell.
+     *
+     * @param cell index of cell
+     * @param y array containing ge values
+     * @param offset index of first ge value in y
+     * @param workspace array of length at least nTypes
+     */
+    public void applyCell(int cell, double[] y, int offset, double[] workspace) {
+
+        System.arraycopy(y, offset, workspace, 0, nTypes);
+
+        int base = cell*nTypes*nTypes;
+        for (int i=0; i<nTypes; i++) {
+            double sum = 0.0;
+            for (int j=0; j<nTypes; j++)
+                sum += propagators[base + j*nTypes + i]*workspace[j];
+
+            y[offset + i] = sum;
+        }
+    }
+
+    /**
+     * Carry values adjoint to the ge values (i.e. coefficients of a linear
+     * function of the ge values) from the start to the end of a grid cell,
+     * by applying the transpose of the cell propagator.
+     *
+     * @param cell index of cell
+     * @param y array containing adjoint values
+     * @param offset index of first adjoint value in y
+     * @param workspace array of length at least nTypes
+     */
+    public void applyCellTransposed(int cell, double[] y, int offset, double[] workspace) {
+
+        System.arraycopy(y, offset, workspace, 0, nTypes);
+
+        int base = cell*nTypes*nTypes;
+        for (int j=0; j<nTypes; j++) {
+            double sum = 0.0;
+            for (int i=0; i<nTypes; i++)
+                sum += propagators[base + j*nTypes + i]*workspace[i];
+
+            y[offset + j] = sum;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package bdmmprime.distribution;
+
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
+import org.apache.commons.math3.ode.MainStateJacobianProvider;
+
+/**
+ * Adaptive step size integrator for stiff systems, based on the L-stable
+ * second order Rosenbrock method ROS2 (Verwer et al., SIAM J. Sci. Comput.
+ * 20(4), 1999) with an embedded first order (linearly implicit Euler) error
+ * estimate.
+ *
+ * Each step requires one evaluation of the Jacobian of the system, one LU
+ * decomposition and two evaluations of the derivatives, but the step size is
+ * limited only by the accuracy of the solution and not by the stability of
+ * the method.  This makes the method much cheaper than explicit methods for
+ * systems with fast migration among many types.
+ *
+ * Instances keep their workspace between calls and must therefore be
+ * confined to a single thread.
+ */
+public class RosenbrockIntegrator {
+
+    private final static double GAMMA = 1.0 + 1.0/Math.sqrt(2.0);
+
+    private final static double SAFETY = 0.9;
+    private final static double MIN_REDUCTION = 0.2;
+    private final static double MAX_GROWTH = 5.0;
+
+    private double minStep, maxStep;
+    private double absoluteTolerance, relativeTolerance;
+
+    private P0Trajectory trajectory;
+
+    private int acceptedSteps, rejectedSteps, evaluations;
+
+    private int dimension = -1;
+    private double[][] jacobian, matrix;
+    private int[] pivots;
+    private double[] yDot, yDotNew, k1, k2, yStage, yNew, yMid;
+
+    public RosenbrockIntegrator(double minStep, double maxStep,
+                                double absoluteTolerance, double relativeTolerance) {
+        setStepSizeControl(minStep, maxStep, absoluteTolerance, relativeTolerance);
+    }
+
+    public void setStepSizeControl(double minStep, double maxStep,
+                                   double absoluteTolerance, double relativeTolerance) {
+        this.minStep = minStep;
+        this.maxStep = maxStep;
+        this.absoluteTolerance = absoluteTolerance;
+        this.relativeTolerance = relativeTolerance;
+    }
+
+    /**
+     * Record the accepted steps of subsequent integrations in the given
+     * trajectory, or stop recording them if trajectory is null.
+     *
+     * @param trajectory trajectory in which to record steps
+     */
+    public void setTrajectory(P0Trajectory trajectory) {
+        this.trajectory = trajectory;
+    }
+
+    /**
+     * @return number of steps accepted during the last call to integrate()
+     */
+    public int getAcceptedSteps() {
+        return acceptedSteps;
+    }
+
+    /**
+     * @return number of steps rejected during the last call to integrate()
+     */
+    public int getRejectedSteps() {
+        return rejectedSteps;
+    }
+
+    /**
+     * @return number of derivative evaluations during the last call to
+     * integrate()
+     */
+    public int getEvaluations() {
+        return evaluations;
+    }
+
+    /**
+     * Integrate the equations from t0 to t.  As with the commons-math
+     * integrators, y0 and y may be the same array.
+     *
+     * @param equations equations to integrate
+     * @param t0 initial time
+     * @param y0 initial state
+     * @param t final time
+     * @param y array in which to store the final state
+     */
+    public void integrate(MainStateJacobianProvider equations,
+                          double t0, double[] y0, double t, double[] y) {
+
+        int n = equations.getDimension();
+        allocate(n);
+
+        acceptedSteps = 0;
+        rejectedSteps = 0;
+        evaluations = 0;
+
+        if (y != y0)
+            System.arraycopy(y0, 0, y, 0, n);
+
+        if (t == t0)
+            return;
+
+        double direction = t > t0 ? 1.0 : -1.0;
+        double span = Math.abs(t - t0);
+
+        double tCurrent = t0;
+        equations.computeDerivatives(tCurrent, y, yDot);
+        evaluations += 1;
+
+        double h = getInitialStep(y, span);
+
+        boolean isLast = false;
+        while (!isLast) {
+
+            if (h >= Math.abs(t - tCurrent)) {
+                h = Math.abs(t - tCurrent);
+                isLast = true;
+            }
+
+            double hSigned = direction*h;
+
+            equations.computeMainStateJacobian(tCurrent, y, yDot, jacobian);
+
+            // matrix = I - gamma*h*J
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++)
+                    matrix[i][j] = -GAMMA*hSigned*jacobian[i][j];
+                matrix[i][i] += 1.0;
+            }
+
+            if (!decompose(matrix, pivots, n)) {
+                // Singular matrix: retry with a smaller step
+                rejectedSteps += 1;
+                h = reduceStep(h, MIN_REDUCTION);
+                isLast = false;
+                continue;
+            }
+
+            System.arraycopy(yDot, 0, k1, 0, n);
+            solve(matrix, pivots, k1, n);
+
+            for (int i = 0; i < n; i++)
+                yStage[i] = y[i] + hSigned*k1[i];
+            equations.computeDerivatives(tCurrent + hSigned, yStage, k2);
+            evaluations += 1;
+            for (int i = 0; i < n; i++)
+                k2[i] -= 2.0*k1[i];
+            solve(matrix, pivots, k2, n);
+
+            double errorSq = 0.0;
+            for (int i = 0; i < n; i++) {
+                yNew[i] = y[i] + hSigned*(1.5*k1[i] + 0.5*k2[i]);
+
+                double scale = absoluteTolerance
+                        + relativeTolerance*Math.max(Math.abs(y[i]), Math.abs(yNew[i]));
+                double e = 0.5*hSigned*(k1[i] + k2[i])/scale;
+                errorSq += e*e;
+            }
+            double error = Math.sqrt(errorSq/n);
+
+            if (!(error <= 1.0)) {
+                // Step rejected
+                rejectedSteps += 1;
+                double factor = Double.isNaN(error)
+                        ? MIN_REDUCTION
+                        : Math.max(MIN_REDUCTION, SAFETY/Math.sqrt(error));
+                h = reduceStep(h, factor);
+                isLast = false;
+                continue;
+            }
+
+            double tNew = isLast ? t : tCurrent + hSigned;
+            equations.computeDerivatives(tNew, yNew, yDotNew);
+            evaluations += 1;
+            acceptedSteps += 1;
+
+            if (trajectory != null) {
+                // Cubic Hermite interpolation of the midpoint
+                for (int i = 0; i < n; i++)
+                    yMid[i] = 0.5*(y[i] + yNew[i]) + 0.125*hSigned*(yDot[i] - yDotNew[i]);
+
+                trajectory.addStep(tCurrent, tNew, y, yDot, yMid, yNew, yDotNew);
+            }
+
+            System.arraycopy(yNew, 0, y, 0, n);
+            System.arraycopy(yDotNew, 0, yDot, 0, n);
+            tCurrent = tNew;
+
+            double factor = error > 0
+                    ? Math.min(MAX_GROWTH, SAFETY/Math.sqrt(error))
+                    : MAX_GROWTH;
+            h = Math.min(maxStep, h*factor);
+        }
+    }
+
+    /**
+     * Choose the initial step size from the magnitude of the derivatives
+     * relative to the tolerances.
+     *
+     * @param y initial state
+     * @param span length of the integration range
+     * @return initial step size
+     */
+    private double getInitialStep(double[] y, double span) {
+        double normSq = 0.0;
+        for (int i = 0; i < dimension; i++) {
+            double scale = absoluteTolerance + relativeTolerance*Math.abs(y[i]);
+            double r = yDot[i]/scale;
+            normSq += r*r;
+        }
+        double norm = Math.sqrt(normSq/dimension);
+
+        double h = norm > 1e-5 ? 0.01/norm : maxStep;
+
+        return Math.max(minStep, Math.min(h, Math.min(maxStep, span)));
+    }
+
+    private double reduceStep(double h, double factor) {
+        double hNew = h*factor;
+
+        if (hNew < minStep)
+            throw new NumberIsTooSmallException(LocalizedFormats.MINIMAL_STEPSIZE_REACHED_DURING_INTEGRATION,
+                    hNew, minStep, true);
+
+        return hNew;
+    }
+
+    private void allocate(int n) {
+        if (n == dimension)
+            return;
+
+        dimension = n;
+        jacobian = new double[n][n];
+        matrix = new double[n][n];
+        pivots = new int[n];
+        yDot = new double[n];
+        yDotNew = new double[n];
+        k1 = new double[n];
+        k2 = new double[n];
+        yStage = new double[n];
+        yNew = new double[n];
+        yMid = new double[n];
+    }
+
+    /**
+     * LU decomposition with partial pivoting, performed in place.
+     *
+     * @param a matrix to decompose
+     * @param pivots array in which to record row permutation
+     * @param n dimension of matrix
+     * @return false if the matrix is singular
+     */
+    private static boolean decompose(double[][] a, int[] pivots, int n) {
+        for (int k = 0; k < n; k++) {
+            int p = k;
+            double max = Math.abs(a[k][k]);
+            for (int i = k + 1; i < n; i++) {
+                if (Math.abs(a[i][k]) > max) {
+                    max = Math.abs(a[i][k]);
+                    p = i;
+                }
+            }
+
+            if (max == 0.0 || Double.isNaN(max))
+                return false;
+
+            pivots[k] = p;
+            if (p != k) {
+                double[] tmp = a[p];
+                a[p] = a[k];
+                a[k] = tmp;
+            }
+
+            for (int i = k + 1; i < n; i++) {
+                double l = a[i][k]/a[k][k];
+                a[i][k] = l;
+                for (int j = k + 1; j < n; j++)
+                    a[i][j] -= l*a[k][j];
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Solve the linear system whose LU decomposition is given, in place.
+     *
+     * @param lu LU decomposition produced by decompose()
+     * @param pivots row permutation produced by decompose()
+     * @param b right hand side, replaced by the solution
+     * @param n dimension of system
+     */
+    private static void solve(double[][] lu, int[] pivots, double[] b, int n) {
+        for (int k = 0; k < n; k++) {
+            int p = pivots[k];
+            if (p != k) {
+                double tmp = b[p];
+                b[p] = b[k];
+                b[k] = tmp;
+            }
+        }
+
+        for (int i = 1; i < n; i++) {
+            double sum = b[i];
+            for (int j = 0; j < i; j++)
+                sum -= lu[i][j]*b[j];
+            b[i] = sum;
+        }
+
+        for (int i = n - 1; i >= 0; i--) {
+            double sum = b[i];
+            for (int j = i + 1; j < n; j++)
+                sum -= lu[i][j]*b[j];
+            b[i] = sum/lu[i][i];
+        }
+    }
+}
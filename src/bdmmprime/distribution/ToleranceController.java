@@ -0,0 +1,152 @@
+package bdmmprime.distribution;
+
+/**
+ * Controls the relative tolerance of the likelihood integrations over the
+ * burn-in of an MCMC run.  Integration starts with a loose tolerance, which
+ * is tightened by a constant factor each time the log-likelihoods of the
+ * accepted states appear to have stopped trending, until the target
+ * tolerance is reached.  The target tolerance is imposed at the end of the
+ * burn-in in any case, and never changes afterwards.
+ *
+ * Each change of tolerance changes the density being sampled, and the
+ * first proposal following a change is compared with a log-likelihood
+ * computed at the previous tolerance.  Restricting changes to the burn-in
+ * ensures that the states sampled after it are those of a chain targeting
+ * the likelihood at the target tolerance.
+ *
+ * The log-likelihoods are collected in windows of fixed size.  A window is
+ * considered free of trend when the difference between the means of its two
+ * halves is small compared to the standard deviation of the window.
+ */
+public class ToleranceController {
+
+    private final static double TIGHTENING_FACTOR = 0.1;
+    private final static double MAX_RELATIVE_DRIFT = 0.5;
+
+    private final double targetRelativeTolerance;
+    private double relativeTolerance;
+
+    private final double[] window;
+    private int windowCount;
+
+    private final long burninLength;
+    private long stateCount;
+
+    /**
+     * @param initialRelativeTolerance relative tolerance at start of run
+     * @param targetRelativeTolerance relative tolerance once chain has stabilized
+     * @param windowSize number of accepted log-likelihoods considered each
+     *                   time stabilization is assessed
+     * @param burninLength number of states after which the target
+     *                     tolerance is used, counted by the calls to
+     *                     recordAcceptedLogP() and recordStateNumber()
+     */
+    public ToleranceController(double initialRelativeTolerance,
+                               double targetRelativeTolerance,
+                               int windowSize, long burninLength) {
+
+        if (windowSize < 4)
+            throw new IllegalArgumentException("Tolerance adaptation window must contain at least 4 states.");
+
+        if (burninLength < 0)
+            throw new IllegalArgumentException("Tolerance adaptation burn-in must not be negative.");
+
+        this.burninLength = burninLength;
+        stateCount = 0;
+
+        this.targetRelativeTolerance = targetRelativeTolerance;
+        this.relativeTolerance = Math.max(initialRelativeTolerance, targetRelativeTolerance);
+
+        window = new double[windowSize];
+        windowCount = 0;
+    }
+
+    /**
+     * @return current relative tolerance
+     */
+    public double getRelativeTolerance() {
+        return relativeTolerance;
+    }
+
+    /**
+     * @return true once the target tolerance has been reached.
+     */
+    public boolean isConverged() {
+        return relativeTolerance <= targetRelativeTolerance;
+    }
+
+    /**
+     * Record the number of the current state of the chain, which is known
+     * whenever the likelihood is logged.  States reached by proposals which
+     * did not affect the likelihood, and so were not recorded by
+     * recordAcceptedLogP(), are counted towards the burn-in from then on.
+     *
+     * @param stateNumber number of the current state
+     */
+    public void recordStateNumber(long stateNumber) {
+        stateCount = Math.max(stateCount, stateNumber);
+    }
+
+    /**
+     * Record the log-likelihood of an accepted state.
+     *
+     * @param logP log-likelihood
+     * @return true if the relative tolerance has changed.
+     */
+    public boolean recordAcceptedLogP(double logP) {
+
+        if (isConverged())
+            return false;
+
+        stateCount += 1;
+        if (stateCount >= burninLength) {
+            relativeTolerance = targetRelativeTolerance;
+            return true;
+        }
+
+        if (Double.isNaN(logP) || Double.isInfinite(logP))
+            return false;
+
+        window[windowCount++] = logP;
+
+        if (windowCount < window.length)
+            return false;
+
+        windowCount = 0;
+
+        if (!isWindowStationary())
+            return false;
+
+        relativeTolerance = Math.max(targetRelativeTolerance,
+                relativeTolerance*TIGHTENING_FACTOR);
+
+        return true;
+    }
+
+    /**
+     * @return true if the values in the window show no substantial trend.
+     */
+    private boolean isWindowStationary() {
+        int half = window.length/2;
+
+        double firstMean = 0.0, secondMean = 0.0;
+        for (int i = 0; i < half; i++) {
+            firstMean += window[i];
+            secondMean += window[window.length - half + i];
+        }
+        firstMean /= half;
+        secondMean /= half;
+
+        double mean = 0.0;
+        for (double value : window)
+            mean += value;
+        mean /= window.length;
+
+        double variance = 0.0;
+        for (double value : window)
+            variance += (value - mean)*(value - mean);
+        variance /= window.length - 1;
+
+        return Math.abs(secondMean - firstMean) <= MAX_RELATIVE_DRIFT*Math.sqrt(variance);
+    }
+}
@@ -0,0 +1,256 @@
+package bdmmprime.distribution;
+
+import bdmmprime.parameterization.Parameterization;
+import bdmmprime.util.TreeTraversal;
+import bdmmprime.util.Utils;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.TreeInterface;
+
+import java.util.Arrays;
+
+/**
+ * Flat copy of the tree quantities read during the likelihood calculation,
+ * held in primitive arrays indexed by node number.
+ *
+ * The index is brought up to date before each evaluation.  Node times and
+ * interval indices are only recomputed for nodes whose height has changed,
+ * unless the process length, the final sample offset or the interval end
+ * times have changed.  The topology is copied in full, as this only
+ * requires reading a few references per node.
+ *
+ * The children of each internal node are ordered: for a sampled ancestor
+ * node, the first child is the one below the continuing lineage and the
+ * second is the direct ancestor leaf.  Otherwise the child with the higher
+ * node number comes first, so that the children are always processed in
+ * the same order.
+ *
+ * The index also holds a post-order of the nodes, allowing the tree to be
+ * traversed without recursion.  The nodes of each subtree occupy a
+ * contiguous range of this order, ending with the subtree root.
+ */
+public class TreeIndex {
+
+    public final static int NONE = -1;
+
+    final int nodeCount, leafCount;
+
+    /**
+     * Type index of each leaf, or -1 if unknown.
+     */
+    final int[] leafTypes;
+
+    /**
+     * True for each leaf sampled at a rho sampling time.
+     */
+    final boolean[] isRhoTip;
+
+    int rootNr;
+    final double[] nodeTimes;
+    final int[] intervalIndices;
+    final int[] parentNrs, firstChildNrs, secondChildNrs;
+    final boolean[] isSampledAncestor;
+
+    /**
+     * True for each node marked dirty by the last tree operation.
+     */
+    final boolean[] isDirty;
+
+    /**
+     * Node numbers in post-order, and the position of each node in this
+     * order together with the number of nodes in the subtree below it.
+     */
+    final int[] postOrder, postOrderPositions, subtreeSizes;
+
+    private final double[] heights;
+    private final Node[] traversalStack;
+    private double totalProcessLength = Double.NaN;
+    private double finalSampleOffset = Double.NaN;
+    private double[] intervalEndTimes = new double[0];
+
+    /**
+     * @param nodeCount number of nodes in tree
+     * @param leafTypes type index of each leaf, or -1 if unknown
+     * @param isRhoTip  true for each leaf sampled at a rho sampling time
+     */
+    public TreeIndex(int nodeCount, int[] leafTypes, boolean[] isRhoTip) {
+        this.nodeCount = nodeCount;
+        this.leafCount = leafTypes.length;
+        this.leafTypes = leafTypes;
+        this.isRhoTip = isRhoTip;
+
+        nodeTimes = new double[nodeCount];
+        intervalIndices = new int[nodeCount];
+        parentNrs = new int[nodeCount];
+        firstChildNrs = new int[nodeCount];
+        secondChildNrs = new int[nodeCount];
+        isSampledAncestor = new boolean[nodeCount];
+        isDirty = new boolean[nodeCount];
+
+        postOrder = new int[nodeCount];
+        postOrderPositions = new int[nodeCount];
+        subtreeSizes = new int[nodeCount];
+        traversalStack = new Node[nodeCount];
+
+        heights = new double[nodeCount];
+        Arrays.fill(heights, Double.NaN);
+    }
+
+    /**
+     * Bring the index up to date with the current tree and parameterization.
+     *
+     * @param tree              tree to index
+     * @param parameterization  parameterization defining node times and intervals
+     * @param finalSampleOffset time between the final sample and the present
+     */
+    public void update(TreeInterface tree, Parameterization parameterization,
+                       double finalSampleOffset) {
+
+        boolean updateAllTimes = false;
+        if (parameterization.getTotalProcessLength() != totalProcessLength
+                || finalSampleOffset != this.finalSampleOffset) {
+            totalProcessLength = parameterization.getTotalProcessLength();
+            this.finalSampleOffset = finalSampleOffset;
+            updateAllTimes = true;
+        }
+
+        if (!Arrays.equals(parameterization.getIntervalEndTimes(), intervalEndTimes)) {
+            intervalEndTimes = parameterization.getIntervalEndTimes().clone();
+            updateAllTimes = true;
+        }
+
+        rootNr = tree.getRoot().getNr();
+
+        for (Node node : tree.getNodesAsArray()) {
+            int nr = node.getNr();
+
+            isDirty[nr] = node.isDirty() != Tree.IS_CLEAN;
+
+            if (updateAllTimes || node.getHeight() != heights[nr]) {
+                heights[nr] = node.getHeight();
+                nodeTimes[nr] = parameterization.getNodeTime(node, finalSampleOffset);
+                intervalIndices[nr] = parameterization.getIntervalIndex(nodeTimes[nr]);
+            }
+
+            parentNrs[nr] = node.isRoot() ? NONE : node.getParent().getNr();
+
+            if (node.isLeaf()) {
+                firstChildNrs[nr] = NONE;
+                secondChildNrs[nr] = NONE;
+                isSampledAncestor[nr] = false;
+                continue;
+            }
+
+            Node child0 = node.getChild(0);
+            Node child1 = node.getChild(1);
+
+            if (child0.isDirectAncestor() || child1.isDirectAncestor()) {
+                isSampledAncestor[nr] = true;
+                if (child0.isDirectAncestor()) {
+                    firstChildNrs[nr] = child1.getNr();
+                    secondChildNrs[nr] = child0.getNr();
+                } else {
+                    firstChildNrs[nr] = child0.getNr();
+                    secondChildNrs[nr] = child1.getNr();
+                }
+            } else {
+                isSampledAncestor[nr] = false;
+                if (child1.getNr() > child0.getNr()) {
+                    firstChildNrs[nr] = child1.getNr();
+                    secondChildNrs[nr] = child0.getNr();
+                } else {
+                    firstChildNrs[nr] = child0.getNr();
+                    secondChildNrs[nr] = child1.getNr();
+                }
+            }
+        }
+
+        TreeTraversal.getPostOrderNrs(tree.getRoot(), postOrder, traversalStack);
+
+        for (int i = 0; i < nodeCount; i++) {
+            int nr = postOrder[i];
+            postOrderPositions[nr] = i;
+
+            subtreeSizes[nr] = isLeaf(nr)
+                    ? 1
+                    : 1 + subtreeSizes[firstChildNrs[nr]] + subtreeSizes[secondChildNrs[nr]];
+        }
+    }
+
+    /**
+     * Record the type of a leaf, marking the leaf dirty if this differs
+     * from the type previously recorded.  Must follow the call to update()
+     * for the current evaluation, which resets the dirtiness flags.
+     *
+     * @param nodeNr number of leaf
+     * @param type   type index of leaf, or -1 if unknown
+     */
+    void updateLeafType(int nodeNr, int type) {
+        if (leafTypes[nodeNr] != type) {
+            leafTypes[nodeNr] = type;
+            isDirty[nodeNr] = true;
+        }
+    }
+
+    /**
+     * @param nodeNr number of node to query
+     * @return true if node is a leaf
+     */
+    public boolean isLeaf(int nodeNr) {
+        return firstChildNrs[nodeNr] == NONE;
+    }
+
+    /**
+     * @param nodeNr number of node to query
+     * @return true if node is the direct ancestor leaf of a sampled
+     * ancestor node
+     */
+    public boolean isDirectAncestor(int nodeNr) {
+        int parentNr = parentNrs[nodeNr];
+        return parentNr != NONE
+                && isSampledAncestor[parentNr]
+                && secondChildNrs[parentNr] == nodeNr;
+    }
+
+    /**
+     * @param nodeNr number of root of subtree
+     * @return position in post-order of the first node of the subtree
+     */
+    public int getSubtreeStart(int nodeNr) {
+        return postOrderPositions[nodeNr] - subtreeSizes[nodeNr] + 1;
+    }
+
+    /**
+     * Determine which leaves were sampled at a rho sampling time.  The rho
+     * sampling times are sorted once, so that each leaf requires a binary
+     * search rather than a scan of all rho sampling times.
+     *
+     * @param tree              tree whose leaves to consider
+     * @param parameterization  parameterization defining rho sampling times
+     * @param finalSampleOffset time between the final sample and the present
+     * @return array of rho tip flags, indexed by leaf number
+     */
+    public static boolean[] findRhoTips(TreeInterface tree, Parameterization parameterization,
+                                        double finalSampleOffset) {
+
+        double[] rhoSamplingTimes = parameterization.getRhoSamplingTimes().clone();
+        Arrays.sort(rhoSamplingTimes);
+
+        boolean[] isRhoTip = new boolean[tree.getLeafNodeCount()];
+        for (int nodeNr = 0; nodeNr < tree.getLeafNodeCount(); nodeNr++) {
+            double nodeTime = parameterization.getNodeTime(tree.getNode(nodeNr), finalSampleOffset);
+
+            int idx = Arrays.binarySearch(rhoSamplingTimes, nodeTime);
+            if (idx >= 0) {
+                isRhoTip[nodeNr] = true;
+            } else {
+                idx = -idx - 1;
+                isRhoTip[nodeNr] = (idx < rhoSamplingTimes.length
+                        && Utils.equalWithPrecision(rhoSamplingTimes[idx], nodeTime))
+                        || (idx > 0 && Utils.equalWithPrecision(rhoSamplingTimes[idx - 1], nodeTime));
+            }
+        }
+
+        return isRhoTip;
+    }
+}
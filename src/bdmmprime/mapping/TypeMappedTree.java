@@ -2,6 +2,7 @@ package bdmmprime.mapping;
 
 import bdmmprime.distribution.BirthDeathMigrationDistribution;
 import bdmmprime.parameterization.Parameterization;
+import bdmmprime.util.TreeTraversal;
 import bdmmprime.util.Utils;
 import beast.core.Function;
 import beast.core.Input;
@@ -276,7 +277,8 @@ public class TypeMappedTree extends Tree {
 
     /**
      * Integrate p0 and ge from leaves to root of subtree.  Integration results are
-     * stored in the field integrationResults.
+     * stored in the field integrationResults.  The nodes are visited in
+     * post-order without recursion, so that very deep trees can be handled.
      *
      * @param untypedSubtreeRoot root node of untyped subtree
      * @param timeOfSubtreeRootEdgeTop time of top of edge above subtree
@@ -284,19 +286,51 @@ public class TypeMappedTree extends Tree {
      */
     double[] backwardsIntegrateSubtree(Node untypedSubtreeRoot,
                                        double timeOfSubtreeRootEdgeTop) {
+
+        // Integration states at the tops of the edges, indexed by node number
+        double[][] edgeTopStates = new double[integrationResults.length][];
+
+        for (Node node : TreeTraversal.getPostOrder(untypedSubtreeRoot)) {
+
+            // Direct ancestors are accounted for by their SA nodes
+            if (node != untypedSubtreeRoot && node.isDirectAncestor())
+                continue;
+
+            double timeOfEdgeTop = node == untypedSubtreeRoot
+                    ? timeOfSubtreeRootEdgeTop
+                    : param.getNodeTime(node.getParent(), finalSampleOffset.getArrayValue());
+
+            edgeTopStates[node.getNr()] = backwardsIntegrateEdge(node, timeOfEdgeTop, edgeTopStates);
+        }
+
+        return edgeTopStates[untypedSubtreeRoot.getNr()];
+    }
+
+    /**
+     * Integrate p0 and ge along the edge above a node.  The integration
+     * results are stored in the field integrationResults.
+     *
+     * @param node node below edge
+     * @param timeOfEdgeTop time of top of edge
+     * @param edgeTopStates integration states at the tops of the edges
+     *                      below node, indexed by node number
+     * @return integration state at top of edge
+     */
+    private double[] backwardsIntegrateEdge(Node node, double timeOfEdgeTop,
+                                            double[][] edgeTopStates) {
         double[] y;
 
-        switch(getNodeKind(untypedSubtreeRoot)) {
+        switch(getNodeKind(node)) {
             case LEAF:
-                y = getLeafState(untypedSubtreeRoot);
+                y = getLeafState(node);
                 break;
 
             case SA:
-                y = getSAState(untypedSubtreeRoot);
+                y = getSAState(node, edgeTopStates);
                 break;
 
             case INTERNAL:
-                y = getInternalState(untypedSubtreeRoot);
+                y = getInternalState(node, edgeTopStates);
                 break;
 
             default:
@@ -314,22 +348,22 @@ public class TypeMappedTree extends Tree {
 
         double delta = 2*Utils.globalPrecisionThreshold;
 
-        double timeOfSubtreeRootEdgeBottom = param.getNodeTime(untypedSubtreeRoot, finalSampleOffset.getArrayValue());
+        double timeOfEdgeBottom = param.getNodeTime(node, finalSampleOffset.getArrayValue());
 
         odeIntegrator.addEventHandler(odeSystem,
-                (timeOfSubtreeRootEdgeBottom-timeOfSubtreeRootEdgeTop)/RATE_CHANGE_CHECKS_PER_EDGE,
+                (timeOfEdgeBottom-timeOfEdgeTop)/RATE_CHANGE_CHECKS_PER_EDGE,
                 RATE_CHANGE_CHECK_CONVERGENCE, RATE_CHANGE_MAX_ITERATIONS);
 
-        odeSystem.setInterval(param.getIntervalIndex(timeOfSubtreeRootEdgeBottom-delta));
+        odeSystem.setInterval(param.getIntervalIndex(timeOfEdgeBottom-delta));
 
         // Perform the integration:
 
         odeIntegrator.integrate(odeSystem,
-                timeOfSubtreeRootEdgeBottom - delta, y,
-                timeOfSubtreeRootEdgeTop+delta, y);
+                timeOfEdgeBottom - delta, y,
+                timeOfEdgeTop+delta, y);
 
         // Save integration results
-        integrationResults[untypedSubtreeRoot.getNr()] = results;
+        integrationResults[node.getNr()] = results;
 
         return y;
     }
@@ -398,11 +432,9 @@ public class TypeMappedTree extends Tree {
         return y;
     }
 
-    private double[] getSAState(Node saNode) {
-
-        double saNodeTime = param.getNodeTime(saNode, finalSampleOffset.getArrayValue());
+    private double[] getSAState(Node saNode, double[][] edgeTopStates) {
 
-        double[] y = backwardsIntegrateSubtree(saNode.getNonDirectAncestorChild(), saNodeTime);
+        double[] y = edgeTopStates[saNode.getNonDirectAncestorChild().getNr()];
 
         int saType = getLeafType(saNode.getDirectAncestorChild());
 
@@ -442,12 +474,10 @@ public class TypeMappedTree extends Tree {
         return y;
     }
 
-    private double[] getInternalState(Node internalNode) {
+    private double[] getInternalState(Node internalNode, double[][] edgeTopStates) {
 
-        double internalNodeTime = param.getNodeTime(internalNode, finalSampleOffset.getArrayValue());
-
-        double[] yLeft = backwardsIntegrateSubtree(internalNode.getChild(0), internalNodeTime);
-        double[] yRight = backwardsIntegrateSubtree(internalNode.getChild(1), internalNodeTime);
+        double[] yLeft = edgeTopStates[internalNode.getChild(0).getNr()];
+        double[] yRight = edgeTopStates[internalNode.getChild(1).getNr()];
 
         double logFLeft = geScaleFactors[internalNode.getChild(0).getNr()];
         double logFRight = geScaleFactors[internalNode.getChild(1).getNr()];
@@ -778,15 +808,12 @@ public class TypeMappedTree extends Tree {
      */
     private int numberInternalNodesOnSubtree(Node subtreeRoot, int nextNumber) {
 
-        if (subtreeRoot.isLeaf())
-            return nextNumber;
-
-        for (Node child : subtreeRoot.getChildren())
-            nextNumber = numberInternalNodesOnSubtree(child, nextNumber);
-
-        subtreeRoot.setNr(nextNumber);
+        for (Node node : TreeTraversal.getPostOrder(subtreeRoot)) {
+            if (!node.isLeaf())
+                node.setNr(nextNumber++);
+        }
 
-        return nextNumber+1;
+        return nextNumber;
     }
 
     /*
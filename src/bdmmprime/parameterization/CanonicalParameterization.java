@@ -1,7 +1,10 @@
 package bdmmprime.parameterization;
 
+import beast.core.Function;
 import beast.core.Input;
 
+import java.util.Map;
+
 public class CanonicalParameterization extends Parameterization {
 
     public Input<SkylineVectorParameter> birthRateInput = new Input<>("birthRate",
@@ -25,6 +28,14 @@ public class CanonicalParameterization extends Parameterization {
     public Input<SkylineMatrixParameter> crossBirthRateInput = new Input<>("birthRateAmongDemes",
             "Birth rate among demes skyline.");
 
+    private final IntervalTable birthRateIntervals = createIntervalTable(birthRateInput);
+    private final IntervalTable deathRateIntervals = createIntervalTable(deathRateInput);
+    private final IntervalTable samplingRateIntervals = createIntervalTable(samplingRateInput);
+    private final IntervalTable removalProbIntervals = createIntervalTable(removalProbInput);
+    private final IntervalTable migRateIntervals = createIntervalTable(migRateInput);
+    private final IntervalTable crossBirthRateIntervals = createIntervalTable(crossBirthRateInput);
+    private final IntervalTable rhoSamplingIntervals = createTimedIntervalTable(rhoSamplingInput);
+
     @Override
     public double[] getMigRateChangeTimes() {
         if (migRateInput.get() == null)
@@ -70,47 +81,92 @@ public class CanonicalParameterization extends Parameterization {
     }
 
     @Override
-    protected double[][] getMigRateValues(double time) {
-        if (migRateInput.get() == null)
-            return ZERO_VALUE_MATRIX;
+    protected void computeMigRateValues(int interval, double[][] dest) {
+        copyValues(migRateInput.get(), migRateIntervals, interval, dest);
+    }
 
-        return migRateInput.get().getValuesAtTime(time);
+    @Override
+    protected void computeBirthRateValues(int interval, double[] dest) {
+        copyValues(birthRateInput.get(), birthRateIntervals, interval, dest);
     }
 
     @Override
-    protected double[] getBirthRateValues(double time) {
-        return birthRateInput.get().getValuesAtTime(time);
+    protected void computeCrossBirthRateValues(int interval, double[][] dest) {
+        copyValues(crossBirthRateInput.get(), crossBirthRateIntervals, interval, dest);
     }
 
     @Override
-    protected double[][] getCrossBirthRateValues(double time) {
-        if (crossBirthRateInput.get() == null)
-            return ZERO_VALUE_MATRIX;
+    protected void computeDeathRateValues(int interval, double[] dest) {
+        copyValues(deathRateInput.get(), deathRateIntervals, interval, dest);
+    }
 
-        return crossBirthRateInput.get().getValuesAtTime(time);
+    @Override
+    protected void computeSamplingRateValues(int interval, double[] dest) {
+        copyValues(samplingRateInput.get(), samplingRateIntervals, interval, dest);
     }
 
     @Override
-    protected double[] getDeathRateValues(double time) {
-        return deathRateInput.get().getValuesAtTime(time);
+    protected void computeRemovalProbValues(int interval, double[] dest) {
+        copyValues(removalProbInput.get(), removalProbIntervals, interval, dest);
     }
 
     @Override
-    protected double[] getSamplingRateValues(double time) {
-        return samplingRateInput.get().getValuesAtTime(time);
+    protected void computeRhoValues(int interval, double[] dest) {
+        copyValues(rhoSamplingInput.get(), rhoSamplingIntervals, interval, dest);
     }
 
     @Override
-    protected double[] getRemovalProbValues(double time) {
-        return removalProbInput.get().getValuesAtTime(time);
+    protected void addParameterGradients(int interval, RateGradient rateGradient,
+                                         Map<Function, double[]> gradients) {
+        addGradient(birthRateInput.get(), birthRateIntervals, interval,
+                rateGradient.birthRates[interval], gradients);
+        addGradient(deathRateInput.get(), deathRateIntervals, interval,
+                rateGradient.deathRates[interval], gradients);
+        addGradient(samplingRateInput.get(), samplingRateIntervals, interval,
+                rateGradient.samplingRates[interval], gradients);
+        addGradient(removalProbInput.get(), removalProbIntervals, interval,
+                rateGradient.removalProbs[interval], gradients);
+        addGradient(migRateInput.get(), migRateIntervals, interval,
+                rateGradient.migRates[interval], gradients);
+        addGradient(crossBirthRateInput.get(), crossBirthRateIntervals, interval,
+                rateGradient.crossBirthRates[interval], gradients);
+        addGradient(rhoSamplingInput.get(), rhoSamplingIntervals, interval,
+                rateGradient.rhoValues[interval], gradients);
     }
 
     @Override
-    protected double[] getRhoValues(double time) {
-        if (rhoSamplingInput.get() != null)
-            return rhoSamplingInput.get().getValuesAtTime(time);
-        else
-            return ZERO_VALUE_ARRAY;
+    protected long getBirthRateVersion() {
+        return getVersion(birthRateInput.get());
+    }
+
+    @Override
+    protected long getMigRateVersion() {
+        return getVersion(migRateInput.get());
+    }
+
+    @Override
+    protected long getCrossBirthRateVersion() {
+        return getVersion(crossBirthRateInput.get());
+    }
+
+    @Override
+    protected long getDeathRateVersion() {
+        return getVersion(deathRateInput.get());
+    }
+
+    @Override
+    protected long getSamplingRateVersion() {
+        return getVersion(samplingRateInput.get());
+    }
+
+    @Override
+    protected long getRemovalProbVersion() {
+        return getVersion(removalProbInput.get());
+    }
+
+    @Override
+    protected long getRhoVersion() {
+        return getVersion(rhoSamplingInput.get());
     }
 
     @Override
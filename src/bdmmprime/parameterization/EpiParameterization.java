@@ -1,7 +1,10 @@
 package bdmmprime.parameterization;
 
+import beast.core.Function;
 import beast.core.Input;
 
+import java.util.Map;
+
 public class EpiParameterization extends Parameterization {
 
     public Input<SkylineVectorParameter> R0Input = new Input<>("R0",
@@ -25,6 +28,14 @@ public class EpiParameterization extends Parameterization {
     public Input<SkylineMatrixParameter> R0AmongDemesInput = new Input<>("R0AmongDemes",
             "Basic reproduction number among demes skyline.");
 
+    private final IntervalTable R0Intervals = createIntervalTable(R0Input);
+    private final IntervalTable becomeUninfectiousRateIntervals = createIntervalTable(becomeUninfectiousRateInput);
+    private final IntervalTable samplingProportionIntervals = createIntervalTable(samplingProportionInput);
+    private final IntervalTable removalProbIntervals = createIntervalTable(removalProbInput);
+    private final IntervalTable migRateIntervals = createIntervalTable(migRateInput);
+    private final IntervalTable R0AmongDemesIntervals = createIntervalTable(R0AmongDemesInput);
+    private final IntervalTable rhoSamplingIntervals = createTimedIntervalTable(rhoSamplingInput);
+
     @Override
     public double[] getMigRateChangeTimes() {
         if (migRateInput.get() == null)
@@ -97,80 +108,197 @@ public class EpiParameterization extends Parameterization {
     }
 
     @Override
-    protected double[][] getMigRateValues(double time) {
-        if (migRateInput.get() == null)
-            return ZERO_VALUE_MATRIX;
-
-        return migRateInput.get().getValuesAtTime(time);
+    protected void computeMigRateValues(int interval, double[][] dest) {
+        copyValues(migRateInput.get(), migRateIntervals, interval, dest);
     }
 
     @Override
-    protected double[] getBirthRateValues(double time) {
-        double[] res = R0Input.get().getValuesAtTime(time);
-        double[] buVals = becomeUninfectiousRateInput.get().getValuesAtTime(time);
+    protected void computeBirthRateValues(int interval, double[] dest) {
+        double[] R0 = R0Input.get().getValuesInInterval(R0Intervals.get(interval));
+        double[] buVals = becomeUninfectiousRateInput.get()
+                .getValuesInInterval(becomeUninfectiousRateIntervals.get(interval));
 
         for (int type=0; type<nTypes; type++)
-            res[type] *= buVals[type];
-
-        return res;
+            dest[type] = R0[type]*buVals[type];
     }
 
     @Override
-    protected double[][] getCrossBirthRateValues(double time) {
-        if (R0AmongDemesInput.get() == null)
-            return ZERO_VALUE_MATRIX;
+    protected void computeCrossBirthRateValues(int interval, double[][] dest) {
+        if (R0AmongDemesInput.get() == null) {
+            copyValues(R0AmongDemesInput.get(), R0AmongDemesIntervals, interval, dest);
+            return;
+        }
 
-        double[][] res = R0AmongDemesInput.get().getValuesAtTime(time);
-        double[] buVals = becomeUninfectiousRateInput.get().getValuesAtTime(time);
+        double[][] R0AmongDemes = R0AmongDemesInput.get()
+                .getValuesInInterval(R0AmongDemesIntervals.get(interval));
+        double[] buVals = becomeUninfectiousRateInput.get()
+                .getValuesInInterval(becomeUninfectiousRateIntervals.get(interval));
 
         for (int sourceType=0; sourceType<nTypes; sourceType++) {
             for (int destType=0; destType<nTypes; destType++) {
-                if (sourceType==destType)
+                if (sourceType==destType) {
+                    dest[sourceType][destType] = R0AmongDemes[sourceType][destType];
                     continue;
+                }
 
-                res[sourceType][destType] *= buVals[sourceType];
+                dest[sourceType][destType] = R0AmongDemes[sourceType][destType]*buVals[sourceType];
             }
         }
-
-        return res;
     }
 
     @Override
-    protected double[] getDeathRateValues(double time) {
-        double[] res = becomeUninfectiousRateInput.get().getValuesAtTime(time);
-        double[] samplingProp = samplingProportionInput.get().getValuesAtTime(time);
-        double[] removalProb = removalProbInput.get().getValuesAtTime(time);
+    protected void computeDeathRateValues(int interval, double[] dest) {
+        double[] buVals = becomeUninfectiousRateInput.get()
+                .getValuesInInterval(becomeUninfectiousRateIntervals.get(interval));
+        double[] samplingProp = samplingProportionInput.get()
+                .getValuesInInterval(samplingProportionIntervals.get(interval));
+        double[] removalProb = removalProbInput.get()
+                .getValuesInInterval(removalProbIntervals.get(interval));
 
         for (int type=0; type<nTypes; type++)
-            res[type] *= (1 - samplingProp[type])
+            dest[type] = buVals[type]*(1 - samplingProp[type])
                     / (1.0 - (1.0-removalProb[type])*samplingProp[type]);
-
-        return res;
     }
 
     @Override
-    protected double[] getSamplingRateValues(double time) {
-        double[] res = samplingProportionInput.get().getValuesAtTime(time);
-        double[] buRate  = becomeUninfectiousRateInput.get().getValuesAtTime(time);
-        double[] removalProb  = removalProbInput.get().getValuesAtTime(time);
+    protected void computeSamplingRateValues(int interval, double[] dest) {
+        double[] samplingProp = samplingProportionInput.get()
+                .getValuesInInterval(samplingProportionIntervals.get(interval));
+        double[] buRate = becomeUninfectiousRateInput.get()
+                .getValuesInInterval(becomeUninfectiousRateIntervals.get(interval));
+        double[] removalProb = removalProbInput.get()
+                .getValuesInInterval(removalProbIntervals.get(interval));
 
         for (int type=0; type<nTypes; type++)
-            res[type] = res[type]*buRate[type]/(1 - (1-removalProb[type])*res[type]);
+            dest[type] = samplingProp[type]*buRate[type]/(1 - (1-removalProb[type])*samplingProp[type]);
+    }
+
+    @Override
+    protected void computeRemovalProbValues(int interval, double[] dest) {
+        copyValues(removalProbInput.get(), removalProbIntervals, interval, dest);
+    }
+
+    @Override
+    protected void computeRhoValues(int interval, double[] dest) {
+        copyValues(rhoSamplingInput.get(), rhoSamplingIntervals, interval, dest);
+    }
+
+    @Override
+    protected void addParameterGradients(int interval, RateGradient rateGradient,
+                                         Map<Function, double[]> gradients) {
+        double[] R0 = R0Input.get().getValuesInInterval(R0Intervals.get(interval));
+        double[] buVals = becomeUninfectiousRateInput.get()
+                .getValuesInInterval(becomeUninfectiousRateIntervals.get(interval));
+        double[] samplingProp = samplingProportionInput.get()
+                .getValuesInInterval(samplingProportionIntervals.get(interval));
+        double[] removalProb = removalProbInput.get()
+                .getValuesInInterval(removalProbIntervals.get(interval));
+
+        double[] birthGrad = rateGradient.birthRates[interval];
+        double[] deathGrad = rateGradient.deathRates[interval];
+        double[] samplingGrad = rateGradient.samplingRates[interval];
+        double[][] crossBirthGrad = rateGradient.crossBirthRates[interval];
+
+        double[] R0Grad = new double[nTypes];
+        double[] buGrad = new double[nTypes];
+        double[] samplingPropGrad = new double[nTypes];
+        double[] removalProbGrad = rateGradient.removalProbs[interval].clone();
+
+        for (int type=0; type<nTypes; type++) {
+            double denom = 1.0 - (1.0-removalProb[type])*samplingProp[type];
+            double denomSq = denom*denom;
+
+            R0Grad[type] = birthGrad[type]*buVals[type];
+
+            buGrad[type] = birthGrad[type]*R0[type]
+                    + deathGrad[type]*(1 - samplingProp[type])/denom
+                    + samplingGrad[type]*samplingProp[type]/denom;
+
+            samplingPropGrad[type] = -deathGrad[type]*buVals[type]*removalProb[type]/denomSq
+                    + samplingGrad[type]*buVals[type]/denomSq;
+
+            removalProbGrad[type] += -deathGrad[type]*buVals[type]
+                    * (1 - samplingProp[type])*samplingProp[type]/denomSq
+                    - samplingGrad[type]*buVals[type]
+                    * samplingProp[type]*samplingProp[type]/denomSq;
+        }
+
+        if (R0AmongDemesInput.get() != null) {
+            double[][] R0AmongDemes = R0AmongDemesInput.get()
+                    .getValuesInInterval(R0AmongDemesIntervals.get(interval));
+
+            double[][] R0AmongDemesGrad = new double[nTypes][nTypes];
+            for (int sourceType=0; sourceType<nTypes; sourceType++) {
+                for (int destType=0; destType<nTypes; destType++) {
+                    if (sourceType==destType)
+                        continue;
+
+                    R0AmongDemesGrad[sourceType][destType] =
+                            crossBirthGrad[sourceType][destType]*buVals[sourceType];
+                    buGrad[sourceType] += crossBirthGrad[sourceType][destType]
+                            * R0AmongDemes[sourceType][destType];
+                }
+            }
+
+            addGradient(R0AmongDemesInput.get(), R0AmongDemesIntervals, interval,
+                    R0AmongDemesGrad, gradients);
+        }
+
+        addGradient(R0Input.get(), R0Intervals, interval, R0Grad, gradients);
+        addGradient(becomeUninfectiousRateInput.get(), becomeUninfectiousRateIntervals,
+                interval, buGrad, gradients);
+        addGradient(samplingProportionInput.get(), samplingProportionIntervals,
+                interval, samplingPropGrad, gradients);
+        addGradient(removalProbInput.get(), removalProbIntervals, interval,
+                removalProbGrad, gradients);
+        addGradient(migRateInput.get(), migRateIntervals, interval,
+                rateGradient.migRates[interval], gradients);
+        addGradient(rhoSamplingInput.get(), rhoSamplingIntervals, interval,
+                rateGradient.rhoValues[interval], gradients);
+    }
+
+    @Override
+    protected long getBirthRateVersion() {
+        return Math.max(getVersion(R0Input.get()),
+                getVersion(becomeUninfectiousRateInput.get()));
+    }
+
+    @Override
+    protected long getMigRateVersion() {
+        return getVersion(migRateInput.get());
+    }
+
+    @Override
+    protected long getCrossBirthRateVersion() {
+        if (R0AmongDemesInput.get() == null)
+            return 0;
+
+        return Math.max(getVersion(R0AmongDemesInput.get()),
+                getVersion(becomeUninfectiousRateInput.get()));
+    }
 
-        return res;
+    @Override
+    protected long getDeathRateVersion() {
+        return Math.max(getVersion(becomeUninfectiousRateInput.get()),
+                Math.max(getVersion(samplingProportionInput.get()),
+                        getVersion(removalProbInput.get())));
+    }
+
+    @Override
+    protected long getSamplingRateVersion() {
+        return Math.max(getVersion(samplingProportionInput.get()),
+                Math.max(getVersion(becomeUninfectiousRateInput.get()),
+                        getVersion(removalProbInput.get())));
     }
 
     @Override
-    protected double[] getRemovalProbValues(double time) {
-        return removalProbInput.get().getValuesAtTime(time);
+    protected long getRemovalProbVersion() {
+        return getVersion(removalProbInput.get());
     }
 
     @Override
-    protected double[] getRhoValues(double time) {
-        if (rhoSamplingInput.get() != null)
-            return rhoSamplingInput.get().getValuesAtTime(time);
-        else
-            return ZERO_VALUE_ARRAY;
+    protected long getRhoVersion() {
+        return getVersion(rhoSamplingInput.get());
     }
 
     @Override
@@ -1,7 +1,11 @@
 package bdmmprime.parameterization;
 
+import beast.core.Function;
 import beast.core.Input;
 
+import java.util.Arrays;
+import java.util.Map;
+
 public class FBDParameterization extends Parameterization {
 
     public Input<SkylineVectorParameter> diversificationRateInput = new Input<>("diversificationRate",
@@ -22,6 +26,13 @@ public class FBDParameterization extends Parameterization {
     public Input<SkylineMatrixParameter> diversificationRateAmongDemesInput = new Input<>("diversificationRateAmongDemes",
             "Diversification rate among demes skyline.");
 
+    private final IntervalTable diversificationRateIntervals = createIntervalTable(diversificationRateInput);
+    private final IntervalTable turnoverIntervals = createIntervalTable(turnoverInput);
+    private final IntervalTable samplingProportionIntervals = createIntervalTable(samplingProportionInput);
+    private final IntervalTable migRateIntervals = createIntervalTable(migRateInput);
+    private final IntervalTable diversificationRateAmongDemesIntervals = createIntervalTable(diversificationRateAmongDemesInput);
+    private final IntervalTable rhoSamplingIntervals = createTimedIntervalTable(rhoSamplingInput);
+
     @Override
     public double[] getMigRateChangeTimes() {
         if (migRateInput.get() == null)
@@ -95,81 +106,185 @@ public class FBDParameterization extends Parameterization {
     }
 
     @Override
-    protected double[][] getMigRateValues(double time) {
-        if (migRateInput.get() == null)
-            return ZERO_VALUE_MATRIX;
-
-        return migRateInput.get().getValuesAtTime(time);
+    protected void computeMigRateValues(int interval, double[][] dest) {
+        copyValues(migRateInput.get(), migRateIntervals, interval, dest);
     }
 
     @Override
-    protected double[] getBirthRateValues(double time) {
-        double[] res = diversificationRateInput.get().getValuesAtTime(time);
-        double[] toVals = turnoverInput.get().getValuesAtTime(time);
+    protected void computeBirthRateValues(int interval, double[] dest) {
+        double[] dVals = diversificationRateInput.get()
+                .getValuesInInterval(diversificationRateIntervals.get(interval));
+        double[] toVals = turnoverInput.get().getValuesInInterval(turnoverIntervals.get(interval));
 
         for (int type=0; type<nTypes; type++)
-            res[type] /= 1.0 - toVals[type];
-
-        return res;
+            dest[type] = dVals[type]/(1.0 - toVals[type]);
     }
 
     @Override
-    protected double[][] getCrossBirthRateValues(double time) {
-        if (diversificationRateAmongDemesInput.get() == null)
-            return ZERO_VALUE_MATRIX;
+    protected void computeCrossBirthRateValues(int interval, double[][] dest) {
+        if (diversificationRateAmongDemesInput.get() == null) {
+            copyValues(diversificationRateAmongDemesInput.get(), diversificationRateAmongDemesIntervals, interval, dest);
+            return;
+        }
 
-        double[][] res = diversificationRateAmongDemesInput.get().getValuesAtTime(time);
-        double[] dVals = diversificationRateInput.get().getValuesAtTime(time);
-        double[] toVals = turnoverInput.get().getValuesAtTime(time);
+        double[][] dAmongVals = diversificationRateAmongDemesInput.get()
+                .getValuesInInterval(diversificationRateAmongDemesIntervals.get(interval));
+        double[] dVals = diversificationRateInput.get()
+                .getValuesInInterval(diversificationRateIntervals.get(interval));
+        double[] toVals = turnoverInput.get().getValuesInInterval(turnoverIntervals.get(interval));
 
         for (int sourceType=0; sourceType<nTypes; sourceType++) {
             for (int destType=0; destType<nTypes; destType++) {
-                if (sourceType==destType)
+                if (sourceType==destType) {
+                    dest[sourceType][destType] = dAmongVals[sourceType][destType];
                     continue;
+                }
 
-                res[sourceType][destType] += dVals[sourceType]
-                        * toVals[sourceType]/(1.0-toVals[sourceType]);
+                dest[sourceType][destType] = dAmongVals[sourceType][destType]
+                        + dVals[sourceType]*toVals[sourceType]/(1.0-toVals[sourceType]);
             }
         }
-
-        return res;
     }
 
     @Override
-    protected double[] getDeathRateValues(double time) {
-        double[] res = diversificationRateInput.get().getValuesAtTime(time);
-        double[] toVals = turnoverInput.get().getValuesAtTime(time);
+    protected void computeDeathRateValues(int interval, double[] dest) {
+        double[] dVals = diversificationRateInput.get()
+                .getValuesInInterval(diversificationRateIntervals.get(interval));
+        double[] toVals = turnoverInput.get().getValuesInInterval(turnoverIntervals.get(interval));
 
         for (int type=0; type<nTypes; type++)
-            res[type] *= toVals[type]/(1.0-toVals[type]);
-
-        return res;
+            dest[type] = dVals[type]*toVals[type]/(1.0-toVals[type]);
     }
 
     @Override
-    protected double[] getSamplingRateValues(double time) {
-        double[] res = diversificationRateInput.get().getValuesAtTime(time);
-        double[] sVals = samplingProportionInput.get().getValuesAtTime(time);
-        double[] toVals  = turnoverInput.get().getValuesAtTime(time);
+    protected void computeSamplingRateValues(int interval, double[] dest) {
+        double[] dVals = diversificationRateInput.get()
+                .getValuesInInterval(diversificationRateIntervals.get(interval));
+        double[] sVals = samplingProportionInput.get()
+                .getValuesInInterval(samplingProportionIntervals.get(interval));
+        double[] toVals = turnoverInput.get().getValuesInInterval(turnoverIntervals.get(interval));
 
         for (int type=0; type<nTypes; type++)
-            res[type] *= sVals[type]/(1.0-sVals[type])
+            dest[type] = dVals[type]*sVals[type]/(1.0-sVals[type])
                     * toVals[type]/(1.0-toVals[type]);
+    }
+
+    @Override
+    protected void computeRemovalProbValues(int interval, double[] dest) {
+        Arrays.fill(dest, 0.0);
+    }
+
+    @Override
+    protected void computeRhoValues(int interval, double[] dest) {
+        copyValues(rhoSamplingInput.get(), rhoSamplingIntervals, interval, dest);
+    }
+
+    @Override
+    protected void addParameterGradients(int interval, RateGradient rateGradient,
+                                         Map<Function, double[]> gradients) {
+        double[] dVals = diversificationRateInput.get()
+                .getValuesInInterval(diversificationRateIntervals.get(interval));
+        double[] toVals = turnoverInput.get().getValuesInInterval(turnoverIntervals.get(interval));
+        double[] sVals = samplingProportionInput.get()
+                .getValuesInInterval(samplingProportionIntervals.get(interval));
+
+        double[] birthGrad = rateGradient.birthRates[interval];
+        double[] deathGrad = rateGradient.deathRates[interval];
+        double[] samplingGrad = rateGradient.samplingRates[interval];
+        double[][] crossBirthGrad = rateGradient.crossBirthRates[interval];
+
+        boolean hasCrossBirth = diversificationRateAmongDemesInput.get() != null;
+
+        double[] dGrad = new double[nTypes];
+        double[] toGrad = new double[nTypes];
+        double[] sGrad = new double[nTypes];
+        double[][] dAmongGrad = new double[nTypes][nTypes];
+
+        for (int type=0; type<nTypes; type++) {
+            // Derivatives of to/(1-to) and s/(1-s)
+            double toRatio = toVals[type]/(1.0-toVals[type]);
+            double toRatioDeriv = 1.0/((1.0-toVals[type])*(1.0-toVals[type]));
+            double sRatio = sVals[type]/(1.0-sVals[type]);
+            double sRatioDeriv = 1.0/((1.0-sVals[type])*(1.0-sVals[type]));
+
+            // Summed gradient of the rates proportional to d/(1-to)
+            double crossBirthGradSum = 0.0;
+            if (hasCrossBirth) {
+                for (int destType=0; destType<nTypes; destType++) {
+                    if (destType == type)
+                        continue;
+
+                    dAmongGrad[type][destType] = crossBirthGrad[type][destType];
+                    crossBirthGradSum += crossBirthGrad[type][destType];
+                }
+            }
+
+            dGrad[type] = birthGrad[type]/(1.0-toVals[type])
+                    + (deathGrad[type] + samplingGrad[type]*sRatio + crossBirthGradSum)*toRatio;
 
-        return res;
+            toGrad[type] = (birthGrad[type] + deathGrad[type]
+                    + samplingGrad[type]*sRatio + crossBirthGradSum)
+                    * dVals[type]*toRatioDeriv;
+
+            sGrad[type] = samplingGrad[type]*dVals[type]*toRatio*sRatioDeriv;
+        }
+
+        addGradient(diversificationRateInput.get(), diversificationRateIntervals,
+                interval, dGrad, gradients);
+        addGradient(turnoverInput.get(), turnoverIntervals, interval, toGrad, gradients);
+        addGradient(samplingProportionInput.get(), samplingProportionIntervals,
+                interval, sGrad, gradients);
+        addGradient(migRateInput.get(), migRateIntervals, interval,
+                rateGradient.migRates[interval], gradients);
+        if (hasCrossBirth)
+            addGradient(diversificationRateAmongDemesInput.get(),
+                    diversificationRateAmongDemesIntervals, interval, dAmongGrad, gradients);
+        addGradient(rhoSamplingInput.get(), rhoSamplingIntervals, interval,
+                rateGradient.rhoValues[interval], gradients);
+    }
+
+    @Override
+    protected long getBirthRateVersion() {
+        return Math.max(getVersion(diversificationRateInput.get()),
+                getVersion(turnoverInput.get()));
+    }
+
+    @Override
+    protected long getMigRateVersion() {
+        return getVersion(migRateInput.get());
+    }
+
+    @Override
+    protected long getCrossBirthRateVersion() {
+        if (diversificationRateAmongDemesInput.get() == null)
+            return 0;
+
+        return Math.max(getVersion(diversificationRateAmongDemesInput.get()),
+                Math.max(getVersion(diversificationRateInput.get()),
+                        getVersion(turnoverInput.get())));
+    }
+
+    @Override
+    protected long getDeathRateVersion() {
+        return Math.max(getVersion(diversificationRateInput.get()),
+                getVersion(turnoverInput.get()));
+    }
+
+    @Override
+    protected long getSamplingRateVersion() {
+        return Math.max(getVersion(samplingProportionInput.get()),
+                Math.max(getVersion(diversificationRateInput.get()),
+                        getVersion(turnoverInput.get())));
     }
 
     @Override
-    protected double[] getRemovalProbValues(double time) {
-        return ZERO_VALUE_ARRAY;
+    protected long getRemovalProbVersion() {
+        return 0;
     }
 
     @Override
-    protected double[] getRhoValues(double time) {
-        if (rhoSamplingInput.get() != null)
-            return rhoSamplingInput.get().getValuesAtTime(time);
-        else
-            return ZERO_VALUE_ARRAY;
+    protected long getRhoVersion() {
+        return getVersion(rhoSamplingInput.get());
     }
 
     @Override
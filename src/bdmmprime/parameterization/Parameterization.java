@@ -2,12 +2,16 @@ package bdmmprime.parameterization;
 
 import bdmmprime.util.Utils;
 import beast.core.CalculationNode;
+import beast.core.Function;
 import beast.core.Input;
 import beast.core.parameter.RealParameter;
 import beast.evolution.tree.Node;
 import beast.evolution.tree.Tree;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.ObjIntConsumer;
 
 /**
  * Full parameterization for a multi-type birth-death skyline model with sampled ancestors.
@@ -38,33 +42,84 @@ public abstract class Parameterization extends CalculationNode {
 
     private boolean dirty;
 
-    private SortedSet<Double> intervalEndTimesSet = new TreeSet<>(Utils::precisionLimitedComparator);
+    /**
+     * Latest time affected by the changes to the parameter values made
+     * since the last call to store() or restore().
+     */
+    private double latestAffectedTime;
 
     private double[] intervalEndTimes, storedIntervalEndTimes;
+    private boolean intervalEndTimesSwapped;
+    private long intervalEndTimesVersion, storedIntervalEndTimesVersion;
+
+    private VectorComponent birthRates, deathRates, samplingRates, removalProbs, rhoValues;
+    private MatrixComponent migRates, crossBirthRates;
+    private Component[] components;
 
-    private double[][] birthRates, deathRates, samplingRates, removalProbs, rhoValues;
-    private double[][][] migRates, crossBirthRates;
+    /**
+     * Interval tables declared by the subclass, brought up to date at the
+     * start of each update.
+     */
+    private final List<IntervalTable> intervalTables = new ArrayList<>();
 
-    private double[][] storedBirthRates, storedDeathRates, storedSamplingRates,
-            storedRemovalProbs, storedRhoValues;
-    private double[][][] storedMigRates, storedCrossBirthRates;
+    /**
+     * Workspace used when merging change times.
+     */
+    private double[][] changeTimeArrays = new double[8][];
+    private int[] changeTimePositions = new int[8];
+    private double[] changeTimeBuffer = new double[0];
+    private final double[] processEndTime = new double[1];
 
     final static double[] EMPTY_TIME_ARRAY = new double[0];
-    double[] ZERO_VALUE_ARRAY;
-    double[][] ZERO_VALUE_MATRIX;
 
     TypeSet typeSet;
 
     int nTypes;
 
+    private final static AtomicLong versionCounter = new AtomicLong();
+
+    /**
+     * Obtain a new version number for a parameter whose times or values
+     * have changed.  Version numbers are unique across all parameters and
+     * increase over time, so that the largest version number of the
+     * parameters a component depends on identifies the state of all of
+     * them: any change to one of these parameters produces a version
+     * number which has not been seen before.
+     *
+     * @return new version number
+     */
+    static long nextVersion() {
+        return versionCounter.incrementAndGet();
+    }
+
     @Override
     public void initAndValidate() {
         typeSet = typeSetInput.get();
         nTypes = typeSet.getNTypes();
-        ZERO_VALUE_ARRAY = new double[nTypes];
-        ZERO_VALUE_MATRIX = new double[nTypes][nTypes];
+
+        checkValueMethodsImplemented();
+
+        birthRates = new VectorComponent(this::getBirthRateVersion,
+                (dest, interval) -> computeBirthRateValues(interval, dest));
+        deathRates = new VectorComponent(this::getDeathRateVersion,
+                (dest, interval) -> computeDeathRateValues(interval, dest));
+        samplingRates = new VectorComponent(this::getSamplingRateVersion,
+                (dest, interval) -> computeSamplingRateValues(interval, dest));
+        removalProbs = new VectorComponent(this::getRemovalProbVersion,
+                (dest, interval) -> computeRemovalProbValues(interval, dest));
+        rhoValues = new VectorComponent(this::getRhoVersion,
+                (dest, interval) -> computeRhoValues(interval, dest));
+        migRates = new MatrixComponent(this::getMigRateVersion,
+                (dest, interval) -> computeMigRateValues(interval, dest));
+        crossBirthRates = new MatrixComponent(this::getCrossBirthRateVersion,
+                (dest, interval) -> computeCrossBirthRateValues(interval, dest));
+        components = new Component[] {birthRates, deathRates, samplingRates,
+                removalProbs, rhoValues, migRates, crossBirthRates};
+
+        intervalEndTimes = null;
 
         dirty = true;
+        latestAffectedTime = Double.POSITIVE_INFINITY;
         update();
     }
 
@@ -76,13 +131,217 @@ public abstract class Parameterization extends CalculationNode {
     public abstract double[] getRemovalProbChangeTimes();
     public abstract double[] getRhoSamplingTimes();
 
-    protected abstract double[] getBirthRateValues(double time);
-    protected abstract double[][] getMigRateValues(double time);
-    protected abstract double[][] getCrossBirthRateValues(double time);
-    protected abstract double[] getDeathRateValues(double time);
-    protected abstract double[] getSamplingRateValues(double time);
-    protected abstract double[] getRemovalProbValues(double time);
-    protected abstract double[] getRhoValues(double time);
+    /*
+     * Each of the following methods writes the values of the corresponding
+     * canonical parameter in the given interval to dest, which holds nTypes
+     * elements (nTypes x nTypes for matrices).  Implementations read the
+     * values of their parameters via IntervalTables, so no time lookups are
+     * performed and no state shared with other callers is modified.
+     *
+     * The default implementations evaluate the deprecated get*Values(time)
+     * methods at the end of the interval, so that subclasses written
+     * against the earlier API, which only implement those, keep working.
+     * Subclasses implementing neither method are rejected by
+     * initAndValidate().
+     */
+
+    protected void computeBirthRateValues(int interval, double[] dest) {
+        System.arraycopy(getBirthRateValues(intervalEndTimes[interval]), 0, dest, 0, nTypes);
+    }
+
+    protected void computeMigRateValues(int interval, double[][] dest) {
+        copyMatrix(getMigRateValues(intervalEndTimes[interval]), dest);
+    }
+
+    protected void computeCrossBirthRateValues(int interval, double[][] dest) {
+        copyMatrix(getCrossBirthRateValues(intervalEndTimes[interval]), dest);
+    }
+
+    protected void computeDeathRateValues(int interval, double[] dest) {
+        System.arraycopy(getDeathRateValues(intervalEndTimes[interval]), 0, dest, 0, nTypes);
+    }
+
+    protected void computeSamplingRateValues(int interval, double[] dest) {
+        System.arraycopy(getSamplingRateValues(intervalEndTimes[interval]), 0, dest, 0, nTypes);
+    }
+
+    protected void computeRemovalProbValues(int interval, double[] dest) {
+        System.arraycopy(getRemovalProbValues(intervalEndTimes[interval]), 0, dest, 0, nTypes);
+    }
+
+    protected void computeRhoValues(int interval, double[] dest) {
+        System.arraycopy(getRhoValues(intervalEndTimes[interval]), 0, dest, 0, nTypes);
+    }
+
+    private void copyMatrix(double[][] src, double[][] dest) {
+        for (int i=0; i<nTypes; i++)
+            System.arraycopy(src[i], 0, dest[i], 0, nTypes);
+    }
+
+    /*
+     * Earlier API, in which the values of each canonical parameter were
+     * computed at a given time.  Subclasses must override either these or
+     * the corresponding compute*Values() methods.
+     */
+
+    /** @deprecated override computeBirthRateValues() instead. */
+    @Deprecated
+    protected double[] getBirthRateValues(double time) {
+        throw new UnsupportedOperationException(getNotImplementedMessage("computeBirthRateValues"));
+    }
+
+    /** @deprecated override computeMigRateValues() instead. */
+    @Deprecated
+    protected double[][] getMigRateValues(double time) {
+        throw new UnsupportedOperationException(getNotImplementedMessage("computeMigRateValues"));
+    }
+
+    /** @deprecated override computeCrossBirthRateValues() instead. */
+    @Deprecated
+    protected double[][] getCrossBirthRateValues(double time) {
+        throw new UnsupportedOperationException(getNotImplementedMessage("computeCrossBirthRateValues"));
+    }
+
+    /** @deprecated override computeDeathRateValues() instead. */
+    @Deprecated
+    protected double[] getDeathRateValues(double time) {
+        throw new UnsupportedOperationException(getNotImplementedMessage("computeDeathRateValues"));
+    }
+
+    /** @deprecated override computeSamplingRateValues() instead. */
+    @Deprecated
+    protected double[] getSamplingRateValues(double time) {
+        throw new UnsupportedOperationException(getNotImplementedMessage("computeSamplingRateValues"));
+    }
+
+    /** @deprecated override computeRemovalProbValues() instead. */
+    @Deprecated
+    protected double[] getRemovalProbValues(double time) {
+        throw new UnsupportedOperationException(getNotImplementedMessage("computeRemovalProbValues"));
+    }
+
+    /** @deprecated override computeRhoValues() instead. */
+    @Deprecated
+    protected double[] getRhoValues(double time) {
+        throw new UnsupportedOperationException(getNotImplementedMessage("computeRhoValues"));
+    }
+
+    private String getNotImplementedMessage(String methodName) {
+        return getClass().getName() + " must implement " + methodName + "().";
+    }
+
+    /**
+     * Check that, for each canonical parameter, the subclass implements
+     * either the compute*Values() method or the deprecated get*Values()
+     * method the default implementation falls back on.  The compiler cannot
+     * enforce this, so an incomplete subclass is reported here, when the
+     * parameterization is initialized, rather than when it is first
+     * evaluated.
+     */
+    private void checkValueMethodsImplemented() {
+        String[] parameterNames = {"BirthRate", "MigRate", "CrossBirthRate",
+                "DeathRate", "SamplingRate", "RemovalProb", "Rho"};
+
+        for (String parameterName : parameterNames) {
+            Class<?> destType = parameterName.equals("MigRate") || parameterName.equals("CrossBirthRate")
+                    ? double[][].class
+                    : double[].class;
+
+            if (!isImplemented("compute" + parameterName + "Values", int.class, destType)
+                    && !isImplemented("get" + parameterName + "Values", double.class))
+                throw new UnsupportedOperationException(getClass().getName()
+                        + " must implement compute" + parameterName + "Values() or "
+                        + "get" + parameterName + "Values().");
+        }
+    }
+
+    /**
+     * @param methodName name of method
+     * @param parameterTypes parameter types of method
+     * @return true if the method is declared by a subclass.
+     */
+    private boolean isImplemented(String methodName, Class<?>... parameterTypes) {
+        for (Class<?> c = getClass(); c != Parameterization.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod(methodName, parameterTypes);
+                return true;
+            } catch (NoSuchMethodException ignored) { }
+        }
+
+        return false;
+    }
+
+    /**
+     * Add the gradient with respect to the values of the parameters from
+     * which the canonical parameters in the given interval are computed,
+     * given the gradient with respect to those canonical parameters.
+     * Implementations apply the chain rule to the values read by the
+     * methods above, adding to gradients using the addGradient() methods.
+     * Subclasses which do not support gradients need not override this.
+     *
+     * @param interval index of interval of the parameterization
+     * @param rateGradient gradient with respect to the canonical parameters
+     * @param gradients gradients with respect to the elements of each values
+     *                  parameter
+     */
+    protected void addParameterGradients(int interval, RateGradient rateGradient,
+                                         Map<Function, double[]> gradients) {
+        throw new UnsupportedOperationException(getClass().getName()
+                + " does not support parameter gradients.");
+    }
+
+    /*
+     * Each of the following methods returns the largest version number
+     * of the parameters the corresponding values depend on, or 0 if
+     * there are no such parameters.  The default implementations, used by
+     * subclasses which do not track the versions of their parameters,
+     * return a new version number on every call, so that the values are
+     * recomputed whenever the parameterization is updated.
+     */
+
+    protected long getBirthRateVersion() {
+        return nextVersion();
+    }
+
+    protected long getMigRateVersion() {
+        return nextVersion();
+    }
+
+    protected long getCrossBirthRateVersion() {
+        return nextVersion();
+    }
+
+    protected long getDeathRateVersion() {
+        return nextVersion();
+    }
+
+    protected long getSamplingRateVersion() {
+        return nextVersion();
+    }
+
+    protected long getRemovalProbVersion() {
+        return nextVersion();
+    }
+
+    protected long getRhoVersion() {
+        return nextVersion();
+    }
+
+    /**
+     * @param param skyline parameter, or null
+     * @return version of parameter, or 0 if parameter is null
+     */
+    protected static long getVersion(SkylineParameter param) {
+        return param == null ? 0 : param.getVersion();
+    }
+
+    /**
+     * @param param timed parameter, or null
+     * @return version of parameter, or 0 if parameter is null
+     */
+    protected static long getVersion(TimedParameter param) {
+        return param == null ? 0 : param.getVersion();
+    }
 
     protected abstract void validateParameterTypeCounts();
 
@@ -109,63 +368,198 @@ public abstract class Parameterization extends CalculationNode {
         if (!dirty)
             return;
 
-        updateModelEventTimes();
+        boolean timesChanged = updateModelEventTimes();
 
-        if (birthRates == null) {
+        if (birthRates.values == null) {
             validateParameterTypeCounts();
 
-            birthRates = new double[intervalEndTimes.length][nTypes];
-            migRates = new double[intervalEndTimes.length][nTypes][nTypes];
-            crossBirthRates = new double[intervalEndTimes.length][nTypes][nTypes];
-            deathRates = new double[intervalEndTimes.length][nTypes];
-            samplingRates = new double[intervalEndTimes.length][nTypes];
-            removalProbs = new double[intervalEndTimes.length][nTypes];
-            rhoValues = new double[intervalEndTimes.length][nTypes];
-
-            storedBirthRates = new double[intervalEndTimes.length][nTypes];
-            storedMigRates = new double[intervalEndTimes.length][nTypes][nTypes];
-            storedCrossBirthRates = new double[intervalEndTimes.length][nTypes][nTypes];
-            storedDeathRates = new double[intervalEndTimes.length][nTypes];
-            storedSamplingRates = new double[intervalEndTimes.length][nTypes];
-            storedRemovalProbs = new double[intervalEndTimes.length][nTypes];
-            storedRhoValues = new double[intervalEndTimes.length][nTypes];
+            for (Component component : components)
+                component.allocate(intervalEndTimes.length);
+
+            timesChanged = true;
         }
 
-        updateValues();
+        for (IntervalTable table : intervalTables)
+            table.update();
+
+        // Values are evaluated at the interval end times, so all of them
+        // must be recomputed when these times change.
+        for (Component component : components)
+            component.update(timesChanged);
 
         dirty = false;
     }
 
-    private void addTimes(double[] times) {
-        if (times == null)
-            return;
+    /**
+     * Merge sorted arrays of times into a single sorted array, keeping
+     * only the first of any group of times which are equal to within
+     * Utils.globalPrecisionThreshold.  No memory is allocated.
+     *
+     * @param timeArrays array containing the sorted time arrays to merge
+     *                   in its first arrayCount elements (null elements
+     *                   are ignored)
+     * @param arrayCount number of time arrays to merge
+     * @param positions  workspace of length at least arrayCount
+     * @param dest       destination array, large enough to hold all times
+     * @return number of times written to dest
+     */
+    static int mergeSortedTimes(double[][] timeArrays, int arrayCount,
+                                int[] positions, double[] dest) {
+
+        for (int i=0; i<arrayCount; i++)
+            positions[i] = 0;
 
-        for (double time : times)
-            intervalEndTimesSet.add(time);
+        int count = 0;
+        while (true) {
+            int next = -1;
+            for (int i=0; i<arrayCount; i++) {
+                if (timeArrays[i] == null || positions[i] == timeArrays[i].length)
+                    continue;
+
+                if (next < 0 || timeArrays[i][positions[i]] < timeArrays[next][positions[next]])
+                    next = i;
+            }
+
+            if (next < 0)
+                return count;
+
+            double time = timeArrays[next][positions[next]++];
+            if (count == 0 || !Utils.equalWithPrecision(time, dest[count-1]))
+                dest[count++] = time;
+        }
     }
 
-    private void updateModelEventTimes() {
+    /**
+     * Merge the change times of the individual parameters into the array
+     * of interval end times.
+     *
+     * @return true if the interval end times have changed.
+     */
+    private boolean updateModelEventTimes() {
+
+        processEndTime[0] = getTotalProcessLength(); // End time of final interval
+
+        changeTimeArrays[0] = getMigRateChangeTimes();
+        changeTimeArrays[1] = getBirthRateChangeTimes();
+        changeTimeArrays[2] = getCrossBirthRateChangeTimes();
+        changeTimeArrays[3] = getDeathRateChangeTimes();
+        changeTimeArrays[4] = getSamplingRateChangeTimes();
+        changeTimeArrays[5] = getRemovalProbChangeTimes();
+        changeTimeArrays[6] = getRhoSamplingTimes();
+        changeTimeArrays[7] = processEndTime;
 
-        intervalEndTimesSet.clear();
+        int capacity = 0;
+        for (double[] changeTimeArray : changeTimeArrays)
+            capacity += changeTimeArray == null ? 0 : changeTimeArray.length;
 
-        addTimes(getMigRateChangeTimes());
-        addTimes(getBirthRateChangeTimes());
-        addTimes(getCrossBirthRateChangeTimes());
-        addTimes(getDeathRateChangeTimes());
-        addTimes(getSamplingRateChangeTimes());
-        addTimes(getRemovalProbChangeTimes());
-        addTimes(getRhoSamplingTimes());
+        if (changeTimeBuffer.length < capacity)
+            changeTimeBuffer = new double[capacity];
 
-        intervalEndTimesSet.add(getTotalProcessLength()); // End time of final interval
+        int count = mergeSortedTimes(changeTimeArrays, changeTimeArrays.length,
+                changeTimePositions, changeTimeBuffer);
 
         if (intervalEndTimes == null) {
-            intervalEndTimes = new double[intervalEndTimesSet.size()];
-            storedIntervalEndTimes = new double[intervalEndTimesSet.size()];
+            intervalEndTimes = new double[count];
+            storedIntervalEndTimes = new double[count];
+            System.arraycopy(changeTimeBuffer, 0, intervalEndTimes, 0, count);
+            intervalEndTimesVersion = nextVersion();
+
+            return true;
         }
 
-        List<Double> timeList = new ArrayList<>(intervalEndTimesSet);
-        for (int i = 0; i< intervalEndTimesSet.size(); i++)
-            intervalEndTimes[i] = timeList.get(i);
+        if (count != intervalEndTimes.length) {
+
+            // The number of intervals changes when change times come to
+            // coincide or cease to coincide.  A new array is used so that
+            // the stored times remain intact, and all parameters are
+            // considered changed.
+            if (!intervalEndTimesSwapped) {
+                storedIntervalEndTimes = intervalEndTimes;
+                intervalEndTimesSwapped = true;
+            }
+            intervalEndTimes = Arrays.copyOf(changeTimeBuffer, count);
+
+            recordAffectedTime(Double.POSITIVE_INFINITY);
+            intervalEndTimesVersion = nextVersion();
+
+            return true;
+        }
+
+        boolean changed = false;
+        for (int i = 0; i < count; i++) {
+            double time = changeTimeBuffer[i];
+
+            if (time == intervalEndTimes[i])
+                continue;
+
+            if (!intervalEndTimesSwapped) {
+                double[] tmp = intervalEndTimes;
+                intervalEndTimes = storedIntervalEndTimes.length == count
+                        ? storedIntervalEndTimes
+                        : new double[count];
+                storedIntervalEndTimes = tmp;
+                System.arraycopy(storedIntervalEndTimes, 0, intervalEndTimes, 0, count);
+                intervalEndTimesSwapped = true;
+            }
+
+            // Moving a boundary changes the parameters at all times between
+            // its old and new positions.  Moving the end of the process
+            // affects all times.
+            recordAffectedTime(i < count - 1
+                    ? Math.max(time, intervalEndTimes[i])
+                    : Double.POSITIVE_INFINITY);
+
+            intervalEndTimes[i] = time;
+            changed = true;
+        }
+
+        if (changed)
+            intervalEndTimesVersion = nextVersion();
+
+        return changed;
+    }
+
+    /**
+     * Record that the parameters at times up to and including the given
+     * time have changed.
+     *
+     * @param time latest affected time
+     */
+    private void recordAffectedTime(double time) {
+        latestAffectedTime = Math.max(latestAffectedTime, time);
+    }
+
+    /**
+     * @param a first array (may be null)
+     * @param b second array
+     * @return true if the first nTypes elements of the arrays are equal.
+     */
+    private boolean valuesEqual(double[] a, double[] b) {
+        if (a == null)
+            return false;
+
+        for (int i = 0; i < nTypes; i++) {
+            if (a[i] != b[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * The birth-death process is integrated from the present backwards in
+     * time, so changing the parameters of an interval only affects the
+     * probabilities computed at times earlier than or equal to the end of
+     * that interval.
+     *
+     * @return latest time affected by the parameter changes made since the
+     * last accepted (stored) or restored state, or negative infinity if no
+     * parameter has changed.
+     */
+    public double getLatestAffectedTime() {
+        update();
+
+        return latestAffectedTime;
     }
 
     public double[] getIntervalEndTimes() {
@@ -200,66 +594,67 @@ public abstract class Parameterization extends CalculationNode {
         return Math.max(0, Math.min(index, intervalEndTimes.length-1));
     }
 
-    void updateValues() {
-
-        for (int interval = 0; interval < intervalEndTimes.length; interval++) {
-
-            double t = intervalEndTimes[interval];
-            System.arraycopy(getBirthRateValues(t), 0, birthRates[interval], 0, nTypes);
-            System.arraycopy(getDeathRateValues(t), 0, deathRates[interval], 0, nTypes);
-            System.arraycopy(getSamplingRateValues(t), 0, samplingRates[interval], 0, nTypes);
-            System.arraycopy(getRemovalProbValues(t), 0, removalProbs[interval], 0, nTypes);
-            System.arraycopy(getRhoValues(t), 0, rhoValues[interval], 0, nTypes);
-
-            double[][] migRateMatrix = getMigRateValues(t);
-            double[][] crossBirthRateMatrix = getCrossBirthRateValues(t);
-            for (int i=0; i<nTypes; i++) {
-                System.arraycopy(migRateMatrix[i], 0, migRates[interval][i], 0, nTypes);
-                System.arraycopy(crossBirthRateMatrix[i], 0, crossBirthRates[interval][i], 0, nTypes);
-            }
-        }
-    }
-
     public double[][] getBirthRates() {
         update();
 
-        return birthRates;
+        return birthRates.values;
     }
 
     public double[][] getDeathRates() {
         update();
 
-        return deathRates;
+        return deathRates.values;
     }
 
     public double[][] getSamplingRates() {
         update();
 
-        return samplingRates;
+        return samplingRates.values;
     }
 
     public double[][] getRemovalProbs() {
         update();
 
-        return removalProbs;
+        return removalProbs.values;
     }
 
     public double[][] getRhoValues() {
         update();
 
-        return rhoValues;
+        return rhoValues.values;
     }
 
     public double[][][] getMigRates() {
         update();
 
-        return migRates;
+        return migRates.values;
     }
 
     public double[][][] getCrossBirthRates() {
         update();
 
-        return crossBirthRates;
+        return crossBirthRates.values;
+    }
+
+    /**
+     * Map a gradient with respect to the canonical parameters in each
+     * interval onto the values of the skyline and timed parameters from
+     * which these are computed.
+     *
+     * @param rateGradient gradient with respect to the canonical parameters
+     * @return map from the values parameter of each skyline or timed
+     * parameter to the gradient with respect to its elements.  A values
+     * parameter shared by several inputs receives the sum of their
+     * contributions.
+     */
+    public Map<Function, double[]> getParameterGradients(RateGradient rateGradient) {
+        update();
+
+        Map<Function, double[]> gradients = new LinkedHashMap<>();
+        for (int interval=0; interval<intervalEndTimes.length; interval++)
+            addParameterGradients(interval, rateGradient, gradients);
+
+        return gradients;
     }
 
     /**
@@ -293,28 +688,33 @@ public abstract class Parameterization extends CalculationNode {
     }
 
 
-    protected SortedSet<Double> changeTimeSet = new TreeSet<>(Utils::precisionLimitedComparator);
+    private int[] combinePositions = new int[0];
 
     /**
-     * Combine times from individual time arrays, removing duplicates.
+     * Combine times from individual sorted time arrays, removing duplicates.
      *
      * @param changeTimeArrays One or more arrays to combine.
      * @return combined time array
      */
     protected double[] combineAndSortTimes(double[] destArray, double[] ... changeTimeArrays) {
-        changeTimeSet.clear();
 
-        for (double[] changeTimeArray : changeTimeArrays) {
-            for (double t : changeTimeArray)
-                changeTimeSet.add(t);
-        }
+        int capacity = 0;
+        for (double[] changeTimeArray : changeTimeArrays)
+            capacity += changeTimeArray.length;
+
+        if (changeTimeBuffer.length < capacity)
+            changeTimeBuffer = new double[capacity];
+
+        if (combinePositions.length < changeTimeArrays.length)
+            combinePositions = new int[changeTimeArrays.length];
 
-        if (destArray == null || destArray.length != changeTimeSet.size())
-            destArray = new double[changeTimeSet.size()];
+        int count = mergeSortedTimes(changeTimeArrays, changeTimeArrays.length,
+                combinePositions, changeTimeBuffer);
 
-        int i=0;
-        for (double changeTime : changeTimeSet)
-            destArray[i++] = changeTime;
+        if (destArray == null || destArray.length != count)
+            destArray = new double[count];
+
+        System.arraycopy(changeTimeBuffer, 0, destArray, 0, count);
 
         return destArray;
     }
@@ -327,21 +727,15 @@ public abstract class Parameterization extends CalculationNode {
 
     @Override
     protected void store() {
-       System.arraycopy(intervalEndTimes, 0, storedIntervalEndTimes, 0, intervalEndTimes.length);
+        update();
 
-        for (int interval=0; interval<intervalEndTimes.length; interval++) {
+        intervalEndTimesSwapped = false;
+        storedIntervalEndTimesVersion = intervalEndTimesVersion;
 
-            System.arraycopy(birthRates[interval], 0, storedBirthRates[interval], 0, nTypes);
-            System.arraycopy(deathRates[interval], 0, storedDeathRates[interval], 0, nTypes);
-            System.arraycopy(samplingRates[interval], 0, storedSamplingRates[interval], 0, nTypes);
-            System.arraycopy(removalProbs[interval], 0, storedRemovalProbs[interval], 0, nTypes);
-            System.arraycopy(rhoValues[interval], 0, storedRhoValues[interval], 0, nTypes);
+        for (Component component : components)
+            component.store();
 
-            for (int fromType=0; fromType<nTypes; fromType++) {
-                System.arraycopy(migRates[interval][fromType], 0, storedMigRates[interval][fromType], 0, nTypes);
-                System.arraycopy(crossBirthRates[interval][fromType], 0, storedCrossBirthRates[interval][fromType], 0, nTypes);
-            }
-        }
+        latestAffectedTime = Double.NEGATIVE_INFINITY;
 
         super.store();
     }
@@ -349,42 +743,497 @@ public abstract class Parameterization extends CalculationNode {
     @Override
     protected void restore() {
 
-        double[] scalarTmp;
-        double[][] vectorTmp;
-        double[][][] matrixTmp;
+        if (intervalEndTimesSwapped) {
+            double[] tmp = intervalEndTimes;
+            intervalEndTimes = storedIntervalEndTimes;
+            storedIntervalEndTimes = tmp;
+            intervalEndTimesSwapped = false;
+        }
+        intervalEndTimesVersion = storedIntervalEndTimesVersion;
 
-        scalarTmp = intervalEndTimes;
-        intervalEndTimes = storedIntervalEndTimes;
-        storedIntervalEndTimes = scalarTmp;
+        for (Component component : components)
+            component.restore();
 
-        vectorTmp = birthRates;
-        birthRates = storedBirthRates;
-        storedBirthRates = vectorTmp;
+        latestAffectedTime = Double.NEGATIVE_INFINITY;
 
-        vectorTmp = deathRates;
-        deathRates = storedDeathRates;
-        storedDeathRates = vectorTmp;
+        super.restore();
+    }
 
-        vectorTmp = samplingRates;
-        samplingRates = storedSamplingRates;
-        storedSamplingRates = vectorTmp;
+    /**
+     * @param skylineInput input holding a skyline parameter
+     * @return table mapping intervals to the intervals of the parameter
+     */
+    protected IntervalTable createIntervalTable(Input<? extends SkylineParameter> skylineInput) {
+        return new IntervalTable(skylineInput, null);
+    }
 
-        vectorTmp = removalProbs;
-        removalProbs = storedRemovalProbs;
-        storedRemovalProbs = vectorTmp;
+    /**
+     * @param timedInput input holding a timed parameter
+     * @return table mapping intervals to the times of the parameter
+     */
+    protected IntervalTable createTimedIntervalTable(Input<TimedParameter> timedInput) {
+        return new IntervalTable(null, timedInput);
+    }
 
-        vectorTmp = rhoValues;
-        rhoValues = storedRhoValues;
-        storedRhoValues = vectorTmp;
+    /**
+     * Copy the values of a skyline vector in an interval to dest.
+     *
+     * @param param    skyline parameter, or null if zero
+     * @param table    interval table of the parameter
+     * @param interval index of interval of the parameterization
+     * @param dest     destination array
+     */
+    protected static void copyValues(SkylineVectorParameter param, IntervalTable table,
+                                     int interval, double[] dest) {
+        if (param == null)
+            Arrays.fill(dest, 0.0);
+        else
+            System.arraycopy(param.getValuesInInterval(table.get(interval)), 0,
+                    dest, 0, dest.length);
+    }
 
-        matrixTmp = migRates;
-        migRates = storedMigRates;
-        storedMigRates = matrixTmp;
+    /**
+     * Copy the values of a skyline matrix in an interval to dest.
+     *
+     * @param param    skyline parameter, or null if zero
+     * @param table    interval table of the parameter
+     * @param interval index of interval of the parameterization
+     * @param dest     destination matrix
+     */
+    protected static void copyValues(SkylineMatrixParameter param, IntervalTable table,
+                                     int interval, double[][] dest) {
+        if (param == null) {
+            for (double[] row : dest)
+                Arrays.fill(row, 0.0);
+            return;
+        }
 
-        matrixTmp = crossBirthRates;
-        crossBirthRates = storedCrossBirthRates;
-        storedCrossBirthRates = matrixTmp;
+        double[][] values = param.getValuesInInterval(table.get(interval));
+        for (int i=0; i<dest.length; i++)
+            System.arraycopy(values[i], 0, dest[i], 0, dest[i].length);
+    }
 
-        super.restore();
+    /**
+     * Copy the values of a timed parameter at the end of an interval to
+     * dest, or zeros if the parameter has no time at the end of the
+     * interval.
+     *
+     * @param param    timed parameter, or null if zero
+     * @param table    interval table of the parameter
+     * @param interval index of interval of the parameterization
+     * @param dest     destination array
+     */
+    protected static void copyValues(TimedParameter param, IntervalTable table,
+                                     int interval, double[] dest) {
+        if (param == null || table.get(interval) < 0)
+            Arrays.fill(dest, 0.0);
+        else
+            System.arraycopy(param.getValuesAtTimeIndex(table.get(interval)), 0,
+                    dest, 0, dest.length);
+    }
+
+    /**
+     * Add a gradient with respect to the values of a skyline vector in an
+     * interval to the gradient with respect to its values parameter.
+     *
+     * @param param     skyline parameter, or null if zero
+     * @param table     interval table of the parameter
+     * @param interval  index of interval of the parameterization
+     * @param gradient  gradient with respect to the value of each type
+     * @param gradients gradients with respect to the elements of each values
+     *                  parameter
+     */
+    protected static void addGradient(SkylineVectorParameter param, IntervalTable table,
+                                      int interval, double[] gradient,
+                                      Map<Function, double[]> gradients) {
+        if (param == null)
+            return;
+
+        param.addValuesGradient(table.get(interval), gradient,
+                getGradient(param.skylineValuesInput.get(), gradients));
+    }
+
+    /**
+     * Add a gradient with respect to the values of a skyline matrix in an
+     * interval to the gradient with respect to its values parameter.
+     *
+     * @param param     skyline parameter, or null if zero
+     * @param table     interval table of the parameter
+     * @param interval  index of interval of the parameterization
+     * @param gradient  gradient with respect to each element of the matrix
+     * @param gradients gradients with respect to the elements of each values
+     *                  parameter
+     */
+    protected static void addGradient(SkylineMatrixParameter param, IntervalTable table,
+                                      int interval, double[][] gradient,
+                                      Map<Function, double[]> gradients) {
+        if (param == null)
+            return;
+
+        param.addValuesGradient(table.get(interval), gradient,
+                getGradient(param.skylineValuesInput.get(), gradients));
+    }
+
+    /**
+     * Add a gradient with respect to the values of a timed parameter at
+     * the end of an interval to the gradient with respect to its values
+     * parameter.  Nothing is added if the parameter has no time at the end
+     * of the interval.
+     *
+     * @param param     timed parameter, or null if zero
+     * @param table     interval table of the parameter
+     * @param interval  index of interval of the parameterization
+     * @param gradient  gradient with respect to the value of each type
+     * @param gradients gradients with respect to the elements of each values
+     *                  parameter
+     */
+    protected static void addGradient(TimedParameter param, IntervalTable table,
+                                      int interval, double[] gradient,
+                                      Map<Function, double[]> gradients) {
+        if (param == null || table.get(interval) < 0)
+            return;
+
+        param.addValuesGradient(table.get(interval), gradient,
+                getGradient(param.valuesInput.get(), gradients));
+    }
+
+    /**
+     * @param values    values parameter
+     * @param gradients gradients with respect to the elements of each values
+     *                  parameter
+     * @return gradient with respect to the elements of values, added to
+     * gradients (initially zero) if not already present.
+     */
+    private static double[] getGradient(Function values, Map<Function, double[]> gradients) {
+        return gradients.computeIfAbsent(values, v -> new double[v.getDimension()]);
+    }
+
+    /**
+     * Table mapping each interval of the parameterization to the interval of
+     * a skyline parameter containing it or, for a timed parameter, to the
+     * index of the time coinciding with the end of the interval (-1 if there
+     * is no such time).
+     *
+     * Tables are created as fields of the subclass, and are recomputed in a
+     * single pass over the interval end times whenever the parameter or the
+     * interval end times change.  Tables for unset inputs are left empty.
+     */
+    protected class IntervalTable {
+
+        private final Input<? extends SkylineParameter> skylineInput;
+        private final Input<TimedParameter> timedInput;
+
+        private int[] indices = new int[0];
+        private long paramVersion = -1, endTimesVersion = -1;
+
+        private IntervalTable(Input<? extends SkylineParameter> skylineInput,
+                              Input<TimedParameter> timedInput) {
+            this.skylineInput = skylineInput;
+            this.timedInput = timedInput;
+            intervalTables.add(this);
+        }
+
+        /**
+         * @param interval index of interval of the parameterization
+         * @return index of the corresponding parameter interval or time
+         */
+        protected int get(int interval) {
+            return indices[interval];
+        }
+
+        void update() {
+            long newParamVersion = skylineInput != null
+                    ? getVersion(skylineInput.get())
+                    : getVersion(timedInput.get());
+
+            if (newParamVersion == paramVersion
+                    && endTimesVersion == intervalEndTimesVersion)
+                return;
+
+            if (indices.length != intervalEndTimes.length)
+                indices = new int[intervalEndTimes.length];
+
+            if (skylineInput != null && skylineInput.get() != null) {
+
+                // Interval end times lying on a change time belong to the
+                // earlier parameter interval.
+                double[] changeTimes = skylineInput.get().getChangeTimes();
+                int idx = 0;
+                for (int interval=0; interval<indices.length; interval++) {
+                    while (idx < changeTimes.length && changeTimes[idx] < intervalEndTimes[interval])
+                        idx += 1;
+
+                    indices[interval] = idx;
+                }
+
+            } else if (timedInput != null && timedInput.get() != null) {
+
+                double[] times = timedInput.get().getTimes();
+                int idx = 0;
+                for (int interval=0; interval<indices.length; interval++) {
+                    while (idx < times.length && times[idx] < intervalEndTimes[interval])
+                        idx += 1;
+
+                    indices[interval] = idx < times.length && times[idx] == intervalEndTimes[interval]
+                            ? idx
+                            : -1;
+                }
+            }
+
+            paramVersion = newParamVersion;
+            endTimesVersion = intervalEndTimesVersion;
+        }
+    }
+
+    /**
+     * Values of one of the canonical parameters in each interval.
+     *
+     * The values are only recomputed when the version of the parameters
+     * they are derived from has changed.  Before the values are first
+     * recomputed following a call to store(), the current and stored arrays
+     * are swapped, so that the stored array holds the values at the time of
+     * the call and restore() only needs to swap the arrays back.
+     *
+     * Consecutive intervals with identical values share a single array
+     * (block) holding these values, so that only the values which change
+     * at an interval boundary are materialized.  Blocks are drawn from a
+     * pool which is only extended when the number of distinct blocks grows.
+     */
+    private abstract class Component {
+
+        private final LongSupplier versionSupplier;
+        private long version = -1, storedVersion = -1;
+        private boolean swapped;
+
+        /**
+         * Number of blocks used by the values computed so far.
+         */
+        int blockCount;
+
+        Component(LongSupplier versionSupplier) {
+            this.versionSupplier = versionSupplier;
+        }
+
+        /**
+         * Recompute the values if the parameters they are derived from have
+         * changed.
+         *
+         * @param force if true, recompute the values regardless
+         */
+        void update(boolean force) {
+            long newVersion = versionSupplier.getAsLong();
+
+            if (!force && newVersion == version)
+                return;
+
+            if (!swapped) {
+                swapValues();
+                swapped = true;
+            }
+
+            if (getIntervalCount() != intervalEndTimes.length)
+                resize(intervalEndTimes.length);
+
+            blockCount = 0;
+            for (int interval = 0; interval < intervalEndTimes.length; interval++) {
+                if (computeValues(interval))
+                    recordAffectedTime(intervalEndTimes[interval]);
+            }
+
+            version = newVersion;
+        }
+
+        void store() {
+            storedVersion = version;
+            swapped = false;
+        }
+
+        void restore() {
+            if (swapped) {
+                swapValues();
+                swapped = false;
+            }
+
+            version = storedVersion;
+        }
+
+        abstract void allocate(int nIntervals);
+
+        /**
+         * @return number of intervals the current values array holds.
+         */
+        abstract int getIntervalCount();
+
+        /**
+         * Replace the current values array by one holding a different
+         * number of intervals, leaving the stored values intact.
+         *
+         * @param nIntervals number of intervals
+         */
+        abstract void resize(int nIntervals);
+
+        abstract void swapValues();
+
+        /**
+         * Compute the values in an interval.
+         *
+         * @param interval index of interval
+         * @return true if the values differ from the stored values.
+         */
+        abstract boolean computeValues(int interval);
+
+        /**
+         * Find the size of a block pool able to hold a given number of blocks.
+         *
+         * @param poolSize current pool size
+         * @param nBlocks required number of blocks
+         * @return new pool size
+         */
+        int growPool(int poolSize, int nBlocks) {
+            return Math.max(nBlocks, Math.min(2*poolSize, intervalEndTimes.length));
+        }
+    }
+
+    private class VectorComponent extends Component {
+
+        private final ObjIntConsumer<double[]> valueFunction;
+        double[][] values, storedValues;
+        private double[][] pool, storedPool;
+
+        VectorComponent(LongSupplier versionSupplier,
+                        ObjIntConsumer<double[]> valueFunction) {
+            super(versionSupplier);
+            this.valueFunction = valueFunction;
+        }
+
+        @Override
+        void allocate(int nIntervals) {
+            values = new double[nIntervals][];
+            storedValues = new double[nIntervals][];
+            pool = new double[0][];
+            storedPool = new double[0][];
+        }
+
+        @Override
+        int getIntervalCount() {
+            return values.length;
+        }
+
+        @Override
+        void resize(int nIntervals) {
+            values = new double[nIntervals][];
+        }
+
+        @Override
+        void swapValues() {
+            double[][] tmp = values;
+            values = storedValues;
+            storedValues = tmp;
+
+            tmp = pool;
+            pool = storedPool;
+            storedPool = tmp;
+        }
+
+        @Override
+        boolean computeValues(int interval) {
+
+            // Values are computed directly into the next free block, which
+            // is only claimed if they differ from those of the previous
+            // interval.
+            if (blockCount == pool.length)
+                pool = Arrays.copyOf(pool, growPool(pool.length, blockCount+1));
+
+            if (pool[blockCount] == null)
+                pool[blockCount] = new double[nTypes];
+
+            valueFunction.accept(pool[blockCount], interval);
+
+            if (interval == 0 || !valuesEqual(values[interval-1], pool[blockCount]))
+                values[interval] = pool[blockCount++];
+            else
+                values[interval] = values[interval-1];
+
+            return interval >= storedValues.length
+                    || !valuesEqual(storedValues[interval], values[interval]);
+        }
+    }
+
+    private class MatrixComponent extends Component {
+
+        private final ObjIntConsumer<double[][]> valueFunction;
+        double[][][] values, storedValues;
+        private double[][][] pool, storedPool;
+
+        MatrixComponent(LongSupplier versionSupplier,
+                        ObjIntConsumer<double[][]> valueFunction) {
+            super(versionSupplier);
+            this.valueFunction = valueFunction;
+        }
+
+        @Override
+        void allocate(int nIntervals) {
+            values = new double[nIntervals][][];
+            storedValues = new double[nIntervals][][];
+            pool = new double[0][][];
+            storedPool = new double[0][][];
+        }
+
+        @Override
+        int getIntervalCount() {
+            return values.length;
+        }
+
+        @Override
+        void resize(int nIntervals) {
+            values = new double[nIntervals][][];
+        }
+
+        @Override
+        void swapValues() {
+            double[][][] tmp = values;
+            values = storedValues;
+            storedValues = tmp;
+
+            tmp = pool;
+            pool = storedPool;
+            storedPool = tmp;
+        }
+
+        /**
+         * @param a first matrix (may be null)
+         * @param b second matrix
+         * @return true if the matrices are equal.
+         */
+        private boolean matricesEqual(double[][] a, double[][] b) {
+            if (a == null)
+                return false;
+
+            for (int i=0; i<nTypes; i++) {
+                if (!valuesEqual(a[i], b[i]))
+                    return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        boolean computeValues(int interval) {
+            if (blockCount == pool.length)
+                pool = Arrays.copyOf(pool, growPool(pool.length, blockCount+1));
+
+            if (pool[blockCount] == null)
+                pool[blockCount] = new double[nTypes][nTypes];
+
+            valueFunction.accept(pool[blockCount], interval);
+
+            if (interval == 0 || !matricesEqual(values[interval-1], pool[blockCount]))
+                values[interval] = pool[blockCount++];
+            else
+                values[interval] = values[interval-1];
+
+            return interval >= storedValues.length
+                    || !matricesEqual(storedValues[interval], values[interval]);
+        }
     }
 }
@@ -0,0 +1,28 @@
+package bdmmprime.parameterization;
+
+/**
+ * Gradient of a function of the canonical parameters, such as the tree
+ * log likelihood, with respect to the values these parameters take in
+ * each interval of a parameterization.  The arrays are indexed in the
+ * same way as those returned by Parameterization.getBirthRates() etc.
+ */
+public class RateGradient {
+
+    public final double[][] birthRates, deathRates, samplingRates,
+            removalProbs, rhoValues;
+    public final double[][][] migRates, crossBirthRates;
+
+    /**
+     * @param nIntervals number of intervals of the parameterization
+     * @param nTypes number of types
+     */
+    public RateGradient(int nIntervals, int nTypes) {
+        birthRates = new double[nIntervals][nTypes];
+        deathRates = new double[nIntervals][nTypes];
+        samplingRates = new double[nIntervals][nTypes];
+        removalProbs = new double[nIntervals][nTypes];
+        rhoValues = new double[nIntervals][nTypes];
+        migRates = new double[nIntervals][nTypes][nTypes];
+        crossBirthRates = new double[nIntervals][nTypes][nTypes];
+    }
+}
@@ -11,7 +11,6 @@ import java.io.PrintStream;
 public class SkylineMatrixParameter extends SkylineParameter {
 
     double[][][] values, storedValues;
-    double[][] valuesAtTime;
 
     boolean inputIsScalar;
 
@@ -62,8 +61,6 @@ public class SkylineMatrixParameter extends SkylineParameter {
 
         values = new double[nIntervals][nTypes][nTypes];
         storedValues = new double[nIntervals][nTypes][nTypes];
-
-        valuesAtTime = new double[nTypes][nTypes];
     }
 
     @Override
@@ -95,19 +92,61 @@ public class SkylineMatrixParameter extends SkylineParameter {
      * Retrieve value of matrix parameter at particular time (not age).
      *
      * @param time when to evaluate the parameter.
-     * @return the matrix value at the chosen time.
+     * @return copy of the matrix value at the chosen time.
      */
     public double[][] getValuesAtTime(double time) {
         update();
 
         int intervalIdx = getIntervalIdx(time);
 
+        double[][] res = new double[nTypes][];
+        for (int i=0; i<nTypes; i++)
+            res[i] = values[intervalIdx][i].clone();
+
+        return res;
+    }
+
+    /**
+     * Retrieve value of matrix parameter in a chosen interval.  The array
+     * returned belongs to the parameter and must not be modified.
+     *
+     * @param interval index of skyline interval, in order of increasing time.
+     * @return the matrix value in the chosen interval.
+     */
+    public double[][] getValuesInInterval(int interval) {
+        update();
+
+        return values[interval];
+    }
+
+    /**
+     * Add a gradient with respect to the value of the matrix in a chosen
+     * interval to a gradient with respect to the elements of the skyline
+     * values parameter.  Diagonal elements of the gradient are ignored.
+     *
+     * @param interval index of skyline interval, in order of increasing time.
+     * @param gradient gradient with respect to each element of the matrix.
+     * @param dest gradient with respect to the elements of the values parameter.
+     */
+    public void addValuesGradient(int interval, double[][] gradient, double[] dest) {
+        update();
+
+        int valuesInterval = timesAreAges ? nIntervals - 1 - interval : interval;
+
+        int idx = valuesInterval*nTypes*(nTypes-1);
         for (int i=0; i<nTypes; i++) {
-            System.arraycopy(values[intervalIdx][i], 0,
-                    valuesAtTime[i], 0, nTypes);
-        }
+            for (int j=0; j<nTypes; j++) {
+                if (i==j)
+                    continue;
+
+                if (inputIsScalar)
+                    dest[valuesInterval] += gradient[i][j];
+                else
+                    dest[idx] += gradient[i][j];
 
-        return valuesAtTime;
+                idx += 1;
+            }
+        }
     }
 
     public int getNTypes() {
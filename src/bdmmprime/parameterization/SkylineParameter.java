@@ -48,6 +48,8 @@ public abstract class SkylineParameter extends CalculationNode implements Loggab
 
     boolean isDirty;
 
+    long version, storedVersion;
+
     public SkylineParameter() { }
 
     public SkylineParameter(Function changeTimesParam,
@@ -118,6 +120,15 @@ public abstract class SkylineParameter extends CalculationNode implements Loggab
         return times.length;
     }
 
+    /**
+     * @return version number identifying the current times and values.
+     */
+    public long getVersion() {
+        update();
+
+        return version;
+    }
+
 
 	protected void update() {
 	    if (!isDirty)
@@ -126,6 +137,7 @@ public abstract class SkylineParameter extends CalculationNode implements Loggab
 	    updateTimes();
 	    updateValues();
 
+        version = Parameterization.nextVersion();
         isDirty = false;
     }
 
@@ -193,6 +205,7 @@ public abstract class SkylineParameter extends CalculationNode implements Loggab
             storedTimes = tmp;
         }
 
+        version = storedVersion;
         isDirty = false;
     }
 
@@ -202,6 +215,8 @@ public abstract class SkylineParameter extends CalculationNode implements Loggab
 
         if (nIntervals>1)
             System.arraycopy(times, 0, storedTimes, 0, times.length);
+
+        storedVersion = version;
     }
 
     @Override
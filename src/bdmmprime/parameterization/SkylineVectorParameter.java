@@ -8,7 +8,6 @@ import java.io.PrintStream;
 public class SkylineVectorParameter extends SkylineParameter {
 
     double[][] values, storedValues;
-    double[] valuesAtTime;
 
     boolean inputIsScalar;
 
@@ -54,8 +53,6 @@ public class SkylineVectorParameter extends SkylineParameter {
 
         values = new double[nIntervals][nTypes];
         storedValues = new double[nIntervals][nTypes];
-
-        valuesAtTime = new double[nTypes];
     }
 
     @Override
@@ -78,16 +75,47 @@ public class SkylineVectorParameter extends SkylineParameter {
      * Retrieve value of vector at a chosen time (not age).
      *
      * @param time when to evaluate the skyline parameter.
-     * @return value of the vector at the chosen time.
+     * @return copy of the value of the vector at the chosen time.
      */
     public double[] getValuesAtTime(double time) {
         update();
 
-        int intervalIdx = getIntervalIdx(time);
+        return values[getIntervalIdx(time)].clone();
+    }
+
+    /**
+     * Retrieve value of vector in a chosen interval.  The array returned
+     * belongs to the parameter and must not be modified.
+     *
+     * @param interval index of skyline interval, in order of increasing time.
+     * @return value of the vector in the chosen interval.
+     */
+    public double[] getValuesInInterval(int interval) {
+        update();
 
-        System.arraycopy(values[intervalIdx], 0, valuesAtTime, 0, nTypes);
+        return values[interval];
+    }
 
-        return valuesAtTime;
+    /**
+     * Add a gradient with respect to the value of the vector in a chosen
+     * interval to a gradient with respect to the elements of the skyline
+     * values parameter.
+     *
+     * @param interval index of skyline interval, in order of increasing time.
+     * @param gradient gradient with respect to the value of each type.
+     * @param dest gradient with respect to the elements of the values parameter.
+     */
+    public void addValuesGradient(int interval, double[] gradient, double[] dest) {
+        update();
+
+        int valuesInterval = timesAreAges ? nIntervals - 1 - interval : interval;
+
+        for (int i=0; i<nTypes; i++) {
+            if (inputIsScalar)
+                dest[valuesInterval] += gradient[i];
+            else
+                dest[valuesInterval*nTypes + i] += gradient[i];
+        }
     }
 
     public int getNTypes() {
@@ -49,11 +49,12 @@ public class TimedParameter extends CalculationNode implements Loggable {
 
     double[] times, storedTimes;
     double[][] values, storedValues;
-    double[] valuesAtTime, zeroValuesAtTime;
     int nTimes, nTypes;
 
     boolean isDirty;
 
+    long version, storedVersion;
+
     public TimedParameter() { }
 
     public TimedParameter(RealParameter timesParam, RealParameter valuesParam) {
@@ -129,11 +130,6 @@ public class TimedParameter extends CalculationNode implements Loggable {
         values = new double[nTimes][nTypes];
         storedValues = new double[nTimes][nTypes];
 
-        valuesAtTime = new double[nTypes];
-
-        zeroValuesAtTime = new double[nTypes];
-        Arrays.fill(zeroValuesAtTime, 0.0);
-
         isDirty = true;
     }
 
@@ -149,21 +145,68 @@ public class TimedParameter extends CalculationNode implements Loggable {
         return times;
     }
 
+    /**
+     * @return version number identifying the current times and values.
+     */
+    public long getVersion() {
+        update();
+
+        return version;
+    }
+
     public int getTimeCount() {
         return times.length;
     }
 
+    /**
+     * @param time time at which to evaluate the parameter.
+     * @return copy of the values associated with the chosen time, or zeros
+     * if no values are associated with it.
+     */
     public double[] getValuesAtTime(double time) {
         update();
 
         int intervalIdx = Arrays.binarySearch(times, time);
 
         if (intervalIdx<0)
-            return zeroValuesAtTime;
+            return new double[nTypes];
+
+        return values[intervalIdx].clone();
+    }
 
-        System.arraycopy(values[intervalIdx], 0, valuesAtTime, 0, nTypes);
+    /**
+     * Retrieve the values associated with one of the parameter times.  The
+     * array returned belongs to the parameter and must not be modified.
+     *
+     * @param timeIdx index of time, in order of increasing time.
+     * @return values associated with the chosen time.
+     */
+    public double[] getValuesAtTimeIndex(int timeIdx) {
+        update();
 
-        return valuesAtTime;
+        return values[timeIdx];
+    }
+
+    /**
+     * Add a gradient with respect to the values associated with one of the
+     * parameter times to a gradient with respect to the elements of the
+     * values parameter.
+     *
+     * @param timeIdx index of time, in order of increasing time.
+     * @param gradient gradient with respect to the value of each type.
+     * @param dest gradient with respect to the elements of the values parameter.
+     */
+    public void addValuesGradient(int timeIdx, double[] gradient, double[] dest) {
+        update();
+
+        int valuesIdx = timesAreAges ? nTimes - 1 - timeIdx : timeIdx;
+
+        for (int typeIdx=0; typeIdx<nTypes; typeIdx++) {
+            if (inputIsScalar)
+                dest[valuesIdx] += gradient[typeIdx];
+            else
+                dest[valuesIdx*nTypes + typeIdx] += gradient[typeIdx];
+        }
     }
 
     private void update() {
@@ -173,6 +216,7 @@ public class TimedParameter extends CalculationNode implements Loggable {
         updateTimes();
         updateValues();
 
+        version = Parameterization.nextVersion();
         isDirty = false;
     }
 
@@ -225,6 +269,8 @@ public class TimedParameter extends CalculationNode implements Loggable {
 
         for (int timeIdx=0; timeIdx<nTimes; timeIdx++)
             System.arraycopy(values[timeIdx], 0, storedValues[timeIdx], 0, nTypes);
+
+        storedVersion = version;
     }
 
     @Override
@@ -240,6 +286,8 @@ public class TimedParameter extends CalculationNode implements Loggable {
         tmpVals = values;
         values = storedValues;
         storedValues = tmpVals;
+
+        version = storedVersion;
     }
 
     @Override
@@ -0,0 +1,116 @@
+package bdmmprime.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Pool of worker threads shared by the BDMM-Prime components of an
+ * analysis.  All components referring to the same scheduler submit their
+ * tasks to a single work-stealing pool, so that the total number of worker
+ * threads is bounded by the thread budget of the scheduler no matter how
+ * many likelihoods (or MC3 chains) run in the same JVM.
+ *
+ * Components which are not given a scheduler use the default scheduler,
+ * which is shared by the whole JVM and has one thread per available
+ * processor.  The pool is created on first use.  Its worker threads are
+ * daemon threads, which the pool retires once idle, so an unused pool
+ * never prevents the JVM from exiting.  shutdown() releases the threads
+ * straight away.
+ *
+ * The threads of the pool help the thread evaluating a component rather
+ * than replacing it, and components may cap the number of threads of the
+ * pool they use at once, so that several components evaluated in
+ * parallel each get a share of the pool.
+ */
+@Description("Pool of worker threads shared by the BDMM-Prime components " +
+        "which refer to it, bounding the total number of threads they use.")
+public class ComputeScheduler extends BEASTObject implements AutoCloseable {
+
+    public Input<Integer> threadsInput = new Input<>("threads",
+            "Maximum number of worker threads. (Default is the number of " +
+                    "available processors.)",
+            Runtime.getRuntime().availableProcessors());
+
+    private static ComputeScheduler defaultScheduler;
+
+    private int threadCount;
+    private ForkJoinPool pool;
+
+    public ComputeScheduler() { }
+
+    /**
+     * @param threadCount maximum number of worker threads
+     */
+    public ComputeScheduler(int threadCount) {
+        threadsInput.setValue(threadCount, this);
+        initAndValidate();
+    }
+
+    @Override
+    public synchronized void initAndValidate() {
+        if (threadsInput.get() < 1)
+            throw new IllegalArgumentException("Compute scheduler requires " +
+                    "at least one thread.");
+
+        if (pool != null && threadsInput.get() != threadCount)
+            shutdown();
+
+        threadCount = threadsInput.get();
+    }
+
+    /**
+     * @return scheduler shared by all components not given a scheduler of
+     * their own.
+     */
+    public static synchronized ComputeScheduler getDefault() {
+        if (defaultScheduler == null)
+            defaultScheduler = new ComputeScheduler(Runtime.getRuntime().availableProcessors());
+
+        return defaultScheduler;
+    }
+
+    /**
+     * @return maximum number of worker threads.
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Obtain the pool to submit tasks to, creating it if necessary.  A pool
+     * is created again if the scheduler has been shut down.
+     *
+     * @return pool of worker threads, or null if the thread budget is a
+     * single thread, in which case tasks are to be run on the calling
+     * thread.
+     */
+    public synchronized ForkJoinPool getPool() {
+        if (threadCount <= 1)
+            return null;
+
+        if (pool == null)
+            pool = new ForkJoinPool(threadCount);
+
+        return pool;
+    }
+
+    /**
+     * Shut down the pool of worker threads.  Tasks already submitted are
+     * completed.
+     */
+    public synchronized void shutdown() {
+        if (pool == null)
+            return;
+
+        pool.shutdown();
+        pool = null;
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+}
@@ -0,0 +1,79 @@
+package bdmmprime.util;
+
+import beast.evolution.tree.Node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Non-recursive tree traversals.  These use an explicit stack rather than
+ * the call stack, so that very deep (e.g. caterpillar-like) trees can be
+ * traversed without risking a StackOverflowError.
+ */
+public class TreeTraversal {
+
+    /**
+     * Obtain the nodes of a subtree in post-order: the children of each
+     * node appear in order and before the node itself, and the nodes of
+     * each subtree occupy a contiguous range ending with the subtree root.
+     *
+     * @param subtreeRoot root of subtree
+     * @return list of nodes in post-order
+     */
+    public static List<Node> getPostOrder(Node subtreeRoot) {
+
+        // Pre-order with children visited in reverse, reversed.
+        List<Node> postOrder = new ArrayList<>();
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(subtreeRoot);
+
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            postOrder.add(node);
+
+            for (Node child : node.getChildren())
+                stack.push(child);
+        }
+
+        Collections.reverse(postOrder);
+
+        return postOrder;
+    }
+
+    /**
+     * Fill an array with the numbers of the nodes of a subtree in post-order,
+     * as defined by getPostOrder().
+     *
+     * @param subtreeRoot root of subtree
+     * @param postOrder   array of length at least equal to the number of nodes
+     *                    in the subtree
+     * @param stack       workspace of the same length as postOrder
+     * @return number of nodes in subtree
+     */
+    public static int getPostOrderNrs(Node subtreeRoot, int[] postOrder, Node[] stack) {
+
+        int count = 0;
+        int stackSize = 0;
+        stack[stackSize++] = subtreeRoot;
+
+        while (stackSize > 0) {
+            Node node = stack[--stackSize];
+            postOrder[count++] = node.getNr();
+
+            for (Node child : node.getChildren())
+                stack[stackSize++] = child;
+        }
+
+        // Reverse pre-order with children visited in reverse
+        for (int i = 0; i < count/2; i++) {
+            int tmp = postOrder[i];
+            postOrder[i] = postOrder[count - 1 - i];
+            postOrder[count - 1 - i] = tmp;
+        }
+
+        return count;
+    }
+}
@@ -131,4 +131,25 @@ public class Utils {
                 - GammaFunction.lnGamma(k + 1.0)
                 - GammaFunction.lnGamma(n - k + 1.0);
     }
+
+    /**
+     * Evaluate the Lagrange basis polynomials of a set of distinct nodes,
+     * i.e. the weights of the values at the nodes in the value at x of the
+     * polynomial interpolating them.
+     *
+     * @param nodes interpolation nodes
+     * @param x     point at which to evaluate the basis polynomials
+     * @param dest  array receiving the value of each basis polynomial
+     */
+    public static void computeLagrangeBasis(double[] nodes, double x, double[] dest) {
+        for (int i = 0; i < nodes.length; i++) {
+            double value = 1.0;
+            for (int j = 0; j < nodes.length; j++) {
+                if (j != i)
+                    value *= (x - nodes[j]) / (nodes[i] - nodes[j]);
+            }
+
+            dest[i] = value;
+        }
+    }
 }
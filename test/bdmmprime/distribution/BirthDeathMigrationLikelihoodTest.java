@@ -1,13 +1,31 @@
 package bdmmprime.distribution;
 
 import bdmmprime.parameterization.*;
+import bdmmprime.util.ComputeScheduler;
+import beast.core.Function;
+import beast.core.State;
+import beast.core.StateNode;
 import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Node;
 import beast.evolution.tree.Tree;
 import beast.util.TreeParser;
 import org.apache.commons.math.special.Gamma;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
 
 
 /**
@@ -1317,6 +1335,1346 @@ public class BirthDeathMigrationLikelihoodTest {
         assertEquals(-16.466832439520886 + labeledTreeConversionFactor(density), density.calculateLogP(), 1e-4); // result from BDMM, 28/06/2017
     }
 
+	/**
+	 * Two-type tree used by the tests comparing alternative ways of
+	 * computing the likelihood.
+	 */
+	private static final String TWO_TYPE_TEST_TREE =
+			"((3[&type=0]:1.5,4[&type=1]:0.5):1,(1[&type=1]:1,2[&type=0]:1):3);";
+
+	/**
+	 * Two-type tree with several leaves sampled at the same time, some of
+	 * them with the same type.
+	 */
+	private static final String TWO_TYPE_TEST_TREE_SHARED_TIMES =
+			"((1[&type=0]:1.0,2[&type=0]:1.0):1.5,"
+			+ "(3[&type=0]:1.0,(4[&type=0]:0.7,5[&type=1]:0.7):0.3):1.5);";
+
+	/**
+	 * Build the two-type parameterization of testAmongRateChange(), with
+	 * an origin at 4.1 and a rate change at time 1.0.
+	 *
+	 * @param rhoSampling whether to add rho sampling at times 0.0 and 0.8
+	 * @return parameterization
+	 */
+	private Parameterization getTwoTypeTestParameterization(boolean rhoSampling) {
+		return getTwoTypeTestParameterization("1.1 1.3 1.2 1.15", "0.1 0.15 0.2 0.25", rhoSampling);
+	}
+
+	/**
+	 * Build the two-type parameterization of testAmongRateChange() with
+	 * the given R0 among demes and migration rates.
+	 *
+	 * @param R0AmongDemesValues R0 among demes before and after the change
+	 * @param migrationRateValues migration rates before and after the change
+	 * @param rhoSampling whether to add rho sampling at times 0.0 and 0.8
+	 * @return parameterization
+	 */
+	private Parameterization getTwoTypeTestParameterization(String R0AmongDemesValues,
+															String migrationRateValues,
+															boolean rhoSampling) {
+
+        RealParameter originParam = new RealParameter("4.1");
+
+        List<Object> inputs = new ArrayList<>(Arrays.asList(
+                "origin", originParam,
+                "typeSet", new TypeSet(2),
+                "R0", new SkylineVectorParameter(
+                        new RealParameter("1.0"),
+                        new RealParameter("6 5 2 2.5"), 2),
+                "becomeUninfectiousRate", new SkylineVectorParameter(
+                        new RealParameter("1.0"),
+                        new RealParameter("0.5 0.55 0.45 0.6"), 2),
+                "samplingProportion", new SkylineVectorParameter(
+                        new RealParameter("1.0"),
+                        new RealParameter("0.5 0.45 0.333333 0.35"), 2),
+                "R0AmongDemes", new SkylineMatrixParameter(
+                        new RealParameter("1.0"),
+                        new RealParameter(R0AmongDemesValues), 2),
+                "migrationRate", new SkylineMatrixParameter(
+                        new RealParameter("1.0"),
+                        new RealParameter(migrationRateValues)),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2)));
+
+        if (rhoSampling)
+            inputs.addAll(Arrays.asList("rhoSampling", new TimedParameter(
+                    new RealParameter("0.0 0.8"),
+                    new RealParameter("0.3 0.2"),
+                    originParam)));
+
+        Parameterization parameterization = new EpiParameterization();
+        parameterization.initByName(inputs.toArray());
+
+        return parameterization;
+    }
+
+	/**
+	 * Build a density for the two-type test parameterization with equal
+	 * type frequencies and no conditioning on survival.
+	 *
+	 * @param parameterization parameterization
+	 * @param tree tree
+	 * @param extraInputs names and values of further inputs of the density
+	 * @return density
+	 */
+	private BirthDeathMigrationDistribution getTwoTypeTestDensity(Parameterization parameterization,
+																  Tree tree, Object... extraInputs) {
+
+        List<Object> inputs = new ArrayList<>(Arrays.asList(
+                "parameterization", parameterization,
+                "frequencies", new RealParameter("0.5 0.5"),
+                "conditionOnSurvival", false,
+                "tree", tree,
+                "typeLabel", "type",
+                "parallelize", false));
+        inputs.addAll(Arrays.asList(extraInputs));
+
+        BirthDeathMigrationDistribution density = new BirthDeathMigrationDistribution();
+        density.initByName(inputs.toArray());
+
+        return density;
+    }
+
+	/**
+	 * Two-type tree for the many-epoch test parameterization.  Leaf 2 is
+	 * sampled at time 3.0 and leaf 5 at time 3.5, both of which are rate
+	 * change times, the latter also being a rho sampling time when rho
+	 * sampling is used.
+	 */
+	private static final String MANY_EPOCH_TEST_TREE =
+			"((1[&type=0]:1.75,2[&type=1]:0.75):1.0,"
+			+ "(3[&type=1]:1.375,(4[&type=0]:0.625,5[&type=0]:0.375):0.5):1.375);";
+
+	/**
+	 * Build a two-type parameterization with an origin at 4.0 and R0 values
+	 * changing every 0.0625 time units, giving 64 rate intervals.  All
+	 * times involved are exactly representable, so that leaf times
+	 * coincide exactly with change times.
+	 *
+	 * @param rhoSampling whether to add rho sampling at ages 0.0 and 0.5
+	 * @return parameterization
+	 */
+	private Parameterization getManyEpochTestParameterization(boolean rhoSampling) {
+
+		int nEpochs = 64;
+
+		StringBuilder changeTimes = new StringBuilder();
+		for (int i = 1; i < nEpochs; i++)
+			changeTimes.append(i*0.0625).append(" ");
+
+		StringBuilder R0Values = new StringBuilder();
+		for (int i = 0; i < nEpochs; i++) {
+			R0Values.append(2.0 + 0.25*Math.sin(i/4.0)).append(" ")
+					.append(1.5 + 0.25*Math.cos(i/4.0)).append(" ");
+		}
+
+        RealParameter originParam = new RealParameter("4.0");
+
+        List<Object> inputs = new ArrayList<>(Arrays.asList(
+                "origin", originParam,
+                "typeSet", new TypeSet(2),
+                "R0", new SkylineVectorParameter(
+                        new RealParameter(changeTimes.toString().trim()),
+                        new RealParameter(R0Values.toString().trim()), 2),
+                "becomeUninfectiousRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5 0.55"), 2),
+                "samplingProportion", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.3 0.35"), 2),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.1 0.15")),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2)));
+
+        if (rhoSampling)
+            inputs.addAll(Arrays.asList("rhoSampling", new TimedParameter(
+                    new RealParameter("0.0 0.5"),
+                    new RealParameter("0.3 0.2"),
+                    originParam)));
+
+        Parameterization parameterization = new EpiParameterization();
+        parameterization.initByName(inputs.toArray());
+
+        return parameterization;
+    }
+
+	/**
+	 * Create a state holding the given state nodes, and evaluate the
+	 * density in full as at the start of an MCMC analysis.
+	 *
+	 * @param density density to evaluate
+	 * @param stateNodes state nodes the density depends on
+	 * @return state
+	 */
+	private State getInitializedState(BirthDeathMigrationDistribution density,
+									  StateNode... stateNodes) {
+
+		Object[] inputs = new Object[2*stateNodes.length];
+		for (int i = 0; i < stateNodes.length; i++) {
+			inputs[2*i] = "stateNode";
+			inputs[2*i + 1] = stateNodes[i];
+		}
+
+		State state = new State();
+		state.initByName(inputs);
+		state.initialise();
+		state.setPosterior(density);
+		state.robustlyCalcPosterior(density);
+
+		return state;
+	}
+
+	/**
+	 * Make a change to the state and re-evaluate the density, following the
+	 * sequence of calls made by MCMC for a proposal.
+	 *
+	 * @param state state holding the state nodes changed by the proposal
+	 * @param density density to evaluate
+	 * @param proposal change to the state nodes
+	 * @return log density of the proposed state
+	 */
+	private double propose(State state, BirthDeathMigrationDistribution density, Runnable proposal) {
+		state.store(0);
+		proposal.run();
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+
+		return density.calculateLogP();
+	}
+
+	/**
+	 * Accept the last proposal, as MCMC does.
+	 *
+	 * @param state state holding the state nodes changed by the proposal
+	 */
+	private void accept(State state) {
+		state.acceptCalculationNodes();
+		state.setEverythingDirty(false);
+	}
+
+	/**
+	 * Reject the last proposal, as MCMC does.
+	 *
+	 * @param state state holding the state nodes changed by the proposal
+	 */
+	private void reject(State state) {
+		state.restore();
+		state.restoreCalculationNodes();
+		state.setEverythingDirty(false);
+	}
+
+	/**
+	 * @param tree tree to search
+	 * @param id ID of leaf
+	 * @return leaf with the given ID
+	 */
+	private static Node getLeaf(Tree tree, String id) {
+		for (Node leaf : tree.getExternalNodes()) {
+			if (leaf.getID().equals(id))
+				return leaf;
+		}
+
+		throw new IllegalArgumentException("No leaf with ID " + id);
+	}
+
+	/**
+	 * Generate a two-type tree whose internal nodes split the leaves
+	 * below them into halves, with levels of internal nodes evenly spaced
+	 * below the root and leaves at heights between 0.0 and 0.3.
+	 *
+	 * @param nLeaves number of leaves
+	 * @param rootHeight height of root
+	 * @return Newick string of tree
+	 */
+	private static String getBalancedTestTree(int nLeaves, double rootHeight) {
+		int levels = (int)Math.ceil(Math.log(nLeaves)/Math.log(2));
+		double step = (rootHeight - 0.5)/levels;
+
+		return getBalancedTestSubtree(0, nLeaves, rootHeight, step) + ";";
+	}
+
+	/**
+	 * @param firstLeaf number of first leaf in subtree
+	 * @param nLeaves number of leaves in subtree
+	 * @param height height of subtree root
+	 * @param step height difference between levels of internal nodes
+	 * @return Newick string of subtree
+	 */
+	private static String getBalancedTestSubtree(int firstLeaf, int nLeaves, double height, double step) {
+		if (nLeaves == 1)
+			return "t" + firstLeaf + "[&type=" + (firstLeaf % 2) + "]";
+
+		int nLeft = nLeaves/2;
+
+		return "(" + getBalancedTestSubtree(firstLeaf, nLeft, height - step, step)
+				+ ":" + (height - getBalancedTestHeight(firstLeaf, nLeft, height - step))
+				+ "," + getBalancedTestSubtree(firstLeaf + nLeft, nLeaves - nLeft, height - step, step)
+				+ ":" + (height - getBalancedTestHeight(firstLeaf + nLeft, nLeaves - nLeft, height - step))
+				+ ")";
+	}
+
+	/**
+	 * @param firstLeaf number of first leaf in subtree
+	 * @param nLeaves number of leaves in subtree
+	 * @param height height of subtree root if it is not a leaf
+	 * @return height of subtree root
+	 */
+	private static double getBalancedTestHeight(int firstLeaf, int nLeaves, double height) {
+		return nLeaves == 1 ? 0.1*(firstLeaf % 4) : height;
+	}
+
+	/**
+	 * Test that re-evaluating the likelihood after a single node height
+	 * change, re-using the cached states of unaffected edges, gives the same
+	 * result as a full evaluation.
+	 */
+	@Test
+	public void testCachedEdgeStates() {
+
+        Tree tree = new TreeParser(TWO_TYPE_TEST_TREE, false);
+
+        Parameterization parameterization = getTwoTypeTestParameterization(false);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree);
+
+        density.calculateLogP();
+
+        tree.setEverythingDirty(false);
+        tree.getRoot().getChild(1).setHeight(1.5);
+
+        double logPCached = density.calculateLogP();
+
+        density.initAndValidate();
+
+        assertEquals(density.calculateLogP(), logPCached, 1e-10);
+    }
+
+	/**
+	 * Test that the cached edge states are restored along with the tree
+	 * when height and exchange proposals are rejected, so that evaluating
+	 * the restored state gives the log density from before the proposal,
+	 * and that the caches also remain consistent after an accepted
+	 * exchange.
+	 */
+	@Test
+	public void testRestoreCachedEdgeStates() {
+
+        Tree tree = new TreeParser(TWO_TYPE_TEST_TREE_SHARED_TIMES, false);
+
+        Parameterization parameterization = getTwoTypeTestParameterization(false);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree);
+
+        State state = getInitializedState(density, tree);
+        double logP = density.getCurrentLogP();
+
+        // Height change of the parent of leaves 1 and 2
+        Runnable heightProposal = () -> getLeaf(tree, "1").getParent().setHeight(1.2);
+
+        // Exchange of leaf 1 with the parent of leaves 4 and 5
+        Runnable exchangeProposal = () -> {
+            Node leaf = getLeaf(tree, "1");
+            Node other = getLeaf(tree, "4").getParent();
+            Node leafParent = leaf.getParent();
+            Node otherParent = other.getParent();
+
+            leafParent.removeChild(leaf);
+            otherParent.removeChild(other);
+            leafParent.addChild(other);
+            otherParent.addChild(leaf);
+            leaf.makeDirty(Tree.IS_FILTHY);
+            other.makeDirty(Tree.IS_FILTHY);
+        };
+
+        for (Runnable proposal : new Runnable[] {heightProposal, exchangeProposal}) {
+            double logPProposed = propose(state, density, proposal);
+            assertEquals(getTwoTypeTestDensity(parameterization, tree).calculateLogP(),
+                    logPProposed, 1e-10);
+            assertTrue(Math.abs(logPProposed - logP) > 1e-6);
+
+            reject(state);
+
+            assertEquals(logP, density.calculateLogP(), 1e-10);
+            assertEquals(getTwoTypeTestDensity(parameterization, tree).calculateLogP(),
+                    density.calculateLogP(), 1e-10);
+        }
+
+        // Accepting the exchange and rejecting a subsequent height change
+        // leaves the caches describing the exchanged tree
+        double logPExchanged = propose(state, density, exchangeProposal);
+        accept(state);
+
+        propose(state, density, heightProposal);
+        reject(state);
+
+        assertEquals(logPExchanged, density.calculateLogP(), 1e-10);
+        assertEquals(getTwoTypeTestDensity(parameterization, tree).calculateLogP(),
+                density.calculateLogP(), 1e-10);
+    }
+
+	/**
+	 * Test that the cached p0 initial conditions are recomputed when a leaf
+	 * height, the final sample offset or a skyline parameter changes between
+	 * evaluations, and that those of the accepted state are restored when
+	 * such a change is rejected, including after an accepted change has
+	 * left the stored conditions out of date.
+	 */
+	@Test
+	public void testCachedP0InitialConditions() {
+
+        Tree tree = new TreeParser(TWO_TYPE_TEST_TREE_SHARED_TIMES, false);
+        RealParameter finalSampleOffset = new RealParameter("0.0");
+
+        Parameterization parameterization = getTwoTypeTestParameterization(false);
+        RealParameter R0Values = (RealParameter) ((EpiParameterization) parameterization)
+                .R0Input.get().skylineValuesInput.get();
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree,
+                "finalSampleOffset", finalSampleOffset);
+
+        State state = getInitializedState(density, tree, finalSampleOffset, R0Values);
+        double logP = density.getCurrentLogP();
+
+        Runnable leafHeightProposal = () -> getLeaf(tree, "3").setHeight(0.4);
+        Runnable offsetProposal = () -> finalSampleOffset.setValue(0.2);
+        Runnable parameterProposal = () -> R0Values.setValue(0, 5.5);
+
+        for (Runnable proposal : new Runnable[] {leafHeightProposal, offsetProposal, parameterProposal}) {
+            double logPProposed = propose(state, density, proposal);
+            assertEquals(getTwoTypeTestDensity(parameterization, tree,
+                    "finalSampleOffset", finalSampleOffset).calculateLogP(), logPProposed, 1e-10);
+            assertTrue(Math.abs(logPProposed - logP) > 1e-6);
+
+            reject(state);
+
+            assertEquals(logP, density.calculateLogP(), 1e-10);
+        }
+
+        // Once the leaf height change is accepted, the stored conditions
+        // are those of the previous state until the next proposal stores
+        // the current ones, which rejecting it must reinstate
+        double logPAccepted = propose(state, density, leafHeightProposal);
+        accept(state);
+
+        propose(state, density, parameterProposal);
+        reject(state);
+
+        assertEquals(logPAccepted, density.calculateLogP(), 1e-10);
+        assertEquals(getTwoTypeTestDensity(parameterization, tree,
+                "finalSampleOffset", finalSampleOffset).calculateLogP(), logPAccepted, 1e-10);
+    }
+
+	/**
+	 * Test that re-evaluating the likelihood after a change to the R0 value
+	 * of a rate interval before some of the nodes, keeping the cached states
+	 * of the edges after the interval, gives the same result as a full
+	 * evaluation, both when restarting the integrations at each interval
+	 * boundary and when integrating across boundaries.
+	 */
+	@Test
+	public void testCachedStatesAfterParameterChange() {
+
+        for (boolean integrateAcrossBoundaries : new boolean[] {false, true}) {
+            Tree tree = new TreeParser(MANY_EPOCH_TEST_TREE, false);
+
+            Parameterization parameterization = getManyEpochTestParameterization(false);
+            RealParameter R0Values = (RealParameter) ((EpiParameterization) parameterization)
+                    .R0Input.get().skylineValuesInput.get();
+
+            BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree,
+                    "integrateAcrossBoundaries", integrateAcrossBoundaries);
+
+            State state = getInitializedState(density, tree, R0Values);
+            double logP = density.getCurrentLogP();
+
+            // R0 of type 0 between times 2.5 and 2.5625: the edges below
+            // the parent of leaf 3, at time 2.625, lie entirely after it
+            double logPProposed = propose(state, density, () -> R0Values.setValue(80, 2.5));
+
+            assertEquals(getTwoTypeTestDensity(parameterization, tree,
+                    "integrateAcrossBoundaries", integrateAcrossBoundaries).calculateLogP(),
+                    logPProposed, 1e-10);
+            assertTrue(Math.abs(logPProposed - logP) > 1e-6);
+
+            reject(state);
+
+            assertEquals(logP, density.calculateLogP(), 1e-10);
+        }
+    }
+
+	/**
+	 * Test that re-evaluating the exact single type likelihood after a single
+	 * node height change, re-using the cached terms of unaffected nodes,
+	 * gives the same result as a full evaluation.
+	 */
+	@Test
+	public void testCachedSingleTypeTerms() {
+
+        Tree tree = new TreeParser( "((3[&state=0] : 1.5, 4[&state=0] : 0.5)[&state=0] : 1 , (1[&state=0] : 2, 2[&state=0] : 1)[&state=0] : 3)[&state=0];",
+                false);
+
+        Parameterization parameterization = new EpiParameterization();
+        parameterization.initByName(
+                "origin", new RealParameter("6.0"),
+                "typeSet", new TypeSet(1),
+                "R0", new SkylineVectorParameter(
+                        new RealParameter("3.0"),
+                        new RealParameter("1.5 1.3333333334")),
+                "becomeUninfectiousRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.5")),
+                "samplingProportion", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.33333333333")),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0")));
+
+        BirthDeathMigrationDistribution density = new BirthDeathMigrationDistribution();
+        density.initByName("parameterization", parameterization,
+                "frequencies", new RealParameter("1.0"),
+                "conditionOnSurvival", true,
+                "tree", tree,
+                "typeLabel", "state",
+                "parallelize", false);
+
+        density.calculateLogP();
+
+        tree.setEverythingDirty(false);
+        tree.getRoot().getChild(1).setHeight(2.5);
+
+        double logPCached = density.calculateLogP();
+
+        density.initAndValidate();
+
+        assertEquals(density.calculateLogP(), logPCached, 1e-10);
+
+        // Tree with a sampled ancestor, whose sampling is accounted for by
+        // its fake parent node alone
+        Tree saTree = new TreeParser("((3[&type=0]: 1.5, 6[&type=0]: 0)5[&type=0]: 3.5, 4[&type=0]: 4) ;",
+                false);
+
+        Parameterization saParameterization = new EpiParameterization();
+        saParameterization.initByName(
+                "origin", new RealParameter("6.0"),
+                "typeSet", new TypeSet(1),
+                "R0", new SkylineVectorParameter(
+                        new RealParameter("3.0"),
+                        new RealParameter("1.5 1.3333333334")),
+                "becomeUninfectiousRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.5")),
+                "samplingProportion", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.2")),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.9")));
+
+        BirthDeathMigrationDistribution saDensity = new BirthDeathMigrationDistribution();
+        saDensity.initByName("parameterization", saParameterization,
+                "frequencies", new RealParameter("1.0"),
+                "conditionOnSurvival", true,
+                "tree", saTree,
+                "typeLabel", "type",
+                "parallelize", false);
+
+        saDensity.calculateLogP();
+
+        saTree.setEverythingDirty(false);
+        saTree.getRoot().setHeight(saTree.getRoot().getHeight() + 0.3);
+
+        double saLogPCached = saDensity.calculateLogP();
+
+        saDensity.initAndValidate();
+        assertEquals(saDensity.calculateLogP(), saLogPCached, 1e-10);
+
+        saDensity.setInputValue("useAnalyticalSingleTypeSolution", false);
+        saDensity.initAndValidate();
+        assertEquals(saDensity.calculateLogP(), saLogPCached, 1e-4);
+    }
+
+	/**
+	 * Test that a change to the type label of a leaf between evaluations is
+	 * taken into account, unless storeNodeTypes is set, in which case the
+	 * types read when the density is initialized continue to be used.
+	 */
+	@Test
+	public void testChangedLeafType() {
+
+        Tree tree = new TreeParser(TWO_TYPE_TEST_TREE, false);
+
+        Parameterization parameterization = getTwoTypeTestParameterization(false);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree);
+        BirthDeathMigrationDistribution densityStored = getTwoTypeTestDensity(parameterization, tree,
+                "storeNodeTypes", true);
+
+        double logPBefore = density.calculateLogP();
+        assertEquals(logPBefore, densityStored.calculateLogP(), 1e-10);
+
+        for (Node leaf : tree.getExternalNodes()) {
+            if (leaf.getID().equals("3"))
+                leaf.setMetaData("type", 1.0);
+        }
+        tree.setEverythingDirty(false);
+
+        double logPAfter = density.calculateLogP();
+        assertTrue(Math.abs(logPAfter - logPBefore) > 1e-6);
+        assertEquals(logPBefore, densityStored.calculateLogP(), 1e-10);
+
+        BirthDeathMigrationDistribution densityFresh = getTwoTypeTestDensity(parameterization,
+                new TreeParser("((3[&type=1]:1.5,4[&type=1]:0.5):1,(1[&type=1]:1,2[&type=0]:1):3);",
+                        false));
+
+        assertEquals(densityFresh.calculateLogP(), logPAfter, 1e-10);
+    }
+
+	/**
+	 * Test that the scaled numeric mode gives the same result as the default
+	 * extended mode.
+	 */
+	@Test
+	public void testScaledNumericMode() {
+
+        Tree tree = new TreeParser(TWO_TYPE_TEST_TREE, false);
+
+        Parameterization parameterization = getTwoTypeTestParameterization(false);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree);
+
+        BirthDeathMigrationDistribution densityScaled = getTwoTypeTestDensity(parameterization, tree,
+                "numericMode", BirthDeathMigrationDistribution.NumericMode.SCALED);
+
+        assertEquals(density.calculateLogP(), densityScaled.calculateLogP(), 1e-10);
+    }
+
+	/**
+	 * Test that applying precomputed propagators to the edges gives the same
+	 * result as integrating each edge separately.
+	 */
+	@Test
+	public void testPropagatorGrid() {
+
+        Tree tree = new TreeParser(TWO_TYPE_TEST_TREE, false);
+
+        Parameterization parameterization = getTwoTypeTestParameterization(false);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree);
+
+        BirthDeathMigrationDistribution densityGrid = getTwoTypeTestDensity(parameterization, tree,
+                "usePropagatorGrid", true);
+
+        assertEquals(density.calculateLogP(), densityGrid.calculateLogP(), 1e-6);
+    }
+
+	/**
+	 * Test that integrating all edges together in a single sweep gives the
+	 * same result as integrating each edge separately.
+	 */
+	@Test
+	public void testBatchedIntegration() {
+
+        Tree tree = new TreeParser(TWO_TYPE_TEST_TREE, false);
+
+        Parameterization parameterization = getTwoTypeTestParameterization(false);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree);
+
+        BirthDeathMigrationDistribution densityBatched = getTwoTypeTestDensity(parameterization, tree,
+                "batchedIntegration", true);
+
+        assertEquals(density.calculateLogP(), densityBatched.calculateLogP(), 1e-6);
+    }
+
+	/**
+	 * Test that integrating the edges above leaves with identical sampling
+	 * times and types together agrees with integrating them separately,
+	 * including when a rho sampling time lies between the tops of these
+	 * edges.
+	 */
+	@Test
+	public void testSharedLeafEdges() {
+
+        Tree tree = new TreeParser(TWO_TYPE_TEST_TREE_SHARED_TIMES, false);
+
+        Parameterization parameterization = getTwoTypeTestParameterization(true);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree);
+
+        BirthDeathMigrationDistribution densityShared = getTwoTypeTestDensity(parameterization, tree,
+                "shareLeafEdges", true);
+
+        assertEquals(density.calculateLogP(), densityShared.calculateLogP(), 1e-6);
+    }
+
+	/**
+	 * Test that sharing the integration of the edges above leaves with
+	 * identical sampling times and types agrees with integrating them
+	 * separately on a generated tree with many such leaves, under a model
+	 * with many rate changes and rho sampling, both in full and after a
+	 * node height change.
+	 */
+	@Test
+	public void testSharedLeafEdgesLargeTree() {
+
+        Tree tree = new TreeParser(getBalancedTestTree(200, 3.5), false);
+
+        Parameterization parameterization = getManyEpochTestParameterization(true);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree);
+
+        BirthDeathMigrationDistribution densityShared = getTwoTypeTestDensity(parameterization, tree,
+                "shareLeafEdges", true);
+
+        assertEquals(density.calculateLogP(), densityShared.calculateLogP(), 1e-6);
+
+        tree.setEverythingDirty(false);
+        getLeaf(tree, "t17").getParent().getParent().setHeight(1.1);
+
+        assertEquals(density.calculateLogP(), densityShared.calculateLogP(), 1e-6);
+    }
+
+	/**
+	 * Test that the parallelized traversal of a tree large enough to be
+	 * divided between threads gives the same result as the serial one,
+	 * both in full and after a node height change.
+	 */
+	@Test
+	public void testParallelTraversal() {
+
+        Tree tree = new TreeParser(getBalancedTestTree(200, 4.0), false);
+        Tree treeParallel = new TreeParser(getBalancedTestTree(200, 4.0), false);
+
+        Parameterization parameterization = getTwoTypeTestParameterization(true);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree);
+
+        BirthDeathMigrationDistribution densityParallel = getTwoTypeTestDensity(parameterization, treeParallel,
+                "parallelize", true,
+                "scheduler", new ComputeScheduler(4),
+                "threads", 4);
+
+        assertEquals(density.calculateLogP(), densityParallel.calculateLogP(), 1e-10);
+
+        for (Tree t : Arrays.asList(tree, treeParallel)) {
+            t.setEverythingDirty(false);
+            getLeaf(t, "t17").getParent().getParent().setHeight(1.3);
+        }
+
+        assertEquals(density.calculateLogP(), densityParallel.calculateLogP(), 1e-10);
+    }
+
+	/**
+	 * Test that the tree is divided between threads both when the division
+	 * is based on edge lengths, at the first evaluation, and when it is
+	 * based on the integration costs measured during that evaluation, and
+	 * that both evaluations give the same result.
+	 */
+	@Test
+	public void testMeasuredCostParallelization() {
+
+        Tree tree = new TreeParser(getBalancedTestTree(200, 4.0), false);
+
+        Parameterization parameterization = getTwoTypeTestParameterization(true);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree,
+                "parallelize", true,
+                "scheduler", new ComputeScheduler(4),
+                "threads", 4);
+
+        double logP = density.calculateLogP();
+        assertTrue(density.getParallelSplitCount() > 0);
+
+        tree.setEverythingDirty(true);
+
+        assertEquals(logP, density.calculateLogP(), 1e-10);
+        assertTrue(density.getParallelSplitCount() > 0);
+    }
+
+	/**
+	 * Test that two distributions sharing a scheduler, each capped to a
+	 * share of its threads, evaluate concurrently to the same results as
+	 * the serial traversal, using the pool of the scheduler rather than
+	 * pools of their own.
+	 */
+	@Test
+	public void testSharedScheduler() throws Exception {
+
+        Parameterization parameterization = getTwoTypeTestParameterization(true);
+
+        ComputeScheduler scheduler = new ComputeScheduler(2);
+        ForkJoinPool pool = scheduler.getPool();
+
+        List<BirthDeathMigrationDistribution> densities = new ArrayList<>();
+        List<Double> expectedLogPs = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Tree tree = new TreeParser(getBalancedTestTree(200, 4.0 - 0.5*i), false);
+
+            expectedLogPs.add(getTwoTypeTestDensity(parameterization, tree).calculateLogP());
+
+            densities.add(getTwoTypeTestDensity(parameterization, tree,
+                    "parallelize", true,
+                    "scheduler", scheduler,
+                    "threads", 2));
+        }
+
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Double>> logPs = new ArrayList<>();
+            for (BirthDeathMigrationDistribution density : densities)
+                logPs.add(callers.submit(density::calculateLogP));
+
+            for (int i = 0; i < 2; i++) {
+                assertEquals(expectedLogPs.get(i), logPs.get(i).get(), 1e-10);
+                assertTrue(densities.get(i).getParallelSplitCount() > 0);
+            }
+        } finally {
+            callers.shutdown();
+        }
+
+        assertSame(pool, scheduler.getPool());
+        assertEquals(2, pool.getParallelism());
+
+        scheduler.shutdown();
+    }
+
+	/**
+	 * Test that integrating across the boundaries of the many rate
+	 * intervals of a skyline agrees with restarting the integration at
+	 * each boundary, with and without rho sampling at some of the
+	 * boundaries, when leaves are sampled exactly at boundaries.
+	 */
+	@Test
+	public void testIntegrateAcrossBoundaries() {
+
+        for (boolean rhoSampling : new boolean[] {false, true}) {
+            Tree tree = new TreeParser(MANY_EPOCH_TEST_TREE, false);
+
+            Parameterization parameterization = getManyEpochTestParameterization(rhoSampling);
+
+            BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree);
+
+            BirthDeathMigrationDistribution densityAcross = getTwoTypeTestDensity(parameterization, tree,
+                    "integrateAcrossBoundaries", true);
+
+            assertEquals(density.calculateLogP(), densityAcross.calculateLogP(), 1e-5);
+        }
+    }
+
+	/**
+	 * Test that the node type probabilities computed from the cached edge
+	 * states are normalized, agree with the known leaf types and do not
+	 * depend on whether a propagator grid is available, and that when
+	 * conditioning on the root time those of the root match the root type
+	 * probabilities.
+	 */
+	@Test
+	public void testNodeTypeProbs() {
+
+        Tree tree = new TreeParser(TWO_TYPE_TEST_TREE_SHARED_TIMES, false);
+
+        Parameterization parameterization = getTwoTypeTestParameterization(true);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree);
+
+        BirthDeathMigrationDistribution densityGrid = getTwoTypeTestDensity(parameterization, tree,
+                "usePropagatorGrid", true);
+
+        density.calculateLogP();
+        densityGrid.calculateLogP();
+
+        double[][] nodeTypeProbs = density.getNodeTypeProbs();
+        double[][] nodeTypeProbsGrid = densityGrid.getNodeTypeProbs();
+
+        for (int nodeNr = 0; nodeNr < tree.getNodeCount(); nodeNr++) {
+            assertEquals(1.0, nodeTypeProbs[nodeNr][0] + nodeTypeProbs[nodeNr][1], 1e-10);
+
+            for (int type = 0; type < 2; type++)
+                assertEquals(nodeTypeProbs[nodeNr][type], nodeTypeProbsGrid[nodeNr][type], 1e-5);
+        }
+
+        for (int nodeNr = 0; nodeNr < tree.getLeafNodeCount(); nodeNr++) {
+            int leafType = tree.getNode(nodeNr).getID().equals("5") ? 1 : 0;
+            assertEquals(1.0, nodeTypeProbs[nodeNr][leafType], 1e-10);
+        }
+
+        Parameterization rootParameterization = new EpiParameterization();
+        rootParameterization.initByName(
+                "tree", tree,
+                "typeSet", new TypeSet(2),
+                "R0", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("6 5"), 2),
+                "becomeUninfectiousRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5 0.55"), 2),
+                "samplingProportion", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5 0.45"), 2),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.1 0.15")),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2));
+
+        BirthDeathMigrationDistribution rootDensity = new BirthDeathMigrationDistribution();
+        rootDensity.initByName("parameterization", rootParameterization,
+                "frequencies", new RealParameter("0.3 0.7"),
+                "conditionOnSurvival", false,
+                "tree", tree,
+                "typeLabel", "type",
+                "parallelize", false);
+
+        rootDensity.calculateLogP();
+
+        double[] rootNodeTypeProbs = rootDensity.getNodeTypeProbs()[tree.getRoot().getNr()];
+        for (int type = 0; type < 2; type++)
+            assertEquals(rootDensity.getRootTypeProbs()[type], rootNodeTypeProbs[type], 1e-10);
+    }
+
+	/**
+	 * Test the type probabilities of an internal node against the
+	 * likelihoods of the tree with the type just above the node clamped to
+	 * each type, obtained by adding a sampled ancestor of that type there.
+	 * The sampling rates and removal probabilities are equal for both
+	 * types, so the sampled ancestor contributes the same factor whatever
+	 * its type, and the likelihoods are proportional to the probabilities
+	 * of the clamped types.
+	 */
+	@Test
+	public void testNodeTypeProbsClamped() {
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "origin", new RealParameter("4.1"),
+                "typeSet", new TypeSet(2),
+                "birthRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("2.0 1.2"), 2),
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5 0.7"), 2),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.4"), 2),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.3 0.2"), 2),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5"), 2));
+
+        Tree tree = new TreeParser(TWO_TYPE_TEST_TREE_SHARED_TIMES, false);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree);
+        density.calculateLogP();
+
+        // Parent of leaves 4 and 5
+        double[] nodeTypeProbs = density.getNodeTypeProbs()[getLeaf(tree, "4").getParent().getNr()];
+
+        double[] clampedLogPs = new double[2];
+        for (int type = 0; type < 2; type++) {
+            Tree clampedTree = new TreeParser("((1[&type=0]:1.0,2[&type=0]:1.0):1.5,"
+                    + "(3[&type=0]:1.0,((4[&type=0]:0.7,5[&type=1]:0.7):0.0000001,"
+                    + "6[&type=" + type + "]:0.0):0.2999999):1.5);", false);
+
+            clampedLogPs[type] = getTwoTypeTestDensity(parameterization, clampedTree).calculateLogP();
+        }
+
+        assertEquals(1.0/(1.0 + Math.exp(clampedLogPs[1] - clampedLogPs[0])), nodeTypeProbs[0], 1e-5);
+        assertEquals(1.0/(1.0 + Math.exp(clampedLogPs[0] - clampedLogPs[1])), nodeTypeProbs[1], 1e-5);
+    }
+
+	/**
+	 * Builds a density given the values parameters whose gradients are
+	 * checked.
+	 */
+	private interface GradientTestDensityBuilder {
+		BirthDeathMigrationDistribution build(RealParameter[] values);
+	}
+
+	/**
+	 * Check the gradient of the log likelihood with respect to the elements
+	 * of each of a set of values parameters against central finite
+	 * differences.
+	 *
+	 * @param builder builds the density from the values parameters
+	 * @param values  values of the elements of each parameter
+	 */
+	private void assertGradientsMatchFiniteDifferences(GradientTestDensityBuilder builder,
+													   double[][] values) {
+
+		RealParameter[] params = toParameters(values);
+		BirthDeathMigrationDistribution density = builder.build(params);
+		density.calculateLogP();
+
+		Map<Function, double[]> gradients = density.getParameterGradients();
+		double h = 1e-5;
+
+		for (int k = 0; k < values.length; k++) {
+			for (int i = 0; i < values[k].length; i++) {
+				double[][] perturbed = new double[values.length][];
+				for (int j = 0; j < values.length; j++)
+					perturbed[j] = values[j].clone();
+
+				perturbed[k][i] = values[k][i] + h;
+				double logPplus = builder.build(toParameters(perturbed)).calculateLogP();
+				perturbed[k][i] = values[k][i] - h;
+				double logPminus = builder.build(toParameters(perturbed)).calculateLogP();
+
+				double[] gradient = gradients.get(params[k]);
+				assertEquals("Element " + i + " of parameter " + k,
+						(logPplus - logPminus)/(2*h), gradient == null ? 0.0 : gradient[i], 1e-4);
+			}
+		}
+	}
+
+	private static RealParameter[] toParameters(double[][] values) {
+		RealParameter[] params = new RealParameter[values.length];
+		for (int k = 0; k < values.length; k++)
+			params[k] = new RealParameter(toDoubleArray(values[k]));
+
+		return params;
+	}
+
+	/**
+	 * Values of the parameters of the two-type density built by
+	 * getGradientTestDensity(): R0, become uninfectious rates, sampling
+	 * proportions, R0 among demes, migration rates and rho sampling
+	 * probabilities, each with a change at time 1.0 (rho sampling at times
+	 * 2.0 and 4.1).
+	 */
+	private static final double[][] GRADIENT_TEST_VALUES = {
+			{6, 5, 2, 2.5},
+			{0.5, 0.55, 0.45, 0.6},
+			{0.5, 0.45, 0.333333, 0.35},
+			{1.1, 1.3, 1.2, 1.15},
+			{0.1, 0.15, 0.2, 0.25},
+			{0.3, 0.2}};
+
+	/**
+	 * Build a two-type density used to check the gradient against finite
+	 * differences.
+	 *
+	 * @param newick tree
+	 * @param values parameters with the values described by
+	 *               GRADIENT_TEST_VALUES
+	 * @param removalProbValues removal probabilities of each type
+	 */
+	private BirthDeathMigrationDistribution getGradientTestDensity(
+			String newick, RealParameter[] values, RealParameter removalProbValues) {
+
+        Tree tree = new TreeParser(newick, false);
+
+        RealParameter originParam = new RealParameter("4.1");
+
+        Parameterization parameterization = new EpiParameterization();
+        parameterization.initByName(
+                "origin", originParam,
+                "typeSet", new TypeSet(2),
+                "R0", new SkylineVectorParameter(
+                        new RealParameter("1.0"),
+                        values[0], 2),
+                "becomeUninfectiousRate", new SkylineVectorParameter(
+                        new RealParameter("1.0"),
+                        values[1], 2),
+                "samplingProportion", new SkylineVectorParameter(
+                        new RealParameter("1.0"),
+                        values[2], 2),
+                "R0AmongDemes", new SkylineMatrixParameter(
+                        new RealParameter("1.0"),
+                        values[3], 2),
+                "migrationRate", new SkylineMatrixParameter(
+                        new RealParameter("1.0"),
+                        values[4]),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        removalProbValues, 2),
+                "rhoSampling", new TimedParameter(
+                        new RealParameter("2.0 4.1"),
+                        values[5],
+                        originParam));
+
+        BirthDeathMigrationDistribution density = new BirthDeathMigrationDistribution();
+        density.initByName("parameterization", parameterization,
+                "frequencies", new RealParameter("0.4 0.6"),
+                "conditionOnSurvival", true,
+                "tree", tree,
+                "typeLabel", "type",
+                "parallelize", false);
+
+        return density;
+    }
+
+	/**
+	 * Test that the gradient of the log likelihood with respect to the
+	 * parameter values agrees with central finite differences.
+	 */
+	@Test
+	public void testParameterGradients() {
+
+		assertGradientsMatchFiniteDifferences(
+				values -> getGradientTestDensity(TWO_TYPE_TEST_TREE_SHARED_TIMES, values,
+						new RealParameter("1.0")),
+				GRADIENT_TEST_VALUES);
+	}
+
+	/**
+	 * Test the gradient with respect to the parameter values, including the
+	 * removal probabilities, on a tree with a sampled ancestor.
+	 */
+	@Test
+	public void testParameterGradientsSA() {
+
+		String newick = "((1[&type=0]:1.0,(2[&type=0]:0.0,3[&type=1]:0.8):0.2):1.5,"
+				+ "(4[&type=1]:1.0,5[&type=0]:1.0):1.5);";
+
+		double[][] values = Arrays.copyOf(GRADIENT_TEST_VALUES, GRADIENT_TEST_VALUES.length + 1);
+		values[values.length - 1] = new double[] {0.6, 0.7};
+
+		assertGradientsMatchFiniteDifferences(
+				params -> getGradientTestDensity(newick,
+						Arrays.copyOf(params, params.length - 1), params[params.length - 1]),
+				values);
+	}
+
+	/**
+	 * Test the gradient with respect to the parameters of the fossilized
+	 * birth-death parameterization on a tree with a sampled ancestor.
+	 */
+	@Test
+	public void testFBDParameterGradients() {
+
+		String newick = "((1[&type=0]:1.0,(2[&type=0]:0.0,3[&type=1]:0.8):0.2):1.5,"
+				+ "(4[&type=1]:1.0,5[&type=0]:1.0):1.5);";
+
+		// Diversification rates, turnovers, sampling proportions,
+		// diversification rates among demes, migration rates and rho
+		// sampling probabilities
+		double[][] values = {
+				{1.0, 0.8, 0.6, 0.7},
+				{0.4, 0.5, 0.3, 0.45},
+				{0.3, 0.35},
+				{0.2, 0.1},
+				{0.1, 0.15},
+				{0.25}};
+
+		assertGradientsMatchFiniteDifferences(params -> {
+			Tree tree = new TreeParser(newick, false);
+			RealParameter originParam = new RealParameter("4.1");
+
+			Parameterization parameterization = new FBDParameterization();
+			parameterization.initByName(
+					"origin", originParam,
+					"typeSet", new TypeSet(2),
+					"diversificationRate", new SkylineVectorParameter(
+							new RealParameter("1.0"),
+							params[0], 2),
+					"turnover", new SkylineVectorParameter(
+							new RealParameter("1.0"),
+							params[1], 2),
+					"samplingProportion", new SkylineVectorParameter(
+							null,
+							params[2], 2),
+					"diversificationRateAmongDemes", new SkylineMatrixParameter(
+							null,
+							params[3], 2),
+					"migrationRate", new SkylineMatrixParameter(
+							null,
+							params[4], 2),
+					"rhoSampling", new TimedParameter(
+							new RealParameter("4.1"),
+							params[5],
+							originParam));
+
+			BirthDeathMigrationDistribution density = new BirthDeathMigrationDistribution();
+			density.initByName("parameterization", parameterization,
+					"frequencies", new RealParameter("0.5 0.5"),
+					"conditionOnSurvival", true,
+					"tree", tree,
+					"typeLabel", "type",
+					"parallelize", false);
+
+			return density;
+		}, values);
+	}
+
+	/**
+	 * Test that gradients of single-type models agree with finite
+	 * differences both with the numerical likelihood calculation and with
+	 * the analytical solution, for which the gradient is computed from
+	 * numerically integrated states without changing the log likelihood.
+	 */
+	@Test
+	public void testSingleTypeParameterGradients() {
+
+		String newick = "((1[&type=0]:1.0,2[&type=0]:1.0):1.5,"
+				+ "(3[&type=0]:1.0,(4[&type=0]:0.7,5[&type=0]:0.7):0.3):1.5);";
+
+		double[][] values = {{3.0, 2.5}, {1.5}, {0.3}, {0.8}};
+
+		for (boolean useAnalyticalSolution : new boolean[] {false, true}) {
+			GradientTestDensityBuilder builder = params -> {
+				Parameterization parameterization = new EpiParameterization();
+				parameterization.initByName(
+						"origin", new RealParameter("4.1"),
+						"typeSet", new TypeSet(1),
+						"R0", new SkylineVectorParameter(
+								new RealParameter("1.0"),
+								params[0]),
+						"becomeUninfectiousRate", new SkylineVectorParameter(
+								null,
+								params[1]),
+						"samplingProportion", new SkylineVectorParameter(
+								null,
+								params[2]),
+						"removalProb", new SkylineVectorParameter(
+								null,
+								params[3]));
+
+				BirthDeathMigrationDistribution density = new BirthDeathMigrationDistribution();
+				density.initByName("parameterization", parameterization,
+						"frequencies", new RealParameter("1.0"),
+						"conditionOnSurvival", true,
+						"tree", new TreeParser(newick, false),
+						"typeLabel", "type",
+						"parallelize", false,
+						"useAnalyticalSingleTypeSolution", useAnalyticalSolution);
+
+				return density;
+			};
+
+			assertGradientsMatchFiniteDifferences(builder, values);
+
+			BirthDeathMigrationDistribution density = builder.build(toParameters(values));
+			double logP = density.calculateLogP();
+			density.getRateGradient();
+			assertEquals(logP, density.getCurrentLogP(), 0.0);
+		}
+	}
+
+    private static Double[] toDoubleArray(double[] values) {
+        Double[] result = new Double[values.length];
+        for (int i = 0; i < values.length; i++)
+            result[i] = values[i];
+
+        return result;
+    }
+
+	/**
+	 * Test that the analytical solution used in intervals without migration
+	 * or cross-birth agrees with numerical integration.
+	 */
+	@Test
+	public void testAnalyticalDecoupledSolution() {
+
+        Tree tree = new TreeParser(TWO_TYPE_TEST_TREE, false);
+
+        Parameterization parameterization = getTwoTypeTestParameterization(
+                "1.1 1.3 0.0 0.0", "0.1 0.15 0.0 0.0", false);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree,
+                "useAnalyticalDecoupledSolution", false);
+
+        BirthDeathMigrationDistribution densityAnalytical = getTwoTypeTestDensity(parameterization, tree,
+                "useAnalyticalDecoupledSolution", true);
+
+        assertEquals(density.calculateLogP(), densityAnalytical.calculateLogP(), 1e-5);
+    }
+
+	/**
+	 * Test that recording integration statistics does not affect the result
+	 * and that the recorded statistics are consistent.
+	 */
+	@Test
+	public void testIntegrationStatistics() {
+
+        Tree tree = new TreeParser(TWO_TYPE_TEST_TREE, false);
+
+        Parameterization parameterization = getTwoTypeTestParameterization(false);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree);
+
+        BirthDeathMigrationDistribution densityStats = getTwoTypeTestDensity(parameterization, tree,
+                "recordIntegrationStatistics", true);
+
+        assertEquals(density.calculateLogP(), densityStats.calculateLogP(), 0.0);
+
+        IntegrationStatistics.Snapshot statistics = densityStats.getIntegrationStatistics();
+        assertTrue(statistics.getAcceptedSteps() > 0);
+        assertTrue(statistics.getEvaluations() >= 6*statistics.getAcceptedSteps());
+        assertTrue(statistics.getRejectedSteps() >= 0);
+    }
+
+	/**
+	 * Test that the end of the tolerance adaptation burn-in, reached once the
+	 * distribution is logged at a later sample, invalidates the cached
+	 * states, so that the next evaluation agrees with a full evaluation at
+	 * the target tolerance.
+	 */
+	@Test
+	public void testToleranceChange() {
+
+        Tree tree = new TreeParser(TWO_TYPE_TEST_TREE_SHARED_TIMES, false);
+
+        Parameterization parameterization = getTwoTypeTestParameterization(true);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree,
+                "adaptiveTolerance", true,
+                "initialRelTolerance", 1e-4,
+                "relTolerance", 1e-10,
+                "toleranceAdaptationWindow", 4,
+                "toleranceAdaptationBurnin", 100L);
+
+        State state = getInitializedState(density, tree);
+
+        propose(state, density, () -> getLeaf(tree, "1").getParent().setHeight(1.2));
+        accept(state);
+        assertEquals(1e-4, density.getRelativeTolerance(), 0.0);
+
+        density.log(100, new PrintStream(new ByteArrayOutputStream()));
+
+        double logP = propose(state, density, () -> getLeaf(tree, "4").getParent().setHeight(0.9));
+        assertEquals(1e-10, density.getRelativeTolerance(), 0.0);
+
+        BirthDeathMigrationDistribution densityFresh = getTwoTypeTestDensity(parameterization, tree,
+                "relTolerance", 1e-10);
+
+        assertEquals(densityFresh.calculateLogP(), logP, 1e-10);
+    }
+
+	/**
+	 * Test that the stiff solver gives the same result as the explicit one
+	 * for a model with fast migration.
+	 */
+	@Test
+	public void testStiffSolver() {
+
+        Tree tree = new TreeParser(TWO_TYPE_TEST_TREE, false);
+
+        Parameterization parameterization = getTwoTypeTestParameterization(
+                "1.1 1.3 1.2 1.15", "50 60 80 100", false);
+
+        BirthDeathMigrationDistribution density = getTwoTypeTestDensity(parameterization, tree);
+
+        BirthDeathMigrationDistribution densityStiff = getTwoTypeTestDensity(parameterization, tree,
+                "solverMode", BirthDeathMigrationDistribution.SolverMode.STIFF);
+
+        BirthDeathMigrationDistribution densityAuto = getTwoTypeTestDensity(parameterization, tree,
+                "solverMode", BirthDeathMigrationDistribution.SolverMode.AUTO);
+
+        double logP = density.calculateLogP();
+        assertEquals(logP, densityStiff.calculateLogP(), 1e-5);
+        assertEquals(logP, densityAuto.calculateLogP(), 1e-5);
+    }
+
     /**
 	 * Test of migration and infection among demes with rate changes
 	 * 2 types, no SA
@@ -0,0 +1,79 @@
+package bdmmprime.distribution;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class P0GeStateTest {
+
+    double TOLERANCE = 1e-10;
+
+    /**
+     * Check that in-place ge arithmetic agrees with the equivalent
+     * SmallNumber operations, including for values far outside the range
+     * of a double.
+     */
+    @Test
+    public void testGeArithmetic() {
+
+        double aOld = 1.2364544564e-75;
+
+        P0GeState a = new P0GeState(2);
+        a.setGe(0, aOld);
+        a.setGe(1, 0.3);
+
+        SmallNumber snA = new SmallNumber(aOld);
+
+        P0GeState b = new P0GeState(2);
+        b.setGe(0, 1.0);
+        b.setGe(1, 1.0);
+        SmallNumber snB = new SmallNumber(1.0);
+
+        for (int i=0; i<8; i++) {
+            b.setGeToProduct(0, a, 0, b, 0, 1.0);
+            snB = snB.multiplyBy(snA);
+        }
+
+        Assert.assertEquals(snB.log(), b.getGeLog(0), TOLERANCE);
+        Assert.assertEquals(-1379.8530719994023, b.getGeLog(0), TOLERANCE);
+
+        // Sums of values with very different magnitudes:
+        b.addGeProduct(0, a, 0, a, 0, 0.5);
+        snB = snB.addTo(snA.multiplyBy(snA).scalarMultiplyBy(0.5));
+        Assert.assertEquals(snB.log(), b.getGeLog(0), TOLERANCE);
+        Assert.assertEquals(Math.log(0.5) + 2*Math.log(aOld), b.getGeLog(0), TOLERANCE);
+
+        b.addGeProduct(0, a, 1, a, 1, 2.0);
+        Assert.assertEquals(Math.log(0.18), b.getGeLog(0), TOLERANCE);
+
+        b.multiplyGe(0, 0.5);
+        Assert.assertEquals(Math.log(0.09), b.getGeLog(0), TOLERANCE);
+
+        b.setGe(1, 0.0);
+        Assert.assertEquals(Double.NEGATIVE_INFINITY, b.getGeLog(1), 0.0);
+    }
+
+    /**
+     * Check that a state survives a round trip through its scaled
+     * representation.
+     */
+    @Test
+    public void testScaledStateRoundTrip() {
+
+        double[] p0 = {0.1, 0.5, 0.9};
+        SmallNumber[] ge = {
+                new SmallNumber(1.5, -1500),
+                new SmallNumber(0),
+                new SmallNumber(1.2, -1400)};
+
+        P0GeState state = new P0GeState(p0, ge);
+        ScaledNumbers scaled = state.getScaledState();
+
+        P0GeState result = new P0GeState(3);
+        result.setFromScaledState(scaled.getEquation(), scaled.getScalingFactor());
+
+        for (int i=0; i<3; i++) {
+            Assert.assertEquals(p0[i], result.p0[i], TOLERANCE);
+            Assert.assertEquals(ge[i].log(), result.getGeLog(i), TOLERANCE);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package bdmmprime.distribution;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class P0TrajectoryTest {
+
+    double TOLERANCE = 1e-12;
+
+    /**
+     * Record a linear solution over (2,3] in interval 2 and a constant
+     * solution over [0,1] in interval 0, leaving interval 1 without steps.
+     */
+    private P0Trajectory getTrajectory() {
+        P0Trajectory trajectory = new P0Trajectory(1, 3);
+
+        trajectory.setInterval(2);
+        trajectory.addStep(3.0, 2.0,
+                new double[] {1.0}, new double[] {0.5},
+                new double[] {0.75},
+                new double[] {0.5}, new double[] {0.5});
+
+        trajectory.setInterval(0);
+        trajectory.addStep(1.0, 0.0,
+                new double[] {0.3}, new double[] {0.0},
+                new double[] {0.3},
+                new double[] {0.3}, new double[] {0.0});
+
+        return trajectory;
+    }
+
+    /**
+     * Check that the solution is available in an interval in which no step
+     * was recorded, rather than only in intervals containing steps.
+     */
+    @Test
+    public void testIntervalWithoutSteps() {
+        double[] p0 = new double[1];
+
+        P0Trajectory trajectory = getTrajectory();
+
+        trajectory.getP0(2.5, 2, p0);
+        Assert.assertEquals(0.75, p0[0], TOLERANCE);
+
+        trajectory.getP0(0.5, 0, p0);
+        Assert.assertEquals(0.3, p0[0], TOLERANCE);
+
+        // Without a recorded value, the solution at the end of the later
+        // neighbouring interval is used
+        trajectory.getP0(2.0, 1, p0);
+        Assert.assertEquals(0.5, p0[0], TOLERANCE);
+
+        // A value recorded on entering the interval takes precedence
+        trajectory = getTrajectory();
+        trajectory.setIntervalValue(1, new double[] {0.4});
+        trajectory.getP0(2.0, 1, p0);
+        Assert.assertEquals(0.4, p0[0], TOLERANCE);
+    }
+}
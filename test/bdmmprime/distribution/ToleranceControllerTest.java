@@ -0,0 +1,77 @@
+package bdmmprime.distribution;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ToleranceControllerTest {
+
+    /**
+     * Check that the tolerance is kept while the log-likelihood trends and
+     * tightened down to the target once it has stabilized.
+     */
+    @Test
+    public void testTightening() {
+
+        ToleranceController controller = new ToleranceController(1e-4, 1e-6, 100, 10000);
+
+        // Trending log-likelihoods
+        for (int i=0; i<100; i++)
+            Assert.assertFalse(controller.recordAcceptedLogP(-1000.0 + i));
+        Assert.assertEquals(1e-4, controller.getRelativeTolerance(), 0.0);
+
+        // Stationary log-likelihoods
+        boolean changed = false;
+        for (int i=0; i<100; i++)
+            changed = controller.recordAcceptedLogP(-900.0 + (i % 2 == 0 ? 1.0 : -1.0)) || changed;
+        Assert.assertTrue(changed);
+        Assert.assertEquals(1e-5, controller.getRelativeTolerance(), 1e-20);
+
+        for (int i=0; i<200; i++)
+            controller.recordAcceptedLogP(-900.0 + (i % 2 == 0 ? 1.0 : -1.0));
+        Assert.assertEquals(1e-6, controller.getRelativeTolerance(), 0.0);
+        Assert.assertTrue(controller.isConverged());
+    }
+
+    /**
+     * Check that the target tolerance is imposed at the end of the burn-in
+     * even if the log-likelihood is still trending, and kept afterwards.
+     */
+    @Test
+    public void testBurnin() {
+
+        ToleranceController controller = new ToleranceController(1e-4, 1e-6, 100, 250);
+
+        for (int i=0; i<249; i++)
+            Assert.assertFalse(controller.recordAcceptedLogP(-1000.0 + i));
+        Assert.assertEquals(1e-4, controller.getRelativeTolerance(), 0.0);
+
+        Assert.assertTrue(controller.recordAcceptedLogP(-751.0));
+        Assert.assertEquals(1e-6, controller.getRelativeTolerance(), 0.0);
+        Assert.assertTrue(controller.isConverged());
+
+        for (int i=0; i<200; i++)
+            Assert.assertFalse(controller.recordAcceptedLogP(-900.0 + (i % 2 == 0 ? 1.0 : -1.0)));
+        Assert.assertEquals(1e-6, controller.getRelativeTolerance(), 0.0);
+    }
+
+    /**
+     * Check that the burn-in ends once the recorded state number reaches
+     * it, even if fewer log-likelihoods have been recorded.
+     */
+    @Test
+    public void testStateNumber() {
+
+        ToleranceController controller = new ToleranceController(1e-4, 1e-6, 100, 250);
+
+        for (int i=0; i<10; i++)
+            Assert.assertFalse(controller.recordAcceptedLogP(-1000.0 + i));
+
+        controller.recordStateNumber(100);
+        Assert.assertFalse(controller.recordAcceptedLogP(-990.0));
+        Assert.assertEquals(1e-4, controller.getRelativeTolerance(), 0.0);
+
+        controller.recordStateNumber(249);
+        Assert.assertTrue(controller.recordAcceptedLogP(-989.0));
+        Assert.assertEquals(1e-6, controller.getRelativeTolerance(), 0.0);
+    }
+}
@@ -0,0 +1,121 @@
+package bdmmprime.distribution;
+
+import bdmmprime.parameterization.*;
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TreeIndexTest {
+
+    double TOLERANCE = 1e-12;
+
+    /**
+     * Check that the index describes the tree it was last updated with.
+     */
+    private void assertIndexMatchesTree(TreeIndex index, Tree tree, Parameterization parameterization) {
+
+        Assert.assertEquals(tree.getRoot().getNr(), index.rootNr);
+
+        for (Node node : tree.getNodesAsArray()) {
+            int nr = node.getNr();
+
+            double nodeTime = parameterization.getNodeTime(node, 0.0);
+            Assert.assertEquals(nodeTime, index.nodeTimes[nr], TOLERANCE);
+            Assert.assertEquals(parameterization.getIntervalIndex(nodeTime), index.intervalIndices[nr]);
+
+            Assert.assertEquals(node.isRoot() ? TreeIndex.NONE : node.getParent().getNr(),
+                    index.parentNrs[nr]);
+
+            if (node.isLeaf()) {
+                Assert.assertTrue(index.isLeaf(nr));
+                continue;
+            }
+
+            int child0 = node.getChild(0).getNr();
+            int child1 = node.getChild(1).getNr();
+            Assert.assertTrue((index.firstChildNrs[nr] == child0 && index.secondChildNrs[nr] == child1)
+                    || (index.firstChildNrs[nr] == child1 && index.secondChildNrs[nr] == child0));
+
+            // The subtree of each node is a contiguous range of the
+            // post-order ending with the node itself
+            int start = index.getSubtreeStart(nr);
+            for (int childNr : new int[] {child0, child1}) {
+                Assert.assertTrue(index.postOrderPositions[childNr] < index.postOrderPositions[nr]);
+                Assert.assertTrue(index.getSubtreeStart(childNr) >= start);
+            }
+            Assert.assertEquals(index.subtreeSizes[child0] + index.subtreeSizes[child1] + 1,
+                    index.subtreeSizes[nr]);
+        }
+
+        for (int i = 0; i < tree.getNodeCount(); i++)
+            Assert.assertEquals(i, index.postOrderPositions[index.postOrder[i]]);
+    }
+
+    /**
+     * Check that an index which is updated incrementally remains consistent
+     * with the tree after height and topology changes.
+     */
+    @Test
+    public void testUpdateAfterTreeChanges() {
+
+        Tree tree = new TreeParser("((1:1.0,2:1.0):1.5,(3:1.0,(4:0.7,5:0.7):0.3):1.5);",
+                false);
+
+        Parameterization parameterization = new EpiParameterization();
+        parameterization.initByName(
+                "origin", new RealParameter("4.1"),
+                "typeSet", new TypeSet(1),
+                "R0", new SkylineVectorParameter(
+                        new RealParameter("1.0"),
+                        new RealParameter("3.0 2.5")),
+                "becomeUninfectiousRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.5")),
+                "samplingProportion", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.3")),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0")));
+
+        TreeIndex index = new TreeIndex(tree.getNodeCount(),
+                new int[tree.getLeafNodeCount()], new boolean[tree.getLeafNodeCount()]);
+        index.update(tree, parameterization, 0.0);
+        assertIndexMatchesTree(index, tree, parameterization);
+
+        // Height change moving a node into a different interval
+        Node root = tree.getRoot();
+        root.setHeight(3.5);
+        index.update(tree, parameterization, 0.0);
+        assertIndexMatchesTree(index, tree, parameterization);
+
+        // Exchange of two subtrees below the root
+        Node left = root.getChild(0);
+        Node right = root.getChild(1);
+        Node leftChild = left.getChild(0);
+        Node rightChild = right.getChild(0);
+
+        left.removeChild(leftChild);
+        right.removeChild(rightChild);
+        left.addChild(rightChild);
+        right.addChild(leftChild);
+
+        index.update(tree, parameterization, 0.0);
+        assertIndexMatchesTree(index, tree, parameterization);
+
+        // The incrementally updated index agrees with a new one
+        TreeIndex newIndex = new TreeIndex(tree.getNodeCount(),
+                new int[tree.getLeafNodeCount()], new boolean[tree.getLeafNodeCount()]);
+        newIndex.update(tree, parameterization, 0.0);
+
+        Assert.assertArrayEquals(newIndex.nodeTimes, index.nodeTimes, 0.0);
+        Assert.assertArrayEquals(newIndex.intervalIndices, index.intervalIndices);
+        Assert.assertArrayEquals(newIndex.parentNrs, index.parentNrs);
+        Assert.assertArrayEquals(newIndex.firstChildNrs, index.firstChildNrs);
+        Assert.assertArrayEquals(newIndex.secondChildNrs, index.secondChildNrs);
+        Assert.assertArrayEquals(newIndex.postOrder, index.postOrder);
+    }
+}
@@ -107,4 +107,326 @@ public class ParameterizationTest {
         Assert.assertEquals(1, parameterization.getIntervalIndex(1.9));
         Assert.assertEquals(1, parameterization.getIntervalIndex(2.0));
     }
+
+    /**
+     * Check that changing a skyline value is reported to affect times up
+     * to the end of the corresponding interval only.
+     */
+    @Test
+    public void testLatestAffectedTime() {
+        RealParameter birthRateValues = new RealParameter("4.0 4.0 3.0 3.0 2.0 2.0");
+
+        SkylineVectorParameter birthRate = new SkylineVectorParameter(
+                new RealParameter("0.5 1.0"),
+                birthRateValues, 2);
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(2),
+                "origin", new RealParameter("2.0"),
+                "birthRate", birthRate,
+                "deathRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("3.0"), 2),
+                "birthRateAmongDemes", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.0"), 2),
+                "migrationRate", new SkylineMatrixParameter(
+                        null,
+                        new RealParameter("0.1"), 2),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.5"), 2),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2));
+
+        Assert.assertEquals(Double.POSITIVE_INFINITY, parameterization.getLatestAffectedTime(), 0.0);
+
+        parameterization.store();
+        birthRate.requiresRecalculation();
+        parameterization.requiresRecalculation();
+        Assert.assertEquals(Double.NEGATIVE_INFINITY, parameterization.getLatestAffectedTime(), 0.0);
+
+        parameterization.store();
+        birthRateValues.setValue(2, 3.5);
+        birthRate.requiresRecalculation();
+        parameterization.requiresRecalculation();
+        Assert.assertEquals(1.0, parameterization.getLatestAffectedTime(), TOLERANCE);
+
+        parameterization.restore();
+        Assert.assertEquals(Double.NEGATIVE_INFINITY, parameterization.getLatestAffectedTime(), 0.0);
+    }
+
+    /**
+     * Check that only the values depending on a changed parameter are
+     * recomputed, and that restore() reinstates the stored values.
+     */
+    @Test
+    public void testIncrementalUpdate() {
+        RealParameter birthRateValues = new RealParameter("4.0 3.0");
+
+        SkylineVectorParameter birthRate = new SkylineVectorParameter(
+                new RealParameter("1.0"),
+                birthRateValues, 2);
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(2),
+                "origin", new RealParameter("2.0"),
+                "birthRate", birthRate,
+                "deathRate", new SkylineVectorParameter(
+                        new RealParameter("0.5"),
+                        new RealParameter("3.0 2.0"), 2),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.5"), 2),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2));
+
+        Assert.assertEquals(3, parameterization.getTotalIntervalCount());
+        Assert.assertEquals(0.5, parameterization.getIntervalEndTimes()[0], TOLERANCE);
+        Assert.assertEquals(1.0, parameterization.getIntervalEndTimes()[1], TOLERANCE);
+        Assert.assertEquals(2.0, parameterization.getIntervalEndTimes()[2], TOLERANCE);
+
+        double[][] deathRates = parameterization.getDeathRates();
+
+        parameterization.store();
+        birthRateValues.setValue(1, 3.5);
+        birthRate.requiresRecalculation();
+        parameterization.requiresRecalculation();
+
+        Assert.assertEquals(3.5, parameterization.getBirthRates()[2][0], TOLERANCE);
+        Assert.assertEquals(4.0, parameterization.getBirthRates()[1][0], TOLERANCE);
+        Assert.assertTrue(parameterization.getDeathRates() == deathRates);
+
+        parameterization.restore();
+        Assert.assertEquals(3.0, parameterization.getBirthRates()[2][0], TOLERANCE);
+        Assert.assertEquals(2.0, parameterization.getDeathRates()[2][0], TOLERANCE);
+    }
+
+    /**
+     * Check the derived rates of an epi parameterization whose parameters
+     * change at different times.
+     */
+    @Test
+    public void testEpiParameterization() {
+
+        Parameterization parameterization = new EpiParameterization();
+        parameterization.initByName(
+                "origin", new RealParameter("2.0"),
+                "R0", new SkylineVectorParameter(
+                        new RealParameter("1.0"),
+                        new RealParameter("2.0 3.0")),
+                "becomeUninfectiousRate", new SkylineVectorParameter(
+                        new RealParameter("0.5"),
+                        new RealParameter("1.0 2.0")),
+                "samplingProportion", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("0.5")),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0")),
+                "rhoSampling", new TimedParameter(
+                        new RealParameter("1.5"),
+                        new RealParameter("0.3")));
+
+        Assert.assertEquals(4, parameterization.getTotalIntervalCount());
+
+        double[] birthRates = {2.0, 4.0, 6.0, 6.0};
+        double[] deathRates = {0.5, 1.0, 1.0, 1.0};
+        double[] rhoValues = {0.0, 0.0, 0.3, 0.0};
+
+        for (int interval=0; interval<4; interval++) {
+            Assert.assertEquals(birthRates[interval], parameterization.getBirthRates()[interval][0], TOLERANCE);
+            Assert.assertEquals(deathRates[interval], parameterization.getDeathRates()[interval][0], TOLERANCE);
+            Assert.assertEquals(deathRates[interval], parameterization.getSamplingRates()[interval][0], TOLERANCE);
+            Assert.assertEquals(rhoValues[interval], parameterization.getRhoValues()[interval][0], TOLERANCE);
+        }
+    }
+
+    /**
+     * Check that the interval end times and values are updated when two
+     * change times come to coincide, reducing the number of intervals,
+     * and that restore() reinstates the previous intervals and values.
+     */
+    @Test
+    public void testCoincidingChangeTimes() {
+        RealParameter birthRateChangeTimes = new RealParameter("0.5");
+
+        SkylineVectorParameter birthRate = new SkylineVectorParameter(
+                birthRateChangeTimes,
+                new RealParameter("4.0 3.0"), 2);
+
+        Parameterization parameterization = new CanonicalParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(2),
+                "origin", new RealParameter("2.0"),
+                "birthRate", birthRate,
+                "deathRate", new SkylineVectorParameter(
+                        new RealParameter("1.0"),
+                        new RealParameter("3.0 2.0"), 2),
+                "samplingRate", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.5"), 2),
+                "removalProb", new SkylineVectorParameter(
+                        null,
+                        new RealParameter("1.0"), 2));
+
+        Assert.assertEquals(3, parameterization.getTotalIntervalCount());
+
+        parameterization.store();
+        birthRateChangeTimes.setValue(1.0);
+        birthRate.requiresRecalculation();
+        parameterization.requiresRecalculation();
+
+        Assert.assertEquals(2, parameterization.getTotalIntervalCount());
+        Assert.assertEquals(1.0, parameterization.getIntervalEndTimes()[0], TOLERANCE);
+        Assert.assertEquals(2.0, parameterization.getIntervalEndTimes()[1], TOLERANCE);
+        Assert.assertEquals(4.0, parameterization.getBirthRates()[0][0], TOLERANCE);
+        Assert.assertEquals(3.0, parameterization.getBirthRates()[1][0], TOLERANCE);
+        Assert.assertEquals(3.0, parameterization.getDeathRates()[0][0], TOLERANCE);
+        Assert.assertEquals(2.0, parameterization.getDeathRates()[1][0], TOLERANCE);
+
+        parameterization.restore();
+
+        Assert.assertEquals(3, parameterization.getTotalIntervalCount());
+        Assert.assertEquals(0.5, parameterization.getIntervalEndTimes()[0], TOLERANCE);
+        Assert.assertEquals(1.0, parameterization.getIntervalEndTimes()[1], TOLERANCE);
+        Assert.assertEquals(2.0, parameterization.getIntervalEndTimes()[2], TOLERANCE);
+
+        double[] birthRates = {4.0, 3.0, 3.0};
+        double[] deathRates = {3.0, 3.0, 2.0};
+        for (int interval=0; interval<3; interval++) {
+            Assert.assertEquals(birthRates[interval], parameterization.getBirthRates()[interval][0], TOLERANCE);
+            Assert.assertEquals(deathRates[interval], parameterization.getDeathRates()[interval][0], TOLERANCE);
+        }
+    }
+
+    /**
+     * Parameterization implementing none of the methods giving the values
+     * of the canonical parameters.
+     */
+    public static class IncompleteParameterization extends Parameterization {
+
+        @Override
+        public double[] getBirthRateChangeTimes() {
+            return new double[] {1.0};
+        }
+
+        @Override
+        public double[] getMigRateChangeTimes() {
+            return EMPTY_TIME_ARRAY;
+        }
+
+        @Override
+        public double[] getCrossBirthRateChangeTimes() {
+            return EMPTY_TIME_ARRAY;
+        }
+
+        @Override
+        public double[] getDeathRateChangeTimes() {
+            return EMPTY_TIME_ARRAY;
+        }
+
+        @Override
+        public double[] getSamplingRateChangeTimes() {
+            return EMPTY_TIME_ARRAY;
+        }
+
+        @Override
+        public double[] getRemovalProbChangeTimes() {
+            return EMPTY_TIME_ARRAY;
+        }
+
+        @Override
+        public double[] getRhoSamplingTimes() {
+            return EMPTY_TIME_ARRAY;
+        }
+
+        @Override
+        protected void validateParameterTypeCounts() { }
+    }
+
+    /**
+     * Parameterization written against the earlier API, giving the values
+     * of the canonical parameters at a given time only.
+     */
+    public static class LegacyParameterization extends IncompleteParameterization {
+
+        @Override
+        protected double[] getBirthRateValues(double time) {
+            return time <= 1.0 ? new double[] {4.0, 4.5} : new double[] {3.0, 3.5};
+        }
+
+        @Override
+        protected double[][] getMigRateValues(double time) {
+            return new double[][] {{0.0, 0.1}, {0.2, 0.0}};
+        }
+
+        @Override
+        protected double[][] getCrossBirthRateValues(double time) {
+            return new double[2][2];
+        }
+
+        @Override
+        protected double[] getDeathRateValues(double time) {
+            return new double[] {1.0, 1.0};
+        }
+
+        @Override
+        protected double[] getSamplingRateValues(double time) {
+            return new double[] {0.5, 0.5};
+        }
+
+        @Override
+        protected double[] getRemovalProbValues(double time) {
+            return new double[] {1.0, 1.0};
+        }
+
+        @Override
+        protected double[] getRhoValues(double time) {
+            return new double[] {0.0, 0.0};
+        }
+    }
+
+    /**
+     * Check that a subclass implementing only the time-based methods of
+     * the earlier API gives the values of these methods in each interval.
+     */
+    @Test
+    public void testLegacySubclass() {
+
+        Parameterization parameterization = new LegacyParameterization();
+        parameterization.initByName(
+                "typeSet", new TypeSet(2),
+                "origin", new RealParameter("2.0"));
+
+        Assert.assertEquals(2, parameterization.getTotalIntervalCount());
+
+        Assert.assertEquals(4.0, parameterization.getBirthRates()[0][0], TOLERANCE);
+        Assert.assertEquals(4.5, parameterization.getBirthRates()[0][1], TOLERANCE);
+        Assert.assertEquals(3.0, parameterization.getBirthRates()[1][0], TOLERANCE);
+        Assert.assertEquals(3.5, parameterization.getBirthRates()[1][1], TOLERANCE);
+
+        for (int interval=0; interval<2; interval++) {
+            Assert.assertEquals(0.1, parameterization.getMigRates()[interval][0][1], TOLERANCE);
+            Assert.assertEquals(0.2, parameterization.getMigRates()[interval][1][0], TOLERANCE);
+            Assert.assertEquals(1.0, parameterization.getDeathRates()[interval][1], TOLERANCE);
+            Assert.assertEquals(0.5, parameterization.getSamplingRates()[interval][0], TOLERANCE);
+        }
+    }
+
+    /**
+     * Check that a subclass implementing neither API is rejected when it
+     * is initialized.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testIncompleteSubclass() {
+
+        new IncompleteParameterization().initByName(
+                "typeSet", new TypeSet(2),
+                "origin", new RealParameter("2.0"));
+    }
 }
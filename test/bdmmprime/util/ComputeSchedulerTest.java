@@ -0,0 +1,33 @@
+package bdmmprime.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+public class ComputeSchedulerTest {
+
+    /**
+     * Check that the pool is shared between callers, recreated after
+     * shutdown and omitted for a single thread.
+     */
+    @Test
+    public void testPoolLifecycle() {
+
+        ComputeScheduler scheduler = new ComputeScheduler(2);
+
+        ForkJoinPool pool = scheduler.getPool();
+        Assert.assertEquals(2, pool.getParallelism());
+        Assert.assertSame(pool, scheduler.getPool());
+
+        scheduler.shutdown();
+        Assert.assertTrue(pool.isShutdown());
+
+        ForkJoinPool newPool = scheduler.getPool();
+        Assert.assertNotSame(pool, newPool);
+        Assert.assertFalse(newPool.isShutdown());
+        scheduler.close();
+
+        Assert.assertNull(new ComputeScheduler(1).getPool());
+    }
+}